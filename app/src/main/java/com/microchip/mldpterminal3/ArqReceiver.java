@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+package com.microchip.mldpterminal3;
+
+/**
+ * Receiving end of the reliable MLDP transport, the reference for the module firmware.
+ *
+ * Frames are delivered in sequence order exactly once. Frames that arrive ahead of a missing one are kept in a
+ * window of WINDOW slots until the gap is repaired. The receiver acknowledges with SACK frames: at once when a frame
+ * arrives out of order or twice, after every ACK_EVERY frames in order, and otherwise ACK_DELAY after the last frame.
+ * A RESET frame with a new session id starts over, a repeated RESET of the current session is only acknowledged.
+ *
+ * The window buffers are allocated up front. The only services used are the Link for the SACK frames, the Sink for the
+ * data and a Scheduler for the delayed acknowledgement, which the firmware maps to its UART and a timer.
+ */
+public class ArqReceiver implements Frame.Handler {
+
+    public static final int WINDOW = 32;                                                            //Frames kept ahead of a gap, at most the 32 bits of the SACK bitmap
+    public static final int ACK_EVERY = 2;                                                          //In order frames per acknowledgement
+    public static final long ACK_DELAY = 20;                                                        //Time in milliseconds before a pending acknowledgement is sent anyway
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Receives the payload of each frame in order. The buffer is reused once the call returns.
+    public interface Sink {
+        void onData(byte[] data, int offset, int length);
+    }
+
+    private final Frame.Link link;
+    private final CommandEngine.Scheduler scheduler;
+    private final Sink sink;
+    private final byte[][] slots = new byte[WINDOW][Frame.MAX_PAYLOAD];
+    private final int[] lengths = new int[WINDOW];
+    private final boolean[] present = new boolean[WINDOW];
+    private final byte[] bitmap = new byte[4];
+    private int expected;                                                                           //Sequence of the next frame to deliver
+    private int session = -1;                                                                       //Id of the current session, -1 before the first RESET
+    private int unacknowledged;
+    private boolean ackScheduled;
+    private int delivered, duplicates, outOfWindow;
+
+    private final Runnable ackTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ArqReceiver.this) {
+                ackScheduled = false;
+                if (unacknowledged > 0) {
+                    sendAck();
+                }
+            }
+        }
+    };
+
+    public ArqReceiver(Frame.Link link, CommandEngine.Scheduler scheduler, Sink sink) {
+        this.link = link;
+        this.scheduler = scheduler;
+        this.sink = sink;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Frame from the Frame.Decoder. SACK frames belong to the sender and are ignored.
+    @Override
+    public synchronized void onFrame(int type, int sequence, byte[] payload, int length) {
+        boolean ackNow = false;
+        if (type == Frame.TYPE_RESET) {
+            final int id = length > 0 ? payload[0] & 0xff : 0;
+            if (id != session) {
+                session = id;
+                expected = (sequence + 1) & 0xff;
+                for (int i = 0; i < WINDOW; i++) {
+                    present[i] = false;
+                }
+            }
+            ackNow = true;
+        }
+        else if (type == Frame.TYPE_DATA) {
+            if (session < 0) {
+                return;                                                                             //No session yet, the sender will repeat its RESET
+            }
+            final int distance = (sequence - expected) & 0xff;
+            final int slot = sequence & (WINDOW - 1);
+            if (distance >= Frame.SEQUENCE_SPACE / 2 || (distance < WINDOW && present[slot])) {
+                duplicates++;                                                                       //Already received, its acknowledgement was lost
+                ackNow = true;
+            }
+            else if (distance >= WINDOW) {
+                outOfWindow++;                                                                      //Sender is ahead of our window, tell it where we are
+                ackNow = true;
+            }
+            else {
+                System.arraycopy(payload, 0, slots[slot], 0, length);
+                lengths[slot] = length;
+                present[slot] = true;
+                unacknowledged++;
+                ackNow = distance != 0;                                                             //A gap, report it at once so the sender repairs it
+                while (present[expected & (WINDOW - 1)]) {
+                    final int next = expected & (WINDOW - 1);
+                    present[next] = false;
+                    delivered++;
+                    sink.onData(slots[next], 0, lengths[next]);
+                    expected = (expected + 1) & 0xff;
+                }
+            }
+        }
+        else {
+            return;
+        }
+        if (ackNow || unacknowledged >= ACK_EVERY) {
+            sendAck();
+        }
+        else if (!ackScheduled) {
+            ackScheduled = true;
+            scheduler.schedule(ackTask, ACK_DELAY);
+        }
+    }
+
+    // Called with the lock held
+    private void sendAck() {
+        int bits = 0;
+        for (int i = 0; i < WINDOW - 1; i++) {
+            if (present[(expected + 1 + i) & (WINDOW - 1)]) {
+                bits |= 1 << i;
+            }
+        }
+        bitmap[0] = (byte) bits;
+        bitmap[1] = (byte) (bits >> 8);
+        bitmap[2] = (byte) (bits >> 16);
+        bitmap[3] = (byte) (bits >> 24);
+        if (link.send(Frame.encode(Frame.TYPE_SACK, expected, bitmap, 0, bitmap.length))) {
+            unacknowledged = 0;
+        }
+        else if (!ackScheduled) {
+            ackScheduled = true;                                                                    //Link is busy, try again shortly
+            scheduler.schedule(ackTask, ACK_DELAY);
+        }
+    }
+
+    public synchronized int getDelivered() {
+        return delivered;
+    }
+
+    public synchronized int getDuplicates() {
+        return duplicates;
+    }
+
+    public synchronized int getOutOfWindow() {
+        return outOfWindow;
+    }
+}
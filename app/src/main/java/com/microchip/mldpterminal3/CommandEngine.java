@@ -0,0 +1,435 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs a script of RN4020 ASCII commands and matches each reply from the receive stream to the command that caused it.
+ *
+ * Each command is written as a single packet followed by CR LF. Replies are split into lines and given to the oldest
+ * command still waiting: "AOK" and "ERR" complete a set or action command, get commands complete on their value line,
+ * list commands on "END", dump commands once the module goes quiet and a reboot on the next "CMD".
+ * Up to maxInFlight commands that complete on a single line are sent ahead of their replies. Commands with multi-line
+ * or delayed replies are only sent once everything before them has completed.
+ * A late reply to a command that timed out would be taken for the reply of the next one, so after a timeout every
+ * command in flight is reported as timed out and lines are dropped until the module has been quiet for QUIET_TIME.
+ * Only then is the next command sent.
+ */
+public class CommandEngine {
+
+    public static final long DEFAULT_TIMEOUT = 1000;                                                //Time in milliseconds to wait for the reply to a command
+    public static final long REBOOT_TIMEOUT = 5000;                                                 //Time in milliseconds for the module to reboot and print CMD
+    private static final long QUIET_TIME = 150;                                                     //Silence in milliseconds that ends a dump reply
+    private static final int MAX_PACKET_SIZE = 20;                                                  //Max data size in MLDP_data
+    private static final byte[] LINE_END = {'\r', '\n'};
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // How the module ends its reply to a command
+    public enum Reply {
+        STATUS,                                                                                     //AOK or ERR
+        VALUE,                                                                                      //One value line (or ERR)
+        UNTIL_END,                                                                                  //Lines until END
+        UNTIL_QUIET,                                                                                //Lines until nothing arrives for QUIET_TIME
+        UNTIL_CMD,                                                                                  //Lines until CMD, after a reboot
+        NONE                                                                                        //No reply expected
+    }
+
+    public enum Status {OK, ERROR, VALUE, TIMEOUT, SKIPPED}
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Outcome of one command of a script
+    public static class Result {
+        private final String command;
+        private Status status;
+        private final List<String> lines = new ArrayList<String>();
+        private long latency;
+
+        Result(String command) {
+            this.command = command;
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public List<String> getLines() {
+            return Collections.unmodifiableList(lines);
+        }
+
+        // Time in milliseconds from sending the command to its completion
+        public long getLatency() {
+            return latency;
+        }
+
+        public boolean isSuccess() {
+            return status == Status.OK || status == Status.VALUE;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(command).append(" -> ").append(status);
+            for (String line : lines) {
+                builder.append(' ').append(line);
+            }
+            return builder.append(" (").append(latency).append("ms)").toString();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Writes one packet to the module, usually MldpBluetoothService.writeMLDP
+    public interface Transport {
+        void send(byte[] packet);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Runs delayed tasks for the timeouts and delivers results, usually backed by a Handler
+    public interface Scheduler {
+        long currentTimeMillis();
+        void schedule(Runnable task, long delayMillis);
+        void cancel(Runnable task);
+    }
+
+    public interface Callback {
+        void onScriptComplete(List<Result> results);
+    }
+
+    private class Pending {
+        final Result result;
+        final Reply reply;
+        final long timeout;
+        long sentTime;
+
+        Pending(String command, Reply reply, long timeout) {
+            this.result = new Result(command);
+            this.reply = reply;
+            this.timeout = timeout;
+        }
+    }
+
+    private final Transport transport;
+    private final Scheduler scheduler;
+    private final Charset charset = Charset.forName("US-ASCII");
+    private final int maxInFlight;
+
+    private final LinkedList<Pending> waiting = new LinkedList<Pending>();                          //Commands not sent yet
+    private final LinkedList<Pending> inFlight = new LinkedList<Pending>();                         //Commands sent and waiting for their reply, oldest first
+    private final List<Result> results = new ArrayList<Result>();
+    private final StringBuilder partialLine = new StringBuilder();
+    private Callback callback;
+    private boolean stopOnError;
+    private boolean settling;                                                                       //Dropping the late replies of a timed out command
+
+    public CommandEngine(Transport transport, Scheduler scheduler, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("At least one command must be allowed in flight");
+        }
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.maxInFlight = maxInFlight;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Split a script into commands. Blank lines and lines starting with # are ignored.
+    public static List<String> parseScript(String script) {
+        List<String> commands = new ArrayList<String>();
+        for (String line : script.split("\r?\n")) {
+            line = line.trim();
+            if (line.length() > 0 && !line.startsWith("#")) {
+                commands.add(line);
+            }
+        }
+        return commands;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Reply expected for a command, from the RN4020 command reference
+    public static Reply replyFor(String command) {
+        final String upper = command.toUpperCase(Locale.US);
+        if (upper.startsWith("R,")) {
+            return Reply.UNTIL_CMD;
+        }
+        if (upper.startsWith("LS") || upper.startsWith("LC")) {
+            return Reply.UNTIL_END;
+        }
+        if (upper.equals("D")) {
+            return Reply.UNTIL_QUIET;
+        }
+        if (upper.equals("V") || upper.startsWith("G") || upper.startsWith("CHR") || upper.startsWith("CUR")) {
+            return Reply.VALUE;
+        }
+        return Reply.STATUS;
+    }
+
+    public synchronized boolean isRunning() {
+        return callback != null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start a script. Results are delivered to the callback once every command has completed, timed out or been skipped.
+    public synchronized boolean run(List<String> commands, boolean stopOnError, Callback callback) {
+        if (this.callback != null) {
+            return false;                                                                           //One script at a time
+        }
+        this.callback = callback;
+        this.stopOnError = stopOnError;
+        settling = false;
+        results.clear();
+        partialLine.setLength(0);
+        for (String command : commands) {
+            Reply reply = replyFor(command);
+            waiting.add(new Pending(command, reply, reply == Reply.UNTIL_CMD ? REBOOT_TIMEOUT : DEFAULT_TIMEOUT));
+        }
+        sendNext();
+        return true;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Give received text to the engine. Text that arrives while no script runs is ignored.
+    public synchronized void onDataReceived(CharSequence data) {
+        if (callback == null || data == null) {
+            return;
+        }
+        for (int i = 0; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if (c == '\n') {
+                String line = partialLine.toString().trim();
+                partialLine.setLength(0);
+                if (line.length() > 0) {
+                    onLine(line);
+                }
+            }
+            else if (c != '\r') {
+                partialLine.append(c);
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stop the script, for example on disconnect. Commands not completed are reported as skipped.
+    public synchronized void cancel() {
+        if (callback == null) {
+            return;
+        }
+        scheduler.cancel(timeoutTask);
+        scheduler.cancel(settleTask);
+        settling = false;
+        skipRemaining(inFlight);
+        skipRemaining(waiting);
+        finish();
+    }
+
+    private void onLine(String line) {
+        if (settling) {
+            scheduler.cancel(settleTask);                                                           //Late reply, wait for the module to go quiet again
+            scheduler.schedule(settleTask, QUIET_TIME);
+            return;
+        }
+        if (inFlight.isEmpty()) {
+            return;                                                                                 //Unsolicited line such as CMD after connecting
+        }
+        Pending pending = inFlight.getFirst();
+        if (pending.reply == Reply.UNTIL_CMD) {
+            if (line.equals("CMD")) {
+                complete(Status.OK);
+            }
+            else if (line.equals("ERR")) {
+                complete(Status.ERROR);
+            }
+            else {
+                pending.result.lines.add(line);                                                     //Reboot message
+            }
+            return;
+        }
+        if (line.equals("CMD")) {
+            return;                                                                                 //Only a reboot prints CMD during a script
+        }
+        if (line.equals("ERR")) {
+            complete(Status.ERROR);
+            return;
+        }
+        switch (pending.reply) {
+            case STATUS:
+                if (line.equals("AOK")) {
+                    complete(Status.OK);
+                }
+                else {
+                    pending.result.lines.add(line);                                                 //Some action commands print a line before AOK
+                }
+                break;
+            case VALUE:
+                pending.result.lines.add(line);
+                complete(Status.VALUE);
+                break;
+            case UNTIL_END:
+                if (line.equals("END")) {
+                    complete(Status.VALUE);
+                }
+                else {
+                    pending.result.lines.add(line);
+                }
+                break;
+            case UNTIL_QUIET:
+                pending.result.lines.add(line);
+                scheduler.cancel(timeoutTask);
+                scheduler.schedule(timeoutTask, QUIET_TIME);                                        //Reply ends once the module goes quiet
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void complete(Status status) {
+        Pending pending = inFlight.removeFirst();
+        pending.result.status = status;
+        pending.result.latency = scheduler.currentTimeMillis() - pending.sentTime;
+        results.add(pending.result);
+        scheduler.cancel(timeoutTask);
+        if (status == Status.ERROR && stopOnError) {
+            skipRemaining(inFlight);
+            skipRemaining(waiting);
+        }
+        else if (!inFlight.isEmpty()) {
+            scheduleTimeout(inFlight.getFirst());
+        }
+        sendNext();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Send as many waiting commands as the pipelining rules allow, and finish once nothing is left
+    private void sendNext() {
+        while (!waiting.isEmpty()) {
+            Pending next = waiting.getFirst();
+            boolean barrier = next.reply != Reply.STATUS && next.reply != Reply.VALUE;
+            if (!inFlight.isEmpty() && (barrier || inFlight.size() >= maxInFlight || isBarrier(inFlight.getLast()))) {
+                break;
+            }
+            waiting.removeFirst();
+            next.sentTime = scheduler.currentTimeMillis();
+            write(next.result.command);
+            if (next.reply == Reply.NONE) {
+                next.result.status = Status.OK;
+                results.add(next.result);
+                continue;
+            }
+            inFlight.add(next);
+            if (inFlight.size() == 1) {
+                scheduleTimeout(next);
+            }
+        }
+        if (waiting.isEmpty() && inFlight.isEmpty()) {
+            finish();
+        }
+    }
+
+    private static boolean isBarrier(Pending pending) {
+        return pending.reply != Reply.STATUS && pending.reply != Reply.VALUE;
+    }
+
+    // Write the command and line end, split only if longer than one packet
+    private void write(String command) {
+        byte[] text = command.getBytes(charset);
+        byte[] bytes = new byte[text.length + LINE_END.length];
+        System.arraycopy(text, 0, bytes, 0, text.length);
+        System.arraycopy(LINE_END, 0, bytes, text.length, LINE_END.length);
+        for (int offset = 0; offset < bytes.length; offset += MAX_PACKET_SIZE) {
+            byte[] packet = new byte[Math.min(MAX_PACKET_SIZE, bytes.length - offset)];
+            System.arraycopy(bytes, offset, packet, 0, packet.length);
+            transport.send(packet);
+        }
+    }
+
+    // The deadline of a command runs from when it reaches the head of the in-flight list
+    private void scheduleTimeout(Pending pending) {
+        long elapsed = scheduler.currentTimeMillis() - pending.sentTime;
+        scheduler.schedule(timeoutTask, Math.max(0, pending.timeout - elapsed));
+    }
+
+    private final Runnable timeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (CommandEngine.this) {
+                if (inFlight.isEmpty()) {
+                    return;
+                }
+                Pending pending = inFlight.getFirst();
+                if (pending.reply == Reply.UNTIL_QUIET && !pending.result.lines.isEmpty()) {
+                    complete(Status.VALUE);                                                         //Quiet after the dump lines is the normal end
+                }
+                else {
+                    timeOut();
+                }
+            }
+        }
+    };
+
+    // No reply in time. The commands in flight can no longer be matched to the lines that arrive, report them all.
+    private void timeOut() {
+        final long now = scheduler.currentTimeMillis();
+        for (Pending pending : inFlight) {
+            pending.result.status = Status.TIMEOUT;
+            pending.result.latency = now - pending.sentTime;
+            results.add(pending.result);
+        }
+        inFlight.clear();
+        settling = true;
+        scheduler.schedule(settleTask, QUIET_TIME);
+    }
+
+    private final Runnable settleTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (CommandEngine.this) {
+                if (!settling) {
+                    return;
+                }
+                settling = false;
+                sendNext();
+            }
+        }
+    };
+
+    private void skipRemaining(List<Pending> list) {
+        for (Pending pending : list) {
+            pending.result.status = Status.SKIPPED;
+            results.add(pending.result);
+        }
+        list.clear();
+    }
+
+    private void finish() {
+        final Callback done = callback;
+        final List<Result> finished = new ArrayList<Result>(results);
+        callback = null;
+        scheduler.schedule(new Runnable() {                                                         //Deliver outside the lock
+            @Override
+            public void run() {
+                done.onScriptComplete(finished);
+            }
+        }, 0);
+    }
+}
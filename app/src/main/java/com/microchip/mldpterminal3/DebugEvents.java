@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+package com.microchip.mldpterminal3;
+
+/**
+ * Binary event recording for the BLE and DFU hot paths.
+ *
+ * Events go to a process wide EventRing instead of logcat and are only turned into text when they are dumped, on
+ * demand or when something goes wrong. This class is plain Java, so the write queue, the DFU classes and the
+ * simulations that use them record events the same way on the phone and in unit tests.
+ */
+public final class DebugEvents {
+
+    public static final int EVENT_CONNECTION_STATE = 1;                                             //a: new state, b: GATT status
+    public static final int EVENT_DESCRIPTOR_WRITE = 2;                                             //a: queue size, b: GATT status
+    public static final int EVENT_WRITE_QUEUED = 3;                                                 //a: writes in the batch, b: queue size
+    public static final int EVENT_WRITE_STARTED = 4;                                                //a: length, b: write type
+    public static final int EVENT_WRITE_DONE = 5;                                                   //a: queue size, b: GATT status
+    public static final int EVENT_WRITE_FAILED = 6;                                                 //a: queue size, b: failure count
+    public static final int EVENT_DATA_RECEIVED = 7;                                                //a: length, b: handling time in us (capped)
+    public static final int EVENT_DFU_PACKET = 8;                                                   //a: offset, b: length
+    public static final int EVENT_DFU_PROGRESS = 9;                                                 //a: bytes sent, b: percent
+    public static final int EVENT_DFU_RESULT = 10;                                                  //a: bytes sent, b: 1 if successful
+    public static final int EVENT_GATT_STALL = 11;                                                  //a: operation, b: recovery action
+    public static final int EVENT_LINK_SAMPLE = 12;                                                 //a: smoothed RSSI, b: connection interval in 0.1ms
+    public static final int EVENT_STARTUP = 13;                                                     //a: milestone index, b: time since process start in ms
+    public static final int EVENT_DFU_STATE = 14;                                                   //a: new DfuStateMachine state, b: reason
+
+    private static final String[] EVENT_NAMES = {null, "CONNECTION_STATE", "DESCRIPTOR_WRITE", "WRITE_QUEUED",
+            "WRITE_STARTED", "WRITE_DONE", "WRITE_FAILED", "DATA_RECEIVED", "DFU_PACKET", "DFU_PROGRESS", "DFU_RESULT", "GATT_STALL",
+            "LINK_SAMPLE", "STARTUP", "DFU_STATE"};
+
+    private static final int EVENT_CAPACITY = 4096;                                                 //About 20 s of DFU packets for 64 KB of memory
+    private static final EventRing events = new EventRing(EVENT_CAPACITY);
+
+    private DebugEvents() {
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Record a hot path event in the ring. Nothing is formatted or allocated.
+    public static void record(int code, int a, int b) {
+        events.record(code, a, b);
+    }
+
+    public static String getEvents() {
+        return events.dump(EVENT_NAMES);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Return the recorded events as text and start a new recording
+    public static String takeEvents() {
+        synchronized (events) {
+            final String dump = events.dump(EVENT_NAMES);
+            events.clear();
+            return dump;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+/**
+ * Logging facade for the BLE and DFU hot paths.
+ *
+ * Messages are only built when their level is enabled: callers pass constant text and raw values, and the
+ * concatenation happens after the level check. Enabled messages go to a Sink; MldpTerminalApplication installs one
+ * that writes to logcat and sets the level from the build type, so release builds log warnings and errors only.
+ * Without a sink nothing is written, which keeps the plain Java classes that log usable in unit tests. Hot path
+ * events are recorded by DebugEvents instead and dumped here on demand or when something goes wrong.
+ */
+public final class DebugLog {
+
+    public static final int VERBOSE = 2;                                                            //Same values as the android.util.Log priorities
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private static final int LOG_ENTRY_LENGTH = 4000;                                               //Logcat entries are limited to about 4 KB
+
+    /**
+     * Destination of the enabled messages.
+     */
+    public interface Sink {
+        void log(int priority, String tag, String message);
+    }
+
+    private static volatile Sink sink;
+    private static volatile int level = WARN;
+
+    private DebugLog() {
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Where enabled messages are written, null to drop them
+    public static void setSink(Sink newSink) {
+        sink = newSink;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Lowest level that is sent to the sink, one of the priority constants above
+    public static void setLevel(int newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean isLoggable(int priority) {
+        return priority >= level && sink != null;
+    }
+
+    public static void v(String tag, String message) {
+        if (VERBOSE >= level) {
+            write(VERBOSE, tag, message);
+        }
+    }
+
+    public static void d(String tag, String message) {
+        if (DEBUG >= level) {
+            write(DEBUG, tag, message);
+        }
+    }
+
+    public static void d(String tag, String message, Object value) {
+        if (DEBUG >= level && sink != null) {
+            write(DEBUG, tag, message + value);
+        }
+    }
+
+    public static void d(String tag, String message, long value) {
+        if (DEBUG >= level && sink != null) {
+            write(DEBUG, tag, message + value);
+        }
+    }
+
+    public static void i(String tag, String message) {
+        if (INFO >= level) {
+            write(INFO, tag, message);
+        }
+    }
+
+    public static void i(String tag, String message, Object value) {
+        if (INFO >= level && sink != null) {
+            write(INFO, tag, message + value);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write the events recorded by DebugEvents, whatever the level, and start a new recording
+    public static void dumpEvents(String tag, String reason) {
+        final String dump = DebugEvents.takeEvents();
+        write(WARN, tag, "Event dump (" + reason + ")");
+        int start = 0;
+        while (start < dump.length()) {                                                             //Logcat truncates long entries, write the dump in pieces
+            int end = Math.min(dump.length(), start + LOG_ENTRY_LENGTH);
+            final int newline = dump.lastIndexOf('\n', end - 1);
+            if (end < dump.length() && newline >= start) {
+                end = newline + 1;                                                                  //Cut after a complete event
+            }
+            write(WARN, tag, dump.substring(start, end));
+            start = end;
+        }
+    }
+
+    private static void write(int priority, String tag, String message) {
+        final Sink current = sink;
+        if (current != null) {
+            current.log(priority, tag, message);
+        }
+    }
+}
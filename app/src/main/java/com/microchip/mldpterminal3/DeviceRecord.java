@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What the DeviceRegistry knows about one module: name, firmware version, last RSSI, the characteristics found on it
+ * and its latest DFU attempts. Records are updated by the registry only, under its lock.
+ */
+public class DeviceRecord {
+
+    public static final int LAYOUT_MLDP_DATA = 0x01;                                                //Flags of the cached GATT layout
+    public static final int LAYOUT_MLDP_CONTROL = 0x02;
+    public static final int LAYOUT_TRANSPARENT_TX = 0x04;
+    public static final int LAYOUT_TRANSPARENT_RX = 0x08;
+    public static final int LAYOUT_DEVICE_NAME = 0x10;
+    public static final int LAYOUT_FIRMWARE_REVISION = 0x20;
+
+    static final int MAX_DFU_HISTORY = 8;                                                           //DFU attempts kept per device, oldest are dropped
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // One DFU attempt on the device
+    public static class DfuAttempt {
+        private final long time;
+        private final String version;
+        private final boolean success;
+        private final int durationMillis;
+
+        public DfuAttempt(long time, String version, boolean success, int durationMillis) {
+            this.time = time;
+            this.version = version;
+            this.success = success;
+            this.durationMillis = durationMillis;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public String getVersion() {
+            return version;
+        }
+
+        public boolean isSuccess() {
+            return success;
+        }
+
+        public int getDurationMillis() {
+            return durationMillis;
+        }
+    }
+
+    private final String address;
+    String name;
+    String firmware;                                                                                //Firmware revision read from the device, null if unknown
+    int rssi;                                                                                       //Last RSSI in dBm, 0 if unknown
+    long lastSeen;                                                                                  //Time of the last scan result or RSSI sample
+    long lastConnected;
+    int gattLayout;                                                                                 //LAYOUT_ flags of the characteristics found at the last connection
+    final List<DfuAttempt> dfuHistory = new ArrayList<DfuAttempt>();
+
+    DeviceRecord(String address) {
+        this.address = address;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getFirmware() {
+        return firmware;
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    public long getLastConnected() {
+        return lastConnected;
+    }
+
+    public int getGattLayout() {
+        return gattLayout;
+    }
+
+    public boolean hasLayout(int flags) {
+        return (gattLayout & flags) == flags;
+    }
+
+    public List<DfuAttempt> getDfuHistory() {
+        return Collections.unmodifiableList(dfuHistory);
+    }
+
+    void addDfuAttempt(DfuAttempt attempt) {
+        dfuHistory.add(attempt);
+        while (dfuHistory.size() > MAX_DFU_HISTORY) {
+            dfuHistory.remove(0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (name != null ? name : "?") + " - " + address;
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Known modules, kept in a small binary file in app storage and indexed by address.
+ *
+ * The registry is read once on a background thread when it is created, so the file is read while the app starts up and
+ * only a lookup made before the read is done has to wait. Updates only change memory and mark the registry dirty, a background
+ * thread writes the whole file SAVE_DELAY later so a burst of updates (scan results, RSSI samples) costs one write.
+ * The file is written to a temporary file and renamed, so a crash never leaves a half written registry.
+ */
+public class DeviceRegistry {
+
+    private final static String TAG = DeviceRegistry.class.getSimpleName();                         //Class name for logging messages on the ADB
+
+    public static final String FILE_NAME = "devices.bin";
+    private static final int MAGIC = 0x4d445231;                                                    //"MDR1"
+    private static final long SAVE_DELAY = 2000;                                                    //Time in milliseconds updates are batched before writing the file
+    private static final int MAX_DEVICES = 64;                                                      //Least recently seen devices are dropped beyond this
+    public static final long NEARBY_AGE = 10 * 60 * 1000;                                           //Devices seen within this time in milliseconds are considered nearby
+
+    private final File file;
+    private final Map<String, DeviceRecord> devices = new LinkedHashMap<String, DeviceRecord>();    //Indexed by address
+    private String lastConnectedAddress;
+    private boolean loaded, dirty, saveScheduled;
+    private final ScheduledThreadPoolExecutor writer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, TAG);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+
+    private final Runnable saveTask = new Runnable() {
+        @Override
+        public void run() {
+            save();
+        }
+    };
+
+    private final Runnable loadTask = new Runnable() {
+        @Override
+        public void run() {
+            load();
+        }
+    };
+
+    public DeviceRegistry(File file) {
+        this.file = file;
+        writer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);                            //close() writes pending updates at once instead
+        writer.execute(loadTask);                                                                   //Read the file in the background, lookups wait for it
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Lookups
+    public synchronized DeviceRecord find(String address) {
+        awaitLoaded();
+        return address != null ? devices.get(address) : null;
+    }
+
+    public synchronized DeviceRecord getLastConnected() {
+        awaitLoaded();
+        return find(lastConnectedAddress);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Device to connect to on startup: the last device used, or the known device with the strongest RSSI if the last
+    // one has not been seen in the last maxAgeMillis. Null if no device is known.
+    public synchronized DeviceRecord findAutoConnectDevice(long maxAgeMillis) {
+        final DeviceRecord last = getLastConnected();
+        final DeviceRecord strongest = findStrongest(maxAgeMillis);
+        if (strongest != null && (last == null || last.lastSeen < System.currentTimeMillis() - maxAgeMillis)) {
+            return strongest;
+        }
+        return last;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Known device with the strongest RSSI seen in the last maxAgeMillis, null if none
+    public synchronized DeviceRecord findStrongest(long maxAgeMillis) {
+        awaitLoaded();
+        final long oldest = System.currentTimeMillis() - maxAgeMillis;
+        DeviceRecord strongest = null;
+        for (DeviceRecord device : devices.values()) {
+            if (device.rssi != 0 && device.lastSeen >= oldest && (strongest == null || device.rssi > strongest.rssi)) {
+                strongest = device;
+            }
+        }
+        return strongest;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Known devices, the most recently connected first
+    public synchronized List<DeviceRecord> getDevices() {
+        awaitLoaded();
+        final List<DeviceRecord> list = new ArrayList<DeviceRecord>(devices.values());
+        Collections.sort(list, new Comparator<DeviceRecord>() {
+            @Override
+            public int compare(DeviceRecord a, DeviceRecord b) {
+                return a.lastConnected < b.lastConnected ? 1 : (a.lastConnected == b.lastConnected ? 0 : -1);
+            }
+        });
+        return list;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Updates, written to the file in the background
+    public synchronized void onSeen(String address, String name, int rssi) {
+        final DeviceRecord device = find(address);
+        if (device == null) {
+            return;                                                                                 //Only devices we connected to are registered, not every advertiser around
+        }
+        if (name != null) {
+            device.name = name;
+        }
+        device.rssi = rssi;
+        device.lastSeen = System.currentTimeMillis();
+        markDirty();
+    }
+
+    public synchronized void onConnected(String address, String name, int gattLayout) {
+        DeviceRecord device = find(address);
+        if (device == null) {
+            device = new DeviceRecord(address);
+            devices.put(address, device);
+            trim();
+        }
+        if (name != null) {
+            device.name = name;
+        }
+        device.gattLayout = gattLayout;
+        device.lastConnected = device.lastSeen = System.currentTimeMillis();
+        lastConnectedAddress = address;
+        markDirty();
+    }
+
+    // Device saved by older versions of the app, which kept only the last one. Becomes the last connected device unless
+    // the registry already has one; a device that is already known is left as it is.
+    public synchronized void importDevice(String address, String name) {
+        if (address == null || find(address) != null) {
+            return;
+        }
+        final DeviceRecord device = new DeviceRecord(address);
+        device.name = name;
+        device.lastConnected = System.currentTimeMillis();                                          //Last used by the older version, keeps it from being trimmed first
+        devices.put(address, device);
+        trim();
+        if (lastConnectedAddress == null) {
+            lastConnectedAddress = address;
+        }
+        markDirty();
+    }
+
+    public synchronized void setFirmware(String address, String firmware) {
+        final DeviceRecord device = find(address);
+        if (device != null && firmware != null) {
+            device.firmware = firmware;
+            markDirty();
+        }
+    }
+
+    public synchronized void setRssi(String address, int rssi) {
+        final DeviceRecord device = find(address);
+        if (device != null && rssi != 0) {
+            device.rssi = rssi;
+            device.lastSeen = System.currentTimeMillis();
+            markDirty();
+        }
+    }
+
+    public synchronized void addDfuAttempt(String address, DeviceRecord.DfuAttempt attempt) {
+        final DeviceRecord device = find(address);
+        if (device != null) {
+            device.addDfuAttempt(attempt);
+            markDirty();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write pending updates now, still in the background. Used when the app stops.
+    public void flush() {
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+        }
+        writer.execute(saveTask);
+    }
+
+    // Called with the lock held. Waits until the file has been read, releasing the lock meanwhile.
+    private void awaitLoaded() {
+        boolean interrupted = false;
+        while (!loaded) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                interrupted = true;                                                                 //Keep waiting, the read is short
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Called with the lock held
+    private void markDirty() {
+        dirty = true;
+        if (!saveScheduled) {
+            saveScheduled = true;
+            writer.schedule(saveTask, SAVE_DELAY, TimeUnit.MILLISECONDS);                           //Collect the updates that follow this one
+        }
+    }
+
+    // Called with the lock held. Drops the least recently seen devices.
+    private void trim() {
+        while (devices.size() > MAX_DEVICES) {
+            DeviceRecord oldest = null;
+            for (DeviceRecord device : devices.values()) {
+                if (oldest == null || Math.max(device.lastSeen, device.lastConnected) < Math.max(oldest.lastSeen, oldest.lastConnected)) {
+                    oldest = device;
+                }
+            }
+            devices.remove(oldest.getAddress());
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Runs on the writer thread. The records are encoded under the lock, the file is written outside of it.
+    private void save() {
+        final byte[] data;
+        synchronized (this) {
+            saveScheduled = false;
+            if (!dirty) {
+                return;
+            }
+            dirty = false;
+            try {
+                data = encode();
+            }
+            catch (IOException e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+                return;
+            }
+        }
+        final File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream output = null;
+        try {
+            output = new FileOutputStream(temp);
+            output.write(data);
+            output.getFD().sync();
+            output.close();
+            output = null;
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot rename " + temp);
+            }
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            synchronized (this) {
+                dirty = true;                                                                       //Try again with the next update
+            }
+        }
+        finally {
+            if (output != null) {
+                try {
+                    output.close();
+                }
+                catch (IOException e) {
+                    Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Called with the lock held
+    private byte[] encode() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + devices.size() * 96);
+        final DataOutputStream output = new DataOutputStream(bytes);
+        output.writeInt(MAGIC);
+        output.writeUTF(lastConnectedAddress != null ? lastConnectedAddress : "");
+        output.writeShort(devices.size());
+        for (DeviceRecord device : devices.values()) {
+            output.writeUTF(device.getAddress());
+            output.writeUTF(device.name != null ? device.name : "");
+            output.writeUTF(device.firmware != null ? device.firmware : "");
+            output.writeByte(device.rssi);                                                          //RSSI always fits in a byte (-127 to 20 dBm)
+            output.writeLong(device.lastSeen);
+            output.writeLong(device.lastConnected);
+            output.writeByte(device.gattLayout);
+            output.writeByte(device.dfuHistory.size());
+            for (DeviceRecord.DfuAttempt attempt : device.dfuHistory) {
+                output.writeLong(attempt.getTime());
+                output.writeUTF(attempt.getVersion() != null ? attempt.getVersion() : "");
+                output.writeBoolean(attempt.isSuccess());
+                output.writeInt(attempt.getDurationMillis());
+            }
+        }
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Runs on the writer thread. The file is read outside of the lock and the records are published at once.
+    private void load() {
+        final Map<String, DeviceRecord> read = new LinkedHashMap<String, DeviceRecord>();
+        String lastRead = null;
+        DataInputStream input = null;
+        try {
+            if (!file.exists()) {
+                return;
+            }
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Not a device registry: " + file);
+            }
+            lastRead = emptyToNull(input.readUTF());
+            final int count = input.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                final DeviceRecord device = new DeviceRecord(input.readUTF());
+                device.name = emptyToNull(input.readUTF());
+                device.firmware = emptyToNull(input.readUTF());
+                device.rssi = input.readByte();
+                device.lastSeen = input.readLong();
+                device.lastConnected = input.readLong();
+                device.gattLayout = input.readUnsignedByte();
+                final int attempts = input.readUnsignedByte();
+                for (int j = 0; j < attempts; j++) {
+                    device.addDfuAttempt(new DeviceRecord.DfuAttempt(input.readLong(), emptyToNull(input.readUTF()), input.readBoolean(), input.readInt()));
+                }
+                read.put(device.getAddress(), device);
+            }
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            read.clear();                                                                           //Start over rather than trust a damaged file
+            lastRead = null;
+        }
+        finally {
+            if (input != null) {
+                try {
+                    input.close();
+                }
+                catch (IOException e) {
+                    Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+                }
+            }
+            synchronized (this) {
+                devices.putAll(read);
+                lastConnectedAddress = lastRead;
+                loaded = true;
+                notifyAll();                                                                        //Release the lookups waiting for the file
+            }
+            StartupTrace.mark(StartupTrace.REGISTRY);
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value.length() > 0 ? value : null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write pending updates and stop the writer thread, waiting at most timeoutMillis
+    public void close(long timeoutMillis) {
+        flush();
+        writer.shutdown();
+        try {
+            writer.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
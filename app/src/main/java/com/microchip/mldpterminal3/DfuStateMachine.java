@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+package com.microchip.mldpterminal3;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * State of one DFU transfer, driven by connection, receive and write completion events.
+ *
+ * A transfer goes Idle, Streaming, Verifying then Done when the device answers "Upgrade OK". When the image is sent
+ * over MLDP first and the module is then switched to OTA, the first pass ends in EnteringOta until the module answers
+ * "OTA", and the image is streamed again. "Upgrade Err", a failed write, a disconnection or a missing answer end the
+ * transfer in Failed as soon as the event arrives, the Listener is told at once so it can stop the streamer without
+ * waiting for the next packet. Every transition is kept with its time.
+ *
+ * Events come from the binder thread (replies, write completions) and from the streamer thread (end of a pass), so
+ * the listener is told of the transitions in the order they happened: they are queued under the lock and delivered
+ * by one thread at a time. The timeouts are armed and cancelled under the lock as well.
+ *
+ * The machine has no Android dependencies, time and timeouts go through a CommandEngine.Scheduler.
+ */
+public class DfuStateMachine {
+
+    public enum State {IDLE, ENTERING_OTA, STREAMING, VERIFYING, DONE, FAILED}
+
+    public enum Reason {NONE, DEVICE_ERROR, DISCONNECTED, WRITE_FAILED, TIMEOUT, CANCELLED}
+
+    public static final long OTA_TIMEOUT = 5000;                                                    //Time in milliseconds for the module to answer "OTA"
+    public static final long VERIFY_TIMEOUT = 10000;                                                //Time in milliseconds for the module to check the image and answer
+    private static final String REPLY_OTA = "OTA\r\n";
+    private static final String REPLY_OK = "Upgrade OK";
+    private static final String REPLY_ERR = "Upgrade Err";
+    private static final int TAIL_LENGTH = 16;                                                      //Received text kept so a reply split between packets is still matched
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called in transition order without any lock of the machine held, on the thread of the event that caused the
+    // transition. A transition made while another thread is telling the listener is told by that thread right after.
+    public interface Listener {
+        void onStateChanged(DfuStateMachine machine, State from, State to);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // A state change and the time it happened
+    public static class Transition {
+        private final State from, to;
+        private final Reason reason;
+        private final long time;
+
+        Transition(State from, State to, Reason reason, long time) {
+            this.from = from;
+            this.to = to;
+            this.reason = reason;
+            this.time = time;
+        }
+
+        public State getFrom() {
+            return from;
+        }
+
+        public State getTo() {
+            return to;
+        }
+
+        public Reason getReason() {
+            return reason;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public String toString() {
+            return from + " -> " + to + (reason != Reason.NONE ? " (" + reason + ")" : "") + " at " + time;
+        }
+    }
+
+    private final CommandEngine.Scheduler scheduler;
+    private volatile Listener listener;
+    private State state = State.IDLE;
+    private Reason reason = Reason.NONE;
+    private boolean viaOta;                                                                         //Switch the module to OTA after the first pass
+    private boolean otaEntered;
+    private final StringBuilder tail = new StringBuilder(TAIL_LENGTH * 2);
+    private final List<Transition> transitions = new ArrayList<Transition>();
+    private final LinkedList<State[]> notifications = new LinkedList<State[]>();                    //From and to of the transitions the listener was not told yet
+    private boolean notifying;                                                                      //A thread is telling the listener
+
+    private final Runnable timeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+
+    public DfuStateMachine(CommandEngine.Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start a transfer. With viaOta the module is switched to OTA after the first pass and the image is sent again.
+    // Returns false if a transfer is already running.
+    public boolean start(boolean viaOta) {
+        synchronized (this) {
+            if (isActive()) {
+                return false;
+            }
+            this.viaOta = viaOta;
+            otaEntered = false;
+            transitions.clear();
+            tail.setLength(0);
+        }
+        return moveTo(State.STREAMING, Reason.NONE, null);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The user or the app gave up on the transfer
+    public void cancel() {
+        moveTo(State.FAILED, Reason.CANCELLED, null);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Connection events. A new connection clears a finished transfer, a lost one fails a running transfer.
+    public void onConnected() {
+        synchronized (this) {
+            if (isActive()) {
+                return;
+            }
+            state = State.IDLE;
+            reason = Reason.NONE;
+        }
+    }
+
+    public void onDisconnected() {
+        moveTo(State.FAILED, Reason.DISCONNECTED, null);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Receive events, with the text of each notification in the order it arrived
+    public void onTextReceived(CharSequence text) {
+        final State target;
+        final Reason why;
+        synchronized (this) {
+            if (!isActive()) {
+                return;
+            }
+            tail.append(text);
+            if (indexOf(REPLY_ERR) >= 0) {
+                target = State.FAILED;
+                why = Reason.DEVICE_ERROR;
+            }
+            else if (indexOf(REPLY_OK) >= 0 && (state == State.STREAMING || state == State.VERIFYING)) {
+                target = State.DONE;                                                                //Some firmware answers before the last write is acknowledged
+                why = Reason.NONE;
+            }
+            else if (indexOf(REPLY_OTA) >= 0 && state == State.ENTERING_OTA) {
+                target = State.STREAMING;
+                why = Reason.NONE;
+                otaEntered = true;
+            }
+            else {
+                if (tail.length() > TAIL_LENGTH) {
+                    tail.delete(0, tail.length() - TAIL_LENGTH);
+                }
+                return;
+            }
+            tail.setLength(0);                                                                      //Do not match the same reply twice
+        }
+        moveTo(target, why, null);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write completion events for the packets of the image, with a WriteHandle status
+    public void onWriteComplete(int status) {
+        if (status != WriteHandle.STATUS_SUCCESS) {
+            moveTo(State.FAILED, Reason.WRITE_FAILED, State.STREAMING);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The streamer finished a pass over the image. Returns the new state.
+    public State onStreamComplete(boolean success) {
+        final State target;
+        synchronized (this) {
+            if (state != State.STREAMING) {
+                return state;                                                                       //Failed meanwhile
+            }
+            target = !success ? State.FAILED : (viaOta && !otaEntered ? State.ENTERING_OTA : State.VERIFYING);
+        }
+        moveTo(target, success ? Reason.NONE : Reason.WRITE_FAILED, State.STREAMING);
+        return getState();
+    }
+
+    private void onTimeout() {
+        final State expected;
+        synchronized (this) {
+            expected = state;
+            if (expected != State.ENTERING_OTA && expected != State.VERIFYING) {
+                return;
+            }
+        }
+        moveTo(State.FAILED, Reason.TIMEOUT, expected);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Change state, only from the expected state if one is given. Returns false if nothing changed.
+    private boolean moveTo(State target, Reason why, State expected) {
+        final State from;
+        synchronized (this) {
+            from = state;
+            if (from == target || (expected != null && from != expected) || (target == State.FAILED && !isActive())) {
+                return false;
+            }
+            state = target;
+            reason = why;
+            transitions.add(new Transition(from, target, why, scheduler.currentTimeMillis()));
+            scheduler.cancel(timeoutTask);
+            if (target == State.ENTERING_OTA) {
+                scheduler.schedule(timeoutTask, OTA_TIMEOUT);
+            }
+            else if (target == State.VERIFYING) {
+                scheduler.schedule(timeoutTask, VERIFY_TIMEOUT);
+            }
+            DebugEvents.record(DebugEvents.EVENT_DFU_STATE, target.ordinal(), why.ordinal());
+            notifications.add(new State[] {from, target});
+            if (notifying) {
+                return true;                                                                        //The thread telling the listener tells this one next
+            }
+            notifying = true;
+        }
+        notifyListener();
+        return true;
+    }
+
+    // Tell the listener of the queued transitions in order, until none is left
+    private void notifyListener() {
+        boolean drained = false;
+        try {
+            while (true) {
+                final State[] next;
+                synchronized (this) {
+                    next = notifications.poll();
+                    if (next == null) {
+                        notifying = false;
+                        drained = true;
+                        return;
+                    }
+                }
+                final Listener current = listener;
+                if (current != null) {
+                    current.onStateChanged(this, next[0], next[1]);
+                }
+            }
+        }
+        finally {
+            if (!drained) {
+                synchronized (this) {
+                    notifying = false;                                                              //Listener threw, the next transition tells the rest
+                }
+            }
+        }
+    }
+
+    // Called with the lock held
+    private int indexOf(String reply) {
+        return tail.indexOf(reply);
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Cause of the last transition, NONE unless the transfer failed
+    public synchronized Reason getReason() {
+        return reason;
+    }
+
+    public synchronized boolean isActive() {
+        return state == State.ENTERING_OTA || state == State.STREAMING || state == State.VERIFYING;
+    }
+
+    public synchronized List<Transition> getTransitions() {
+        return new ArrayList<Transition>(transitions);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Time in milliseconds spent from the start of the transfer to its last transition
+    public synchronized long getElapsedMillis() {
+        if (transitions.isEmpty()) {
+            return 0;
+        }
+        return transitions.get(transitions.size() - 1).getTime() - transitions.get(0).getTime();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DFU " + state + (reason != Reason.NONE ? " (" + reason + ")" : "") + ", transitions " + transitions;
+    }
+}
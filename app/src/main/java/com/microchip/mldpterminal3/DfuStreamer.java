@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Cuts a DFU image into MLDP packets and writes them to the RN4020 with a fixed gap between packets.
+ *
+ * The streamer has no Android dependencies. Packets go out through a PacketWriter and all waiting goes through a
+ * Clock, so the same code path can be driven by the Bluetooth service or by a simulated module on a virtual clock.
+ * The image is pulled from an InputStream one packet at a time, so a compressed image is decoded as it is sent. The
+ * time spent reading the source is measured separately to show that decoding stays well below the packet gap.
+ */
+public class DfuStreamer {
+
+    public static final int DEFAULT_CHUNK_SIZE = 16;                                                //Max data size in MLDP_data is 20, 16 keeps the image aligned
+    public static final long DEFAULT_PACKET_GAP = 18;                                               //During tests we used 18ms of sleep between each packet. Less results in packet loss. 18 seems stable.
+    private static final double PROGRESS_STEP = 0.05;                                               //Report progress every 0.05% or more
+    private static final long PAUSE_STEP = 100;                                                     //Time between abort checks while paused in milliseconds
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Destination of the packets, usually MldpBluetoothService.writeMLDP
+    // The last packet of the image is flagged so the writer can ask the device to acknowledge it.
+    public interface PacketWriter {
+        boolean writePacket(byte[] packet, boolean last);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Source of time for the pacing between packets
+    public interface Clock {
+        long currentTimeMillis();
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Progress reporting and abort check, called once per packet
+    public interface Listener {
+        boolean shouldAbort();
+        void onProgress(int bytesSent, int bytesTotal);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Adjusts the gap before each packet, usually from the link quality. A negative gap pauses the transfer.
+    public interface Pacing {
+        long gapFor(long baseGap);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Clock backed by the system clock and Thread.sleep
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public void sleep(long millis) throws InterruptedException {
+            Thread.sleep(millis);
+        }
+    };
+
+    private final PacketWriter writer;
+    private final Clock clock;
+    private final int chunkSize;
+    private final long packetGap;
+    private Pacing pacing;
+
+    private int bytesSent, packetsSent;
+    private long startTime, endTime;
+    private long sourceNanos;                                                                       //Time spent reading (decoding) the image
+    private long pausedMillis, slowedPackets;
+
+    public DfuStreamer(PacketWriter writer) {
+        this(writer, SYSTEM_CLOCK, DEFAULT_CHUNK_SIZE, DEFAULT_PACKET_GAP);
+    }
+
+    public DfuStreamer(PacketWriter writer, Clock clock, int chunkSize, long packetGap) {
+        if (chunkSize <= 0 || chunkSize > 20) {
+            throw new IllegalArgumentException("Chunk size must be between 1 and 20 bytes: " + chunkSize);
+        }
+        this.writer = writer;
+        this.clock = clock;
+        this.chunkSize = chunkSize;
+        this.packetGap = packetGap;
+    }
+
+    public void setPacing(Pacing pacing) {
+        this.pacing = pacing;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Send the whole image. Returns false if the listener aborted the transfer or a packet could not be written.
+    public boolean stream(byte[] image, Listener listener) throws IOException, InterruptedException {
+        return stream(new ByteArrayInputStream(image), image.length, listener);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Send imageLength bytes read from source. Throws an IOException if the source ends early or fails its own checks.
+    public boolean stream(InputStream source, int imageLength, Listener listener) throws IOException, InterruptedException {
+        bytesSent = packetsSent = 0;
+        sourceNanos = pausedMillis = slowedPackets = 0;
+        startTime = endTime = clock.currentTimeMillis();
+        double mem = 0;
+        try {
+            for (int offset = 0; offset < imageLength; offset += chunkSize) {                       //Run this until we run out of bytes
+                final int length = Math.min(chunkSize, imageLength - offset);                       //Last packet is shorter to avoid sending garbage
+                final byte[] msg = new byte[length];
+                final long readStart = System.nanoTime();
+                readFully(source, msg);
+                if (offset + length == imageLength && source.read() != -1) {                        //Reading the end lets the source run its integrity check before the last packet
+                    throw new IOException("Image is longer than " + imageLength + " bytes");
+                }
+                sourceNanos += System.nanoTime() - readStart;
+
+                if (listener != null && listener.shouldAbort()) {                                   //Upgrade Err received or connection lost, stop sending data
+                    return false;
+                }
+                long gap = pacing != null ? pacing.gapFor(packetGap) : packetGap;
+                while (gap < 0) {                                                                   //Link about to drop, wait for it to recover or for the connection to be lost
+                    clock.sleep(PAUSE_STEP);
+                    pausedMillis += PAUSE_STEP;
+                    if (listener != null && listener.shouldAbort()) {
+                        return false;
+                    }
+                    gap = pacing.gapFor(packetGap);
+                }
+                if (gap > packetGap) {
+                    slowedPackets++;
+                }
+                clock.sleep(gap);                                                                   //More is fine too but can take a long time to finish: (48kB / 16) * gap
+                final boolean last = offset + length == imageLength;
+                if (!writer.writePacket(msg, last)) {                                               //Write the DFU bin to the ble device
+                    return false;
+                }
+                bytesSent = offset + length;
+                packetsSent++;
+
+                final double per = (bytesSent * 100.0) / imageLength;                               //Percentage calculation for update, counting this packet
+                if (listener != null && (per - mem > PROGRESS_STEP || last)) {                      //Always report the last packet so 100% is seen
+                    mem = per;
+                    listener.onProgress(bytesSent, imageLength);
+                }
+            }
+            return true;
+        }
+        finally {
+            endTime = clock.currentTimeMillis();
+        }
+    }
+
+    private static void readFully(InputStream source, byte[] buffer) throws IOException {
+        int count = 0;
+        while (count < buffer.length) {
+            int result = source.read(buffer, count, buffer.length - count);
+            if (result == -1) {
+                throw new IOException("Image ended early");
+            }
+            count += result;
+        }
+    }
+
+    public int getBytesSent() {
+        return bytesSent;
+    }
+
+    public int getPacketsSent() {
+        return packetsSent;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Average time in microseconds to read (decode) one packet from the source during the last transfer
+    public double getSourceMicrosPerPacket() {
+        return packetsSent > 0 ? sourceNanos / 1000.0 / packetsSent : 0;
+    }
+
+    public long getPacketGap() {
+        return packetGap;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Time paused and packets sent with a longer gap because of the pacing during the last transfer
+    public long getPausedMillis() {
+        return pausedMillis;
+    }
+
+    public long getSlowedPackets() {
+        return slowedPackets;
+    }
+
+    public long getElapsedMillis() {
+        return endTime - startTime;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Effective throughput of the last transfer in bytes per second
+    public double getThroughput() {
+        final long elapsed = getElapsedMillis();
+        return elapsed > 0 ? bytesSent * 1000.0 / elapsed : 0;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+/**
+ * Fixed size ring of binary events for the BLE and DFU hot paths.
+ *
+ * Each event is a timestamp, an event code and two int arguments packed in preallocated long arrays, so recording an
+ * event does not allocate or format anything. When the ring is full the oldest events are overwritten. The content is
+ * only turned into text when it is dumped, usually on demand or after an error.
+ */
+public class EventRing {
+
+    private final long[] times;
+    private final long[] values;                                                                    //Code in the upper 16 bits, arguments a and b in the lower 48
+    private final int mask;
+    private long count;                                                                             //Total number of events recorded since the last clear
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The capacity is rounded up to a power of two
+    public EventRing(int capacity) {
+        if (capacity <= 0 || capacity > (1 << 20)) {
+            throw new IllegalArgumentException("Capacity must be between 1 and " + (1 << 20) + ": " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        times = new long[size];
+        values = new long[size];
+        mask = size - 1;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Record an event. Argument a keeps 32 bits, argument b keeps its lower 16 bits.
+    public synchronized void record(int code, int a, int b) {
+        final int index = (int) (count++ & mask);
+        times[index] = System.nanoTime();
+        values[index] = ((long) (code & 0xffff) << 48) | ((a & 0xffffffffL) << 16) | (b & 0xffff);
+    }
+
+    public synchronized void clear() {
+        count = 0;
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Number of events that were overwritten before they could be dumped
+    public synchronized long getDropped() {
+        return Math.max(0, count - getCapacity());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Format the events from the oldest to the newest, one per line, with the time relative to the oldest event.
+    // Codes are turned into text with names[code] when available.
+    public synchronized String dump(String[] names) {
+        final long first = Math.max(0, count - getCapacity());
+        final StringBuilder builder = new StringBuilder((int) (count - first) * 32 + 64);
+        builder.append(count - first).append(" events, ").append(first).append(" dropped\n");
+        final long origin = times[(int) (first & mask)];
+        for (long i = first; i < count; i++) {
+            final int index = (int) (i & mask);
+            final int code = (int) (values[index] >>> 48);
+            builder.append('+').append((times[index] - origin) / 1000).append("us ");
+            if (names != null && code < names.length && names[code] != null) {
+                builder.append(names[code]);
+            }
+            else {
+                builder.append('#').append(code);
+            }
+            builder.append(' ').append((int) (values[index] >>> 16)).append(' ').append((short) values[index]).append('\n');
+        }
+        return builder.toString();
+    }
+}
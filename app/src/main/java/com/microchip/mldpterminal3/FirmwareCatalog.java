@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Index of the DFU images available to the app, from the APK assets and from the firmware folder in app storage.
+ *
+ * Indexing only looks at file names, sizes and container headers. Image bytes are read the first time an image is used
+ * and kept in a size-bounded LRU cache so switching between images for a mixed fleet does not read them again.
+ * Compressed containers (.mfw) stay compressed in the cache and are decompressed as a stream while they are sent.
+ */
+public class FirmwareCatalog {
+
+    private final static String TAG = FirmwareCatalog.class.getSimpleName();                        //Class name for logging messages on the ADB
+
+    public static final String STORAGE_DIR = "firmware";                                            //Folder in app storage where extra images can be copied
+    public static final String IMAGE_EXTENSION = ".bin";
+    private static final long DEFAULT_CACHE_SIZE = 256 * 1024;                                      //Room for a handful of RN4020 images
+
+    private final Context context;
+    private final List<FirmwareImage> images = new ArrayList<FirmwareImage>();
+    private final LinkedHashMap<String, byte[]> cache = new LinkedHashMap<String, byte[]>(8, 0.75f, true); //Access ordered so the eldest entry is the least recently used
+    private final long maxCacheSize;
+    private long cacheSize = 0;
+
+    public FirmwareCatalog(Context context) {
+        this(context, DEFAULT_CACHE_SIZE);
+    }
+
+    public FirmwareCatalog(Context context, long maxCacheSize) {
+        this.context = context.getApplicationContext();
+        this.maxCacheSize = maxCacheSize;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Build the index from the assets and the firmware folder. Image bytes are not read.
+    public synchronized void scan() {
+        images.clear();
+        final AssetManager assets = context.getAssets();
+        try {
+            String[] names = assets.list("");
+            if (names != null) {
+                for (String name : names) {
+                    if (isImageName(name)) {
+                        FirmwareImage image = FirmwareImage.fromFileName(name);
+                        if (isContainerName(name)) {
+                            readContainerHeader(image, assets.open(name));
+                        }
+                        else {
+                            image.setSize(assetLength(assets, name));
+                        }
+                        images.add(image);
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            Log.e(TAG, "Failed to list firmware assets: " + e.getMessage());
+        }
+        File[] files = new File(context.getFilesDir(), STORAGE_DIR).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && isImageName(file.getName())) {
+                    FirmwareImage image = FirmwareImage.fromFileName(file.getName());
+                    image.setFile(file);
+                    try {
+                        if (isContainerName(file.getName())) {
+                            readContainerHeader(image, new FileInputStream(file));
+                        }
+                        else {
+                            image.setSize(file.length());
+                        }
+                        images.add(image);
+                    }
+                    catch (IOException e) {
+                        Log.e(TAG, "Skipping firmware file " + file.getName() + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+        Log.d(TAG, "Indexed " + images.size() + " firmware images");
+    }
+
+    protected boolean isImageName(String name) {
+        return name.toLowerCase(Locale.US).endsWith(IMAGE_EXTENSION) || isContainerName(name);
+    }
+
+    private static boolean isContainerName(String name) {
+        return name.toLowerCase(Locale.US).endsWith(FirmwareContainer.EXTENSION);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Size and hash of a compressed image come from its header, the payload is not read
+    private static void readContainerHeader(FirmwareImage image, InputStream in) throws IOException {
+        try {
+            FirmwareContainer container = FirmwareContainer.readHeader(in);
+            image.setSize(container.getImageLength());
+            image.setHash(String.format("%08x", container.getImageCrc()));
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Length of an asset without reading it. Only works for assets stored uncompressed in the APK.
+    private static long assetLength(AssetManager assets, String name) {
+        try {
+            AssetFileDescriptor descriptor = assets.openFd(name);
+            long length = descriptor.getLength();
+            descriptor.close();
+            return length;
+        }
+        catch (IOException e) {
+            return -1;                                                                              //Compressed asset, size known after loading
+        }
+    }
+
+    public synchronized List<FirmwareImage> getImages() {
+        return Collections.unmodifiableList(new ArrayList<FirmwareImage>(images));
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Lookups on the index. Return null if no image matches.
+    public synchronized FirmwareImage findByFileName(String fileName) {
+        for (FirmwareImage image : images) {
+            if (image.getFileName().equals(fileName)) {
+                return image;
+            }
+        }
+        return null;
+    }
+
+    public synchronized FirmwareImage findByVersion(String module, String version) {
+        for (FirmwareImage image : images) {
+            if (version.equalsIgnoreCase(image.getVersion()) && (module == null || module.equalsIgnoreCase(image.getModule()))) {
+                return image;
+            }
+        }
+        return null;
+    }
+
+    public synchronized List<FirmwareImage> findByModule(String module) {
+        List<FirmwareImage> result = new ArrayList<FirmwareImage>();
+        for (FirmwareImage image : images) {
+            if (module.equalsIgnoreCase(image.getModule())) {
+                result.add(image);
+            }
+        }
+        return result;
+    }
+
+    // Hashes are only known for images that have been loaded once
+    public synchronized FirmwareImage findByHash(String hash) {
+        for (FirmwareImage image : images) {
+            if (hash.equalsIgnoreCase(image.getHash())) {
+                return image;
+            }
+        }
+        return null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stream of the uncompressed image bytes. Containers are checked against their header CRC before the stream is
+    // returned, so a corrupted image fails here and not in the middle of a transfer.
+    public InputStream openImage(FirmwareImage image) throws IOException {
+        final byte[] bytes = load(image);
+        if (!isContainerName(image.getFileName())) {
+            return new ByteArrayInputStream(bytes);
+        }
+        FirmwareContainer container = FirmwareContainer.readHeader(new ByteArrayInputStream(bytes));
+        container.verify(payloadOf(bytes));                                                         //Decodes through the small window, nothing is kept
+        return container.openImage(payloadOf(bytes));
+    }
+
+    private static InputStream payloadOf(byte[] container) {
+        return new ByteArrayInputStream(container, FirmwareContainer.HEADER_LENGTH, container.length - FirmwareContainer.HEADER_LENGTH);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Get the stored bytes of an image, from the cache if it was used recently. The returned array must not be modified.
+    // For a container these are the compressed bytes, use openImage to get the image itself.
+    public byte[] load(FirmwareImage image) throws IOException {
+        final String key = cacheKey(image);
+        synchronized (this) {
+            byte[] cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        byte[] bytes = read(image);                                                                 //Read outside the lock so lookups are not blocked by I/O
+        synchronized (this) {
+            if (!isContainerName(image.getFileName())) {                                            //Container size and hash are already known from the header
+                CRC32 crc = new CRC32();
+                crc.update(bytes, 0, bytes.length);
+                image.setSize(bytes.length);
+                image.setHash(String.format("%08x", crc.getValue()));
+            }
+            if (bytes.length <= maxCacheSize && !cache.containsKey(key)) {
+                cache.put(key, bytes);
+                cacheSize += bytes.length;
+                trimCache();
+            }
+        }
+        return bytes;
+    }
+
+    // Evict the least recently used images until the cache fits
+    private void trimCache() {
+        Iterator<Map.Entry<String, byte[]>> iterator = cache.entrySet().iterator();
+        while (cacheSize > maxCacheSize && iterator.hasNext()) {
+            cacheSize -= iterator.next().getValue().length;
+            iterator.remove();
+        }
+    }
+
+    public synchronized void clearCache() {
+        cache.clear();
+        cacheSize = 0;
+    }
+
+    private static String cacheKey(FirmwareImage image) {
+        return image.isAsset() ? "asset:" + image.getFileName() : image.getFile().getAbsolutePath();
+    }
+
+    private byte[] read(FirmwareImage image) throws IOException {
+        InputStream in = image.isAsset() ? context.getAssets().open(image.getFileName()) : new FileInputStream(image.getFile());
+        try {
+            in = new BufferedInputStream(in);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(image.getSize() > 0 ? (int) image.getSize() : 64 * 1024);
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        }
+        finally {
+            in.close();
+        }
+    }
+}
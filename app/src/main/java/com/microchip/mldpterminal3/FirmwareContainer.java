@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compressed container for DFU images (.mfw files).
+ *
+ * Layout, big-endian:
+ *   4 bytes  magic "MFW1"
+ *   4 bytes  length of the uncompressed image
+ *   4 bytes  CRC32 of the uncompressed image
+ *   4 bytes  length of the compressed payload
+ *   payload  zlib (deflate) stream of the image
+ *
+ * The header is enough to index an image. The payload is decompressed as a stream through a small fixed input window,
+ * so an image is never expanded in memory. The class has a main method to pack a .bin image on a plain JVM:
+ *   java com.microchip.mldpterminal3.FirmwareContainer RN4020BEC_133_112415_DFU.bin RN4020BEC_133_112415_DFU.mfw
+ */
+public class FirmwareContainer {
+
+    public static final String EXTENSION = ".mfw";
+    public static final int HEADER_LENGTH = 16;
+    private static final int MAGIC = 0x4d465731;                                                    //"MFW1"
+    private static final int WINDOW_SIZE = 512;                                                     //Input buffer of the decompressor
+
+    private final int imageLength;
+    private final long imageCrc;
+    private final int payloadLength;
+
+    private FirmwareContainer(int imageLength, long imageCrc, int payloadLength) {
+        this.imageLength = imageLength;
+        this.imageCrc = imageCrc;
+        this.payloadLength = payloadLength;
+    }
+
+    public int getImageLength() {
+        return imageLength;
+    }
+
+    public long getImageCrc() {
+        return imageCrc;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Read the header, leaving the stream positioned at the start of the payload
+    public static FirmwareContainer readHeader(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a firmware container");
+        }
+        int imageLength = data.readInt();
+        long imageCrc = data.readInt() & 0xffffffffL;
+        int payloadLength = data.readInt();
+        if (imageLength < 0 || payloadLength < 0) {
+            throw new IOException("Corrupted firmware container header");
+        }
+        return new FirmwareContainer(imageLength, imageCrc, payloadLength);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stream of the uncompressed image. The stream checks the length and CRC32 from the header and throws an IOException
+    // at the end of the image if they do not match. Pass the stream positioned after the header.
+    public InputStream openImage(InputStream payload) {
+        final Inflater inflater = new Inflater();
+        return new VerifyingInputStream(new InflaterInputStream(payload, inflater, WINDOW_SIZE), inflater, imageLength, imageCrc);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Decompress the whole payload through the window without keeping it, to check integrity before a transfer starts
+    public void verify(InputStream payload) throws IOException {
+        InputStream in = openImage(payload);
+        try {
+            byte[] buffer = new byte[WINDOW_SIZE];
+            while (in.read(buffer) != -1) {
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Build a container from an uncompressed image
+    public static byte[] pack(byte[] image) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(image, 0, image.length);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(image.length);
+        DeflaterOutputStream deflater = new DeflaterOutputStream(payload, new Deflater(Deflater.BEST_COMPRESSION));
+        deflater.write(image);
+        deflater.close();
+
+        ByteArrayOutputStream container = new ByteArrayOutputStream(HEADER_LENGTH + payload.size());
+        DataOutputStream out = new DataOutputStream(container);
+        out.writeInt(MAGIC);
+        out.writeInt(image.length);
+        out.writeInt((int) crc.getValue());
+        out.writeInt(payload.size());
+        payload.writeTo(out);
+        out.flush();
+        return container.toByteArray();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: FirmwareContainer <image.bin> <image" + EXTENSION + ">");
+            System.exit(1);
+        }
+        FileInputStream in = new FileInputStream(args[0]);
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            image.write(buffer, 0, count);
+        }
+        in.close();
+        byte[] container = pack(image.toByteArray());
+        FileOutputStream out = new FileOutputStream(args[1]);
+        out.write(container);
+        out.close();
+        System.out.println(args[0] + ": " + image.size() + " bytes packed into " + container.length + " bytes");
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Counts and checksums the bytes going through and fails at the end of the stream if they do not match the header.
+    // Closing it releases the native memory of the inflater, which InflaterInputStream only does for its own inflater.
+    private static class VerifyingInputStream extends FilterInputStream {
+        private final CRC32 crc = new CRC32();
+        private final Inflater inflater;
+        private final int expectedLength;
+        private final long expectedCrc;
+        private int length = 0;
+
+        VerifyingInputStream(InputStream in, Inflater inflater, int expectedLength, long expectedCrc) {
+            super(in);
+            this.inflater = inflater;
+            this.expectedLength = expectedLength;
+            this.expectedCrc = expectedCrc;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            }
+            finally {
+                inflater.end();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int result;
+            try {
+                result = super.read(buffer, offset, count);
+            }
+            catch (EOFException e) {
+                throw new IOException("Firmware container payload is truncated");
+            }
+            if (result == -1) {
+                if (length != expectedLength || crc.getValue() != expectedCrc) {
+                    throw new IOException("Firmware container integrity check failed");
+                }
+                return -1;
+            }
+            crc.update(buffer, offset, result);
+            length += result;
+            if (length > expectedLength) {
+                throw new IOException("Firmware container payload is longer than its header");
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            throw new IOException("Skipping would bypass the integrity check");
+        }
+    }
+}
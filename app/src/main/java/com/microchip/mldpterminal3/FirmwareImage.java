@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.io.File;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Metadata of a DFU image, taken from the Microchip file naming scheme.
+ *
+ * RN4020BEC_133_112415_DFU.bin is the image for module RN4020, variant BEC, version 1.33, built on 11/24/15.
+ * The module reports the same version as "1.33BEC" in its firmware revision string.
+ * Images come either from the APK assets or from a file in app storage. Only metadata is kept here, the image bytes
+ * are loaded on demand by the FirmwareCatalog.
+ */
+public class FirmwareImage {
+
+    private static final Pattern NAME_PATTERN = Pattern.compile("^([A-Za-z]+[0-9]+)([A-Za-z]*)_([0-9])([0-9]+)(?:_([0-9]+))?.*$");
+    private static final Pattern REVISION_PATTERN = Pattern.compile("^(?:([A-Z]+[0-9]+) *)?V? *([0-9]+(?:\\.[0-9]+)*) *([A-Z]*)$");
+    static final int REVISION_MODULE = 0, REVISION_VERSION = 1, REVISION_VARIANT = 2;              //Parts returned by parseRevision()
+
+    private final String fileName;
+    private final String module;                                                                    //Target module, e.g. RN4020
+    private final String version;                                                                   //Version as reported by the module, e.g. 1.33BEC
+    private File file;                                                                              //Location in app storage, null for an asset
+    private long size = -1;                                                                         //Size of the image in bytes, -1 if unknown
+    private String hash;                                                                            //CRC32 of the image in hex, null until known
+
+    public FirmwareImage(String fileName, String module, String version) {
+        this.fileName = fileName;
+        this.module = module;
+        this.version = version;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Build the metadata from a file name. Module and version are null if the name does not follow the scheme.
+    public static FirmwareImage fromFileName(String fileName) {
+        Matcher matcher = NAME_PATTERN.matcher(fileName);
+        if (!matcher.matches()) {
+            return new FirmwareImage(fileName, null, null);
+        }
+        String version = matcher.group(3) + "." + matcher.group(4) + matcher.group(2).toUpperCase(Locale.US);
+        return new FirmwareImage(fileName, matcher.group(1).toUpperCase(Locale.US), version);
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getModule() {
+        return module;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    void setFile(File file) {
+        this.file = file;
+    }
+
+    public boolean isAsset() {
+        return file == null;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    void setSize(long size) {
+        this.size = size;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // See if a firmware revision string read from the module names this image version.
+    // Version and variant must be equal, "1.33BEC", "1.33 BEC" and "RN4020 V1.33BEC" match but "11.33BEC", "1.33.5BEC"
+    // and "1.33" do not. The module is compared only when the revision string carries one.
+    public boolean isInstalled(String firmwareRevision) {
+        final String[] installed = parseRevision(firmwareRevision);
+        final String[] image = parseRevision(version);
+        if (installed == null || image == null) {
+            return false;
+        }
+        if (installed[REVISION_MODULE] != null && module != null && !installed[REVISION_MODULE].equals(module.toUpperCase(Locale.US))) {
+            return false;
+        }
+        return installed[REVISION_VERSION].equals(image[REVISION_VERSION]) && installed[REVISION_VARIANT].equals(image[REVISION_VARIANT]);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Split a revision string such as "RN4020 V1.33BEC" into module, version and variant, indexed by the REVISION_
+    // constants. The module is null if the string has none, the variant empty. Returns null if the string does not parse.
+    static String[] parseRevision(String revision) {
+        if (revision == null) {
+            return null;
+        }
+        final Matcher matcher = REVISION_PATTERN.matcher(revision.trim().toUpperCase(Locale.US));
+        if (!matcher.matches()) {
+            return null;
+        }
+        return new String[] {matcher.group(1), matcher.group(2), matcher.group(3)};
+    }
+
+    @Override
+    public String toString() {
+        return version != null ? version : fileName;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+package com.microchip.mldpterminal3;
+
+/**
+ * Frames of the reliable MLDP transport, see FramedChannel and ArqReceiver.
+ *
+ * One frame fits in one MLDP packet of 20 bytes:
+ *   SYNC (0xA5) | type | sequence | length | payload (0 to 14 bytes) | CRC-16 (2 bytes, big endian)
+ * The CRC is CRC-16/CCITT-FALSE over type, sequence, length and payload. DATA frames carry application bytes, RESET
+ * starts a session (payload: one byte session id) and SACK acknowledges (sequence: next expected, payload: 32 bit
+ * little endian bitmap where bit i is set if sequence + 1 + i was received).
+ * The module side receives the bytes through its UART without packet boundaries, so the Decoder works on a byte
+ * stream and finds the next SYNC again after a damaged frame. This class and ArqReceiver avoid allocation and library
+ * calls on purpose so they can be ported to the module firmware line by line.
+ */
+public final class Frame {
+
+    public static final byte SYNC = (byte) 0xa5;
+    public static final int TYPE_DATA = 1;
+    public static final int TYPE_SACK = 2;
+    public static final int TYPE_RESET = 3;
+    public static final int HEADER_LENGTH = 4;                                                      //Sync, type, sequence, length
+    public static final int CRC_LENGTH = 2;
+    public static final int MAX_PACKET = 20;                                                        //Max data size in MLDP_data is 20
+    public static final int MAX_PAYLOAD = MAX_PACKET - HEADER_LENGTH - CRC_LENGTH;
+    public static final int SEQUENCE_SPACE = 256;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Destination of encoded frames. Returns false if the packet cannot be taken now, the caller tries again later.
+    public interface Link {
+        boolean send(byte[] packet);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Receives the frames that passed the CRC check. The payload buffer is reused for the next frame.
+    public interface Handler {
+        void onFrame(int type, int sequence, byte[] payload, int length);
+    }
+
+    private Frame() {
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Build a frame around length bytes of payload starting at offset
+    public static byte[] encode(int type, int sequence, byte[] payload, int offset, int length) {
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("Frame payload must be between 0 and " + MAX_PAYLOAD + " bytes: " + length);
+        }
+        final byte[] packet = new byte[HEADER_LENGTH + length + CRC_LENGTH];
+        packet[0] = SYNC;
+        packet[1] = (byte) type;
+        packet[2] = (byte) sequence;
+        packet[3] = (byte) length;
+        if (length > 0) {
+            System.arraycopy(payload, offset, packet, HEADER_LENGTH, length);
+        }
+        final int crc = crc16(packet, 1, HEADER_LENGTH - 1 + length);
+        packet[HEADER_LENGTH + length] = (byte) (crc >> 8);
+        packet[HEADER_LENGTH + length + 1] = (byte) crc;
+        return packet;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // CRC-16/CCITT-FALSE (polynomial 0x1021, initial value 0xFFFF), bit by bit to keep the module code small
+    public static int crc16(byte[] data, int offset, int length) {
+        int crc = 0xffff;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= (data[i] & 0xff) << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+        }
+        return crc & 0xffff;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Cuts a byte stream into frames, dropping bytes until the next SYNC when a frame is damaged
+    public static class Decoder {
+        private final Handler handler;
+        private final byte[] buffer = new byte[MAX_PACKET];
+        private final byte[] payload = new byte[MAX_PAYLOAD];
+        private int count;
+        private int frames, crcErrors, skippedBytes;
+
+        public Decoder(Handler handler) {
+            this.handler = handler;
+        }
+
+        public void feed(byte[] data, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                feed(data[i]);
+            }
+        }
+
+        public void feed(byte value) {
+            if (count == 0 && value != SYNC) {
+                skippedBytes++;
+                return;
+            }
+            buffer[count++] = value;
+            if (count < HEADER_LENGTH) {
+                return;
+            }
+            final int length = buffer[3] & 0xff;
+            if (length > MAX_PAYLOAD) {
+                resync();                                                                           //Not a frame header, the SYNC was part of something else
+                return;
+            }
+            if (count < HEADER_LENGTH + length + CRC_LENGTH) {
+                return;
+            }
+            final int crc = ((buffer[HEADER_LENGTH + length] & 0xff) << 8) | (buffer[HEADER_LENGTH + length + 1] & 0xff);
+            if (crc != crc16(buffer, 1, HEADER_LENGTH - 1 + length)) {
+                crcErrors++;
+                resync();
+                return;
+            }
+            frames++;
+            count = 0;
+            System.arraycopy(buffer, HEADER_LENGTH, payload, 0, length);
+            handler.onFrame(buffer[1] & 0xff, buffer[2] & 0xff, payload, length);
+        }
+
+        // Drop the first byte of the buffer and feed the rest again, starting at the next SYNC if any
+        private void resync() {
+            final int kept = count;
+            count = 0;
+            skippedBytes++;
+            int start = 1;
+            while (start < kept && buffer[start] != SYNC) {
+                start++;
+                skippedBytes++;
+            }
+            for (int i = start; i < kept; i++) {
+                feed(buffer[i]);                                                                    //Buffer is only rewritten from its start, behind the read position
+            }
+        }
+
+        public void reset() {
+            count = 0;
+        }
+
+        public int getFrames() {
+            return frames;
+        }
+
+        public int getCrcErrors() {
+            return crcErrors;
+        }
+
+        public int getSkippedBytes() {
+            return skippedBytes;
+        }
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+package com.microchip.mldpterminal3;
+
+import java.util.LinkedList;
+import java.util.Random;
+
+/**
+ * Reliable, ordered byte channel over MLDP writes without response, for application data.
+ *
+ * Data is cut into Frame DATA frames with a sequence number and a CRC. Up to a window of frames are in flight at a
+ * time and the peer acknowledges them with SACK frames on the notification path (the module runs ArqReceiver). A
+ * frame is sent again when a later frame is acknowledged while it is not (selective repeat), or when no
+ * acknowledgement came within the retransmission timeout, which follows the measured round trip time. The window
+ * grows by one frame per window of acknowledged frames and is halved on a loss, at most once per round trip, so it
+ * settles at what the link carries instead of relying on a fixed gap between packets.
+ * Frames from the peer go through an ArqReceiver, so the channel is reliable in both directions.
+ */
+public class FramedChannel {
+
+    public static final int INITIAL_WINDOW = 4;                                                     //Frames in flight before any acknowledgement
+    public static final int MIN_WINDOW = 1;
+    public static final int MAX_WINDOW = ArqReceiver.WINDOW;                                        //Peer keeps at most this many frames ahead of a gap
+    public static final long INITIAL_RTO = 500;                                                     //Retransmission timeout before the first round trip is measured, in milliseconds
+    public static final long MIN_RTO = 40;
+    public static final long MAX_RTO = 4000;
+    public static final int MAX_SENDS = 8;                                                          //Transmissions of a frame before the channel fails
+    public static final int MAX_PENDING_BYTES = 16 * 1024;                                          //Data waiting for the window, more is refused
+    private static final long PUMP_RETRY = 5;                                                       //Time in milliseconds before trying a busy link again
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Data from the peer in order, and the end of the channel. Called without any lock of the channel held.
+    public interface Listener {
+        void onDataReceived(byte[] data, int offset, int length);
+        void onFailed();
+    }
+
+    private final Frame.Link link;
+    private final CommandEngine.Scheduler scheduler;
+    private final Listener listener;
+    private final Frame.Decoder decoder;
+    private final ArqReceiver receiver;
+
+    private final byte[][] frames = new byte[Frame.SEQUENCE_SPACE][];                               //Encoded frames in flight, null once acknowledged
+    private final long[] sentAt = new long[Frame.SEQUENCE_SPACE];
+    private final int[] sends = new int[Frame.SEQUENCE_SPACE];
+    private final LinkedList<byte[]> pending = new LinkedList<byte[]>();                            //Payloads waiting for the window
+    private final LinkedList<Integer> retransmits = new LinkedList<Integer>();                      //Sequences to send again, before new frames
+    private int pendingBytes;
+    private int base, next;                                                                         //Oldest frame not acknowledged, sequence of the next new frame
+    private int session;
+    private boolean resetPending, open, failed;
+    private int window = INITIAL_WINDOW;
+    private int windowAcks;                                                                         //Frames acknowledged since the window last grew
+    private long lossHoldUntil;                                                                     //Losses before this time belong to the same window
+    private long lastTimeoutAt = -1;                                                                //Acknowledgements of frames sent before a timeout may have waited for it
+    private long smoothedRtt = -1, rttVariance, rto = INITIAL_RTO;
+    private boolean rtoArmed, pumpScheduled;
+    private long framesSent, retransmitCount, timeouts, bytesAcknowledged;
+
+    private final Runnable rtoTask = new Runnable() {
+        @Override
+        public void run() {
+            onTimeout();
+        }
+    };
+
+    private final Runnable pumpTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (FramedChannel.this) {
+                pumpScheduled = false;
+                pump();
+            }
+        }
+    };
+
+    public FramedChannel(Frame.Link link, CommandEngine.Scheduler scheduler, final Listener listener) {
+        this.link = link;
+        this.scheduler = scheduler;
+        this.listener = listener;
+        receiver = new ArqReceiver(link, scheduler, new ArqReceiver.Sink() {
+            @Override
+            public void onData(byte[] data, int offset, int length) {
+                listener.onDataReceived(data, offset, length);
+            }
+        });
+        decoder = new Frame.Decoder(new Frame.Handler() {
+            @Override
+            public void onFrame(int type, int sequence, byte[] payload, int length) {
+                if (type == Frame.TYPE_SACK) {
+                    if (length == 4) {
+                        onSack(sequence, (payload[0] & 0xff) | (payload[1] & 0xff) << 8 | (payload[2] & 0xff) << 16 | (payload[3] & 0xff) << 24);
+                    }
+                }
+                else {
+                    receiver.onFrame(type, sequence, payload, length);
+                }
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start a new session. The RESET frame goes first and is repeated like data until the peer acknowledges it.
+    public synchronized void open() {
+        close();
+        for (int i = 0; i < Frame.SEQUENCE_SPACE; i++) {
+            frames[i] = null;
+        }
+        base = next;
+        window = INITIAL_WINDOW;
+        windowAcks = 0;
+        smoothedRtt = lastTimeoutAt = -1;
+        rto = INITIAL_RTO;
+        decoder.reset();
+        session = 1 + new Random().nextInt(255);
+        resetPending = open = true;
+        failed = false;
+        pump();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stop sending. Data not acknowledged yet is dropped.
+    public synchronized void close() {
+        open = false;
+        pending.clear();
+        retransmits.clear();
+        pendingBytes = 0;
+        scheduler.cancel(rtoTask);
+        scheduler.cancel(pumpTask);
+        rtoArmed = pumpScheduled = false;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Queue data for the peer. Returns false if the channel is closed or MAX_PENDING_BYTES are already waiting.
+    public synchronized boolean send(byte[] data) {
+        if (!open || pendingBytes + data.length > MAX_PENDING_BYTES) {
+            return false;
+        }
+        for (int offset = 0; offset < data.length; offset += Frame.MAX_PAYLOAD) {
+            final int length = Math.min(Frame.MAX_PAYLOAD, data.length - offset);
+            final byte[] payload = new byte[length];
+            System.arraycopy(data, offset, payload, 0, length);
+            pending.add(payload);
+        }
+        pendingBytes += data.length;
+        pump();
+        return true;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Bytes of a notification from the peer: acknowledgements for our frames and frames of the other direction
+    public void onPacket(byte[] value) {
+        if (value != null) {
+            decoder.feed(value, 0, value.length);
+        }
+    }
+
+    // Called with the lock held
+    private int inFlight() {
+        return (next - base) & 0xff;
+    }
+
+    // Called with the lock held. Sends what the window and the link allow, repairs first.
+    private void pump() {
+        while (open) {
+            final long now = scheduler.currentTimeMillis();
+            final int sequence;
+            final byte[] packet;
+            final boolean repair = !retransmits.isEmpty();
+            if (repair) {
+                sequence = retransmits.peek();
+                if (frames[sequence] == null) {
+                    retransmits.poll();                                                             //Acknowledged meanwhile
+                    continue;
+                }
+                packet = frames[sequence];
+            }
+            else if (inFlight() < window && (resetPending || !pending.isEmpty())) {
+                sequence = next;
+                if (resetPending) {
+                    packet = Frame.encode(Frame.TYPE_RESET, sequence, new byte[] {(byte) session}, 0, 1);
+                }
+                else {
+                    final byte[] payload = pending.peek();
+                    packet = Frame.encode(Frame.TYPE_DATA, sequence, payload, 0, payload.length);
+                }
+            }
+            else {
+                break;
+            }
+            if (!link.send(packet)) {
+                if (!pumpScheduled) {
+                    pumpScheduled = true;
+                    scheduler.schedule(pumpTask, PUMP_RETRY);
+                }
+                break;
+            }
+            if (repair) {
+                retransmits.poll();
+                retransmitCount++;
+            }
+            else {
+                if (resetPending) {
+                    resetPending = false;
+                }
+                else {
+                    pendingBytes -= pending.poll().length;
+                }
+                frames[sequence] = packet;
+                sends[sequence] = 0;
+                next = (next + 1) & 0xff;
+            }
+            sends[sequence]++;
+            sentAt[sequence] = now;
+            framesSent++;
+        }
+        armRto();
+    }
+
+    // Called with the lock held
+    private void armRto() {
+        if (inFlight() > 0 && !rtoArmed) {
+            rtoArmed = true;
+            scheduler.schedule(rtoTask, rto);
+        }
+        else if (inFlight() == 0 && rtoArmed) {
+            rtoArmed = false;
+            scheduler.cancel(rtoTask);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // SACK from the peer: everything before cumulative is received, bitmap bit i is cumulative + 1 + i
+    private synchronized void onSack(int cumulative, int bitmap) {
+        if (!open) {
+            return;
+        }
+        final int acknowledged = (cumulative - base) & 0xff;
+        if (acknowledged > inFlight()) {
+            return;                                                                                 //Older than our window, or not ours
+        }
+        final long now = scheduler.currentTimeMillis();
+        boolean progress = false;
+        for (int i = 0; i < acknowledged; i++) {
+            progress |= acknowledge((base + i) & 0xff, now);
+        }
+        int highest = -1;
+        for (int i = 0; i < 32; i++) {
+            final int sequence = (cumulative + 1 + i) & 0xff;
+            if ((bitmap & (1 << i)) != 0 && ((sequence - base) & 0xff) < inFlight()) {
+                progress |= acknowledge(sequence, now);
+                highest = i;
+            }
+        }
+        //A frame sent less than a round trip and a margin ago may still arrive, its repair would be a duplicate
+        final long settle = smoothedRtt >= 0 ? Math.max(smoothedRtt + smoothedRtt / 8, MIN_RTO / 2) : rto;
+        for (int i = -1; i < highest; i++) {                                                        //Holes below the highest frame received were lost
+            final int sequence = (cumulative + 1 + i) & 0xff;
+            if (frames[sequence] != null && now - sentAt[sequence] >= settle && !retransmits.contains(sequence)) {
+                retransmits.add(sequence);
+                onLoss(now);
+            }
+        }
+        while (base != next && frames[base] == null) {
+            base = (base + 1) & 0xff;
+        }
+        if (progress) {
+            if (smoothedRtt >= 0) {
+                rto = measuredRto();                                                                //Link is moving again, drop the timeout backoff
+            }
+            rtoArmed = false;                                                                       //Restart the timer for the oldest frame still in flight
+            scheduler.cancel(rtoTask);
+        }
+        pump();
+    }
+
+    // Called with the lock held. Returns true if the frame was in flight.
+    private boolean acknowledge(int sequence, long now) {
+        final byte[] frame = frames[sequence];
+        if (frame == null) {
+            return false;
+        }
+        if (sends[sequence] == 1 && sentAt[sequence] > lastTimeoutAt) {                             //Only frames sent once and not held up by a timeout give a clear round trip time
+            updateRtt(now - sentAt[sequence]);
+        }
+        frames[sequence] = null;
+        if (frame[1] == Frame.TYPE_DATA) {
+            bytesAcknowledged += (frame[3] & 0xff);
+        }
+        if (++windowAcks >= window) {
+            windowAcks = 0;
+            window = Math.min(MAX_WINDOW, window + 1);
+        }
+        return true;
+    }
+
+    // Called with the lock held
+    private void updateRtt(long sample) {
+        if (smoothedRtt < 0) {
+            smoothedRtt = sample;
+            rttVariance = sample / 2;
+        }
+        else {
+            rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - sample)) / 4;
+            smoothedRtt = (7 * smoothedRtt + sample) / 8;
+        }
+        rto = measuredRto();
+    }
+
+    // Called with the lock held. The peer may hold the acknowledgement of the last frame for ACK_DELAY.
+    private long measuredRto() {
+        return Math.max(MIN_RTO, Math.min(MAX_RTO, smoothedRtt + 4 * rttVariance + ArqReceiver.ACK_DELAY));
+    }
+
+    // Called with the lock held
+    private void onLoss(long now) {
+        if (now >= lossHoldUntil) {
+            window = Math.max(MIN_WINDOW, window / 2);
+            windowAcks = 0;
+            lossHoldUntil = now + (smoothedRtt >= 0 ? smoothedRtt : rto);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // No acknowledgement for the oldest frame in time: send it again with a longer timeout, from the smallest window
+    private void onTimeout() {
+        synchronized (this) {
+            rtoArmed = false;
+            if (!open || inFlight() == 0) {
+                return;
+            }
+            timeouts++;
+            lastTimeoutAt = scheduler.currentTimeMillis();
+            if (sends[base] >= MAX_SENDS) {
+                failed = true;
+            }
+            else {
+                if (!retransmits.contains(base)) {
+                    retransmits.addFirst(base);
+                }
+                window = MIN_WINDOW;
+                windowAcks = 0;
+                rto = Math.min(MAX_RTO, rto * 2);
+                pump();
+            }
+        }
+        if (failed) {
+            close();
+            listener.onFailed();
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    public synchronized boolean isFailed() {
+        return failed;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Nothing waiting and nothing in flight
+    public synchronized boolean isIdle() {
+        return pending.isEmpty() && !resetPending && inFlight() == 0;
+    }
+
+    public synchronized int getWindow() {
+        return window;
+    }
+
+    public synchronized long getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    public synchronized int getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public synchronized long getRetransmitCount() {
+        return retransmitCount;
+    }
+
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    public synchronized long getBytesAcknowledged() {
+        return bytesAcknowledged;
+    }
+
+    public int getCrcErrors() {
+        return decoder.getCrcErrors();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Framed channel: " + framesSent + " frames sent, " + retransmitCount + " repaired, " + timeouts + " timeouts, "
+                + bytesAcknowledged + " bytes acknowledged, window " + window + ", RTT " + smoothedRtt + "ms, RTO " + rto + "ms, "
+                + decoder.getCrcErrors() + " CRC errors, " + receiver.getDelivered() + " frames received";
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the BluetoothGatt callbacks of a connection in a compact binary file, for GattReplay.
+ *
+ * The file starts with MAGIC and the wall clock time of the recording in milliseconds. Each record is a type byte, the
+ * time since the previous record in nanoseconds as a varint, then the fields of the type, with ints as varints and
+ * characteristic values as a length and the bytes. Characteristics are identified by the CHAR_ constants.
+ * Records are built in memory on the callback thread and written to the file by a background thread in blocks of
+ * BLOCK_SIZE, so recording costs the callback a few array writes. The recorder has no Android dependencies.
+ */
+public class GattRecorder {
+
+    public static final int MAGIC = 0x4d475231;                                                     //"MGR1"
+
+    public static final int TYPE_CONNECTION_STATE = 1;                                              //status, new state
+    public static final int TYPE_SERVICES_DISCOVERED = 2;                                           //status
+    public static final int TYPE_CHARACTERISTIC_CHANGED = 3;                                        //characteristic, value
+    public static final int TYPE_CHARACTERISTIC_WRITE = 4;                                          //characteristic, status
+    public static final int TYPE_DESCRIPTOR_WRITE = 5;                                              //status
+    public static final int TYPE_CHARACTERISTIC_READ = 6;                                           //characteristic, status, value
+    public static final int TYPE_RSSI = 7;                                                          //rssi, status
+    public static final int TYPE_WRITE_STARTED = 8;                                                 //characteristic, length, write type. Not a callback, the write asked of BluetoothGatt
+
+    public static final int CHAR_OTHER = 0;
+    public static final int CHAR_MLDP_DATA = 1;
+    public static final int CHAR_MLDP_CONTROL = 2;
+    public static final int CHAR_TRANSPARENT_TX = 3;
+    public static final int CHAR_TRANSPARENT_RX = 4;
+    public static final int CHAR_DEVICE_NAME = 5;
+    public static final int CHAR_FIRMWARE_REVISION = 6;
+
+    private static final int BLOCK_SIZE = 32 * 1024;                                                //Bytes handed to the writer thread at a time
+    private static final int MAX_RECORD = 32 + 600;                                                 //Largest record, for a value of up to the largest ATT MTU
+
+    private final OutputStream out;
+    private final ExecutorService writer;
+    private final byte[] block = new byte[BLOCK_SIZE + MAX_RECORD];
+    private int length;                                                                             //Bytes used in block
+    private long lastNanos;
+    private long records, bytes;
+    private boolean closed;
+    private volatile IOException error;                                                             //First write error, the rest of the recording is lost
+
+    public GattRecorder(File file) throws IOException {
+        final DataOutputStream header = new DataOutputStream(new FileOutputStream(file));
+        header.writeInt(MAGIC);
+        header.writeLong(System.currentTimeMillis());
+        header.flush();
+        out = header;
+        lastNanos = System.nanoTime();
+        writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, GattRecorder.class.getSimpleName());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Callbacks, in the order BluetoothGatt delivers them
+    public synchronized void connectionState(int status, int newState) {
+        if (!begin(TYPE_CONNECTION_STATE)) {
+            return;
+        }
+        putInt(status);
+        putInt(newState);
+        end();
+    }
+
+    public synchronized void servicesDiscovered(int status) {
+        if (!begin(TYPE_SERVICES_DISCOVERED)) {
+            return;
+        }
+        putInt(status);
+        end();
+    }
+
+    public synchronized void characteristicChanged(int characteristic, byte[] value) {
+        if (!begin(TYPE_CHARACTERISTIC_CHANGED)) {
+            return;
+        }
+        putInt(characteristic);
+        putValue(value);
+        end();
+    }
+
+    public synchronized void characteristicWrite(int characteristic, int status) {
+        if (!begin(TYPE_CHARACTERISTIC_WRITE)) {
+            return;
+        }
+        putInt(characteristic);
+        putInt(status);
+        end();
+    }
+
+    public synchronized void descriptorWrite(int status) {
+        if (!begin(TYPE_DESCRIPTOR_WRITE)) {
+            return;
+        }
+        putInt(status);
+        end();
+    }
+
+    public synchronized void characteristicRead(int characteristic, int status, byte[] value) {
+        if (!begin(TYPE_CHARACTERISTIC_READ)) {
+            return;
+        }
+        putInt(characteristic);
+        putInt(status);
+        putValue(value);
+        end();
+    }
+
+    public synchronized void rssi(int rssi, int status) {
+        if (!begin(TYPE_RSSI)) {
+            return;
+        }
+        putInt(rssi);
+        putInt(status);
+        end();
+    }
+
+    public synchronized void writeStarted(int characteristic, int valueLength, int writeType) {
+        if (!begin(TYPE_WRITE_STARTED)) {
+            return;
+        }
+        putInt(characteristic);
+        putInt(valueLength);
+        putInt(writeType);
+        end();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write what is left and close the file, waiting at most timeoutMillis
+    public void close(long timeoutMillis) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            submitBlock();
+        }
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    out.close();
+                }
+                catch (IOException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+        });
+        writer.shutdown();
+        try {
+            writer.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    // Bytes recorded, without the header
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public IOException getError() {
+        return error;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Record encoding, called with the lock held
+    private boolean begin(int type) {
+        if (closed) {
+            return false;                                                                           //Late callback after the recording stopped
+        }
+        if (length >= BLOCK_SIZE) {
+            submitBlock();
+        }
+        final long now = System.nanoTime();
+        block[length++] = (byte) type;
+        putLong(now - lastNanos);
+        lastNanos = now;
+        return true;
+    }
+
+    private void end() {
+        records++;
+    }
+
+    private void putValue(byte[] value) {
+        final int count = value != null ? Math.min(value.length, MAX_RECORD - 32) : 0;
+        putInt(count);
+        if (count > 0) {
+            System.arraycopy(value, 0, block, length, count);
+            length += count;
+        }
+    }
+
+    // Zigzag varint, so small negative values such as an RSSI stay short
+    private void putInt(int value) {
+        putLong(((value << 1) ^ (value >> 31)) & 0xffffffffL);
+    }
+
+    private void putLong(long value) {
+        while ((value & ~0x7fL) != 0) {
+            block[length++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        block[length++] = (byte) value;
+    }
+
+    private void submitBlock() {
+        if (length == 0) {
+            return;
+        }
+        final byte[] data = Arrays.copyOf(block, length);
+        bytes += length;
+        length = 0;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (error != null) {
+                    return;
+                }
+                try {
+                    out.write(data);
+                }
+                catch (IOException e) {
+                    error = e;
+                }
+            }
+        });
+    }
+}
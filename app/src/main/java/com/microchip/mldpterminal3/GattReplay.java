@@ -0,0 +1,583 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Plays a GattRecorder recording back into the transfer and receive code, on a plain JVM.
+ *
+ * The replay is a discrete event loop on a virtual clock. It is the Clock of a DfuStreamer and the Scheduler of the
+ * WriteQueue, DfuStateMachine and LinkMonitor it drives, so waiting in that code moves the clock and delivers the
+ * recorded callbacks and the scheduled tasks that fall due, in time order. As fast as possible, the same recording
+ * always gives the same result. At real speed the loop also waits for the wall clock to catch up before each item.
+ *
+ * From the command line the recorded notifications go through a StreamDecoder, ReceiveStats and a LinkMonitor. With
+ * --dfu the image is streamed again by a DfuStreamer through a WriteQueue: the recorded write completions finish the
+ * replayed writes in order, so the recorded link decides how fast the new code can go, and the recorded replies
+ * decide the outcome of the DfuStateMachine.
+ */
+public class GattReplay implements DfuStreamer.Clock, CommandEngine.Scheduler {
+
+    private static final String[] TYPE_NAMES = {null, "CONNECTION_STATE", "SERVICES_DISCOVERED", "CHARACTERISTIC_CHANGED",
+            "CHARACTERISTIC_WRITE", "DESCRIPTOR_WRITE", "CHARACTERISTIC_READ", "RSSI", "WRITE_STARTED"};
+    private static final int STATE_CONNECTED = 2;                                                   //BluetoothProfile values, this class has no Android dependencies
+    private static final int STATE_DISCONNECTED = 0;
+    private static final int WRITE_TYPE_NO_RESPONSE = 1;                                            //BluetoothGattCharacteristic values
+    private static final int WRITE_TYPE_DEFAULT = 2;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Receives each recorded callback when its time comes
+    public interface Handler {
+        void onEvent(Event event);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // One record. Fields that do not apply to the type are 0 or null.
+    public static class Event {
+        private final int type;
+        private final long nanos;                                                                   //Time since the start of the recording
+        private final int characteristic;
+        private final int status;
+        private final int value;                                                                    //New state, RSSI or length of a started write
+        private final byte[] data;
+
+        Event(int type, long nanos, int characteristic, int status, int value, byte[] data) {
+            this.type = type;
+            this.nanos = nanos;
+            this.characteristic = characteristic;
+            this.status = status;
+            this.value = value;
+            this.data = data;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public int getCharacteristic() {
+            return characteristic;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public int getValue() {
+            return value;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+
+        // Data sent by the device on the MLDP or Transparent data characteristic
+        public boolean isDataReceived() {
+            return type == GattRecorder.TYPE_CHARACTERISTIC_CHANGED
+                    && (characteristic == GattRecorder.CHAR_MLDP_DATA || characteristic == GattRecorder.CHAR_TRANSPARENT_TX);
+        }
+
+        // Write to the MLDP or Transparent data characteristic
+        public boolean isDataWrite() {
+            return (type == GattRecorder.TYPE_CHARACTERISTIC_WRITE || type == GattRecorder.TYPE_WRITE_STARTED)
+                    && (characteristic == GattRecorder.CHAR_MLDP_DATA || characteristic == GattRecorder.CHAR_TRANSPARENT_RX);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%10.3fms ", nanos / 1e6) + (type < TYPE_NAMES.length ? TYPE_NAMES[type] : "TYPE_" + type)
+                    + " char " + characteristic + " status " + status + " value " + value + (data != null ? " data " + data.length + "B" : "");
+        }
+    }
+
+    private static class Task implements Comparable<Task> {
+        final long nanos;
+        final long sequence;                                                                        //Tasks due at the same time run in the order they were scheduled
+        final Runnable runnable;
+
+        Task(long nanos, long sequence, Runnable runnable) {
+            this.nanos = nanos;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (nanos != other.nanos) {
+                return nanos < other.nanos ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private final List<Event> events;
+    private final boolean realTime;
+    private final PriorityQueue<Task> tasks = new PriorityQueue<Task>();
+    private Handler handler;
+    private int nextEvent;
+    private long now;                                                                               //Virtual time in nanoseconds since the start of the recording
+    private long sequence;
+    private long wallStart = -1;                                                                    //System.nanoTime() of the first item at real speed
+
+    public GattReplay(List<Event> events, boolean realTime) {
+        this.events = events;
+        this.realTime = realTime;
+    }
+
+    public void setHandler(Handler handler) {
+        this.handler = handler;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Read a whole recording
+    public static List<Event> read(InputStream source) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(source));
+        if (in.readInt() != GattRecorder.MAGIC) {
+            throw new IOException("Not a GATT recording");
+        }
+        in.readLong();                                                                              //Wall clock time of the recording
+        final List<Event> list = new ArrayList<Event>();
+        long nanos = 0;
+        int type;
+        while ((type = in.read()) != -1) {
+            nanos += readLong(in);
+            int characteristic = 0, status = 0, value = 0;
+            byte[] data = null;
+            switch (type) {
+                case GattRecorder.TYPE_CONNECTION_STATE:
+                    status = readInt(in);
+                    value = readInt(in);
+                    break;
+                case GattRecorder.TYPE_SERVICES_DISCOVERED:
+                case GattRecorder.TYPE_DESCRIPTOR_WRITE:
+                    status = readInt(in);
+                    break;
+                case GattRecorder.TYPE_CHARACTERISTIC_CHANGED:
+                    characteristic = readInt(in);
+                    data = readValue(in);
+                    break;
+                case GattRecorder.TYPE_CHARACTERISTIC_WRITE:
+                    characteristic = readInt(in);
+                    status = readInt(in);
+                    break;
+                case GattRecorder.TYPE_CHARACTERISTIC_READ:
+                    characteristic = readInt(in);
+                    status = readInt(in);
+                    data = readValue(in);
+                    break;
+                case GattRecorder.TYPE_RSSI:
+                    value = readInt(in);
+                    status = readInt(in);
+                    break;
+                case GattRecorder.TYPE_WRITE_STARTED:
+                    characteristic = readInt(in);
+                    value = readInt(in);
+                    readInt(in);                                                                    //Write type
+                    break;
+                default:
+                    throw new IOException("Unknown record type " + type + " after " + list.size() + " records");
+            }
+            list.add(new Event(type, nanos, characteristic, status, value, data));
+        }
+        return list;
+    }
+
+    private static long readLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static int readInt(DataInputStream in) throws IOException {
+        final int zigzag = (int) readLong(in);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private static byte[] readValue(DataInputStream in) throws IOException {
+        final byte[] value = new byte[readInt(in)];
+        in.readFully(value);
+        return value;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Deliver the next recorded callback or scheduled task, whichever is due first. Returns false once the recording
+    // is over, tasks still scheduled then are left alone.
+    public boolean step() throws InterruptedException {
+        if (nextEvent >= events.size()) {
+            return false;
+        }
+        final Event event = events.get(nextEvent);
+        final Task task = tasks.peek();
+        if (task != null && task.nanos < event.getNanos()) {
+            tasks.poll();
+            moveTo(task.nanos);
+            task.runnable.run();
+        }
+        else {
+            nextEvent++;
+            moveTo(event.getNanos());
+            if (handler != null) {
+                handler.onEvent(event);
+            }
+        }
+        return true;
+    }
+
+    // Play the rest of the recording
+    public void run() throws InterruptedException {
+        while (step()) {
+        }
+    }
+
+    public boolean isFinished() {
+        return nextEvent >= events.size();
+    }
+
+    public int getEventCount() {
+        return events.size();
+    }
+
+    private void moveTo(long nanos) throws InterruptedException {
+        now = Math.max(now, nanos);
+        if (realTime) {
+            if (wallStart < 0) {
+                wallStart = System.nanoTime() - now;
+            }
+            final long ahead = now - (System.nanoTime() - wallStart);
+            if (ahead > 0) {
+                Thread.sleep(ahead / 1000000, (int) (ahead % 1000000));
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Virtual clock for the code under replay
+    @Override
+    public long currentTimeMillis() {
+        return now / 1000000;
+    }
+
+    public long getNanos() {
+        return now;
+    }
+
+    // Let the virtual time pass, delivering what falls due. Returns early if the recording ends.
+    @Override
+    public void sleep(long millis) throws InterruptedException {
+        final long until = now + millis * 1000000;
+        while (!isFinished()) {
+            final Task task = tasks.peek();
+            final long next = Math.min(events.get(nextEvent).getNanos(), task != null ? task.nanos : Long.MAX_VALUE);
+            if (next > until) {
+                break;
+            }
+            step();
+        }
+        moveTo(until);
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        tasks.add(new Task(now + delayMillis * 1000000, sequence++, task));
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        final Iterator<Task> iterator = tasks.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().runnable == task) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Command line replay, see usage()
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String recording = null, image = null;
+        boolean realTime = false, viaOta = false, printEvents = false;
+        int chunkSize = DfuStreamer.DEFAULT_CHUNK_SIZE;
+        long packetGap = DfuStreamer.DEFAULT_PACKET_GAP;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if ("--realtime".equals(args[i])) {
+                    realTime = true;
+                }
+                else if ("--events".equals(args[i])) {
+                    printEvents = true;
+                }
+                else if ("--ota".equals(args[i])) {
+                    viaOta = true;
+                }
+                else if ("--dfu".equals(args[i])) {
+                    image = args[++i];
+                }
+                else if ("--chunk".equals(args[i])) {
+                    chunkSize = Integer.parseInt(args[++i]);
+                }
+                else if ("--gap".equals(args[i])) {
+                    packetGap = Long.parseLong(args[++i]);
+                }
+                else if (recording == null && !args[i].startsWith("--")) {
+                    recording = args[i];
+                }
+                else {
+                    usage();
+                }
+            }
+        }
+        catch (RuntimeException e) {
+            usage();
+        }
+        if (recording == null) {
+            usage();
+        }
+        final FileInputStream in = new FileInputStream(recording);
+        final List<Event> events;
+        try {
+            events = read(in);
+        }
+        catch (EOFException e) {
+            throw new IOException("Recording is truncated");
+        }
+        finally {
+            in.close();
+        }
+        final GattReplay replay = new GattReplay(events, realTime);
+        final Bench bench = new Bench(replay, printEvents);
+        replay.setHandler(bench);
+        if (image == null) {
+            replay.run();
+        }
+        else {
+            bench.replayDfu(readFile(image), viaOta, chunkSize, packetGap);
+        }
+        bench.report(System.out);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: GattReplay <recording> [--realtime] [--events] [--dfu <image.bin> [--ota] [--chunk <bytes>] [--gap <ms>]]");
+        System.exit(1);
+    }
+
+    private static byte[] readFile(String name) throws IOException {
+        final File file = new File(name);
+        final byte[] data = new byte[(int) file.length()];
+        final DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        }
+        finally {
+            in.close();
+        }
+        return data;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The receive and transfer code of the service, wired to the replay instead of BluetoothGatt
+    private static class Bench implements Handler {
+        private final GattReplay replay;
+        private final boolean printEvents;
+        private final StreamDecoder decoder = new StreamDecoder(java.nio.charset.Charset.forName("UTF-8"));
+        private final ReceiveStats receiveStats = new ReceiveStats(false);
+        private final LinkMonitor linkMonitor;
+        private final DfuStateMachine dfuState;
+        private final WriteQueue<Integer> writeQueue;
+        private final int[] counts = new int[TYPE_NAMES.length + 1];
+        private int writeFailures, recordedWrites, replayedWrites;
+        private long recordedWriteBytes;
+        private long charsReceived;
+        private boolean dfuStarting;                                                                //The recorded transfer has begun
+        private DfuStreamer streamer;
+
+        Bench(GattReplay replay, boolean printEvents) {
+            this.replay = replay;
+            this.printEvents = printEvents;
+            linkMonitor = new LinkMonitor(replay, new LinkMonitor.Probe() {
+                @Override
+                public boolean readRssi() {
+                    return true;                                                                    //The recorded RSSI callbacks answer
+                }
+            });
+            dfuState = new DfuStateMachine(replay);
+            writeQueue = new WriteQueue<Integer>(new WriteQueue.Sink<Integer>() {
+                @Override
+                public boolean startWrite(Integer characteristic, byte[] value, int writeType) {
+                    replayedWrites++;
+                    return true;                                                                    //Finished by the next recorded write completion
+                }
+            }, replay, WriteQueue.DEFAULT_CAPACITY, WriteQueue.DEFAULT_HIGH_WATERMARK,
+                    WriteQueue.DEFAULT_LOW_WATERMARK);
+        }
+
+        @Override
+        public void onEvent(Event event) {
+            counts[Math.min(event.getType(), counts.length - 1)]++;
+            if (printEvents) {
+                System.out.println(event);
+            }
+            switch (event.getType()) {
+                case GattRecorder.TYPE_CONNECTION_STATE:
+                    if (event.getValue() == STATE_CONNECTED && event.getStatus() == 0) {
+                        decoder.reset();
+                        dfuState.onConnected();
+                        linkMonitor.start();
+                    }
+                    else if (event.getValue() == STATE_DISCONNECTED) {
+                        writeQueue.clear();
+                        dfuState.onDisconnected();
+                        linkMonitor.stop();
+                    }
+                    break;
+                case GattRecorder.TYPE_CHARACTERISTIC_CHANGED:
+                    if (event.isDataReceived()) {
+                        receiveStats.onReceived(event.getData().length, event.getNanos());
+                        final CharSequence text = decoder.decode(event.getData());
+                        charsReceived += text.length();
+                        dfuState.onTextReceived(text);
+                        receiveStats.onConfirmed(event.getNanos());
+                    }
+                    break;
+                case GattRecorder.TYPE_CHARACTERISTIC_WRITE:
+                    linkMonitor.onWriteCompleted(event.getNanos());
+                    if (event.getStatus() != 0) {
+                        writeFailures++;
+                    }
+                    if (event.isDataWrite() && streamer != null) {
+                        writeQueue.onWriteComplete(event.getStatus());                              //The recorded link finishes the replayed write in flight
+                    }
+                    break;
+                case GattRecorder.TYPE_RSSI:
+                    linkMonitor.onRssi(event.getValue(), event.getStatus());
+                    break;
+                case GattRecorder.TYPE_WRITE_STARTED:
+                    linkMonitor.onWriteStarted(event.getNanos());
+                    if (event.isDataWrite()) {
+                        recordedWrites++;
+                        recordedWriteBytes += event.getValue();
+                        dfuStarting = true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // ------------------------------------------------------------------------------------------------------------
+        // Play the recording up to its first data write, then stream the image again from there
+        void replayDfu(byte[] image, boolean viaOta, int chunkSize, long packetGap) throws IOException, InterruptedException {
+            while (!dfuStarting && replay.step()) {
+            }
+            streamer = new DfuStreamer(new DfuStreamer.PacketWriter() {
+                private final WriteHandle.Callback lossWatch = new WriteHandle.Callback() {
+                    @Override
+                    public void onWriteComplete(WriteHandle handle) {
+                        dfuState.onWriteComplete(handle.getStatus());
+                    }
+                };
+
+                @Override
+                public boolean writePacket(byte[] packet, boolean last) {
+                    try {
+                        while (!writeQueue.isWritable() && !replay.isFinished()) {                  //Let the write queue drain instead of overflowing it
+                            replay.sleep(1);
+                        }
+                        final WriteHandle handle = writeQueue.write(GattRecorder.CHAR_MLDP_DATA, packet, last ? WRITE_TYPE_DEFAULT : WRITE_TYPE_NO_RESPONSE);
+                        handle.setCallback(lossWatch);
+                        while (last && !handle.isDone() && !replay.isFinished()) {
+                            replay.sleep(1);
+                        }
+                        return !replay.isFinished() && dfuState.getState() == DfuStateMachine.State.STREAMING;
+                    }
+                    catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+            }, replay, chunkSize, packetGap);
+            final LinkMonitor monitor = linkMonitor;
+            streamer.setPacing(new DfuStreamer.Pacing() {
+                @Override
+                public long gapFor(long baseGap) {
+                    return monitor.getPacingGap(baseGap);
+                }
+            });
+            dfuState.start(viaOta);
+            while (dfuState.getState() == DfuStateMachine.State.STREAMING) {
+                final boolean sent = streamer.stream(image, new DfuStreamer.Listener() {
+                    @Override
+                    public boolean shouldAbort() {
+                        return dfuState.getState() != DfuStateMachine.State.STREAMING;
+                    }
+
+                    @Override
+                    public void onProgress(int bytesSent, int bytesTotal) {
+                    }
+                });
+                if (dfuState.onStreamComplete(sent) != DfuStateMachine.State.ENTERING_OTA) {
+                    break;
+                }
+                while (dfuState.getState() == DfuStateMachine.State.ENTERING_OTA && replay.step()) {
+                }
+            }
+            while (dfuState.isActive() && replay.step()) {                                          //Wait for the reply of the module
+            }
+            replay.run();
+        }
+
+        void report(java.io.PrintStream out) {
+            out.println("Replayed " + replay.getEventCount() + " callbacks over " + String.format("%.3f", replay.getNanos() / 1e9) + "s");
+            for (int type = 1; type < TYPE_NAMES.length; type++) {
+                if (counts[type] > 0) {
+                    out.println("  " + TYPE_NAMES[type] + ": " + counts[type]);
+                }
+            }
+            out.println("Receive: " + receiveStats + ", " + charsReceived + " characters");
+            out.println("Link: " + linkMonitor);
+            out.println("Recorded writes: " + recordedWrites + " (" + recordedWriteBytes + " bytes), " + writeFailures + " completed with an error");
+            if (streamer != null) {
+                out.println("DFU replay: " + streamer.getBytesSent() + " bytes in " + replayedWrites + " writes, " + streamer.getElapsedMillis() + "ms ("
+                        + String.format("%.0f", streamer.getThroughput()) + " B/s), " + streamer.getSlowedPackets() + " packets slowed, "
+                        + streamer.getPausedMillis() + "ms paused");
+                out.println("DFU state: " + dfuState);
+                for (DfuStateMachine.Transition transition : dfuState.getTransitions()) {
+                    out.println("  " + transition);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import android.util.Log;
+
+/**
+ * Puts a deadline on each outstanding BluetoothGatt operation and recovers when its callback never comes.
+ *
+ * BluetoothGatt runs one operation at a time and the write queues only move on when the callback of the operation in
+ * flight arrives. If the callback is lost, every later operation waits forever. The watchdog arms a deadline when an
+ * operation starts and disarms it on the callback. When a deadline passes, the Recovery is asked to retry the
+ * operation, to drain it (fail it and go on with the next one) or to reconnect, escalating with the number of
+ * consecutive stalls according to the policy of the operation. Stall counts and stall time are kept as metrics.
+ * The deadline follows the measured latency of the operation, like a TCP retransmission timeout: the smoothed latency
+ * plus four times its mean deviation, never below the deadline of the policy. A slow link gets more time instead of
+ * having its writes drained while BluetoothGatt is still working on them.
+ */
+public class GattWatchdog {
+
+    private final static String TAG = GattWatchdog.class.getSimpleName();                           //Class name for logging messages on the ADB
+
+    public static final int OPERATION_CHARACTERISTIC_WRITE = 0;
+    public static final int OPERATION_DESCRIPTOR_WRITE = 1;
+    public static final int OPERATION_READ = 2;
+    private static final int OPERATION_COUNT = 3;
+    private static final String[] OPERATION_NAMES = {"characteristic write", "descriptor write", "read"};
+    private static final long MAX_DEADLINE = 6000;                                                  //Past the longest supervision timeout the link is gone anyway
+
+    public enum Action {RETRY, DRAIN, RECONNECT}
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Recovery actions, run on the scheduler thread without any lock of the watchdog held
+    public interface Recovery {
+        void retry(int operation);
+        void drain(int operation);
+        void reconnect();
+    }
+
+    private final CommandEngine.Scheduler scheduler;
+    private final Recovery recovery;
+    private final long[] deadlines = new long[OPERATION_COUNT];                                     //Time allowed for each operation in milliseconds
+    private final int[] retries = new int[OPERATION_COUNT];                                         //Stalls recovered by retrying before draining
+    private final int[] drains = new int[OPERATION_COUNT];                                          //Stalls recovered by draining before reconnecting
+    private final long[] startTimes = new long[OPERATION_COUNT];
+    private final long[] stallStarts = new long[OPERATION_COUNT];                                   //Start of the stalled operation, -1 when not stalled
+    private final int[] consecutiveStalls = new int[OPERATION_COUNT];
+    private final double[] latencies = new double[OPERATION_COUNT];                                 //Smoothed latency in milliseconds, 0 before the first sample
+    private final double[] deviations = new double[OPERATION_COUNT];                                //Smoothed mean deviation of the latency
+    private final Runnable[] expiryTasks = new Runnable[OPERATION_COUNT];
+
+    private int stallCount, retryCount, drainCount, reconnectCount;
+    private long stallMillis, longestStallMillis;
+
+    public GattWatchdog(CommandEngine.Scheduler scheduler, Recovery recovery) {
+        this.scheduler = scheduler;
+        this.recovery = recovery;
+        for (int i = 0; i < OPERATION_COUNT; i++) {
+            final int operation = i;
+            expiryTasks[i] = new Runnable() {
+                @Override
+                public void run() {
+                    expire(operation);
+                }
+            };
+            stallStarts[i] = -1;
+        }
+        setPolicy(OPERATION_CHARACTERISTIC_WRITE, 300, 1, 3);                                       //Retried by waiting longer, a write sent again may reach the device twice
+        setPolicy(OPERATION_DESCRIPTOR_WRITE, 500, 2, 0);                                           //Enabling notification twice does no harm
+        setPolicy(OPERATION_READ, 500, 2, 1);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Minimum deadline of an operation, and how many consecutive stalls are retried then drained before reconnecting
+    public synchronized void setPolicy(int operation, long deadlineMillis, int maxRetries, int maxDrains) {
+        deadlines[operation] = deadlineMillis;
+        retries[operation] = maxRetries;
+        drains[operation] = maxDrains;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Action for the given number of consecutive stalls of an operation, starting at 1
+    public synchronized Action actionFor(int operation, int stalls) {
+        if (stalls <= retries[operation]) {
+            return Action.RETRY;
+        }
+        if (stalls <= retries[operation] + drains[operation]) {
+            return Action.DRAIN;
+        }
+        return Action.RECONNECT;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // An operation is being handed to BluetoothGatt. Called before the request, the callback may arrive before it returns.
+    public void onStarted(int operation) {
+        final long deadline;
+        synchronized (this) {
+            startTimes[operation] = scheduler.currentTimeMillis();
+            deadline = getDeadline(operation);
+        }
+        scheduler.cancel(expiryTasks[operation]);
+        scheduler.schedule(expiryTasks[operation], deadline);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Time allowed for the next operation: the policy deadline until latencies are measured, then the smoothed latency
+    // plus four mean deviations if that is longer
+    public synchronized long getDeadline(int operation) {
+        final long measured = Math.round(latencies[operation] + 4 * deviations[operation]);
+        return Math.min(MAX_DEADLINE, Math.max(deadlines[operation], measured));
+    }
+
+    public synchronized double getLatencyMillis(int operation) {
+        return latencies[operation];
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // BluetoothGatt refused to start the operation, no callback will come
+    public void onRefused(int operation) {
+        scheduler.cancel(expiryTasks[operation]);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The callback of an operation arrived
+    public void onCompleted(int operation) {
+        scheduler.cancel(expiryTasks[operation]);
+        synchronized (this) {
+            if (consecutiveStalls[operation] == 0) {                                                //After a stall the start of the operation is uncertain
+                addLatency(operation, scheduler.currentTimeMillis() - startTimes[operation]);
+            }
+            consecutiveStalls[operation] = 0;
+            endStall(operation);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Disarm every deadline, for example on disconnection
+    public void reset() {
+        for (int i = 0; i < OPERATION_COUNT; i++) {
+            scheduler.cancel(expiryTasks[i]);
+        }
+        synchronized (this) {
+            for (int i = 0; i < OPERATION_COUNT; i++) {
+                consecutiveStalls[i] = 0;
+                endStall(i);
+            }
+        }
+    }
+
+    private void expire(int operation) {
+        final Action action;
+        synchronized (this) {
+            stallCount++;
+            if (stallStarts[operation] < 0) {
+                stallStarts[operation] = startTimes[operation];
+            }
+            action = actionFor(operation, ++consecutiveStalls[operation]);
+            switch (action) {
+                case RETRY:
+                    retryCount++;
+                    break;
+                case DRAIN:
+                    drainCount++;
+                    endStall(operation);                                                            //Draining ends the stall, the next operation starts at once
+                    break;
+                default:
+                    reconnectCount++;
+                    consecutiveStalls[operation] = 0;
+                    break;
+            }
+        }
+        DebugEvents.record(DebugEvents.EVENT_GATT_STALL, operation, action.ordinal());
+        Log.w(TAG, "Stalled " + OPERATION_NAMES[operation] + ", recovery: " + action);
+        switch (action) {
+            case RETRY:
+                recovery.retry(operation);
+                break;
+            case DRAIN:
+                recovery.drain(operation);
+                break;
+            default:
+                reset();
+                recovery.reconnect();
+                break;
+        }
+    }
+
+    // Called with the lock held. Smoothing of RFC 6298: gain 1/8 for the latency and 1/4 for the deviation.
+    private void addLatency(int operation, long millis) {
+        if (latencies[operation] == 0) {
+            latencies[operation] = Math.max(1, millis);
+            deviations[operation] = millis / 2.0;
+            return;
+        }
+        deviations[operation] += (Math.abs(millis - latencies[operation]) - deviations[operation]) / 4;
+        latencies[operation] += (millis - latencies[operation]) / 8;
+    }
+
+    // Called with the lock held
+    private void endStall(int operation) {
+        if (stallStarts[operation] >= 0) {
+            final long duration = scheduler.currentTimeMillis() - stallStarts[operation];
+            stallMillis += duration;
+            longestStallMillis = Math.max(longestStallMillis, duration);
+            stallStarts[operation] = -1;
+        }
+    }
+
+    public synchronized int getStallCount() {
+        return stallCount;
+    }
+
+    public synchronized int getRetryCount() {
+        return retryCount;
+    }
+
+    public synchronized int getDrainCount() {
+        return drainCount;
+    }
+
+    public synchronized int getReconnectCount() {
+        return reconnectCount;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Total and longest time from the start of a stalled operation to its recovery, in milliseconds
+    public synchronized long getStallMillis() {
+        return stallMillis;
+    }
+
+    public synchronized long getLongestStallMillis() {
+        return longestStallMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return stallCount + " stalls (" + retryCount + " retried, " + drainCount + " drained, " + reconnectCount
+                + " reconnections), " + stallMillis + "ms stalled, longest " + longestStallMillis + "ms";
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.util.Arrays;
+
+/**
+ * Measures the quality of the link during a session.
+ *
+ * The remote RSSI is sampled periodically and smoothed. The connection interval is estimated from back-to-back write
+ * completions only: a write started as soon as the previous one completed, because it was waiting in the queue, is
+ * finished by the link and not by whoever produces the writes. The gaps between notifications, or between writes paced
+ * by the DFU, follow the sender and are not used. Completions less than MIN_GAP apart belong to the same connection
+ * event, the median of the other gaps is the effective connection interval and their mean deviation from it is the
+ * jitter. The smoothed RSSI is turned into a Quality with some hysteresis, which the DFU uses to slow down or pause
+ * before a weak link drops.
+ */
+public class LinkMonitor {
+
+    public enum Quality {GOOD, WEAK, CRITICAL}
+
+    static final long SAMPLE_PERIOD = 1000;                                                         //Time between RSSI samples in milliseconds
+    static final int WEAK_RSSI = -80;                                                               //Smoothed RSSI in dBm below which the link is weak
+    static final int CRITICAL_RSSI = -90;                                                           //and below which it is about to drop
+    static final int HYSTERESIS = 3;                                                                //dB above a threshold needed to leave the lower quality
+    private static final double SMOOTHING = 0.25;                                                   //Weight of a new RSSI sample
+    private static final long MIN_GAP = 2000000;                                                    //Completions closer than 2ms are in the same connection event
+    private static final long BACK_TO_BACK = 2000000;                                               //A write started within 2ms of the previous completion was waiting for it
+    private static final long MAX_GAP = 500000000;                                                  //Longer gaps are idle time, not connection events
+    private static final int GAP_WINDOW = 64;                                                       //Number of recent gaps used for the interval and jitter
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Requests an RSSI reading, usually BluetoothGatt.readRemoteRssi. Returns false if it could not be requested.
+    public interface Probe {
+        boolean readRssi();
+    }
+
+    public interface Listener {
+        void onLinkUpdate(LinkMonitor monitor);
+    }
+
+    private final CommandEngine.Scheduler scheduler;
+    private final Probe probe;
+    private volatile Listener listener;
+    private boolean running;
+
+    private boolean hasRssi;
+    private int lastRssi, minRssi;
+    private double smoothedRssi;
+    private Quality quality = Quality.GOOD;
+
+    private final long[] gaps = new long[GAP_WINDOW];                                               //Recent gaps between connection events in nanoseconds
+    private final long[] sorted = new long[GAP_WINDOW];                                             //Scratch array for the median
+    private int gapCount;
+    private long lastCompletion = -1;
+    private boolean backToBack;                                                                     //The write in flight started right after the previous completion
+    private double intervalMillis, jitterMillis;
+
+    private final Runnable sampleTask = new Runnable() {
+        @Override
+        public void run() {
+            sample();
+        }
+    };
+
+    public LinkMonitor(CommandEngine.Scheduler scheduler, Probe probe) {
+        this.scheduler = scheduler;
+        this.probe = probe;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start sampling for a new session, forgetting the figures of the previous one
+    public void start() {
+        synchronized (this) {
+            running = true;
+            hasRssi = false;
+            quality = Quality.GOOD;
+            gapCount = 0;
+            lastCompletion = -1;
+            backToBack = false;
+            intervalMillis = jitterMillis = 0;
+        }
+        scheduler.cancel(sampleTask);
+        scheduler.schedule(sampleTask, SAMPLE_PERIOD);
+    }
+
+    public void stop() {
+        synchronized (this) {
+            running = false;
+        }
+        scheduler.cancel(sampleTask);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // RSSI reading requested by the probe, with its GATT status
+    public synchronized void onRssi(int rssi, int status) {
+        if (status != 0) {
+            return;
+        }
+        if (!hasRssi) {
+            smoothedRssi = minRssi = rssi;
+            hasRssi = true;
+        }
+        else {
+            smoothedRssi += SMOOTHING * (rssi - smoothedRssi);
+            minRssi = Math.min(minRssi, rssi);
+        }
+        lastRssi = rssi;
+        updateQuality();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // A write is being handed to BluetoothGatt at the given System.nanoTime(). Called before the request, the
+    // completion may arrive before it returns.
+    public synchronized void onWriteStarted(long nanos) {
+        backToBack = lastCompletion >= 0 && nanos - lastCompletion <= BACK_TO_BACK;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The write in flight completed at the given System.nanoTime()
+    public synchronized void onWriteCompleted(long nanos) {
+        if (backToBack) {
+            final long gap = nanos - lastCompletion;
+            if (gap >= MIN_GAP && gap <= MAX_GAP) {
+                gaps[gapCount % GAP_WINDOW] = gap;
+                gapCount++;
+            }
+        }
+        lastCompletion = nanos;
+        backToBack = false;
+    }
+
+    private void sample() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            updateTiming();
+        }
+        probe.readRssi();                                                                           //Result arrives in onRssi
+        final Listener current = listener;
+        if (current != null) {
+            current.onLinkUpdate(this);
+        }
+        DebugEvents.record(DebugEvents.EVENT_LINK_SAMPLE, getRssi(), (int) Math.round(getIntervalMillis() * 10));
+        scheduler.schedule(sampleTask, SAMPLE_PERIOD);
+    }
+
+    // Called with the lock held
+    private void updateTiming() {
+        final int count = Math.min(gapCount, GAP_WINDOW);
+        if (count == 0) {
+            return;
+        }
+        System.arraycopy(gaps, 0, sorted, 0, count);
+        Arrays.sort(sorted, 0, count);
+        final long median = sorted[count / 2];
+        long deviation = 0;
+        for (int i = 0; i < count; i++) {
+            deviation += Math.abs(sorted[i] - median);
+        }
+        intervalMillis = median / 1000000.0;
+        jitterMillis = deviation / (double) count / 1000000.0;
+    }
+
+    // Called with the lock held. A lower quality is entered at its threshold and left HYSTERESIS dB above it.
+    private void updateQuality() {
+        switch (quality) {
+            case GOOD:
+                if (smoothedRssi < CRITICAL_RSSI) {
+                    quality = Quality.CRITICAL;
+                }
+                else if (smoothedRssi < WEAK_RSSI) {
+                    quality = Quality.WEAK;
+                }
+                break;
+            case WEAK:
+                if (smoothedRssi < CRITICAL_RSSI) {
+                    quality = Quality.CRITICAL;
+                }
+                else if (smoothedRssi >= WEAK_RSSI + HYSTERESIS) {
+                    quality = Quality.GOOD;
+                }
+                break;
+            default:
+                if (smoothedRssi >= WEAK_RSSI + HYSTERESIS) {
+                    quality = Quality.GOOD;
+                }
+                else if (smoothedRssi >= CRITICAL_RSSI + HYSTERESIS) {
+                    quality = Quality.WEAK;
+                }
+                break;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Gap to use between DFU packets for the current quality: the base gap on a good link, twice the base gap on a weak
+    // link and -1 (pause) when the link is about to drop
+    public synchronized long getPacingGap(long baseGap) {
+        switch (quality) {
+            case GOOD:
+                return baseGap;
+            case WEAK:
+                return baseGap * 2;
+            default:
+                return -1;
+        }
+    }
+
+    public synchronized Quality getQuality() {
+        return quality;
+    }
+
+    // Smoothed RSSI in dBm, 0 until the first sample
+    public synchronized int getRssi() {
+        return hasRssi ? (int) Math.round(smoothedRssi) : 0;
+    }
+
+    public synchronized int getLastRssi() {
+        return lastRssi;
+    }
+
+    public synchronized int getMinRssi() {
+        return minRssi;
+    }
+
+    // Effective connection interval in milliseconds, 0 until writes went back to back
+    public synchronized double getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public synchronized double getJitterMillis() {
+        return jitterMillis;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RSSI " + getRssi() + "dBm (min " + minRssi + "), interval " + String.format("%.1f", intervalMillis)
+                + "ms, jitter " + String.format("%.1f", jitterMillis) + "ms, " + quality;
+    }
+}
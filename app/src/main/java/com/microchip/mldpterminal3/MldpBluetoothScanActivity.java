@@ -209,6 +209,10 @@ public class MldpBluetoothScanActivity extends ListActivity {
         if (areScanning == false) {                                                                 //See if already scanning - possible if resuming after turning on Bluetooth
             if (bleService.isBluetoothRadioEnabled()) {                                             //See if the Bluetooth radio is on - may have been turned off
                 bleDeviceListAdapter.clear();                                                       //Clear list of BLE devices found
+                for (DeviceRecord known : bleService.getDeviceRegistry().getDevices()) {            //Show the devices used before right away, most recent first
+                    bleDeviceListAdapter.addDevice(new BleDevice(known.getAddress(), known.getName()));
+                }
+                bleDeviceListAdapter.notifyDataSetChanged();
                 areScanning = true;                                                                 //Indicate that we are scanning - used for menu context and to avoid starting scan twice
                 setProgressBarIndeterminateVisibility(true);                                        //Show circular progress bar
                 invalidateOptionsMenu();                                                            //The options menu needs to be refreshed
@@ -31,12 +31,31 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.LinkedList;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Queue;
+import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Service for handling Bluetooth communication with the RN4020 using the Microchip Low-energy Data Profile, MLDP.
@@ -51,32 +70,52 @@ public class MldpBluetoothService extends Service {
     public static final String INTENT_EXTRA_SERVICE_ADDRESS = "BLE_SERVICE_DEVICE_ADDRESS";
     public static final String INTENT_EXTRA_SERVICE_NAME = "BLE_SERVICE_DEVICE_NAME";
     public static final String INTENT_EXTRA_SERVICE_DATA = "BLE_SERVICE_DATA";
+    public static final String INTENT_EXTRA_SERVICE_FIRMWARE = "BLE_SERVICE_FIRMWARE";
+    public static final String INTENT_EXTRA_SERVICE_RSSI = "BLE_SERVICE_RSSI";
+    public static final String INTENT_EXTRA_SERVICE_INTERVAL = "BLE_SERVICE_INTERVAL";
+    public static final String INTENT_EXTRA_SERVICE_JITTER = "BLE_SERVICE_JITTER";
+    public static final String INTENT_EXTRA_SERVICE_QUALITY = "BLE_SERVICE_QUALITY";
+    public static final String INTENT_EXTRA_SERVICE_STATE = "BLE_SERVICE_STATE";
 
     public final static String ACTION_BLE_REQ_ENABLE_BT = "com.microchip.mldpterminal3.ACTION_BLE_REQ_ENABLE_BT";
     public final static String ACTION_BLE_SCAN_RESULT = "com.microchip.mldpterminal3.ACTION_BLE_SCAN_RESULT";
     public final static String ACTION_BLE_CONNECTED = "com.microchip.mldpterminal3.ACTION_BLE_CONNECTED";
     public final static String ACTION_BLE_DISCONNECTED = "com.microchip.mldpterminal3.ACTION_BLE_DISCONNECTED";
     public final static String ACTION_BLE_DATA_RECEIVED = "com.microchip.mldpterminal3.ACTION_BLE_DATA_RECEIVED";
+    public final static String ACTION_BLE_FIRMWARE_REVISION = "com.microchip.mldpterminal3.ACTION_BLE_FIRMWARE_REVISION";
+    public final static String ACTION_BLE_LINK_QUALITY = "com.microchip.mldpterminal3.ACTION_BLE_LINK_QUALITY";
+    public final static String ACTION_BLE_SESSION_STATE = "com.microchip.mldpterminal3.ACTION_BLE_SESSION_STATE";
+    public final static String ACTION_BLE_SESSION_DATA = "com.microchip.mldpterminal3.ACTION_BLE_SESSION_DATA";
+    public final static String ACTION_BLE_SESSION_UPDATE = "com.microchip.mldpterminal3.ACTION_BLE_SESSION_UPDATE";
+    public final static String ACTION_BLE_TARGET_FOUND = "com.microchip.mldpterminal3.ACTION_BLE_TARGET_FOUND";
+    public final static String ACTION_BLE_TARGET_NOT_FOUND = "com.microchip.mldpterminal3.ACTION_BLE_TARGET_NOT_FOUND";
+    public final static String ACTION_BLE_RECONNECTING = "com.microchip.mldpterminal3.ACTION_BLE_RECONNECTING";
 
     //The MLDP UUID will be included in the RN4020 Advertising packet unless a private service and characteristic exists. In that case use the private service UUID here instead.
     private final static byte[] SCAN_RECORD_MLDP_PRIVATE_SERVICE = {0x00, 0x03, 0x00, 0x3a, 0x12, 0x08, 0x1a, 0x02, (byte) 0xdd, 0x07, (byte) 0xe6, 0x58, 0x03, 0x5b, 0x03, 0x00};
 
-    private final static UUID UUID_MLDP_PRIVATE_SERVICE = UUID.fromString("00035b03-58e6-07dd-021a-08123a000300"); //Private service for Microchip MLDP
-    private final static UUID UUID_MLDP_DATA_PRIVATE_CHAR = UUID.fromString("00035b03-58e6-07dd-021a-08123a000301"); //Characteristic for MLDP Data, properties - notify, write
+    final static UUID UUID_MLDP_PRIVATE_SERVICE = UUID.fromString("00035b03-58e6-07dd-021a-08123a000300"); //Private service for Microchip MLDP
+    final static UUID UUID_MLDP_DATA_PRIVATE_CHAR = UUID.fromString("00035b03-58e6-07dd-021a-08123a000301"); //Characteristic for MLDP Data, properties - notify, write
     private final static UUID UUID_MLDP_CONTROL_PRIVATE_CHAR = UUID.fromString("00035b03-58e6-07dd-021a-08123a0003ff"); //Characteristic for MLDP Control, properties - read, write
 
 
     private final static UUID UUID_DEVICE_NAME_GENERIC_ACCESS = UUID.fromString("00002a00-0000-1000-8000-00805f9b34fb"); // Characteristic for Device Name property - read, write
 
+    private final static UUID UUID_DEVICE_INFORMATION_SERVICE = UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb"); //Device Information service
+    private final static UUID UUID_FIRMWARE_REVISION_CHAR = UUID.fromString("00002a26-0000-1000-8000-00805f9b34fb"); //Characteristic for Firmware Revision String, properties - read
+    private final static UUID UUID_SOFTWARE_REVISION_CHAR = UUID.fromString("00002a28-0000-1000-8000-00805f9b34fb"); //Characteristic for Software Revision String, properties - read
 
-    private final static UUID UUID_TANSPARENT_PRIVATE_SERVICE = UUID.fromString("49535343-fe7d-4ae5-8fa9-9fafd205e455"); //Private service for Microchip Transparent
-    private final static UUID UUID_TRANSPARENT_TX_PRIVATE_CHAR = UUID.fromString("49535343-1e4d-4bd9-ba61-23c647249616"); //Characteristic for Transparent Data from BM module, properties - notify, write, write no response
-    private final static UUID UUID_TRANSPARENT_RX_PRIVATE_CHAR = UUID.fromString("49535343-8841-43f4-a8d4-ecbe34729bb3"); //Characteristic for Transparent Data to BM module, properties - write, write no response
 
-    private final static UUID UUID_CHAR_NOTIFICATION_DESCRIPTOR = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"); //Special descriptor needed to enable notifications
+    final static UUID UUID_TANSPARENT_PRIVATE_SERVICE = UUID.fromString("49535343-fe7d-4ae5-8fa9-9fafd205e455"); //Private service for Microchip Transparent
+    final static UUID UUID_TRANSPARENT_TX_PRIVATE_CHAR = UUID.fromString("49535343-1e4d-4bd9-ba61-23c647249616"); //Characteristic for Transparent Data from BM module, properties - notify, write, write no response
+    final static UUID UUID_TRANSPARENT_RX_PRIVATE_CHAR = UUID.fromString("49535343-8841-43f4-a8d4-ecbe34729bb3"); //Characteristic for Transparent Data to BM module, properties - write, write no response
+
+    final static UUID UUID_CHAR_NOTIFICATION_DESCRIPTOR = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"); //Special descriptor needed to enable notifications
     private UUID[] uuidScanList = {UUID_MLDP_PRIVATE_SERVICE, UUID_TANSPARENT_PRIVATE_SERVICE};
-    private final Queue<BluetoothGattDescriptor> descriptorWriteQueue = new LinkedList<BluetoothGattDescriptor>();
-    private final Queue<BluetoothGattCharacteristic> characteristicWriteQueue = new LinkedList<BluetoothGattCharacteristic>();
+    private final Queue<BluetoothGattDescriptor> descriptorWriteQueue = new LinkedList<BluetoothGattDescriptor>(); //Guarded by itself, used from the main and binder threads
+    private static final String RECORDING_DIRECTORY = "recordings";                                 //Under getFilesDir()
+    private static final long RECORDING_CLOSE_TIMEOUT = 1000;                                       //Time allowed for the last records to be written in milliseconds
+    private WriteQueue<BluetoothGattCharacteristic> characteristicWriteQueue;
 
     private BluetoothManager bluetoothManager;
     private BluetoothAdapter bluetoothAdapter;
@@ -86,8 +125,69 @@ public class MldpBluetoothService extends Service {
 
     private BluetoothGattCharacteristic mldpControlCharacteristic;
     private BluetoothGattCharacteristic genericDeviceNameCharacteristic;
+    private BluetoothGattCharacteristic firmwareRevisionCharacteristic;
+
+    private String firmwareRevision;                                                                //Firmware revision read from the connected device, null until read
+
+    static final ReconnectEngine.Policy CONNECT_POLICY = new ReconnectEngine.Policy(250, 2000, 0.5, 5000, 3, 0); //Three attempts of 5s for a connection request
+    static final ReconnectEngine.Policy RECONNECT_POLICY = new ReconnectEngine.Policy(250, 5000, 0.5, 10000, 0, 60000); //Keep trying for a minute after the link dropped
+    private ReconnectEngine reconnectEngine;                                                        //Connection attempts with backoff, for connect() and after a link loss
+    private int attemptTag;                                                                         //Tag of the connection attempt made with attemptGatt
+    private volatile BluetoothGatt attemptGatt;                                                     //Written after attemptTag, so a callback that sees it sees its tag
+    private ReconnectEngine.Policy reconnectPolicy = RECONNECT_POLICY;                              //Null when a lost link is not restored
+    private boolean disconnectRequested;                                                            //Link is going down on request, do not restore it
+    private volatile boolean restoring;                                                             //Link lost while connected, queued writes wait for it to come back
+    private volatile int connectionState = BluetoothProfile.STATE_DISCONNECTED;                     //State of the connection to bluetoothDevice
+
+    public enum ReceiveMode {AUTO, NOTIFICATION, INDICATION}                                        //How the device sends data on the MLDP data characteristic
+    private ReceiveMode receiveMode = ReceiveMode.AUTO;                                             //AUTO uses notification and falls back on indication for firmware prior to 1.20
+    private volatile ReceiveStats receiveStats = new ReceiveStats(false);                           //Flow accounting for the current connection and mode
+    private final StreamDecoder receiveDecoder = new StreamDecoder(Charset.forName("UTF-8"));       //Decodes notifications as one stream, characters may be split between packets
+    private volatile TextListener textListener;                                                     //In-process consumer of the decoded text
+    private volatile FramedChannel framedChannel;                                                   //Reliable framed transport, null when MLDP carries plain text
+    private final SessionBuffer receiveBuffer = new SessionBuffer(SessionBuffer.DEFAULT_CAPACITY);  //Text of the main connection, kept while a session is shown
+    private volatile GattRecorder recorder;                                                         //Records the GATT callbacks of the main connection, null when not recording
+
+    private static final int MAX_SESSIONS = 3;                                                      //Additional sessions next to the main connection
+    private static final long SESSION_UPDATE_INTERVAL = 500;                                        //Least time between updates for text received by background sessions
+    private final Map<String, MldpSession> sessions = new LinkedHashMap<String, MldpSession>();     //Additional sessions by address, in the order they were opened
+    private HandlerThread sessionThread;                                                            //Event loop of the additional sessions
+    private Handler sessionHandler;
+    private CommandEngine.Scheduler sessionScheduler;
+    private volatile String foregroundAddress;                                                      //Session shown on the terminal screen, null for the main connection
+    private boolean sessionUpdatePending;                                                           //Only used on the session event loop
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Receives the text of each notification as a view that is only valid during the call
+    public interface TextListener {
+        void onTextReceived(CharSequence text);
+    }
 
-    private int connectionAttemptCountdown = 0;
+    public enum WriteStrategy {AUTO, NO_RESPONSE, WITH_RESPONSE}                                    //How writes to the MLDP data characteristic are acknowledged
+    private static final int WRITE_FAILURE_LIMIT = 3;                                               //Failed writes on a connection before AUTO switches to write with response
+    private static final Pattern VERSION_PATTERN = Pattern.compile("([0-9]+)\\.([0-9]+)");
+    private WriteStrategy writeStrategy = WriteStrategy.AUTO;                                       //Strategy chosen by the client
+    private WriteStrategy activeWriteStrategy = WriteStrategy.NO_RESPONSE;                          //Strategy in use since connect()
+    private int writeFailureCount = 0;
+    private volatile WritabilityListener writabilityListener;                                       //Client following the backpressure of the write queue
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called when the write queue becomes writable or stops being writable, on the thread that changed it
+    public interface WritabilityListener {
+        void onWritabilityChanged(boolean writable);
+    }
+
+    private Handler handler;                                                                        //Handler on the main thread for delayed tasks such as command timeouts
+    private CommandEngine.Scheduler scheduler;                                                      //Time and delayed tasks on the handler
+    private CommandEngine commandEngine;                                                            //Runs RN4020 command scripts over the MLDP data characteristic
+    private GattWatchdog watchdog;                                                                  //Recovers when a BluetoothGatt callback never arrives
+    private LinkMonitor linkMonitor;                                                                //Samples RSSI and connection event timing while connected
+    private DeviceRegistry deviceRegistry;                                                          //Known devices, kept in app storage
+    private final ServiceMetrics metrics = new ServiceMetrics();                                    //Lifetime counters, see dump()
+    private final AtomicReference<ScanTarget> scanTarget = new AtomicReference<ScanTarget>();       //Device of the targeted scan in progress, null when none
+    private long targetScanStartedAt;
+    private volatile long targetFoundMillis = -1;                                                   //Time the last targeted scan took to find its device
+    private final long createdAt = SystemClock.elapsedRealtime();
 
     // ----------------------------------------------------------------------------------------------------------------
     // Client Activity has bound to our Service
@@ -109,6 +209,182 @@ public class MldpBluetoothService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
+        handler = new Handler();
+        deviceRegistry = ((MldpTerminalApplication) getApplication()).getDeviceRegistry();          //Read in the background since the process started
+        scheduler = schedulerOn(handler);
+        sessionThread = new HandlerThread("MldpSessions");                                          //One loop for all additional sessions, off the main thread
+        sessionThread.start();
+        sessionHandler = new Handler(sessionThread.getLooper());
+        sessionScheduler = schedulerOn(sessionHandler);
+        commandEngine = new CommandEngine(new CommandEngine.Transport() {
+            @Override
+            public void send(byte[] packet) {
+                writeMLDP(packet);
+            }
+        }, scheduler, 1);                                                                           //The RN4020 UART interpreter handles one command at a time
+        characteristicWriteQueue = new WriteQueue<BluetoothGattCharacteristic>(new WriteQueue.Sink<BluetoothGattCharacteristic>() {
+            @Override
+            public boolean startWrite(BluetoothGattCharacteristic target, byte[] value, int writeType) {
+                final BluetoothGatt gatt = bluetoothGatt;
+                if (gatt == null) {
+                    return false;
+                }
+                final BluetoothGattCharacteristic characteristic = currentCharacteristic(target);   //Writes queued before a reconnection name the characteristic of the lost link
+                characteristic.setValue(value);                                                     //Value and write type are only set when the write starts, so several writes to the same characteristic can wait in the queue
+                characteristic.setWriteType(writeType);
+                final GattRecorder gattRecorder = recorder;
+                if (gattRecorder != null) {
+                    gattRecorder.writeStarted(recordId(characteristic), value.length, writeType);
+                }
+                watchdog.onStarted(GattWatchdog.OPERATION_CHARACTERISTIC_WRITE);
+                linkMonitor.onWriteStarted(System.nanoTime());
+                if (!gatt.writeCharacteristic(characteristic)) {                                    //Request the BluetoothGatt to do the Write
+                    watchdog.onRefused(GattWatchdog.OPERATION_CHARACTERISTIC_WRITE);
+                    return false;
+                }
+                PerfTrace.beginAsync(PerfTrace.GATT_WRITE, 0);                                      //One write in flight at a time
+                if (PerfTrace.ENABLED) {
+                    PerfTrace.counter(PerfTrace.WRITE_QUEUE, characteristicWriteQueue.size());
+                }
+                metrics.increment(ServiceMetrics.WRITES_STARTED);
+                metrics.add(ServiceMetrics.BYTES_OUT, value.length);
+                return true;
+            }
+        }, scheduler, WriteQueue.DEFAULT_CAPACITY, WriteQueue.DEFAULT_HIGH_WATERMARK,
+                WriteQueue.DEFAULT_LOW_WATERMARK);
+        watchdog = new GattWatchdog(scheduler, new GattWatchdog.Recovery() {
+            @Override
+            public void retry(int operation) {
+                if (operation == GattWatchdog.OPERATION_CHARACTERISTIC_WRITE) {
+                    watchdog.onStarted(operation);                                                  //Give the write in flight another deadline, sending it again could duplicate it
+                }
+                else if (operation == GattWatchdog.OPERATION_DESCRIPTOR_WRITE) {
+                    final BluetoothGattDescriptor descriptor;
+                    synchronized (descriptorWriteQueue) {
+                        descriptor = descriptorWriteQueue.peek();
+                    }
+                    if (descriptor != null) {
+                        startDescriptorWrite(descriptor);
+                    }
+                }
+                else if (bluetoothGatt != null && firmwareRevisionCharacteristic != null) {
+                    startFirmwareRevisionRead();
+                }
+            }
+
+            @Override
+            public void drain(int operation) {
+                if (operation == GattWatchdog.OPERATION_CHARACTERISTIC_WRITE) {
+                    characteristicWriteQueue.drainHead(WriteHandle.STATUS_TIMEOUT);
+                }
+                else if (operation == GattWatchdog.OPERATION_DESCRIPTOR_WRITE) {
+                    final BluetoothGattDescriptor descriptor;
+                    synchronized (descriptorWriteQueue) {
+                        descriptor = descriptorWriteQueue.peek();
+                    }
+                    nextDescriptorWrite(descriptor, BluetoothGatt.GATT_FAILURE);
+                }
+                else {
+                    broadcastFirmwareRevision();                                                    //Revision stays unknown, do not keep the client waiting
+                }
+            }
+
+            @Override
+            public void reconnect() {
+                if (bluetoothDevice == null) {
+                    return;
+                }
+                DebugLog.dumpEvents(TAG, "GATT stalled, reconnecting");
+                commandEngine.cancel();
+                clearDescriptorWrites();
+                characteristicWriteQueue.clear();                                                   //Fail the pending handles, a DFU in progress must start again
+                connect(bluetoothDevice.getAddress());                                              //Closes the stalled BluetoothGatt and opens a new connection
+            }
+        });
+        reconnectEngine = new ReconnectEngine(scheduler, new ReconnectEngine.Connector() {
+            @Override
+            public boolean connect(int attempt, int tag) {
+                final BluetoothDevice device = bluetoothDevice;
+                if (device == null) {
+                    return false;
+                }
+                if (bluetoothGatt != null) {                                                        //See if an existing connection needs to be closed
+                    bluetoothGatt.close();                                                          //Faster to create new connection than reconnect with existing BluetoothGatt
+                }
+                metrics.increment(attempt == 1 ? ServiceMetrics.CONNECT_ATTEMPTS : ServiceMetrics.CONNECT_RETRIES);
+                PerfTrace.beginAsync(PerfTrace.GATT_CONNECT, 0);
+                bluetoothGatt = device.connectGatt(MldpBluetoothService.this, false, bleGattCallback); //Directly connect to the device , so set autoConnect to false
+                attemptTag = tag;
+                attemptGatt = bluetoothGatt;                                                        //A callback coming before this is ignored, the timeout tries again
+                Log.d(TAG, "Connection attempt " + attempt);
+                return bluetoothGatt != null;
+            }
+
+            @Override
+            public void abort() {
+                PerfTrace.endAsync(PerfTrace.GATT_CONNECT, 0);
+                if (bluetoothGatt != null) {
+                    bluetoothGatt.close();                                                          //No callback comes from a closed BluetoothGatt
+                    bluetoothGatt = null;
+                }
+            }
+        }, new Random());
+        reconnectEngine.setListener(new ReconnectEngine.Listener() {
+            @Override
+            public void onConnected(int attempts, long latencyMillis) {
+                Log.i(TAG, (restoring ? "Link restored after " : "Connected after ") + attempts + " attempts in " + latencyMillis + "ms");
+            }
+
+            @Override
+            public void onGaveUp(int attempts, long elapsedMillis) {
+                Log.i(TAG, "Gave up connecting after " + attempts + " attempts in " + elapsedMillis + "ms");
+                metrics.increment(ServiceMetrics.CONNECT_FAILURES);
+                connectionState = BluetoothProfile.STATE_DISCONNECTED;
+                clearDescriptorWrites();
+                abandonRestore();                                                                   //Fail the writes that waited for the link
+                final Intent intent = new Intent(ACTION_BLE_DISCONNECTED);
+                sendBroadcast(intent);
+                DebugLog.dumpEvents(TAG, "connection given up after " + attempts + " attempts");
+            }
+        });
+        linkMonitor = new LinkMonitor(scheduler, new LinkMonitor.Probe() {
+            @Override
+            public boolean readRssi() {
+                final BluetoothGatt gatt = bluetoothGatt;
+                return gatt != null && gatt.readRemoteRssi();                                       //Result arrives in onReadRemoteRssi
+            }
+        });
+        linkMonitor.setListener(new LinkMonitor.Listener() {
+            @Override
+            public void onLinkUpdate(LinkMonitor monitor) {
+                final Intent intent = new Intent(ACTION_BLE_LINK_QUALITY);                          //Publish the live link metrics about once per second
+                intent.putExtra(INTENT_EXTRA_SERVICE_RSSI, monitor.getRssi());
+                intent.putExtra(INTENT_EXTRA_SERVICE_INTERVAL, monitor.getIntervalMillis());
+                intent.putExtra(INTENT_EXTRA_SERVICE_JITTER, monitor.getJitterMillis());
+                intent.putExtra(INTENT_EXTRA_SERVICE_QUALITY, monitor.getQuality().name());
+                sendBroadcast(intent);
+                final BluetoothDevice device = bluetoothDevice;
+                if (device != null) {
+                    deviceRegistry.setRssi(device.getAddress(), monitor.getRssi());
+                }
+            }
+        });
+        characteristicWriteQueue.setListener(new WriteQueue.Listener() {
+            @Override
+            public void onWritabilityChanged(boolean writable) {
+                final WritabilityListener listener = writabilityListener;
+                if (listener != null) {
+                    listener.onWritabilityChanged(writable);
+                }
+            }
+
+            @Override
+            public void onWriteFailed(int status) {
+                Log.w(TAG, "Characteristic write failed with status: " + status);
+                metrics.increment(ServiceMetrics.WRITE_FAILURES);
+                noteWriteFailure();
+            }
+        });
         try {
             bluetoothManager = (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);          //Get a reference to BluetoothManager from the operating system
             if (bluetoothManager == null) {                                                             //Check that we did get a BluetoothManager
@@ -124,6 +400,28 @@ public class MldpBluetoothService extends Service {
         catch (Exception e) {
             Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
         }
+        StartupTrace.mark(StartupTrace.SERVICE);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Time and delayed tasks on the thread of a Handler
+    private static CommandEngine.Scheduler schedulerOn(final Handler handler) {
+        return new CommandEngine.Scheduler() {
+            @Override
+            public long currentTimeMillis() {
+                return SystemClock.uptimeMillis();
+            }
+
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+                handler.postDelayed(task, delayMillis);
+            }
+
+            @Override
+            public void cancel(Runnable task) {
+                handler.removeCallbacks(task);
+            }
+        };
     }
 
     // ----------------------------------------------------------------------------------------------------------------
@@ -131,6 +429,14 @@ public class MldpBluetoothService extends Service {
     // Close any existing connection
     @Override
     public void onDestroy() {
+        deviceRegistry.flush();                                                                     //Write the last updates before the process may go away
+        for (MldpSession session : getSessions()) {
+            closeSession(session.getAddress());
+        }
+        sessionThread.quit();
+        stopRecording();
+        cancelTargetedScan();
+        reconnectEngine.cancel();
         try {
             if (bluetoothGatt != null) {                                                                //See if there is an existing Bluetooth connection
                 bluetoothGatt.close();                                                                  //Close the connection as the service is ending
@@ -151,38 +457,140 @@ public class MldpBluetoothService extends Service {
         }
     }
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Snapshot of the counters and live state for adb shell dumpsys activity service MldpBluetoothService
+    // With --compact everything is printed on one line as section.name=value, for scripts that poll during a load test.
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        final ServiceMetrics.Printer out = new ServiceMetrics.Printer(writer, args != null && Arrays.asList(args).contains("--compact"));
+        final long now = SystemClock.elapsedRealtime();
+        out.section("service");
+        out.value("uptime_ms", now - createdAt);
+        out.value("recording", recorder != null);
+        out.section("connection");
+        out.value("state", connectionState);
+        out.value("address", getDeviceAddress());
+        out.value("firmware", firmwareRevision);
+        out.value("write_strategy", activeWriteStrategy);
+        out.value("framed", framedChannel != null);
+        metrics.print(out);
+        out.section("write_queue");
+        out.value("depth", characteristicWriteQueue.size());
+        out.value("capacity", WriteQueue.DEFAULT_CAPACITY);
+        out.value("writable", characteristicWriteQueue.isWritable());
+        out.value("stale_completions", characteristicWriteQueue.getStaleCompletions());
+        out.value("descriptor_depth", descriptorWriteDepth());
+        final ReceiveStats stats = receiveStats;
+        out.section("receive");
+        out.value("indications", stats.isIndications());
+        out.value("packets", stats.getReceived());
+        out.value("outstanding", stats.getOutstanding());
+        out.value("bytes", stats.getBytes());
+        out.value("throughput_bps", stats.getThroughput());
+        out.value("gap_mean_ms", stats.getMeanGapMillis());
+        out.value("gap_max_ms", stats.getMaxGapMillis());
+        out.value("handling_mean_ms", stats.getMeanHandlingMillis());
+        out.value("handling_max_ms", stats.getMaxHandlingMillis());
+        out.section("link");
+        out.value("quality", linkMonitor.getQuality());
+        out.value("rssi", linkMonitor.getRssi());
+        out.value("rssi_min", linkMonitor.getMinRssi());
+        out.value("interval_ms", linkMonitor.getIntervalMillis());
+        out.value("jitter_ms", linkMonitor.getJitterMillis());
+        out.section("watchdog");
+        out.value("stalls", watchdog.getStallCount());
+        out.value("retries", watchdog.getRetryCount());
+        out.value("drains", watchdog.getDrainCount());
+        out.value("reconnections", watchdog.getReconnectCount());
+        out.value("stalled_ms", watchdog.getStallMillis());
+        out.value("longest_stall_ms", watchdog.getLongestStallMillis());
+        out.value("write_latency_ms", watchdog.getLatencyMillis(GattWatchdog.OPERATION_CHARACTERISTIC_WRITE));
+        out.value("write_deadline_ms", watchdog.getDeadline(GattWatchdog.OPERATION_CHARACTERISTIC_WRITE));
+        out.section("reconnect");
+        out.value("active", reconnectEngine.isActive());
+        out.value("restoring", restoring);
+        out.value("attempt", reconnectEngine.getAttempt());
+        out.value("policy", reconnectPolicy);
+        out.value("last_latency_ms", reconnectEngine.getLastLatency());
+        out.value("mean_latency_ms", reconnectEngine.getMeanLatency());
+        out.value("max_latency_ms", reconnectEngine.getMaxLatency());
+        final long scanMillis = metrics.getScanMillis(now);
+        out.section("scan");
+        out.value("scanning", metrics.isScanning());
+        out.value("time_ms", scanMillis);
+        out.value("results_per_s", scanMillis > 0 ? metrics.get(ServiceMetrics.SCAN_RESULTS) * 1000.0 / scanMillis : 0);
+        out.value("target", scanTarget.get());
+        out.value("last_target_found_ms", targetFoundMillis);
+        final List<MldpSession> list = getSessions();
+        out.section("sessions");
+        out.value("open", list.size());
+        out.value("foreground", foregroundAddress);
+        for (MldpSession session : list) {
+            out.line(session.toString());
+        }
+        out.end();
+    }
+
     // ----------------------------------------------------------------------------------------------------------------
     // Implements callback methods for GATT events such as connecting, discovering services, write completion, etc.
     private final BluetoothGattCallback bleGattCallback = new BluetoothGattCallback() {
         //Connected or disconnected
         @Override
         public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            DebugEvents.record(DebugEvents.EVENT_CONNECTION_STATE, newState, status);
+            PerfTrace.endAsync(PerfTrace.GATT_CONNECT, 0);
+            final GattRecorder gattRecorder = recorder;
+            if (gattRecorder != null) {
+                gattRecorder.connectionState(status, newState);
+            }
             try {
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    connectionAttemptCountdown = 0;                                                     //Stop counting connection attempts
-                    if (newState == BluetoothProfile.STATE_CONNECTED) {                                 //Connected
-                        final Intent intent = new Intent(ACTION_BLE_CONNECTED);
-                        sendBroadcast(intent);
-                        Log.i(TAG, "Connected to BLE device");
-                        descriptorWriteQueue.clear();                                                   //Clear write queues in case there was something left in the queue from the previous connection
-                        characteristicWriteQueue.clear();
-                        bluetoothGatt.discoverServices();                                               //Discover services after successful connection
+                if (status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothProfile.STATE_CONNECTED) { //Connected
+                    if (!reconnectEngine.onConnected(attemptTagOf(gatt))) {                             //Stop the attempts and note the latency
+                        Log.d(TAG, "Ignored connection of an attempt that ended");                      //Timed out or replaced, its BluetoothGatt is closed
+                        return;
                     }
-                    else if (newState == BluetoothProfile.STATE_DISCONNECTED) {                         //Disconnected
-                        final Intent intent = new Intent(ACTION_BLE_DISCONNECTED);
-                        sendBroadcast(intent);
-                        Log.i(TAG, "Disconnected from BLE device");
+                    connectionState = newState;
+                    StartupTrace.mark(StartupTrace.CONNECTED);
+                    metrics.increment(ServiceMetrics.CONNECTIONS);
+                    final Intent intent = new Intent(ACTION_BLE_CONNECTED);
+                    sendBroadcast(intent);
+                    Log.i(TAG, "Connected to BLE device");
+                    clearDescriptorWrites();                                                            //Clear write queues in case there was something left in the queue from the previous connection
+                    if (!restoring) {                                                                   //Writes held during a reconnection go out once the link is restored
+                        characteristicWriteQueue.clear();
                     }
+                    firmwareRevision = null;                                                            //Firmware may have changed since the last connection (DFU)
+                    receiveDecoder.reset();                                                             //Drop a partial character left by the previous connection
+                    PerfTrace.beginAsync(PerfTrace.GATT_DISCOVERY, 0);
+                    bluetoothGatt.discoverServices();                                                   //Discover services after successful connection
+                    linkMonitor.start();
+                }
+                else if (reconnectEngine.isActive()) {                                                  //Connection attempt failed
+                    Log.d(TAG, "Connection attempt failed with status " + status);
+                    reconnectEngine.onConnectFailed(attemptTagOf(gatt));                                //Try again after a backoff or give up
                 }
-                else {                                                                                  //Something went wrong with the connection or disconnection request
-                    if (connectionAttemptCountdown-- > 0) {                                             //See is we should try another attempt at connecting
-                        gatt.connect();                                                                 //Use the existing BluetoothGatt to try connect
-                        Log.d(TAG, "Connection attempt failed, trying again");
+                else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                    if (status != BluetoothGatt.GATT_SUCCESS && connectionState == BluetoothProfile.STATE_CONNECTED && !disconnectRequested && reconnectPolicy != null) {
+                        restoreLink(status);                                                            //Link dropped, keep the session and connect again
+                        return;
                     }
-                    else if (newState == BluetoothProfile.STATE_DISCONNECTED) {                         //Not trying another connection attempt and are not connected
-                        final Intent intent = new Intent(ACTION_BLE_DISCONNECTED);
-                        sendBroadcast(intent);
+                    connectionState = BluetoothProfile.STATE_DISCONNECTED;
+                    metrics.increment(status == BluetoothGatt.GATT_SUCCESS ? ServiceMetrics.DISCONNECTIONS : ServiceMetrics.CONNECTION_LOSSES);
+                    commandEngine.cancel();                                                             //No replies will come for the commands of a running script
+                    closeFramedChannel();
+                    abandonRestore();                                                                   //Fail the handles of writes that will never complete
+                    watchdog.reset();
+                    linkMonitor.stop();
+                    Log.i(TAG, linkMonitor.toString());
+                    Log.i(TAG, receiveStats.toString());
+                    final Intent intent = new Intent(ACTION_BLE_DISCONNECTED);
+                    sendBroadcast(intent);
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        Log.i(TAG, "Disconnected from BLE device");
+                    }
+                    else {
                         Log.i(TAG, "Unexpectedly disconnected from BLE device");
+                        DebugLog.dumpEvents(TAG, "unexpected disconnection, status " + status);
                     }
                 }
             }
@@ -194,8 +602,14 @@ public class MldpBluetoothService extends Service {
         //Service discovery completed
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            PerfTrace.endAsync(PerfTrace.GATT_DISCOVERY, 0);
+            final GattRecorder gattRecorder = recorder;
+            if (gattRecorder != null) {
+                gattRecorder.servicesDiscovered(status);
+            }
             try {
                 mldpDataCharacteristic = transparentTxDataCharacteristic = transparentRxDataCharacteristic = null;
+                firmwareRevisionCharacteristic = null;
                 if (status == BluetoothGatt.GATT_SUCCESS) {
                     List<BluetoothGattService> gattServices = gatt.getServices();                       //Get the list of services discovered
                     if (gattServices == null) {
@@ -209,89 +623,51 @@ public class MldpBluetoothService extends Service {
                             List<BluetoothGattCharacteristic> gattCharacteristics = gattService.getCharacteristics();
                             for (BluetoothGattCharacteristic gattCharacteristic : gattCharacteristics) { //Loops through available characteristics
                                 uuid = gattCharacteristic.getUuid();                                    //Get the UUID of the characteristic
-                                Log.d(TAG, "UUID FOUND: " + uuid.toString());
+                                DebugLog.d(TAG, "UUID FOUND: ", uuid);
                                 if (uuid.equals(UUID_TRANSPARENT_TX_PRIVATE_CHAR)) {                    //See if it is the Transparent Tx data private characteristic UUID
                                     transparentTxDataCharacteristic = gattCharacteristic;
-                                    final int characteristicProperties = gattCharacteristic.getProperties(); //Get the properties of the characteristic
-                                    if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_NOTIFY)) > 0) { //See if the characteristic has the Notify property
-                                        bluetoothGatt.setCharacteristicNotification(gattCharacteristic, true); //If so then enable notification in the BluetoothGatt
-                                        BluetoothGattDescriptor descriptor = gattCharacteristic.getDescriptor(UUID_CHAR_NOTIFICATION_DESCRIPTOR); //Get the descriptor that enables notification on the server
-                                        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE); //Set the value of the descriptor to enable notification
-                                        descriptorWriteQueue.add(descriptor);                           //put the descriptor into the write queue
-                                        if(descriptorWriteQueue.size() == 1) {                          //If there is only 1 item in the queue, then write it.  If more than 1, we handle asynchronously in the callback above
-                                            bluetoothGatt.writeDescriptor(descriptor);                 //Write the descriptor
-                                        }
-                                    }
-                                    if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) > 0) { //See if the characteristic has the Write (unacknowledged) property
-                                        gattCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE); //If so then set the write type (write with no acknowledge) in the BluetoothGatt
-                                    }
+                                    subscribe(gattCharacteristic);                                      //Enable notification or indication depending on the receive mode
                                     Log.d(TAG, "Found Transparent service Tx characteristics");
                                 }
                                 if (uuid.equals(UUID_TRANSPARENT_RX_PRIVATE_CHAR)) {                    //See if it is the Transparent Rx data private characteristic UUID
                                     transparentRxDataCharacteristic = gattCharacteristic;
-                                    final int characteristicProperties = gattCharacteristic.getProperties(); //Get the properties of the characteristic
-                                    if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) > 0) { //See if the characteristic has the Write (unacknowledged) property
-                                        gattCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE); //If so then set the write type (write with no acknowledge) in the BluetoothGatt
-                                    }
                                     Log.d(TAG, "Found Transparent service Rx characteristics");
                                 }
 
                                 if (uuid.equals(UUID_MLDP_DATA_PRIVATE_CHAR)) {                         //See if it is the MLDP data private characteristic UUID
                                     mldpDataCharacteristic = gattCharacteristic;
-                                    final int characteristicProperties = gattCharacteristic.getProperties(); //Get the properties of the characteristic
-                                    if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_NOTIFY)) > 0) { //See if the characteristic has the Notify property
-                                        bluetoothGatt.setCharacteristicNotification(gattCharacteristic, true); //If so then enable notification in the BluetoothGatt
-                                        BluetoothGattDescriptor descriptor = gattCharacteristic.getDescriptor(UUID_CHAR_NOTIFICATION_DESCRIPTOR); //Get the descriptor that enables notification on the server
-                                        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE); //Set the value of the descriptor to enable notification
-                                        descriptorWriteQueue.add(descriptor);                           //put the descriptor into the write queue
-                                        if(descriptorWriteQueue.size() == 1) {                          //If there is only 1 item in the queue, then write it.  If more than 1, we handle asynchronously in the callback above
-                                            bluetoothGatt.writeDescriptor(descriptor);                 //Write the descriptor
-                                        }
-                                    }
-//Use Indicate for RN4020 module firmware prior to 1.20 (not recommended)
-//                                    if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_INDICATE)) > 0) { //Only see if the characteristic has the Indicate property if it does not have the Notify property
-//                                        bluetoothGatt.setCharacteristicNotification(gattCharacteristic, true); //If so then enable notification (and indication) in the BluetoothGatt
-//                                        BluetoothGattDescriptor descriptor = gattCharacteristic.getDescriptor(UUID_CHAR_NOTIFICATION_DESCRIPTOR); //Get the descriptor that enables indication on the server
-//                                        descriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE); //Set the value of the descriptor to enable indication
-//                                        descriptorWriteQueue.add(descriptor);                           //put the descriptor into the write queue
-//                                        if(descriptorWriteQueue.size() == 1) {                          //If there is only 1 item in the queue, then write it.  If more than 1, we handle asynchronously in the callback above
-//                                            bluetoothGatt.writeDescriptor(descriptor);                  //Write the descriptor
-//                                        }
-//                                    }
-                                    if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) > 0) { //See if the characteristic has the Write (unacknowledged) property
-                                        gattCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE); //If so then set the write type (write with no acknowledge) in the BluetoothGatt
-                                    }
-//Use Write With Response for RN4020 module firmware prior to 1.20 (not recommended)
-//                                    if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE)) > 0) { //See if the characteristic has the Write (acknowledged) property
-//                                        gattCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT); //If so then set the write type (write with acknowledge) in the BluetoothGatt
-//                                    }
+                                    subscribe(gattCharacteristic);                                      //Enable notification or indication depending on the receive mode
+                                    //Write type is chosen per write, see writeTypeFor()
                                     Log.d(TAG, "Found MLDP service and characteristics");
                                 }
 
                                 if (uuid.equals(UUID_MLDP_CONTROL_PRIVATE_CHAR)) {                  //See if it is the MLDP control private characteristic UUID
                                     mldpControlCharacteristic = gattCharacteristic;
-                                    final int characteristicProperties = gattCharacteristic.getProperties(); //Get the properties of the characteristic
-                                    if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) > 0) { //See if the characteristic has the Write (unacknowledged) property
-                                        gattCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE); //If so then set the write type (write with no acknowledge) in the BluetoothGatt
-                                    }
                                     Log.d(TAG, "Found MLDP control service");
                                 }
 
                                 if (uuid.equals(UUID_DEVICE_NAME_GENERIC_ACCESS)) {
                                     genericDeviceNameCharacteristic = gattCharacteristic;
-                                    final int characteristicProperties = gattCharacteristic.getProperties(); //Get the properties of the characteristic
-                                    if ((characteristicProperties & (BluetoothGattCharacteristic.PROPERTY_WRITE)) > 0) { //See if the characteristic has the Write (unacknowledged) property
-                                        gattCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT); //If so then set the write type (write with no acknowledge) in the BluetoothGatt
-                                    }
                                     Log.d(TAG, "Found Device Name characteristic");
                                 }
                             }
                             break;
                         }
                     }
+                    BluetoothGattService deviceInformationService = gatt.getService(UUID_DEVICE_INFORMATION_SERVICE);
+                    if (deviceInformationService != null) {                                             //Keep the revision characteristic for the DFU pre-flight check
+                        firmwareRevisionCharacteristic = deviceInformationService.getCharacteristic(UUID_FIRMWARE_REVISION_CHAR);
+                        if (firmwareRevisionCharacteristic == null) {                                   //Some firmware only reports the version in the Software Revision String
+                            firmwareRevisionCharacteristic = deviceInformationService.getCharacteristic(UUID_SOFTWARE_REVISION_CHAR);
+                        }
+                    }
                     if(mldpDataCharacteristic == null && (transparentTxDataCharacteristic == null || transparentRxDataCharacteristic == null)) {
                         Log.d(TAG, "Did not find MLDP or Transparent service");
                     }
+                    deviceRegistry.onConnected(gatt.getDevice().getAddress(), gatt.getDevice().getName(), gattLayout()); //Remember the device and what it offers
+                    if (descriptorWriteDepth() == 0) {                                                  //No subscription to wait for
+                        finishRestore();
+                    }
                 }
                 else {
                     Log.w(TAG, "Failed service discovery with status: " + status);
@@ -305,32 +681,72 @@ public class MldpBluetoothService extends Service {
         //Received notification or indication with new value for a characteristic
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            final ReceiveStats stats = receiveStats;
+            final GattRecorder gattRecorder = recorder;
+            if (gattRecorder != null) {
+                gattRecorder.characteristicChanged(recordId(characteristic), characteristic.getValue());
+            }
+            PerfTrace.begin(PerfTrace.RECEIVE);
             try {
                 if (UUID_MLDP_DATA_PRIVATE_CHAR.equals(characteristic.getUuid()) || UUID_TRANSPARENT_TX_PRIVATE_CHAR.equals(characteristic.getUuid())) {                     //See if it is the MLDP data characteristic
-                    String dataValue = characteristic.getStringValue(0);                                //Get the data in string format
+                    final byte[] value = characteristic.getValue();
+                    final int length = value != null ? value.length : 0;
+                    final long receivedAt = System.nanoTime();
+                    stats.onReceived(length, receivedAt);
+                    metrics.increment(ServiceMetrics.PACKETS_IN);
+                    metrics.add(ServiceMetrics.BYTES_IN, length);
+                    final FramedChannel channel = framedChannel;
+                    final CharSequence text = channel == null ? receiveDecoder.decode(value) : "";      //Decode with the characters left incomplete by the previous packet
                     //byte[] dataValue = characteristic.getValue();                                     //Example of getting data in a byte array
-                    Log.d(TAG, "New notification or indication");
-                    final Intent intent = new Intent(ACTION_BLE_DATA_RECEIVED);                         //Create the intent to announce the new data
-                    intent.putExtra(INTENT_EXTRA_SERVICE_DATA, dataValue);                              //Add the data to the intent
-                    sendBroadcast(intent);                                                              //Broadcast the intent
+                    if (channel != null) {
+                        channel.onPacket(value);                                                        //Acknowledgements and frames of the framed transport
+                    }
+                    else if (text.length() > 0) {                                                       //Nothing to announce if the packet only holds part of a character
+                        receiveBuffer.append(text, foregroundAddress == null);                          //Kept for when the main connection is shown again
+                        commandEngine.onDataReceived(text);                                             //Match replies to the commands of a running script
+                        final TextListener listener = textListener;
+                        if (listener != null) {
+                            listener.onTextReceived(text);
+                        }
+                        final Intent intent = new Intent(ACTION_BLE_DATA_RECEIVED);                     //Create the intent to announce the new data
+                        intent.putExtra(INTENT_EXTRA_SERVICE_DATA, text.toString());                    //Add the data to the intent
+                        PerfTrace.begin(PerfTrace.BROADCAST);
+                        try {
+                            sendBroadcast(intent);                                                      //Broadcast the intent
+                        }
+                        finally {
+                            PerfTrace.end();
+                        }
+                    }
+                    final long confirmedAt = System.nanoTime();
+                    stats.onConfirmed(confirmedAt);                                                     //Android confirms an indication when this callback returns
+                    DebugEvents.record(DebugEvents.EVENT_DATA_RECEIVED, length, (int) Math.min(Short.MAX_VALUE, (confirmedAt - receivedAt) / 1000));
                 }
             }
             catch (Exception e) {
                 Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
             }
+            finally {
+                PerfTrace.end();
+            }
         }
 
         //Write completed
         //Use write queue because BluetoothGatt can only do one write at a time
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            final GattRecorder gattRecorder = recorder;
+            if (gattRecorder != null) {
+                gattRecorder.characteristicWrite(recordId(characteristic), status);
+            }
             try {
-                if (status != BluetoothGatt.GATT_SUCCESS) {                                             //See if the write was successful
-                    Log.w(TAG, "Error writing GATT characteristic with status: " + status);
-                }
-                characteristicWriteQueue.remove();                                                      //Pop the item that we just finishing writing
-                if(characteristicWriteQueue.size() > 0) {                                               //See if there is more to write
-                    bluetoothGatt.writeCharacteristic(characteristicWriteQueue.element());              //Write characteristic
+                watchdog.onCompleted(GattWatchdog.OPERATION_CHARACTERISTIC_WRITE);
+                PerfTrace.endAsync(PerfTrace.GATT_WRITE, 0);
+                linkMonitor.onWriteCompleted(System.nanoTime());
+                metrics.increment(ServiceMetrics.WRITES_COMPLETED);
+                characteristicWriteQueue.onWriteComplete(status);                                       //Complete the handle of the write and start the next one
+                if (PerfTrace.ENABLED) {
+                    PerfTrace.counter(PerfTrace.WRITE_QUEUE, characteristicWriteQueue.size());
                 }
             }
             catch (Exception e) {
@@ -342,23 +758,50 @@ public class MldpBluetoothService extends Service {
         //Use write queue because BluetoothGatt can only do one write at a time
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            final GattRecorder gattRecorder = recorder;
+            if (gattRecorder != null) {
+                gattRecorder.descriptorWrite(status);
+            }
             try {
                 if (status != BluetoothGatt.GATT_SUCCESS) {
                     Log.w(TAG, "Error writing GATT descriptor with status: " + status);
                 }
-                descriptorWriteQueue.remove();                                                          //Pop the item that we just finishing writing
-                if(descriptorWriteQueue.size() > 0) {                                                   //See if there is more to write
-                    bluetoothGatt.writeDescriptor(descriptorWriteQueue.element());                      //Write descriptor
-                }
+                watchdog.onCompleted(GattWatchdog.OPERATION_DESCRIPTOR_WRITE);
+                PerfTrace.endAsync(PerfTrace.GATT_DESCRIPTOR_WRITE, 0);
+                nextDescriptorWrite(descriptor, status);
             }
             catch (Exception e) {
                 Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
             }
         }
 
-        //Read completed. For information only. This application uses Notification or Indication to receive updated characteristic data, not Read
+        //Read completed. This application uses Notification or Indication to receive updated characteristic data, not Read
+        //The only read is the firmware revision used by the DFU pre-flight check
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            watchdog.onCompleted(GattWatchdog.OPERATION_READ);
+            PerfTrace.endAsync(PerfTrace.GATT_READ, 0);
+            final GattRecorder gattRecorder = recorder;
+            if (gattRecorder != null) {
+                gattRecorder.characteristicRead(recordId(characteristic), status, characteristic.getValue());
+            }
+            try {
+                if (firmwareRevisionCharacteristic != null && firmwareRevisionCharacteristic.getUuid().equals(characteristic.getUuid())) {
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        firmwareRevision = characteristic.getStringValue(0);                            //Cache the revision, it cannot change while connected
+                        Log.i(TAG, "Firmware revision: " + firmwareRevision);
+                        deviceRegistry.setFirmware(gatt.getDevice().getAddress(), firmwareRevision);
+                        applyFirmwareWriteStrategy(firmwareRevision);
+                    }
+                    else {
+                        Log.w(TAG, "Error reading firmware revision with status: " + status);
+                    }
+                    broadcastFirmwareRevision();                                                        //Report even on failure so the client does not wait for a timeout
+                }
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            }
         }
 
         @Override
@@ -371,9 +814,88 @@ public class MldpBluetoothService extends Service {
 
         @Override
         public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+            final GattRecorder gattRecorder = recorder;
+            if (gattRecorder != null) {
+                gattRecorder.rssi(rssi, status);
+            }
+            linkMonitor.onRssi(rssi, status);
         }
     };
 
+    // Tag of the connection attempt that opened the BluetoothGatt, 0 for one that is not the latest attempt
+    private int attemptTagOf(BluetoothGatt gatt) {
+        return gatt != null && gatt == attemptGatt ? attemptTag : 0;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start recording the GATT callbacks of the main connection to a new file in app storage, see GattReplay
+    // Returns the file, or null if it could not be created
+    public File startRecording() {
+        stopRecording();
+        try {
+            final File directory = new File(getFilesDir(), RECORDING_DIRECTORY);
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                Log.w(TAG, "Could not create " + directory);
+                return null;
+            }
+            final File file = new File(directory, "gatt-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".bin");
+            recorder = new GattRecorder(file);
+            Log.i(TAG, "Recording GATT callbacks to " + file);
+            return file;
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stop recording and wait briefly for the last records to reach the file
+    public void stopRecording() {
+        final GattRecorder gattRecorder = recorder;
+        if (gattRecorder == null) {
+            return;
+        }
+        recorder = null;
+        gattRecorder.close(RECORDING_CLOSE_TIMEOUT);
+        if (gattRecorder.getError() != null) {
+            Log.w(TAG, "Recording failed: " + gattRecorder.getError().getMessage());
+        }
+        Log.i(TAG, "Recorded " + gattRecorder.getRecords() + " GATT callbacks in " + gattRecorder.getBytes() + " bytes");
+    }
+
+    public boolean isRecording() {
+        return recorder != null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Compact id of a characteristic in a recording
+    private int recordId(BluetoothGattCharacteristic characteristic) {
+        if (characteristic == null) {
+            return GattRecorder.CHAR_OTHER;
+        }
+        final UUID uuid = characteristic.getUuid();
+        if (UUID_MLDP_DATA_PRIVATE_CHAR.equals(uuid)) {
+            return GattRecorder.CHAR_MLDP_DATA;
+        }
+        if (UUID_MLDP_CONTROL_PRIVATE_CHAR.equals(uuid)) {
+            return GattRecorder.CHAR_MLDP_CONTROL;
+        }
+        if (UUID_TRANSPARENT_TX_PRIVATE_CHAR.equals(uuid)) {
+            return GattRecorder.CHAR_TRANSPARENT_TX;
+        }
+        if (UUID_TRANSPARENT_RX_PRIVATE_CHAR.equals(uuid)) {
+            return GattRecorder.CHAR_TRANSPARENT_RX;
+        }
+        if (UUID_DEVICE_NAME_GENERIC_ACCESS.equals(uuid)) {
+            return GattRecorder.CHAR_DEVICE_NAME;
+        }
+        if (UUID_FIRMWARE_REVISION_CHAR.equals(uuid) || UUID_SOFTWARE_REVISION_CHAR.equals(uuid)) {
+            return GattRecorder.CHAR_FIRMWARE_REVISION;
+        }
+        return GattRecorder.CHAR_OTHER;
+    }
+
     // ----------------------------------------------------------------------------------------------------------------
     // Check whether Bluetooth radio is enabled
     public boolean isBluetoothRadioEnabled() {
@@ -395,6 +917,7 @@ public class MldpBluetoothService extends Service {
     // The bleScanCallback method is called each time a device is found during the scan
     public void scanStart() {
         try {
+            metrics.onScanStarted(SystemClock.elapsedRealtime());
             if (Build.VERSION.SDK_INT >= 21) { //Build.VERSION_CODES.LOLLIPOP) {
                 bluetoothAdapter.startLeScan(bleScanCallback);                                          //Start scanning with callback method to execute when a new BLE device is found
 //                bluetoothAdapter.startLeScan(uuidScanList, bleScanCallback);                            //Start scanning with callback method to execute when a new BLE device is found
@@ -413,12 +936,71 @@ public class MldpBluetoothService extends Service {
     public void scanStop() {
         try {
             bluetoothAdapter.stopLeScan(bleScanCallback); 		                                        //Stop scanning - callback method indicates which scan to stop
+            metrics.onScanStopped(SystemClock.elapsedRealtime());
         }
         catch (Exception e) {
             Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
         }
     }
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Scan for one device and connect to it as soon as it advertises, without reporting back to the client first
+    // ACTION_BLE_TARGET_FOUND is broadcast when the connection starts, ACTION_BLE_TARGET_NOT_FOUND after timeoutMillis.
+    // Returns false if the radio is off. Must be called on the main thread.
+    public boolean scanAndConnect(ScanTarget target, long timeoutMillis) {
+        if (!isBluetoothRadioEnabled()) {
+            return false;
+        }
+        cancelTargetedScan();
+        handler.removeCallbacks(targetNotFound);                                                    //Left over by a scan that found its device
+        targetScanStartedAt = SystemClock.elapsedRealtime();
+        scanTarget.set(target);
+        metrics.increment(ServiceMetrics.TARGETED_SCANS);
+        scanStart();
+        handler.postDelayed(targetNotFound, timeoutMillis);
+        Log.i(TAG, "Scanning for " + target);
+        return true;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stop a targeted scan that has not found its device yet
+    public void cancelTargetedScan() {
+        if (scanTarget.getAndSet(null) != null) {
+            handler.removeCallbacks(targetNotFound);
+            scanStop();
+        }
+    }
+
+    private final Runnable targetNotFound = new Runnable() {
+        @Override
+        public void run() {
+            final ScanTarget target = scanTarget.getAndSet(null);
+            if (target != null) {
+                scanStop();
+                Log.i(TAG, "Did not find " + target);
+                sendBroadcast(new Intent(ACTION_BLE_TARGET_NOT_FOUND));
+            }
+        }
+    };
+
+    // Called in the scan callback for the first advertisement of the target
+    private void onTargetFound(final BluetoothDevice device) {
+        scanStop();                                                                                 //Scanning slows down the connection
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                targetFoundMillis = SystemClock.elapsedRealtime() - targetScanStartedAt;
+                metrics.increment(ServiceMetrics.TARGETS_FOUND);
+                Log.i(TAG, "Found " + device.getAddress() + " in " + targetFoundMillis + "ms, connecting");
+                connect(device.getAddress());
+                final Intent intent = new Intent(ACTION_BLE_TARGET_FOUND);
+                intent.putExtra(INTENT_EXTRA_SERVICE_ADDRESS, device.getAddress());
+                intent.putExtra(INTENT_EXTRA_SERVICE_NAME, device.getName());
+                sendBroadcast(intent);
+            }
+        });
+    }
+
     // ----------------------------------------------------------------------------------------------------------------
     // Connect to a Bluetooth LE device with a specific address
     public boolean connect(final String address) {
@@ -432,11 +1014,15 @@ public class MldpBluetoothService extends Service {
                 Log.w(TAG, "Unable to connect because device was not found");
                 return false;
             }
-            if (bluetoothGatt != null) {                                                                //See if an existing connection needs to be closed
-                bluetoothGatt.close();                                                                  //Faster to create new connection than reconnect with existing BluetoothGatt
+            disconnectRequested = false;
+            receiveStats = new ReceiveStats(false);                                                     //Figures of the previous connection end here
+            setWriteStrategy(writeStrategy);                                                            //Start each connection from the chosen strategy, a restored link keeps a fallback
+            if (restoring) {
+                abandonRestore();                                                                       //A new connection starts with an empty write queue
             }
-            connectionAttemptCountdown = 3;                                                             //Try to connect three times for reliability
-            bluetoothGatt = bluetoothDevice.connectGatt(this, false, bleGattCallback);                           //Directly connect to the device , so set autoConnect to false
+            connectionState = BluetoothProfile.STATE_CONNECTING;
+            StartupTrace.mark(StartupTrace.CONNECT);
+            reconnectEngine.start(CONNECT_POLICY);                                                      //Closes an existing connection and makes the first attempt
             Log.d(TAG, "Attempting to create a new Bluetooth connection");
             return true;
         }
@@ -446,15 +1032,118 @@ public class MldpBluetoothService extends Service {
         }
     }
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Link dropped while connected. Hold the queued writes and connect again with the reconnect policy. The write in
+    // flight is sent again once the subscriptions are restored, everything else tied to the link is reset.
+    private void restoreLink(int status) {
+        DebugLog.dumpEvents(TAG, "link lost, status " + status);
+        metrics.increment(ServiceMetrics.CONNECTION_LOSSES);
+        restoring = true;
+        connectionState = BluetoothProfile.STATE_CONNECTING;
+        characteristicWriteQueue.hold();
+        clearDescriptorWrites();
+        commandEngine.cancel();                                                                     //No replies will come for the commands of a running script
+        closeFramedChannel();
+        watchdog.reset();
+        linkMonitor.stop();
+        Log.i(TAG, linkMonitor.toString());
+        final Intent intent = new Intent(ACTION_BLE_RECONNECTING);
+        sendBroadcast(intent);
+        reconnectEngine.start(reconnectPolicy);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Subscriptions are back after a reconnection, let the held writes go
+    private void finishRestore() {
+        if (!restoring) {
+            return;
+        }
+        restoring = false;
+        metrics.increment(ServiceMetrics.RECONNECTS);
+        characteristicWriteQueue.resume();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The link will not be restored. Fail the held writes, then let the queue start writes again. Clearing alone keeps
+    // the queue held, so a DFU cancelled during a reconnection cannot write to the stale BluetoothGatt.
+    private void abandonRestore() {
+        restoring = false;
+        characteristicWriteQueue.clear();
+        characteristicWriteQueue.resume();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Characteristic of the current connection with the UUID of one that may come from a previous connection
+    private BluetoothGattCharacteristic currentCharacteristic(BluetoothGattCharacteristic characteristic) {
+        final UUID uuid = characteristic.getUuid();
+        final BluetoothGattCharacteristic[] current = {mldpDataCharacteristic, transparentRxDataCharacteristic, mldpControlCharacteristic, genericDeviceNameCharacteristic};
+        for (BluetoothGattCharacteristic candidate : current) {
+            if (candidate != null && candidate.getUuid().equals(uuid)) {
+                return candidate;
+            }
+        }
+        return characteristic;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Choose how a lost link is handled, null to report it as a disconnection at once
+    public void setReconnectPolicy(ReconnectEngine.Policy policy) {
+        reconnectPolicy = policy;
+    }
+
+    public ReconnectEngine getReconnectEngine() {
+        return reconnectEngine;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Connect to the device chosen for auto connect, without a scan. Called during startup, before the terminal screen
+    // is up. Returns false if the radio is off, no device is known or a connection is already in progress.
+    public boolean connectKnownDevice() {
+        if (connectionState != BluetoothProfile.STATE_DISCONNECTED || !isBluetoothRadioEnabled()) {
+            return false;
+        }
+        final DeviceRecord device = deviceRegistry.findAutoConnectDevice(DeviceRegistry.NEARBY_AGE);
+        return device != null && connect(device.getAddress());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // One of the BluetoothProfile STATE_ constants, for a client that binds while a connection is under way
+    public int getConnectionState() {
+        return connectionState;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Address of the device connected or being connected, null if connect() was never called
+    public String getDeviceAddress() {
+        return bluetoothDevice != null ? bluetoothDevice.getAddress() : null;
+    }
+
     // ----------------------------------------------------------------------------------------------------------------
     // Disconnect an existing connection or cancel a connection that has been requested
     public void disconnect() {
         try {
-            if (bluetoothAdapter == null || bluetoothGatt == null) {
+            if (bluetoothAdapter == null) {
                 Log.w(TAG, "BluetoothAdapter not initialized");
                 return;
             }
-            connectionAttemptCountdown = 0;                                                             //Stop counting connection attempts
+            disconnectRequested = true;
+            if (reconnectEngine.isActive()) {                                                           //Not connected yet, stop the attempts
+                reconnectEngine.cancel();
+                if (bluetoothGatt != null) {
+                    bluetoothGatt.close();
+                    bluetoothGatt = null;
+                }
+                connectionState = BluetoothProfile.STATE_DISCONNECTED;
+                clearDescriptorWrites();
+                abandonRestore();
+                final Intent intent = new Intent(ACTION_BLE_DISCONNECTED);                              //No callback comes from a closed BluetoothGatt
+                sendBroadcast(intent);
+                return;
+            }
+            if (bluetoothGatt == null) {
+                Log.w(TAG, "Not connected");
+                return;
+            }
             bluetoothGatt.disconnect();
         }
         catch (Exception e) {
@@ -463,115 +1152,640 @@ public class MldpBluetoothService extends Service {
     }
 
     // ----------------------------------------------------------------------------------------------------------------
-    // Write to the MLDP control characteristic
-    public void writeControlMLDP(byte[] byteValues) {
+    // Run a script of RN4020 commands on the connected device, which must be in command mode (CMD received)
+    // Each command is written as one packet and the results are delivered on the main thread once the script is done.
+    // Returns false if another script is running.
+    public boolean runCommandScript(List<String> commands, boolean stopOnError, CommandEngine.Callback callback) {
+        if (bluetoothGatt == null) {
+            Log.w(TAG, "Command script attempted while not connected");
+            return false;
+        }
+        return commandEngine.run(commands, stopOnError, callback);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Request the firmware revision of the connected device
+    // The result is broadcast with ACTION_BLE_FIRMWARE_REVISION. Returns false if the revision cannot be read, in which
+    // case nothing will be broadcast.
+    public boolean readFirmwareRevision() {
         try {
-            BluetoothGattCharacteristic writeControlCharacteristic;
-            if (mldpControlCharacteristic != null)
-                writeControlCharacteristic = mldpControlCharacteristic;
-            else
-                return;
-            if (bluetoothAdapter == null || bluetoothGatt == null || writeControlCharacteristic == null) {
-                Log.w(TAG, "Write attempted with Bluetooth uninitialized or not connected");
-                return;
+            if (firmwareRevision != null) {                                                             //Already read during this connection
+                broadcastFirmwareRevision();
+                return true;
             }
-            writeControlCharacteristic.setValue(byteValues);
-            characteristicWriteQueue.add(writeControlCharacteristic);                                       //Put the characteristic into the write queue
-            if(characteristicWriteQueue.size() == 1){                                                   //If there is only 1 item in the queue, then write it.  If more than 1, we handle asynchronously in the callback above
-                if (!bluetoothGatt.writeCharacteristic(writeControlCharacteristic)) {                       //Request the BluetoothGatt to do the Write
-                    Log.d(TAG, "Failed to write characteristic");                                       //Write request was not accepted by the BluetoothGatt
-                }
+            if (bluetoothGatt == null || firmwareRevisionCharacteristic == null) {
+                Log.w(TAG, "Firmware revision is not available on this device");
+                return false;
+            }
+            if (!characteristicWriteQueue.isEmpty() || descriptorWriteDepth() > 0) {                //BluetoothGatt can only do one operation at a time
+                Log.w(TAG, "Cannot read firmware revision while writes are pending");
+                return false;
             }
+            return startFirmwareRevisionRead();                                                         //Result arrives in onCharacteristicRead
         }
         catch (Exception e) {
-            Log.e(TAG, "Exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            return false;
         }
     }
 
+    private void broadcastFirmwareRevision() {
+        final Intent intent = new Intent(ACTION_BLE_FIRMWARE_REVISION);
+        if (bluetoothDevice != null) {
+            intent.putExtra(INTENT_EXTRA_SERVICE_ADDRESS, bluetoothDevice.getAddress());
+        }
+        intent.putExtra(INTENT_EXTRA_SERVICE_FIRMWARE, firmwareRevision);                               //Null if the read failed
+        sendBroadcast(intent);
+    }
+
     // ----------------------------------------------------------------------------------------------------------------
-    // NOT WORKING: Write to the device name characteristic
-    public void writeDeviceName(byte[] byteValues) {                                                          //Write string (may need to add code to limit write to 20 bytes)
-        try {
-            BluetoothGattCharacteristic writeNameCharacteristic;
-            Log.d(TAG, "btadpt: " + bluetoothAdapter + " | btgatt: " + bluetoothGatt + " | genericDeviceName: " + genericDeviceNameCharacteristic);
-            if (genericDeviceNameCharacteristic != null) {
-                writeNameCharacteristic = genericDeviceNameCharacteristic;
+    // Enable notification or indication on a characteristic, depending on the receive mode and its properties
+    // AUTO uses notification when available. Indication is for RN4020 module firmware prior to 1.20.
+    private void subscribe(BluetoothGattCharacteristic characteristic) {
+        final int characteristicProperties = characteristic.getProperties();
+        final boolean canNotify = (characteristicProperties & BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0;
+        final boolean canIndicate = (characteristicProperties & BluetoothGattCharacteristic.PROPERTY_INDICATE) > 0;
+        final boolean indicate = canIndicate && (receiveMode == ReceiveMode.INDICATION || !canNotify);
+        if (!indicate && !canNotify) {
+            return;
+        }
+        bluetoothGatt.setCharacteristicNotification(characteristic, true);                          //Enable notification (and indication) in the BluetoothGatt
+        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(UUID_CHAR_NOTIFICATION_DESCRIPTOR); //Get the descriptor that enables notification or indication on the server
+        descriptor.setValue(indicate ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE : BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        if (receiveStats.isIndications() != indicate) {                                             //Same mode after a reconnection keeps the figures
+            receiveStats = new ReceiveStats(indicate);                                              //Start accounting for the new mode
+        }
+        final boolean first;
+        synchronized (descriptorWriteQueue) {
+            descriptorWriteQueue.add(descriptor);                                                   //put the descriptor into the write queue
+            first = descriptorWriteQueue.size() == 1;
+        }
+        if (first) {                                                                                //If there is only 1 item in the queue, then write it.  If more than 1, we handle asynchronously in the callback above
+            startDescriptorWrite(descriptor);                                                       //Write the descriptor
+        }
+        DebugLog.d(TAG, indicate ? "Indication enabled on " : "Notification enabled on ", characteristic.getUuid());
+    }
+
+    private void clearDescriptorWrites() {
+        synchronized (descriptorWriteQueue) {
+            descriptorWriteQueue.clear();
+        }
+    }
+
+    private int descriptorWriteDepth() {
+        synchronized (descriptorWriteQueue) {
+            return descriptorWriteQueue.size();
+        }
+    }
+
+    private void startDescriptorWrite(BluetoothGattDescriptor descriptor) {
+        watchdog.onStarted(GattWatchdog.OPERATION_DESCRIPTOR_WRITE);
+        if (!bluetoothGatt.writeDescriptor(descriptor)) {
+            Log.w(TAG, "Failed to write descriptor");                                               //Deadline stays armed so the watchdog tries again
+            return;
+        }
+        PerfTrace.beginAsync(PerfTrace.GATT_DESCRIPTOR_WRITE, 0);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The descriptor write in flight is done, or was given up by the watchdog. Start the next one. Ignored unless the
+    // descriptor is still at the head of the queue, so a completion and the watchdog pop it only once.
+    private void nextDescriptorWrite(BluetoothGattDescriptor done, int status) {
+        final BluetoothGattDescriptor next;
+        final int depth;
+        synchronized (descriptorWriteQueue) {
+            if (done == null || descriptorWriteQueue.peek() != done) {
+                return;                                                                             //Queue was cleared or the write given up meanwhile
             }
-            else {
-                writeNameCharacteristic = transparentRxDataCharacteristic;
+            descriptorWriteQueue.poll();                                                            //Pop the item that we just finishing writing
+            next = descriptorWriteQueue.peek();
+            depth = descriptorWriteQueue.size();
+        }
+        DebugEvents.record(DebugEvents.EVENT_DESCRIPTOR_WRITE, depth, status);
+        if (next != null) {                                                                         //See if there is more to write
+            startDescriptorWrite(next);                                                             //Write descriptor
+        }
+        else {
+            StartupTrace.finish(StartupTrace.READY);                                                //Subscriptions done, the terminal is live
+            finishRestore();
+            if (writeStrategy == WriteStrategy.AUTO && firmwareRevision == null && firmwareRevisionCharacteristic != null && characteristicWriteQueue.isEmpty()) {
+                startFirmwareRevisionRead();                                                        //Read the firmware revision to pick the write strategy
             }
-            if (bluetoothAdapter == null || bluetoothGatt == null || writeNameCharacteristic == null) {
-                Log.w(TAG, "Write attempted with Bluetooth uninitialized or not connected");
-                return;
+        }
+    }
+
+    private boolean startFirmwareRevisionRead() {
+        watchdog.onStarted(GattWatchdog.OPERATION_READ);
+        if (!bluetoothGatt.readCharacteristic(firmwareRevisionCharacteristic)) {
+            watchdog.onRefused(GattWatchdog.OPERATION_READ);
+            return false;
+        }
+        PerfTrace.beginAsync(PerfTrace.GATT_READ, 0);
+        return true;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Time and delayed tasks on the main thread, for timeouts of the clients
+    public CommandEngine.Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Known devices with their firmware, RSSI, GATT layout and DFU history
+    public DeviceRegistry getDeviceRegistry() {
+        return deviceRegistry;
+    }
+
+    // LAYOUT_ flags of the characteristics found by the last service discovery
+    private int gattLayout() {
+        int layout = 0;
+        layout |= mldpDataCharacteristic != null ? DeviceRecord.LAYOUT_MLDP_DATA : 0;
+        layout |= mldpControlCharacteristic != null ? DeviceRecord.LAYOUT_MLDP_CONTROL : 0;
+        layout |= transparentTxDataCharacteristic != null ? DeviceRecord.LAYOUT_TRANSPARENT_TX : 0;
+        layout |= transparentRxDataCharacteristic != null ? DeviceRecord.LAYOUT_TRANSPARENT_RX : 0;
+        layout |= genericDeviceNameCharacteristic != null ? DeviceRecord.LAYOUT_DEVICE_NAME : 0;
+        layout |= firmwareRevisionCharacteristic != null ? DeviceRecord.LAYOUT_FIRMWARE_REVISION : 0;
+        return layout;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // RSSI, connection interval, jitter and link quality of the current session
+    public LinkMonitor getLinkMonitor() {
+        return linkMonitor;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stall counts and stall time of the GATT operations
+    public GattWatchdog getWatchdog() {
+        return watchdog;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Choose how the device sends data. When connected the subscription is changed right away, so both modes can be
+    // measured on the same connection with getReceiveStats().
+    public void setReceiveMode(ReceiveMode mode) {
+        receiveMode = mode;
+        try {
+            BluetoothGattCharacteristic characteristic = mldpDataCharacteristic != null ? mldpDataCharacteristic : transparentTxDataCharacteristic;
+            if (bluetoothGatt != null && characteristic != null) {
+                Log.i(TAG, receiveStats.toString());                                                //Keep the figures of the previous mode
+                subscribe(characteristic);
             }
-            writeNameCharacteristic.setValue(byteValues);
-            characteristicWriteQueue.add(writeNameCharacteristic);                                       //Put the characteristic into the write queue
-            Log.d(TAG, "Write queue size: " + characteristicWriteQueue.size());
-            if(characteristicWriteQueue.size() == 1){                                                   //If there is only 1 item in the queue, then write it.  If more than 1, we handle asynchronously in the callback above
-                Log.d(TAG, "Will write device name characteristic");
-                if (!bluetoothGatt.writeCharacteristic(writeNameCharacteristic)) {                       //Request the BluetoothGatt to do the Write
-                    Log.d(TAG, "Failed to write characteristic");                                       //Write request was not accepted by the BluetoothGatt
-                }
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
+
+    public ReceiveMode getReceiveMode() {
+        return receiveMode;
+    }
+
+    // Throughput and latency of the data received since connect() or the last change of receive mode. A link restored
+    // after a drop keeps counting.
+    public ReceiveStats getReceiveStats() {
+        return receiveStats;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Charset of the received data, null to turn each byte into the char of the same value (raw mode)
+    public void setReceiveCharset(Charset charset) {
+        receiveDecoder.setCharset(charset);
+    }
+
+    public Charset getReceiveCharset() {
+        return receiveDecoder.getCharset();
+    }
+
+    public void setTextListener(TextListener listener) {
+        textListener = listener;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Choose how writes are acknowledged for the next connections and the current one
+    // AUTO uses write without response for bulk data, unless the firmware is older than 1.20 or writes are being lost.
+    public void setWriteStrategy(WriteStrategy strategy) {
+        writeStrategy = strategy;
+        activeWriteStrategy = strategy == WriteStrategy.AUTO ? WriteStrategy.NO_RESPONSE : strategy;
+        writeFailureCount = 0;
+    }
+
+    public WriteStrategy getWriteStrategy() {
+        return writeStrategy;
+    }
+
+    // Strategy in use for the current connection, never AUTO
+    public WriteStrategy getActiveWriteStrategy() {
+        return activeWriteStrategy;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Tell the service that data written to the device was lost, for example when a DFU ends with Upgrade Err
+    // With the AUTO strategy the bulk writes switch to write with response until the next connect(), also across a link
+    // restored after a drop.
+    public void reportDataLoss() {
+        if (writeStrategy == WriteStrategy.AUTO && activeWriteStrategy == WriteStrategy.NO_RESPONSE) {
+            activeWriteStrategy = WriteStrategy.WITH_RESPONSE;
+            Log.w(TAG, "Data loss detected, switching to write with response");
+        }
+    }
+
+    // Count failed writes and treat repeated failures as data loss
+    private void noteWriteFailure() {
+        DebugEvents.record(DebugEvents.EVENT_WRITE_FAILED, characteristicWriteQueue.size(), writeFailureCount + 1);
+        if (++writeFailureCount >= WRITE_FAILURE_LIMIT) {
+            DebugLog.dumpEvents(TAG, writeFailureCount + " write failures");
+            reportDataLoss();
+        }
+    }
+
+    // Firmware prior to 1.20 needs write with response on the MLDP data characteristic
+    private void applyFirmwareWriteStrategy(String revision) {
+        if (writeStrategy != WriteStrategy.AUTO || revision == null) {
+            return;
+        }
+        Matcher matcher = VERSION_PATTERN.matcher(revision);
+        if (matcher.find()) {
+            int major = Integer.parseInt(matcher.group(1));
+            int minor = Integer.parseInt(matcher.group(2));
+            if (major < 1 || (major == 1 && minor < 20)) {
+                activeWriteStrategy = WriteStrategy.WITH_RESPONSE;
+                Log.i(TAG, "Firmware " + revision + " is prior to 1.20, using write with response");
             }
         }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write type for a write on a characteristic: with response when confirmation is needed or the strategy asks for it,
+    // otherwise without response. Falls back to whatever the characteristic supports.
+    private int writeTypeFor(BluetoothGattCharacteristic characteristic, boolean confirm) {
+        final int characteristicProperties = characteristic.getProperties();
+        final boolean canWriteWithResponse = (characteristicProperties & BluetoothGattCharacteristic.PROPERTY_WRITE) > 0;
+        final boolean canWriteNoResponse = (characteristicProperties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) > 0;
+        if ((confirm || activeWriteStrategy == WriteStrategy.WITH_RESPONSE) && canWriteWithResponse) {
+            return BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+        }
+        if (canWriteNoResponse) {
+            return BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE;
+        }
+        return BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Put a batch of writes to one characteristic in the write queue. The returned handle completes when the device
+    // has taken the last one, or at once if the writes could not be queued.
+    private WriteHandle queueWrite(BluetoothGattCharacteristic characteristic, List<byte[]> values, boolean confirm) {
+        if (bluetoothAdapter == null || (bluetoothGatt == null && !restoring) || characteristic == null) {
+            Log.w(TAG, "Write attempted with Bluetooth uninitialized or not connected");
+            return WriteHandle.completed(WriteHandle.STATUS_NOT_CONNECTED);
+        }
+        final WriteHandle handle = characteristicWriteQueue.write(characteristic, values, writeTypeFor(characteristic, confirm));
+        if (handle.getStatus() == WriteHandle.STATUS_REJECTED) {
+            metrics.increment(ServiceMetrics.WRITES_REJECTED);
+        }
+        else {
+            metrics.add(ServiceMetrics.WRITES_QUEUED, values.size());
+        }
+        return handle;
+    }
+
+    private WriteHandle queueWrite(BluetoothGattCharacteristic characteristic, byte[] value, boolean confirm) {
+        return queueWrite(characteristic, Collections.singletonList(value), confirm);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Carry application data over the reliable framed transport instead of plain MLDP text. The device must run the
+    // ArqReceiver side. Notifications go to the channel until it is closed, or until the connection ends.
+    public FramedChannel openFramedChannel(FramedChannel.Listener listener) {
+        closeFramedChannel();
+        final FramedChannel channel = new FramedChannel(new Frame.Link() {
+            @Override
+            public boolean send(byte[] packet) {
+                return isWritable() && writeMLDP(packet).getStatus() != WriteHandle.STATUS_REJECTED; //Full queue, the channel tries again shortly
+            }
+        }, scheduler, listener);
+        framedChannel = channel;
+        channel.open();
+        return channel;
+    }
+
+    public void closeFramedChannel() {
+        final FramedChannel channel = framedChannel;
+        framedChannel = null;
+        if (channel != null) {
+            channel.close();
+            Log.i(TAG, channel.toString());
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Drop the writes waiting in the queue, their handles complete with STATUS_CANCELLED. Used to stop a DFU at once.
+    public void cancelWrites() {
+        characteristicWriteQueue.clear();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Backpressure: the write queue is not writable between its high and low watermarks. Producers should wait instead
+    // of queueing more, writes that do not fit in the queue are rejected.
+    public boolean isWritable() {
+        return characteristicWriteQueue.isWritable();
+    }
+
+    // Wait until the write queue is writable, only from a background thread. Returns false on timeout.
+    public boolean awaitWritable(long timeoutMillis) throws InterruptedException {
+        return characteristicWriteQueue.awaitWritable(timeoutMillis);
+    }
+
+    public void setWritabilityListener(WritabilityListener listener) {
+        writabilityListener = listener;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write to the MLDP control characteristic, acknowledged when the characteristic allows it
+    public WriteHandle writeControlMLDP(byte[] byteValues) {
+        try {
+            return queueWrite(mldpControlCharacteristic, byteValues, true);
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            return WriteHandle.completed(WriteHandle.STATUS_NOT_CONNECTED);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // NOT WORKING: Write to the device name characteristic
+    public WriteHandle writeDeviceName(byte[] byteValues) {                                                   //Write string (may need to add code to limit write to 20 bytes)
+        try {
+            DebugLog.d(TAG, "genericDeviceName: ", genericDeviceNameCharacteristic);
+            return queueWrite(genericDeviceNameCharacteristic != null ? genericDeviceNameCharacteristic : transparentRxDataCharacteristic, byteValues, true);
+        }
         catch (Exception e) {
             Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            return WriteHandle.completed(WriteHandle.STATUS_NOT_CONNECTED);
         }
     }
 
     // ----------------------------------------------------------------------------------------------------------------
     // Write to the MLDP data characteristic
-    public void writeMLDP(String string) {                                                          //Write string (may need to add code to limit write to 20 bytes)
+    public WriteHandle writeMLDP(String string) {                                                   //Write string (may need to add code to limit write to 20 bytes)
+        try {
+            return queueWrite(mldpDataCharacteristic != null ? mldpDataCharacteristic : transparentRxDataCharacteristic, string.getBytes("UTF-8"), false);
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            return WriteHandle.completed(WriteHandle.STATUS_NOT_CONNECTED);
+        }
+    }
+
+    public WriteHandle writeMLDP(byte[] byteValues) {                                               //Write bytes (may need to add code to limit write to 20 bytes)
+        return writeMLDP(byteValues, false);
+    }
+
+    // Use confirm for writes that must be acknowledged by the device, such as the last packet of a DFU
+    public WriteHandle writeMLDP(byte[] byteValues, boolean confirm) {
+        try {
+            return queueWrite(mldpDataCharacteristic != null ? mldpDataCharacteristic : transparentRxDataCharacteristic, byteValues, confirm);
+        } catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            return WriteHandle.completed(WriteHandle.STATUS_NOT_CONNECTED);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write several packets to the MLDP data characteristic under one handle, queued whole or rejected whole
+    public WriteHandle writeMLDP(List<byte[]> packets) {
+        try {
+            return queueWrite(mldpDataCharacteristic != null ? mldpDataCharacteristic : transparentRxDataCharacteristic, packets, false);
+        } catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            return WriteHandle.completed(WriteHandle.STATUS_NOT_CONNECTED);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Open an additional terminal session to a device, next to the main connection. The session is reported with
+    // ACTION_BLE_SESSION_STATE as it connects. Returns the session, or null if it cannot be opened.
+    public MldpSession openSession(String address) {
         try {
-            BluetoothGattCharacteristic writeDataCharacteristic;
-            Log.d(TAG, "mldpDataCharacteristic: " + mldpDataCharacteristic);
-            if (mldpDataCharacteristic != null) {
-                writeDataCharacteristic = mldpDataCharacteristic;
+            if (bluetoothAdapter == null || address == null) {
+                Log.w(TAG, "BluetoothAdapter not initialized or unspecified address");
+                return null;
             }
-            else {
-                writeDataCharacteristic = transparentRxDataCharacteristic;
+            if (bluetoothDevice != null && address.equals(bluetoothDevice.getAddress()) && connectionState != BluetoothProfile.STATE_DISCONNECTED) {
+                Log.w(TAG, "Session not opened, " + address + " is the main connection");
+                return null;
             }
-            if (bluetoothAdapter == null || bluetoothGatt == null || writeDataCharacteristic == null) {
-                Log.w(TAG, "Write attempted with Bluetooth uninitialized or not connected");
-                return;
-            }
-            writeDataCharacteristic.setValue(string);
-            characteristicWriteQueue.add(writeDataCharacteristic);                                       //Put the characteristic into the write queue
-            if(characteristicWriteQueue.size() == 1){                                                   //If there is only 1 item in the queue, then write it.  If more than 1, we handle asynchronously in the callback above
-                if (!bluetoothGatt.writeCharacteristic(writeDataCharacteristic)) {                       //Request the BluetoothGatt to do the Write
-                    Log.d(TAG, "Failed to write characteristic");                                       //Write request was not accepted by the BluetoothGatt
+            final MldpSession session;
+            synchronized (sessions) {
+                final MldpSession existing = sessions.get(address);
+                if (existing != null) {
+                    return existing;
+                }
+                if (sessions.size() >= MAX_SESSIONS) {
+                    Log.w(TAG, "Session not opened, " + MAX_SESSIONS + " sessions already open");
+                    return null;
                 }
+                session = new MldpSession(bluetoothAdapter.getRemoteDevice(address), sessionScheduler, sessionListener);
+                sessions.put(address, session);
             }
+            if (!session.connect(this, sessionGattCallback)) {
+                closeSession(address);
+                return null;
+            }
+            return session;
         }
         catch (Exception e) {
             Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Disconnect and forget an additional session. The main connection is shown if the session was.
+    public void closeSession(String address) {
+        final MldpSession session;
+        synchronized (sessions) {
+            session = sessions.remove(address);
         }
+        if (session == null) {
+            return;
+        }
+        if (address.equals(foregroundAddress)) {
+            foregroundAddress = null;
+        }
+        session.close();
+        broadcastSessionState(session);                                                             //Closed sessions send no more GATT events
     }
 
-    public void writeMLDP(byte[] byteValues) {                                                      //Write bytes (may need to add code to limit write to 20 bytes)
+    public MldpSession getSession(String address) {
+        synchronized (sessions) {
+            return sessions.get(address);
+        }
+    }
+
+    public List<MldpSession> getSessions() {
+        synchronized (sessions) {
+            return new ArrayList<MldpSession>(sessions.values());
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Choose the session shown on the terminal screen, null for the main connection. Only the shown session broadcasts
+    // each text it receives, the others keep it in their buffer and announce it with ACTION_BLE_SESSION_UPDATE.
+    public void setForegroundSession(String address) {
+        foregroundAddress = address;
+    }
+
+    public String getForegroundSession() {
+        return foregroundAddress;
+    }
+
+    // Received text of a session, null for the main connection. Returns null if there is no such session.
+    public SessionBuffer getReceiveBuffer(String address) {
+        if (address == null) {
+            return receiveBuffer;
+        }
+        final MldpSession session = getSession(address);
+        return session != null ? session.getBuffer() : null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write text to an additional session
+    public WriteHandle writeSession(String address, String string) {
+        final MldpSession session = getSession(address);
+        if (session == null) {
+            return WriteHandle.completed(WriteHandle.STATUS_NOT_CONNECTED);
+        }
         try {
-            BluetoothGattCharacteristic writeDataCharacteristic;
-            if (mldpDataCharacteristic != null) {
-                writeDataCharacteristic = mldpDataCharacteristic;
+            return session.write(string.getBytes("UTF-8"));
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            return WriteHandle.completed(WriteHandle.STATUS_NOT_CONNECTED);
+        }
+    }
+
+    private MldpSession findSession(BluetoothGatt gatt) {
+        final MldpSession session = getSession(gatt.getDevice().getAddress());
+        return session != null && session.getGatt() == gatt ? session : null;                       //Ignore a late event of a closed session
+    }
+
+    private void broadcastSessionState(MldpSession session) {
+        final Intent intent = new Intent(ACTION_BLE_SESSION_STATE);
+        intent.putExtra(INTENT_EXTRA_SERVICE_ADDRESS, session.getAddress());
+        intent.putExtra(INTENT_EXTRA_SERVICE_NAME, session.getName());
+        int state = session.getConnectionState();
+        if (state == BluetoothProfile.STATE_CONNECTED && !session.isReady()) {
+            state = BluetoothProfile.STATE_CONNECTING;                                              //Connected once the session can carry text
+        }
+        intent.putExtra(INTENT_EXTRA_SERVICE_STATE, state);
+        sendBroadcast(intent);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Events of the additional sessions, on the session event loop
+    private final MldpSession.Listener sessionListener = new MldpSession.Listener() {
+        @Override
+        public void onSessionStateChanged(MldpSession session) {
+            broadcastSessionState(session);
+        }
+
+        @Override
+        public void onSessionData(MldpSession session, CharSequence text) {
+            final boolean shown = session.getAddress().equals(foregroundAddress);
+            session.getBuffer().append(text, shown);
+            if (shown) {
+                final Intent intent = new Intent(ACTION_BLE_SESSION_DATA);
+                intent.putExtra(INTENT_EXTRA_SERVICE_ADDRESS, session.getAddress());
+                intent.putExtra(INTENT_EXTRA_SERVICE_DATA, text.toString());
+                sendBroadcast(intent);
             }
-            else {
-                writeDataCharacteristic = transparentRxDataCharacteristic;
+            else if (!sessionUpdatePending) {                                                       //A chatty background session costs the screen one update per interval
+                sessionUpdatePending = true;
+                sessionHandler.postDelayed(sessionUpdate, SESSION_UPDATE_INTERVAL);
             }
-            if (bluetoothAdapter == null || bluetoothGatt == null || writeDataCharacteristic == null) {
-                Log.w(TAG, "Write attempted with Bluetooth uninitialized or not connected");
-                return;
+        }
+    };
+
+    private final Runnable sessionUpdate = new Runnable() {
+        @Override
+        public void run() {
+            sessionUpdatePending = false;
+            sendBroadcast(new Intent(ACTION_BLE_SESSION_UPDATE));
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // GATT callbacks of all the additional sessions. BluetoothGatt calls them on its binder threads, each event is moved
+    // to the session event loop so the sessions never hold up the main connection or each other's callbacks.
+    private final BluetoothGattCallback sessionGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, final int status, final int newState) {
+            final MldpSession session = findSession(gatt);
+            if (session != null) {
+                sessionHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        session.onConnectionStateChange(status, newState);
+                    }
+                });
             }
-                writeDataCharacteristic.setValue(byteValues);
-                characteristicWriteQueue.add(writeDataCharacteristic);                                       //Put the characteristic into the write queue
-                if (characteristicWriteQueue.size() == 1) {                                                   //If there is only 1 item in the queue, then write it.  If more than 1, we handle asynchronously in the callback above
-                    if (!bluetoothGatt.writeCharacteristic(writeDataCharacteristic)) {                       //Request the BluetoothGatt to do the Write
-                        Log.d(TAG, "Failed to write characteristic");                                       //Write request was not accepted by the BluetoothGatt
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, final int status) {
+            final MldpSession session = findSession(gatt);
+            if (session != null) {
+                sessionHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        session.onServicesDiscovered(status);
                     }
-                }
-        } catch (Exception e) {
-            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+                });
+            }
         }
-    }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, final int status) {
+            final MldpSession session = findSession(gatt);
+            if (session != null) {
+                sessionHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        session.onDescriptorWrite(status);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            final MldpSession session = findSession(gatt);
+            final byte[] value = characteristic.getValue();
+            if (session != null && value != null) {
+                final byte[] copy = value.clone();                                                  //The characteristic holds the next value by the time the loop runs
+                sessionHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        session.onDataReceived(copy);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, final int status) {
+            final MldpSession session = findSession(gatt);
+            if (session != null) {
+                sessionHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        session.onWriteComplete(status);
+                    }
+                });
+            }
+        }
+    };
 
     // ----------------------------------------------------------------------------------------------------------------
     // Device scan callback. Bluetooth adapter calls this method when a new device is discovered during a scan.
@@ -581,6 +1795,13 @@ public class MldpBluetoothService extends Service {
         @Override
         public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
         try {
+            metrics.increment(ServiceMetrics.SCAN_RESULTS);
+            deviceRegistry.onSeen(device.getAddress(), device.getName(), rssi);                     //Keep the RSSI of known devices for a quick connection next time
+            final ScanTarget target = scanTarget.get();
+            if (target != null && target.matches(device.getAddress(), device.getName(), scanRecord) && scanTarget.compareAndSet(target, null)) {
+                onTargetFound(device);                                                              //Only the first match connects
+                return;
+            }
             if (Build.VERSION.SDK_INT >= 21) { //Build.VERSION_CODES.LOLLIPOP) {
                 final Intent intent = new Intent(ACTION_BLE_SCAN_RESULT);                           //Create intent to report back the scan result
                 intent.putExtra(INTENT_EXTRA_SERVICE_ADDRESS, device.getAddress());                 //Get address and add to intent
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.util.Log;
+
+import java.nio.charset.Charset;
+
+/**
+ * An additional MLDP terminal session, next to the main connection of the MldpBluetoothService.
+ *
+ * A session has its own BluetoothGatt, write queue, stream decoder and receive buffer. It only carries terminal text:
+ * the DFU, command scripts, framed transport and link monitor stay on the main connection. The GATT callbacks of all
+ * sessions are dispatched by the service on one event loop thread, so the on* methods are only called on that thread.
+ */
+public class MldpSession {
+
+    private final static String TAG = MldpSession.class.getSimpleName();                            //Session name for logging messages on the ADB
+
+    private static final int WRITE_QUEUE_CAPACITY = 32;                                             //Typed text only, a smaller queue than the main connection
+    private static final int WRITE_QUEUE_HIGH_WATERMARK = 24;
+    private static final int WRITE_QUEUE_LOW_WATERMARK = 8;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Events of the session, called on the event loop thread
+    interface Listener {
+        void onSessionStateChanged(MldpSession session);
+        void onSessionData(MldpSession session, CharSequence text);
+    }
+
+    private final BluetoothDevice device;
+    private final Listener listener;
+    private final WriteQueue<BluetoothGattCharacteristic> writeQueue;
+    private final StreamDecoder decoder = new StreamDecoder(Charset.forName("UTF-8"));              //Characters may be split between packets
+    private final SessionBuffer buffer = new SessionBuffer(SessionBuffer.DEFAULT_CAPACITY);
+    private volatile BluetoothGatt gatt;
+    private BluetoothGattCharacteristic receiveCharacteristic, sendCharacteristic;                  //MLDP data, or Transparent TX and RX
+    private volatile int connectionState = BluetoothProfile.STATE_DISCONNECTED;
+    private volatile boolean ready;                                                                 //Notifications enabled, the session carries text
+    private volatile boolean closed;
+
+    MldpSession(BluetoothDevice device, CommandEngine.Scheduler scheduler, Listener listener) {
+        this.device = device;
+        this.listener = listener;
+        writeQueue = new WriteQueue<BluetoothGattCharacteristic>(new WriteQueue.Sink<BluetoothGattCharacteristic>() {
+            @Override
+            public boolean startWrite(BluetoothGattCharacteristic characteristic, byte[] value, int writeType) {
+                final BluetoothGatt current = gatt;
+                if (current == null || closed) {
+                    return false;
+                }
+                characteristic.setValue(value);
+                characteristic.setWriteType(writeType);
+                return current.writeCharacteristic(characteristic);
+            }
+        }, scheduler, WRITE_QUEUE_CAPACITY, WRITE_QUEUE_HIGH_WATERMARK, WRITE_QUEUE_LOW_WATERMARK);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Open the connection. All the GATT events of the session go to the callback shared by the sessions.
+    boolean connect(Context context, BluetoothGattCallback callback) {
+        try {
+            connectionState = BluetoothProfile.STATE_CONNECTING;
+            gatt = device.connectGatt(context, false, callback);                                    //Directly connect to the device, so set autoConnect to false
+            return gatt != null;
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            connectionState = BluetoothProfile.STATE_DISCONNECTED;
+            return false;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // End the session. BluetoothGatt sends no more events once closed.
+    void close() {
+        closed = true;
+        ready = false;
+        connectionState = BluetoothProfile.STATE_DISCONNECTED;
+        writeQueue.clear();                                                                         //Fail the handles of writes that will never complete
+        final BluetoothGatt current = gatt;
+        gatt = null;
+        try {
+            if (current != null) {
+                current.disconnect();
+                current.close();
+            }
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write text typed for this session. Fails at once if the session is not ready.
+    public WriteHandle write(byte[] value) {
+        final BluetoothGattCharacteristic characteristic = sendCharacteristic;
+        if (!ready || characteristic == null) {
+            return WriteHandle.completed(WriteHandle.STATUS_NOT_CONNECTED);
+        }
+        final boolean canWriteNoResponse = (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) > 0;
+        return writeQueue.write(characteristic, value, canWriteNoResponse ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Event loop: connected or disconnected. There is no retry, a lost session stays in the list until it is closed.
+    void onConnectionStateChange(int status, int newState) {
+        if (closed) {
+            return;
+        }
+        try {
+            if (status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothProfile.STATE_CONNECTED) {
+                connectionState = newState;
+                decoder.reset();                                                                    //Drop a partial character left by the previous connection
+                gatt.discoverServices();
+                Log.i(TAG, "Session connected to " + getAddress());
+            }
+            else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                connectionState = newState;
+                ready = false;
+                writeQueue.clear();
+                Log.i(TAG, "Session disconnected from " + getAddress() + " with status: " + status);
+            }
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+        listener.onSessionStateChanged(this);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Event loop: find the MLDP or Transparent data characteristics and enable notification (indication before 1.20)
+    void onServicesDiscovered(int status) {
+        if (closed) {
+            return;
+        }
+        try {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.w(TAG, "Failed service discovery on " + getAddress() + " with status: " + status);
+                return;
+            }
+            BluetoothGattService service = gatt.getService(MldpBluetoothService.UUID_MLDP_PRIVATE_SERVICE);
+            if (service != null) {
+                receiveCharacteristic = sendCharacteristic = service.getCharacteristic(MldpBluetoothService.UUID_MLDP_DATA_PRIVATE_CHAR);
+            }
+            else if ((service = gatt.getService(MldpBluetoothService.UUID_TANSPARENT_PRIVATE_SERVICE)) != null) {
+                receiveCharacteristic = service.getCharacteristic(MldpBluetoothService.UUID_TRANSPARENT_TX_PRIVATE_CHAR);
+                sendCharacteristic = service.getCharacteristic(MldpBluetoothService.UUID_TRANSPARENT_RX_PRIVATE_CHAR);
+            }
+            if (receiveCharacteristic == null || sendCharacteristic == null) {
+                Log.w(TAG, "Did not find MLDP or Transparent service on " + getAddress());
+                return;
+            }
+            final boolean canNotify = (receiveCharacteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0;
+            gatt.setCharacteristicNotification(receiveCharacteristic, true);
+            BluetoothGattDescriptor descriptor = receiveCharacteristic.getDescriptor(MldpBluetoothService.UUID_CHAR_NOTIFICATION_DESCRIPTOR);
+            descriptor.setValue(canNotify ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE : BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+            if (!gatt.writeDescriptor(descriptor)) {
+                Log.w(TAG, "Failed to write descriptor on " + getAddress());
+            }
+        }
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Event loop: the subscription is done, the session can carry text
+    void onDescriptorWrite(int status) {
+        if (closed) {
+            return;
+        }
+        ready = status == BluetoothGatt.GATT_SUCCESS;
+        if (!ready) {
+            Log.w(TAG, "Error writing GATT descriptor on " + getAddress() + " with status: " + status);
+        }
+        listener.onSessionStateChanged(this);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Event loop: notification received, value is a copy owned by the session
+    void onDataReceived(byte[] value) {
+        if (closed) {
+            return;
+        }
+        final CharSequence text = decoder.decode(value);
+        if (text.length() > 0) {                                                                    //Nothing to announce if the packet only holds part of a character
+            listener.onSessionData(this, text);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Event loop: write completed, start the next one
+    void onWriteComplete(int status) {
+        writeQueue.onWriteComplete(status);
+    }
+
+    BluetoothGatt getGatt() {
+        return gatt;
+    }
+
+    public String getAddress() {
+        return device.getAddress();
+    }
+
+    public String getName() {
+        return device.getName();
+    }
+
+    // One of the BluetoothProfile STATE_ constants
+    public int getConnectionState() {
+        return connectionState;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public SessionBuffer getBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public String toString() {
+        final String name = getName();
+        return (name != null ? name + " - " : "") + getAddress() + (ready ? "" : connectionState != BluetoothProfile.STATE_DISCONNECTED ? " (connecting)" : " (not connected)");
+    }
+}
@@ -19,15 +19,18 @@ package com.microchip.mldpterminal3;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothProfile;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.res.AssetFileDescriptor;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
@@ -50,6 +53,8 @@ import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -58,6 +63,7 @@ import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.UUID;
 
 /**
  * Activity provides a terminal interface to send and receive bytes from an MLDP enabled
@@ -67,26 +73,36 @@ public class MldpTerminalActivity extends Activity {
 
     private final static String TAG = MldpTerminalActivity.class.getSimpleName();                   //Activity name for logging messages on the ADB
 
-    private static final String PREFS = "PREFS";                                                    //Strings to identify fields stored in shared preferences
+    static final String PREFS = "PREFS";                                                            //Strings to identify fields stored in shared preferences
     private static final String PREFS_NAME = "NAME";                                                //used to save name and MAC address of Bluetooth device and
     private static final String PREFS_ADDRESS = "ADDR";                                             //whether to connect automatically on startup.
-    private static final String PREFS_AUTO_CONNECT = "AUTO";
+    static final String PREFS_AUTO_CONNECT = "AUTO";
+    private static final String PREFS_FIRMWARE = "FIRMWARE";                                        //File name of the DFU image selected in the Firmware menu
+    private static final String PROFILES = "PROFILES";                                              //SharedPreferences storage area of the transfer profiles
     private static final int REQ_CODE_SCAN_ACTIVITY = 1;                                            //Codes to identify activities that return results such as enabling Bluetooth
     private static final int REQ_CODE_ENABLE_BT = 2;                                                //or scanning for bluetooth devices.
+    private static final int REQ_CODE_SESSION_SCAN = 3;                                             //Scan for the device of an additional session
+    public static final String EXTRA_TARGET_ADDRESS = "target_address";                             //Launch extras for a targeted scan instead of the scan list,
+    public static final String EXTRA_TARGET_NAME = "target_name";                                   //e.g. adb shell am start ... --es target_name "RN4020_.*"
+    public static final String EXTRA_TARGET_SERVICE = "target_service";
+    private static final long TARGET_SCAN_TIME = 10000;                                             //Length of time in milliseconds to look for the target device
 
-    private static final long CONNECT_TIME = 5000;						                            //Length of time in milliseconds to try to connect to a device
-    private Handler connectTimeoutHandler;                                                          //Handler to provide a time out if connection attempt takes too long
+    private Handler connectTimeoutHandler;                                                          //Handler to provide a time out if the firmware revision does not come; the service times out connection attempts
     private MldpBluetoothService bleService;                                                        //Service that handles all interaction with the Bluetooth radio and remote device
 
     private String bleDeviceName, bleDeviceAddress;                                                 //Name and address of remote Bluetooth device
     private boolean bleAutoConnect;                                                                 //Indication whether we should try to automatically connect to a device on startup
     private boolean attemptingAutoConnect = false;                                                  //Indication that we are trying to connect automatically
+    private String sessionAddress;                                                                  //Additional session shown in the incoming text, null for the main connection
+    private boolean sessionsUnread = false;                                                         //Indication that a session in the background received text
 
     private ShowAlertDialogs showAlert;                                                             //Object that creates and shows all the alert pop ups used in the app
     private SharedPreferences prefs;									                            //SharedPreferences storage area to save the name and address of the Bluetooth device
 
     private TextView textDeviceNameAndAddress, textConnectionState;                                    //To show device and status information on the screen
     private TextView textIncoming;                                                                  //To show the text received from the remote Bluetooth device
+    private TelemetryPlotView plotView;                                                             //To plot the numbers in the received lines
+    private volatile TelemetryParser telemetryParser;                                               //Fed with the received text while the plot is shown, null otherwise
     private EditText textOutgoing;                                                                  //To type text to send to the remote Bluetooth device
     private Button buttonClearIncoming, buttonClearOutgoing;                                        //To clear the text on the display
 
@@ -95,16 +111,44 @@ public class MldpTerminalActivity extends Activity {
 
     private Button buttonSendDFU;                                                                   //To send the DFU image
     private Button buttonSwitchOTA;                                                                 //Prepare OTA mode
-    private static int otaCheck = 0;
 
     private Switch switchOTA;
 
     private ProgressBar progressBarDFU;
     private TextView textProgressDFU;
-    private static boolean isDisconnected;
-    private static boolean hasFailed = false;
+    private DfuStateMachine dfuState;                                                               //State of the DFU transfer, driven by the service events
+    private boolean dfuViaOta;                                                                      //Transfer started with the Switch OTA button
+    private sendDFUFile dfuTask;                                                                    //Pass of the transfer in progress
+    private volatile TransferCalibrator calibrator;                                                 //Calibration in progress, null when none
 
-    private enum State {STARTING, ENABLING, SCANNING, CONNECTING, CONNECTED, DISCONNECTED, DISCONNECTING}; //States of the app.
+    private static final long WRITE_TIMEOUT = 5000;                                                 //Length of time in milliseconds a DFU packet may wait for room in the write queue or for its acknowledgement
+    private static final DfuStreamer.Clock TRACED_CLOCK = new DfuStreamer.Clock() {               //System clock with the gaps between DFU packets traced
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override
+        public void sleep(long millis) throws InterruptedException {
+            PerfTrace.begin(PerfTrace.DFU_GAP);
+            try {
+                Thread.sleep(millis);
+            }
+            finally {
+                PerfTrace.end();
+            }
+        }
+    };
+    private static final long PREFLIGHT_TIME = 500;                                                 //Length of time in milliseconds to wait for the firmware revision before sending the DFU anyway
+    private static final String DEFAULT_FIRMWARE = "RN4020BEC_133_112415_DFU.mfw";
+    private static final String SCRIPT_DIR = "scripts";                                             //Folder of RN4020 command scripts, in the assets and in app storage
+    private FirmwareCatalog firmwareCatalog;                                                        //Index of the DFU images in assets and app storage
+    private FirmwareImage dfuImage;                                                                 //DFU image sent by the Send DFU button
+    private boolean preflightPending = false;                                                       //Indication that we are waiting for the firmware revision before a DFU
+    private String linkStatus = "";                                                                 //Latest RSSI and link quality, shown with the DFU progress
+    private long preflightStartTime;
+
+    private enum State {STARTING, ENABLING, SCANNING, CONNECTING, CONNECTED, RECONNECTING, DISCONNECTED, DISCONNECTING}; //States of the app.
     State state = State.STARTING;                                                                   //Initial state when app starts
 
     // ----------------------------------------------------------------------------------------------------------------
@@ -120,12 +164,17 @@ public class MldpTerminalActivity extends Activity {
         setProgressBarIndeterminate(true);                                                          //Make the progress bar indeterminate
         setProgressBarIndeterminateVisibility(false);                                               //Hide the progress bar
 
+        String firmwareName = DEFAULT_FIRMWARE;
         prefs = getSharedPreferences(PREFS, MODE_PRIVATE);								            //Get a reference to the SharedPreferences storage area
         if(prefs != null) {																	        //Check that a SharedPreferences exists
+            firmwareName = prefs.getString(PREFS_FIRMWARE, DEFAULT_FIRMWARE);                       //Get the DFU image used last time
             bleAutoConnect = prefs.getBoolean(PREFS_AUTO_CONNECT, false);                           //Get the instruction to automatically connect or manually connect
-            if (bleAutoConnect == true) {                                                           //Only need name and address if going to connect automatically
-                bleDeviceName = prefs.getString(PREFS_NAME, null);                                  //Get the name of the last BLE device the app was connected to
-                bleDeviceAddress = prefs.getString(PREFS_ADDRESS, null);                            //Get the address of the last BLE device the app was connected to
+            final String legacyAddress = prefs.getString(PREFS_ADDRESS, null);                      //Device saved by older versions of the app
+            if (legacyAddress != null) {
+                final DeviceRegistry registry = ((MldpTerminalApplication) getApplication()).getDeviceRegistry();
+                registry.importDevice(legacyAddress, prefs.getString(PREFS_NAME, null));            //Move it into the device registry used for auto connect
+                registry.flush();
+                prefs.edit().remove(PREFS_NAME).remove(PREFS_ADDRESS).apply();                      //Only forget it once the registry has it
             }
         }
         state = State.STARTING;
@@ -137,6 +186,7 @@ public class MldpTerminalActivity extends Activity {
         textConnectionState = (TextView) findViewById(R.id.connectionState);		                //Get a reference to the TextView that will display the connection state
         textIncoming = (TextView) findViewById(R.id.incomingText);				                    //Get a reference to the TextView that will display data received
         textIncoming.setMovementMethod(new ScrollingMovementMethod());                              //Allow text to scroll within the TextView
+        plotView = (TelemetryPlotView) findViewById(R.id.telemetryPlot);                            //Get a reference to the view that plots the received numbers
         textOutgoing = (EditText) findViewById(R.id.outgoingText);                                  //Get a reference to the EditText used for entering data
         textOutgoing.setMovementMethod(new ScrollingMovementMethod());                              //Allow text to scroll within the TextView
         textOutgoing.addTextChangedListener(mOutgoingTextWatcher);                                  //Listen for changes so we can send byte by byte
@@ -161,7 +211,12 @@ public class MldpTerminalActivity extends Activity {
 
         textProgressDFU = (TextView) findViewById(R.id.progressionPercentageText);
 
+        firmwareCatalog = new FirmwareCatalog(this);                                                //Index the DFU images, only names and sizes are read here
+        firmwareCatalog.scan();
+        selectFirmware(firmwareCatalog.findByFileName(firmwareName));
+
         connectTimeoutHandler = new Handler();                                                      //Create a handler for a delayed runnable that will stop the connection attempt
+        StartupTrace.mark(StartupTrace.UI);
     }
 
     // ----------------------------------------------------------------------------------------------------------------
@@ -192,19 +247,46 @@ public class MldpTerminalActivity extends Activity {
 
     // ----------------------------------------------------------------------------------------------------------------
     // Activity stopped
-    // Save the details of the BLE device for next time
+    // Save the settings for next time. Devices are kept by the device registry of the service.
     @Override
     public void onStop() {
         super.onStop();
         prefs = getSharedPreferences(PREFS, MODE_PRIVATE);                                          //Get a reference to the SharedPreferences storage area
         SharedPreferences.Editor editor = prefs.edit();                                             //Create a SharedPreferences editor
-        editor.clear();                                                                             //Clear all saved preferences
         editor.putBoolean(PREFS_AUTO_CONNECT, bleAutoConnect);                                      //Use the editor to put the instruction to automatically connect in the SharedPreferences
-        if (bleAutoConnect == true) {                                                               //Only need name and address if going to connect automatically
-            editor.putString(PREFS_NAME, bleDeviceName);                                            //Use the editor to put the current device name in the SharedPreferences
-            editor.putString(PREFS_ADDRESS, bleDeviceAddress);                                      //Use the editor to put the current MAC address in the SharedPreferences
+        editor.putString(PREFS_FIRMWARE, dfuImage.getFileName());                                   //Use the editor to put the selected DFU image in the SharedPreferences
+        editor.apply();                                                                             //Write the changes into the SharedPreferences storage in the background
+        if (bleService != null) {
+            bleService.getDeviceRegistry().flush();                                                 //Write the device registry now rather than after the batching delay
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Pick the device to connect to automatically: the last device used, or the known device with the strongest signal
+    // if the last one has not been seen lately. Returns false if no device is known.
+    private boolean selectAutoConnectDevice() {
+        final DeviceRecord device = bleService.getDeviceRegistry().findAutoConnectDevice(DeviceRegistry.NEARBY_AGE);
+        if (device != null) {
+            bleDeviceAddress = device.getAddress();
+            bleDeviceName = device.getName();
+        }
+        return bleDeviceAddress != null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Follow the connection to a known device that the service started with the process instead of starting another
+    private void adoptConnection() {
+        bleDeviceAddress = bleService.getDeviceAddress();
+        final DeviceRecord device = bleService.getDeviceRegistry().find(bleDeviceAddress);
+        bleDeviceName = device != null ? device.getName() : null;
+        attemptingAutoConnect = true;
+        if (bleService.getConnectionState() == BluetoothProfile.STATE_CONNECTED) {                  //Connected before our receiver was registered
+            state = State.CONNECTED;
+            updateConnectionState();                                                                //Update the screen and menus
+        }
+        else {
+            showAutoConnectDialog();                                                                //The service reports the outcome of its attempts
         }
-        editor.commit();                                                                            //Write the changes into the SharedPreferences storage
     }
 
     // ----------------------------------------------------------------------------------------------------------------
@@ -212,17 +294,63 @@ public class MldpTerminalActivity extends Activity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        if (bleService != null) {
+            bleService.setTextListener(null);                                                       //Stop feeding the DFU state machine
+            dfuState.cancel();                                                                      //A transfer cannot go on without the activity
+        }
         unbindService(bleServiceConnection);                                                        //Unbind from the service handling Bluetooth
         bleService = null;
     }
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start or stop recording the GATT callbacks of the main connection for an offline replay
+    private void toggleRecording() {
+        if (bleService == null) {
+            return;
+        }
+        if (bleService.isRecording()) {
+            bleService.stopRecording();
+            textProgressDFU.setText("GATT recording stopped");
+        }
+        else {
+            final File file = bleService.startRecording();
+            textProgressDFU.setText(file != null ? "Recording GATT callbacks to " + file.getName() : "Could not start the GATT recording");
+        }
+        invalidateOptionsMenu();                                                                    //Switch the menu title
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Show or hide the plot of the numbers in the received lines. Text is only parsed while the plot is shown.
+    private void togglePlot() {
+        if (telemetryParser == null) {
+            telemetryParser = new TelemetryParser();
+            plotView.setParser(telemetryParser);
+            plotView.setVisibility(View.VISIBLE);
+        }
+        else {
+            telemetryParser = null;
+            plotView.setParser(null);
+            plotView.setVisibility(View.GONE);
+        }
+        invalidateOptionsMenu();                                                                    //Switch the menu title
+    }
+
     // ----------------------------------------------------------------------------------------------------------------
     // Options menu is different depending on whether connected or not
     // Show Disconnect option if we are connected or show Connect option if not connected and have a device address
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         getMenuInflater().inflate(R.menu.main_terminal_menu, menu);
-        if (state == State.CONNECTED) {                                                             //See if we are connected
+        if (sessionsUnread) {
+            menu.findItem(R.id.menu_sessions).setTitle(getString(R.string.menu_sessions) + " *");   //Text is waiting in another session
+        }
+        if (bleService != null && bleService.isRecording()) {
+            menu.findItem(R.id.menu_record).setTitle(getString(R.string.menu_record_stop));         //Same item stops the recording
+        }
+        if (telemetryParser != null) {
+            menu.findItem(R.id.menu_plot).setTitle(getString(R.string.menu_plot_hide));             //Same item hides the plot
+        }
+        if (state == State.CONNECTED || state == State.RECONNECTING) {                              //See if we are connected
             menu.findItem(R.id.menu_disconnect).setVisible(true);                                   //Are connected so show Disconnect menu
             menu.findItem(R.id.menu_connect).setVisible(false);                                     //and hide Connect menu
         } else {
@@ -259,6 +387,34 @@ public class MldpTerminalActivity extends Activity {
                 bleService.disconnect();                                                            //Ask the MldpBluetoothService to disconnect
                 return true;
 
+            case R.id.menu_sessions:                                                                //Menu option Sessions chosen
+                showSessionDialog();                                                                //Let the user switch, open or close a terminal session
+                return true;
+
+            case R.id.menu_firmware:                                                                //Menu option Firmware chosen
+                showFirmwareDialog();                                                               //Let the user pick the DFU image
+                return true;
+
+            case R.id.menu_script:                                                                  //Menu option Run Script chosen
+                showScriptDialog();                                                                 //Let the user pick the command script to run
+                return true;
+
+            case R.id.menu_calibrate:                                                               //Menu option Calibrate Transfer chosen
+                startCalibration();                                                                 //Find the fastest packet size and gap for this phone and module
+                return true;
+
+            case R.id.menu_events:                                                                  //Menu option Dump Events chosen
+                DebugLog.dumpEvents(TAG, "requested");                                              //Write the recorded BLE and DFU events to logcat
+                return true;
+
+            case R.id.menu_record:                                                                  //Menu option Record GATT or Stop Recording chosen
+                toggleRecording();
+                return true;
+
+            case R.id.menu_plot:                                                                    //Menu option Plot Telemetry or Hide Plot chosen
+                togglePlot();
+                return true;
+
             case R.id.menu_help:                                                                    //Menu option Help chosen
                 showAlert.showHelpMenuDialog(this.getApplicationContext());                          //Show the AlertDialog that has the Help text
                 return true;
@@ -288,7 +444,15 @@ public class MldpTerminalActivity extends Activity {
         intentFilter.addAction(MldpBluetoothService.ACTION_BLE_REQ_ENABLE_BT);
         intentFilter.addAction(MldpBluetoothService.ACTION_BLE_CONNECTED);
         intentFilter.addAction(MldpBluetoothService.ACTION_BLE_DISCONNECTED);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_RECONNECTING);
         intentFilter.addAction(MldpBluetoothService.ACTION_BLE_DATA_RECEIVED);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_FIRMWARE_REVISION);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_LINK_QUALITY);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_SESSION_STATE);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_SESSION_DATA);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_SESSION_UPDATE);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_TARGET_FOUND);
+        intentFilter.addAction(MldpBluetoothService.ACTION_BLE_TARGET_NOT_FOUND);
         return intentFilter;
     }
 
@@ -299,17 +463,22 @@ public class MldpTerminalActivity extends Activity {
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
             if (MldpBluetoothService.ACTION_BLE_CONNECTED.equals(action)) {			                //Service has connected to BLE device
-                connectTimeoutHandler.removeCallbacks(abortConnection);                             //Stop the connection timeout handler from calling the runnable to stop the connection attempt
                 Log.d(TAG, "Received intent  ACTION_BLE_CONNECTED");
                 state = State.CONNECTED;
                 updateConnectionState();                                                            //Update the screen and menus
+                if (dfuState != null) {
+                    dfuState.onConnected();
+                }
                 if (attemptingAutoConnect == true) {
                     showAlert.dismiss();
                 }
             }
             else if (MldpBluetoothService.ACTION_BLE_DISCONNECTED.equals(action)) {		            //Service has disconnected from BLE device
                 Log.d(TAG, "Received intent ACTION_BLE_DISCONNECTED");
-                if (state == State.CONNECTED) {
+                if (dfuState != null) {
+                    dfuState.onDisconnected();                                                      //Stops a running DFU at once
+                }
+                if (state == State.CONNECTED || state == State.RECONNECTING) {                      //Lost, or could not be restored
                     showLostConnectionDialog();                                                     //Show dialog to ask to scan for another device
                 }
                 else {
@@ -324,8 +493,15 @@ public class MldpTerminalActivity extends Activity {
                 state = State.DISCONNECTED;
                 updateConnectionState();                                                            //Update the screen and menus
             }
+            else if (MldpBluetoothService.ACTION_BLE_RECONNECTING.equals(action)) {                 //Link dropped and the service is restoring it
+                Log.d(TAG, "Received intent ACTION_BLE_RECONNECTING");
+                if (dfuState != null) {
+                    dfuState.onDisconnected();                                                      //The bootloader cannot resume an image, the DFU must start again
+                }
+                state = State.RECONNECTING;
+                updateConnectionState();                                                            //Update the screen and menus
+            }
             else if (MldpBluetoothService.ACTION_BLE_DATA_RECEIVED.equals(action)) {		        //Service has found new data available on BLE device
-                Log.d(TAG, "Received intent ACTION_BLE_DATA_RECEIVED");
                 String data = intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_SERVICE_DATA); //Get data as a string to display
 //                String data = null;
 //                try {
@@ -334,8 +510,15 @@ public class MldpTerminalActivity extends Activity {
 //                    e.printStackTrace();
 //                }
                 if (data != null) {
-                    textIncoming.append(data);
-                    Log.w(TAG, data);
+                    if (sessionAddress == null) {                                                   //Main connection is shown
+                        PerfTrace.begin(PerfTrace.UI_APPEND);
+                        textIncoming.append(data);
+                        PerfTrace.end();
+                    }
+                    else {
+                        noteUnreadSession();
+                    }
+                    DebugLog.v(TAG, data);
 
                     // Disable button switch OTA and accept move switch OTA to true
                     if (data.contains("OTA\r\n")) {
@@ -343,40 +526,97 @@ public class MldpTerminalActivity extends Activity {
                         switchOTA.setChecked(true);
                     }
 
-                    if (data.contains("OTA\r\n") && otaCheck == 1)                                  // If OTA button has been pressed and OTA has been received, send the DFU file
-                        new sendDFUFile(false).execute();
-                    else if (data.contains("CMD\r\n"))                                              // If we received CMD, enable the button switch to OTA and send DFU
+                    if (data.contains("CMD\r\n"))                                                   // If we received CMD, enable the button switch to OTA and send DFU
                         buttonSwitchOTA.setEnabled(true);
-
-                    if (data.contains("Upgrade Err")) {                                             // Stop the data transfer if DFU failed
-                        hasFailed = true;
+                }
+            }
+            else if (MldpBluetoothService.ACTION_BLE_SESSION_DATA.equals(action)) {                 //Session shown on the screen received text
+                final String data = intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_SERVICE_DATA);
+                if (data != null && intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_SERVICE_ADDRESS).equals(sessionAddress)) {
+                    PerfTrace.begin(PerfTrace.UI_APPEND);
+                    textIncoming.append(data);
+                    PerfTrace.end();
+                }
+            }
+            else if (MldpBluetoothService.ACTION_BLE_SESSION_UPDATE.equals(action)) {               //Sessions in the background received text
+                noteUnreadSession();
+            }
+            else if (MldpBluetoothService.ACTION_BLE_TARGET_FOUND.equals(action)) {                 //Targeted scan found its device and the service is connecting
+                bleDeviceAddress = intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_SERVICE_ADDRESS);
+                bleDeviceName = intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_SERVICE_NAME);
+                updateConnectionState();                                                            //Show the device found
+            }
+            else if (MldpBluetoothService.ACTION_BLE_TARGET_NOT_FOUND.equals(action)) {             //Targeted scan timed out
+                if (state == State.CONNECTING) {
+                    showNoConnectDialog();                                                          //Show dialog to ask to scan for another device
+                }
+            }
+            else if (MldpBluetoothService.ACTION_BLE_SESSION_STATE.equals(action)) {                //A session connected, disconnected or was closed
+                final String address = intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_SERVICE_ADDRESS);
+                final int sessionState = intent.getIntExtra(MldpBluetoothService.INTENT_EXTRA_SERVICE_STATE, BluetoothProfile.STATE_DISCONNECTED);
+                if (address.equals(sessionAddress)) {
+                    if (bleService.getSession(address) == null) {
+                        showSession(null);                                                          //Shown session was closed, back to the main connection
+                    }
+                    else if (sessionState != BluetoothProfile.STATE_CONNECTING) {
+                        textIncoming.append("\n[" + address + (sessionState == BluetoothProfile.STATE_CONNECTED ? " connected" : " disconnected") + "]\n");
+                        updateConnectionState();
                     }
                 }
             }
+            else if (MldpBluetoothService.ACTION_BLE_LINK_QUALITY.equals(action)) {                 //Service has sampled the link
+                final int rssi = intent.getIntExtra(MldpBluetoothService.INTENT_EXTRA_SERVICE_RSSI, 0);
+                final String quality = intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_SERVICE_QUALITY);
+                linkStatus = rssi != 0 ? " - " + rssi + "dBm" + (LinkMonitor.Quality.GOOD.name().equals(quality) ? "" : " " + quality) : "";
+            }
+            else if (MldpBluetoothService.ACTION_BLE_FIRMWARE_REVISION.equals(action)) {            //Service has read the firmware revision of the device
+                if (preflightPending) {
+                    finishPreflight(intent.getStringExtra(MldpBluetoothService.INTENT_EXTRA_SERVICE_FIRMWARE));
+                }
+            }
         }
     };
 
 
     // ----------------------------------------------------------------------------------------------------------------
-    // Attempt to connect to a Bluetooth device given its address and time out after CONNECT_TIME milliseconds
+    // Attempt to connect to a Bluetooth device given its address. The service gives up after a few attempts with
+    // ACTION_BLE_DISCONNECTED, see MldpBluetoothService.CONNECT_POLICY.
     private boolean connectWithAddress(String address) {
         state = State.CONNECTING;
         updateConnectionState();                                                                    //Update the screen and menus
-        connectTimeoutHandler.postDelayed(abortConnection, CONNECT_TIME);
         return bleService.connect(address);                                                         //Ask the MldpBluetoothService to connect
     }
 
     // ----------------------------------------------------------------------------------------------------------------
-    // Runnable used by the connectTimeoutHandler to stop the connection attempt
-    private Runnable abortConnection = new Runnable() {
-        @Override
-        public void run() {
-            if (state == State.CONNECTING) {                                                        //See if still trying to connect
-                bleService.disconnect();                      							            //Stop the connection in progress
-                showNoConnectDialog();
+    // Look for the device named in the launch extras and let the service connect the moment it advertises
+    // Returns false if the activity was not launched with a target.
+    private boolean connectToTarget(Intent launch) {
+        final ScanTarget target;
+        try {
+            if (launch.getStringExtra(EXTRA_TARGET_ADDRESS) != null) {
+                target = ScanTarget.forAddress(launch.getStringExtra(EXTRA_TARGET_ADDRESS));
+            }
+            else if (launch.getStringExtra(EXTRA_TARGET_NAME) != null) {
+                target = ScanTarget.forName(launch.getStringExtra(EXTRA_TARGET_NAME));
+            }
+            else if (launch.getStringExtra(EXTRA_TARGET_SERVICE) != null) {
+                target = ScanTarget.forService(UUID.fromString(launch.getStringExtra(EXTRA_TARGET_SERVICE)));
+            }
+            else {
+                return false;
             }
         }
-    };
+        catch (Exception e) {
+            Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            return false;
+        }
+        attemptingAutoConnect = true;                                                               //Dismiss the dialog once connected
+        showAutoConnectDialog();
+        if (!bleService.scanAndConnect(target, TARGET_SCAN_TIME)) {
+            showNoConnectDialog();
+        }
+        return true;
+    }
 
     // ----------------------------------------------------------------------------------------------------------------
     //
@@ -420,6 +660,8 @@ public class MldpTerminalActivity extends Activity {
     // ----------------------------------------------------------------------------------------------------------------
     //
     private void startScan() {
+        StartupTrace.mark(StartupTrace.SCAN);
+        bleService.cancelTargetedScan();                                                            //The user picks the device instead
         bleService.disconnect();                                                                    //Disconnect an existing connection or cancel a connection attempt
         state = State.DISCONNECTING;
         //updateConnectionState();                                                                    //Update the screen and menus
@@ -441,12 +683,18 @@ public class MldpTerminalActivity extends Activity {
                     case DISCONNECTED:
                         textConnectionState.setText(R.string.not_connected);
                         setProgressBarIndeterminateVisibility(false);                               //Hide circular progress bar
-                        isDisconnected = true;
                         break;
                     case CONNECTING:
                         textConnectionState.setText(R.string.connecting);
                         setProgressBarIndeterminateVisibility(true);                                //Show circular progress bar
                         break;
+                    case RECONNECTING:
+                        textConnectionState.setText(R.string.reconnecting);
+                        setProgressBarIndeterminateVisibility(true);                                //Show circular progress bar
+                        buttonSwitchOTA.setEnabled(false);
+                        buttonSendDFU.setEnabled(false);
+                        switchOTA.setEnabled(false);
+                        break;
                     case CONNECTED:
                         textConnectionState.setText(R.string.connected);
                         setProgressBarIndeterminateVisibility(false);                               //Hide circular progress bar
@@ -454,8 +702,6 @@ public class MldpTerminalActivity extends Activity {
                         buttonSendDFU.setEnabled(true);
                         switchOTA.setEnabled(true);
                         switchOTA.setChecked(false);
-                        isDisconnected = false;
-                        hasFailed = false;
                         break;
                     case DISCONNECTING:
                         textConnectionState.setText(R.string.disconnecting);
@@ -464,7 +710,6 @@ public class MldpTerminalActivity extends Activity {
                         buttonSendDFU.setEnabled(false);
                         switchOTA.setEnabled(false);
                         switchOTA.setChecked(false);
-                        isDisconnected = true;
                         break;
                     default:
                         state = State.STARTING;
@@ -483,6 +728,10 @@ public class MldpTerminalActivity extends Activity {
                 if (bleDeviceAddress != null) {                                                     //See if there is an address
                     textDeviceNameAndAddress.append(" - " + bleDeviceAddress);                      //Display the address
                 }
+                final MldpSession session = sessionAddress != null && bleService != null ? bleService.getSession(sessionAddress) : null;
+                if (session != null) {                                                              //See if an additional session is shown
+                    textDeviceNameAndAddress.append(" | session " + session);
+                }
             }
         });
     }
@@ -490,10 +739,88 @@ public class MldpTerminalActivity extends Activity {
     // ----------------------------------------------------------------------------------------------------------------
     // 
     private void clearUI() {
-        textIncoming.setText(null);
+        if (bleService != null) {
+            bleService.getReceiveBuffer(null).clear();                                              //Text of the main connection
+        }
+        if (sessionAddress == null) {
+            textIncoming.setText(null);
+        }
         textOutgoing.setText(null);
     }
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Show an additional session in the incoming text, or the main connection if address is null. Typed text goes to
+    // the session shown.
+    private void showSession(String address) {
+        if (address != null && bleService.getSession(address) == null) {
+            address = null;                                                                         //Session was closed meanwhile
+        }
+        sessionAddress = address;
+        bleService.setForegroundSession(address);                                                   //Before reading, so no text falls between the buffer and the broadcasts
+        textIncoming.setText(bleService.getReceiveBuffer(address).read());
+        sessionsUnread = false;
+        noteUnreadSession();
+        updateConnectionState();                                                                    //Update the screen and menus
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Mark the Sessions menu when a session in the background has unread text
+    private void noteUnreadSession() {
+        if (bleService == null) {
+            return;
+        }
+        boolean unread = sessionAddress != null && bleService.getReceiveBuffer(null).getUnread() > 0;
+        for (MldpSession session : bleService.getSessions()) {
+            unread |= !session.getAddress().equals(sessionAddress) && session.getBuffer().getUnread() > 0;
+        }
+        if (unread != sessionsUnread) {
+            sessionsUnread = unread;
+            invalidateOptionsMenu();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // List the main connection and the additional sessions with their unread text, to switch, open or close a session
+    private void showSessionDialog() {
+        final List<MldpSession> sessions = bleService.getSessions();
+        final List<CharSequence> items = new ArrayList<CharSequence>();
+        int selected = 0;
+        items.add((bleDeviceName != null ? bleDeviceName : getString(R.string.unknown)) + (bleDeviceAddress != null ? " - " + bleDeviceAddress : "")
+                + unreadLabel(bleService.getReceiveBuffer(null)));
+        for (MldpSession session : sessions) {
+            if (session.getAddress().equals(sessionAddress)) {
+                selected = items.size();
+            }
+            items.add(session + unreadLabel(session.getBuffer()));
+        }
+        items.add(getString(R.string.session_open));
+        if (sessionAddress != null) {
+            items.add(getString(R.string.session_close));
+        }
+        showAlert.showListDialog(R.string.session_title, items.toArray(new CharSequence[items.size()]), selected, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                if (which == 0) {
+                    showSession(null);
+                }
+                else if (which <= sessions.size()) {
+                    showSession(sessions.get(which - 1).getAddress());
+                }
+                else if (which == sessions.size() + 1) {                                            //Pick the device of a new session, the main connection stays up
+                    final Intent bleScanActivityIntent = new Intent(MldpTerminalActivity.this, MldpBluetoothScanActivity.class);
+                    startActivityForResult(bleScanActivityIntent, REQ_CODE_SESSION_SCAN);
+                }
+                else {
+                    bleService.closeSession(sessionAddress);                                        //The state broadcast brings back the main connection
+                }
+            }
+        });
+    }
+
+    private static String unreadLabel(SessionBuffer buffer) {
+        return buffer != null && buffer.getUnread() > 0 ? " (" + buffer.getUnread() + " new)" : "";
+    }
+
     // ----------------------------------------------------------------------------------------------------------------
     // Listener for a KeyEvent
     private final TextWatcher mOutgoingTextWatcher = new TextWatcher() {
@@ -502,7 +829,10 @@ public class MldpTerminalActivity extends Activity {
         }
 
         public void onTextChanged(CharSequence cs, int start, int before, int count) {              //Note that keyboard returns LF, not CR when enter key is pressed
-            if(count > before) {
+            if(count > before && sessionAddress != null) {
+                bleService.writeSession(sessionAddress, cs.subSequence(start + before, start + count).toString()); //Typed text goes to the session shown
+            }
+            else if(count > before) {
                 bleService.writeMLDP(cs.subSequence(start + before, start + count).toString());     //Write the text string to the MLDP characteristic (user cannot type fast enough to overflow)
                 //bleService.writeMLDP(cs.subSequence(start + before, start + count).toString().getBytes()); //Same example but using bytes instead of string
             }
@@ -516,8 +846,17 @@ public class MldpTerminalActivity extends Activity {
     // Listener for the Clear Incoming button
     private final Button.OnClickListener mClearIncomingButtonListener = new Button.OnClickListener() {
         public void onClick(View view) {
+            final SessionBuffer buffer = bleService != null ? bleService.getReceiveBuffer(sessionAddress) : null;
+            if (buffer != null) {
+                buffer.clear();                                                                     //Or the text comes back when switching sessions
+            }
             textIncoming.setText(null);
             textIncoming.scrollTo(0, 0);
+            final TelemetryParser plot = telemetryParser;
+            if (plot != null) {
+                plot.clear();                                                                       //Start the plot again with the text
+                plotView.onSamplesAdded();
+            }
         }
     };
 
@@ -533,7 +872,7 @@ public class MldpTerminalActivity extends Activity {
     /* Listener for the Send OTA DFU button (will send a DFU file using MLDP then switch OTA control and send the DFU again) */
     private final Button.OnClickListener mSwitchOTAButtonListener = new Button.OnClickListener() {
         public void onClick(View view) {
-            new sendDFUFile(true).execute();
+            startTransfer(true);
             buttonSwitchOTA.setEnabled(false);
         }
     };
@@ -558,12 +897,335 @@ public class MldpTerminalActivity extends Activity {
     // Listener for the DFU send button
     private final Button.OnClickListener mSendDFUButtonListener = new Button.OnClickListener() {
         public void onClick(View view) {
-            Log.d(TAG, "Sending file using background worker.");
-            new sendDFUFile(false).execute();
+            startPreflight();
+        }
+
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Use an image from the catalog for the next DFU, or the default image if it is no longer available
+    private void selectFirmware(FirmwareImage image) {
+        if (image == null) {
+            image = firmwareCatalog.findByFileName(DEFAULT_FIRMWARE);
+        }
+        if (image == null) {
+            image = FirmwareImage.fromFileName(DEFAULT_FIRMWARE);                                   //Catalog is empty, loading will fail with a clear error
+        }
+        dfuImage = image;
+        buttonSendDFU.setText("Send DFU " + dfuImage);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Show the images of the catalog so the user can choose the one to send
+    private void showFirmwareDialog() {
+        firmwareCatalog.scan();                                                                     //Pick up images copied to app storage since startup
+        final List<FirmwareImage> images = firmwareCatalog.getImages();
+        CharSequence[] names = new CharSequence[images.size()];
+        int selected = -1;
+        for (int i = 0; i < names.length; i++) {
+            names[i] = images.get(i).getFileName();
+            if (images.get(i).getFileName().equals(dfuImage.getFileName())) {
+                selected = i;
+            }
+        }
+        showAlert.showListDialog(R.string.firmware_title, names, selected, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                selectFirmware(images.get(which));
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Show the command scripts from the assets and from app storage so the user can choose one to run
+    private void showScriptDialog() {
+        final List<String> scripts = new ArrayList<String>();
+        try {
+            String[] assets = getAssets().list(SCRIPT_DIR);
+            if (assets != null) {
+                for (String name : assets) {
+                    scripts.add(SCRIPT_DIR + "/" + name);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to list script assets: " + e.getMessage());
+        }
+        File[] files = new File(getFilesDir(), SCRIPT_DIR).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                scripts.add(file.getAbsolutePath());
+            }
+        }
+        CharSequence[] names = new CharSequence[scripts.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = new File(scripts.get(i)).getName();
+        }
+        showAlert.showListDialog(R.string.script_title, names, -1, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                runScript(scripts.get(which));
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Run a command script and show the result of each command in the incoming text
+    private void runScript(String path) {
+        List<String> commands;
+        try {
+            InputStream in = path.startsWith(SCRIPT_DIR + "/") ? getAssets().open(path) : new FileInputStream(path);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+            StringBuilder script = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                script.append(line).append('\n');
+            }
+            reader.close();
+            commands = CommandEngine.parseScript(script.toString());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read script " + path + ": " + e.getMessage());
+            return;
         }
+        final long startTime = System.currentTimeMillis();
+        boolean started = bleService.runCommandScript(commands, true, new CommandEngine.Callback() {
+            @Override
+            public void onScriptComplete(List<CommandEngine.Result> results) {              //Called on the main thread
+                int failed = 0;
+                for (CommandEngine.Result result : results) {
+                    textIncoming.append(result + "\n");
+                    if (!result.isSuccess()) {
+                        failed++;
+                    }
+                }
+                textIncoming.append("Script done: " + results.size() + " commands, " + failed + " failed in " + (System.currentTimeMillis() - startTime) + "ms\n");
+            }
+        });
+        if (!started) {
+            textIncoming.append("Cannot run script now\n");
+        }
+    }
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Ask the device for its firmware revision before sending the DFU so we do not flash a module that is already up to date
+    private void startPreflight() {
+        preflightStartTime = System.currentTimeMillis();
+        if (!bleService.readFirmwareRevision()) {                                                   //Revision cannot be read, send the DFU as before
+            finishPreflight(null);
+            return;
+        }
+        preflightPending = true;
+        buttonSendDFU.setEnabled(false);
+        textProgressDFU.setText("Checking firmware version");
+        connectTimeoutHandler.postDelayed(abortPreflight, PREFLIGHT_TIME);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Runnable used by the connectTimeoutHandler when the device does not report its firmware revision in time
+    private Runnable abortPreflight = new Runnable() {
+        @Override
+        public void run() {
+            if (preflightPending) {
+                Log.w(TAG, "No firmware revision received after " + PREFLIGHT_TIME + "ms");
+                finishPreflight(null);
+            }
+        }
     };
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Send the DFU, or ask the user first if the device already runs the image version. Sending the same version again
+    // recovers a module left unusable by "Upgrade Err".
+    private void finishPreflight(String firmwareRevision) {
+        connectTimeoutHandler.removeCallbacks(abortPreflight);
+        preflightPending = false;
+        buttonSendDFU.setEnabled(true);
+        final long elapsed = System.currentTimeMillis() - preflightStartTime;
+        if (dfuImage.isInstalled(firmwareRevision)) {
+            Log.i(TAG, "Pre-flight " + bleDeviceAddress + ": firmware " + firmwareRevision + " already installed, DFU skipped (" + elapsed + "ms)");
+            textProgressDFU.setText(bleDeviceAddress + " already runs " + dfuImage + ", DFU skipped");
+            showAlert.showReflashDialog(getString(R.string.reflash_contents, bleDeviceAddress, dfuImage), new Runnable() {
+                @Override
+                public void run() {
+                    Log.i(TAG, "Sending " + dfuImage + " again to " + bleDeviceAddress);
+                    startTransfer(false);
+                }
+            });
+            return;
+        }
+        Log.i(TAG, "Pre-flight " + bleDeviceAddress + ": firmware " + firmwareRevision + ", sending " + dfuImage + " (" + elapsed + "ms)");
+        startTransfer(false);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start a DFU transfer, the passes over the image are started by the state machine listener
+    private void startTransfer(boolean viaOta) {
+        dfuViaOta = viaOta;
+        if (!dfuState.start(viaOta)) {
+            Log.w(TAG, "DFU already running: " + dfuState);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Follows the DFU state machine. Called in transition order, normally on the thread of the event, so the streamer is
+    // stopped within that event.
+    private final DfuStateMachine.Listener dfuStateListener = new DfuStateMachine.Listener() {
+        @Override
+        public void onStateChanged(final DfuStateMachine machine, DfuStateMachine.State from, final DfuStateMachine.State to) {
+            Log.d(TAG, "DFU " + from + " -> " + to);
+            if (to == DfuStateMachine.State.FAILED) {
+                final sendDFUFile task = dfuTask;
+                if (task != null) {
+                    task.cancel(true);                                                              //Interrupt the streamer in its packet gap or while it waits for the queue
+                }
+                bleService.cancelWrites();                                                          //Packets still queued are of no use to the device
+                if (machine.getReason() == DfuStateMachine.Reason.DEVICE_ERROR) {
+                    bleService.reportDataLoss();                                                    //Image did not arrive intact, use acknowledged writes for the retry
+                }
+                DebugLog.dumpEvents(TAG, "DFU failed, " + machine.getReason());
+            }
+            if (to == DfuStateMachine.State.DONE || to == DfuStateMachine.State.FAILED) {
+                bleService.getDeviceRegistry().addDfuAttempt(bleDeviceAddress, new DeviceRecord.DfuAttempt(System.currentTimeMillis(),
+                        dfuImage.getVersion(), to == DfuStateMachine.State.DONE, (int) machine.getElapsedMillis())); //Keep the outcome in the history of the device
+                Log.i(TAG, machine.toString());
+            }
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    switch (to) {
+                        case STREAMING:
+                            dfuTask = new sendDFUFile(dfuViaOta);
+                            dfuTask.execute();
+                            break;
+                        case ENTERING_OTA:
+                            textProgressDFU.setText("Waiting for the module to enter OTA mode");
+                            break;
+                        case VERIFYING:
+                            textProgressDFU.setText("Firmware file sent, waiting for the module");
+                            break;
+                        case DONE:
+                            textProgressDFU.setText("Upgrade OK in " + String.format("%.1f", machine.getElapsedMillis() / 1000f) + "s");
+                            break;
+                        case FAILED:
+                            textProgressDFU.setText("Upgrade failed: " + machine.getReason());
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            });
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Key of the transfer profile for this phone and the firmware of the connected module
+    private String transferProfileKey() {
+        final DeviceRecord device = bleService.getDeviceRegistry().find(bleDeviceAddress);
+        return TransferProfile.keyFor(Build.MANUFACTURER + " " + Build.MODEL, Build.VERSION.SDK_INT, device != null ? device.getFirmware() : null);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Calibrated packet size and gap for the connected module, or the default profile if it was never calibrated
+    private TransferProfile loadTransferProfile() {
+        final TransferProfile profile = TransferProfile.decode(getSharedPreferences(PROFILES, MODE_PRIVATE).getString(transferProfileKey(), null));
+        return profile != null ? profile : TransferProfile.DEFAULT;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start a calibration run. The module must echo its data (UART TX wired to RX), the results are shown in the incoming text.
+    private void startCalibration() {
+        if (state != State.CONNECTED || dfuState.isActive() || calibrator != null) {
+            textProgressDFU.setText("Calibration needs a connected module and no transfer in progress");
+            return;
+        }
+        new calibrateTransfer().execute();
+    }
+
+    /* Class used to run the transfer calibration and show each trial in the UIThread */
+    private class calibrateTransfer extends AsyncTask<Void, TransferCalibrator.Trial, TransferProfile> {
+        private String key;
+
+        /* Disable the DFU buttons, the calibration uses the same write path */
+        @Override
+        protected void onPreExecute() {
+            key = transferProfileKey();
+            buttonSendDFU.setEnabled(false);
+            switchOTA.setEnabled(false);
+            textOutgoing.setEnabled(false);
+            textProgressDFU.setText("Calibrating, the module must echo its data");
+            calibrator = new TransferCalibrator(new DfuStreamer.PacketWriter() {
+                @Override
+                public boolean writePacket(byte[] packet, boolean last) {
+                    try {
+                        if (!bleService.awaitWritable(WRITE_TIMEOUT)) {
+                            return false;
+                        }
+                        bleService.writeMLDP(packet, false);                                        //Loss is seen in the echo, not in the write status
+                        return true;
+                    }
+                    catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+            }, DfuStreamer.SYSTEM_CLOCK);
+        }
+
+        @Override
+        protected TransferProfile doInBackground(Void... params) {
+            try {
+                return calibrator.calibrate(new TransferCalibrator.Listener() {
+                    @Override
+                    public boolean shouldAbort() {
+                        return isCancelled() || state != State.CONNECTED;
+                    }
+
+                    @Override
+                    public void onTrial(TransferCalibrator.Trial trial) {
+                        publishProgress(trial);
+                    }
+                });
+            }
+            catch (InterruptedException e) {
+                return null;
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+                return null;
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(TransferCalibrator.Trial... trials) {
+            textProgressDFU.setText("Calibrating: " + trials[0]);
+        }
+
+        /* Keep the profile and enable back the buttons */
+        @Override
+        protected void onPostExecute(TransferProfile profile) {
+            final List<TransferCalibrator.Trial> trials = calibrator.getTrials();
+            calibrator = null;
+            buttonSendDFU.setEnabled(true);
+            switchOTA.setEnabled(true);
+            textOutgoing.setEnabled(true);
+            if (profile == null) {
+                boolean echoed = false;
+                for (TransferCalibrator.Trial trial : trials) {
+                    echoed |= trial.getEchoed() > 0;
+                }
+                textProgressDFU.setText(echoed ? "Calibration failed, the DFU keeps " + loadTransferProfile()
+                        : "No echo from the module, wire its UART TX to RX and try again");
+                return;
+            }
+            getSharedPreferences(PROFILES, MODE_PRIVATE).edit().putString(key, profile.encode()).apply();
+            textIncoming.append("Calibration " + key + ": " + trials.size() + " trials, " + profile + "\n");
+            textProgressDFU.setText("Calibrated: " + profile);
+            Log.i(TAG, "Transfer profile " + key + ": " + profile);
+        }
+
+        @Override
+        protected void onCancelled(TransferProfile profile) {
+            onPostExecute(null);
+        }
+    }
+
     /* Class used to send the DFU file and update a progress bar in the UIThread */
     private class sendDFUFile extends AsyncTask<String, Integer, Boolean> {
         protected boolean isOTA = false;
@@ -581,7 +1243,7 @@ public class MldpTerminalActivity extends Activity {
             int maximum = ((Integer[])values)[1];
             progressBarDFU.setMax(100);
             progressBarDFU.setProgress(progress * 100 / maximum);
-            textProgressDFU.setText(Math.round(progress * 100 / maximum) + "% - " + String.format("%.2f", (progress / 1000f)) + "KB / " + String.format("%.2f", (maximum / 1000f)) + "KB");
+            textProgressDFU.setText(Math.round(progress * 100 / maximum) + "% - " + String.format("%.2f", (progress / 1000f)) + "KB / " + String.format("%.2f", (maximum / 1000f)) + "KB" + linkStatus);
             super.onProgressUpdate(values);
         }
 
@@ -595,60 +1257,57 @@ public class MldpTerminalActivity extends Activity {
             buttonSendDFU.setEnabled(false);
         }
 
-        /* Enable back the buttons, texts and switch */
+        /* Enable back the buttons, texts and switch, the progress text follows the state machine */
         @Override
         protected void onPostExecute(Boolean result) {
             textOutgoing.setEnabled(true);
             buttonSendDFU.setEnabled(true);
             if (!result && isOTA)
                 buttonSwitchOTA.setEnabled(true);
-            if (result)
-                textProgressDFU.setText("Firmware file sent");
-            else
-                textProgressDFU.setText("Failed to send firmware file");
             if (!isOTA)
                 switchOTA.setEnabled(true);
         }
 
+        /* Stopped by the state machine, an error or a disconnection */
+        @Override
+        protected void onCancelled(Boolean result) {
+            onPostExecute(false);
+        }
+
         /* Prepare and send the DFU bin file */
         @Override
         protected Boolean doInBackground(String... strings) {
                 try {
-                    List<Byte> DFUList = new ArrayList<Byte>();
-                    DataInputStream dis = new DataInputStream(new BufferedInputStream(getAssets().open("RN4020BEC_133_112415_DFU.bin")));   // Get the data stream of the bin file from assets
-                    while (true) {
-                        try {
-                            Byte endian = dis.readByte();
-                            DFUList.add(endian);
-                            DFUList.add(dis.readByte());
-                        } catch (EOFException e) {
-                            break;
-                        }
-                    }
-                    dis.close();
-                    Byte[] DFUarr = DFUList.toArray(new Byte[DFUList.size()]);                      // Create Byte array from the file data
-                    printHexValues(DFUarr);                                                         // Used for debug (print hex values of DFUarr
-                    //Log.d(TAG, DFUList.toString());
-                    Log.d(TAG, "Byte list size: " + DFUList.size() + " |  Byte array length: " + DFUarr.length);
-
-                    byte[] byteValues = toPrimitives(DFUarr);                                       // Switch type from Byte to byte
-                    boolean isComplete = false;
-                    if (!createMLDPByteArray(byteValues, isComplete)) {                             // Send the DFU byte arrays to the RN4020
-                        return false;
+                    InputStream image = firmwareCatalog.openImage(dfuImage);                        // Get the image stream, compressed images are decoded while they are sent
+                    Log.d(TAG, dfuImage.getFileName() + " length: " + dfuImage.getSize() + " | CRC32: " + dfuImage.getHash());
+
+                    final boolean sent;
+                    try {
+                        sent = createMLDPByteArray(image, (int) dfuImage.getSize());                // Send the DFU byte arrays to the RN4020
+                    } finally {
+                        image.close();                                                              // Releases the decompressor of a compressed image
                     }
-                    if (isOTA) {
-                        sendOTASignal();                                                            // If the class has been call for OTA, send 2 to the MLDP Control characteristic
+                    if (dfuState.onStreamComplete(sent) == DfuStateMachine.State.ENTERING_OTA) {
+                        sendOTASignal();                                                            // First pass of an OTA transfer, send 2 to the MLDP Control characteristic
                         Log.d(TAG, "OTA signal sent.");
                     }
+                    if (!sent) {
+                        return false;
+                    }
                 } catch (IOException e) {
                     Log.e(TAG, "Failed to open DFU file.");
                     Log.e(TAG, e.getMessage());
+                    dfuState.onStreamComplete(false);
                     return false;
                 }
                 Log.d(TAG, "DFU transfer done.");
             return true;
         }
 
+        private boolean isStreaming() {
+            return dfuState.getState() == DfuStateMachine.State.STREAMING;
+        }
+
         /* Send the OTA signal to the RN4020 (MLDP Control 2) */
         protected void sendOTASignal() {
             byte[] OTAMode = new byte[1];
@@ -656,74 +1315,95 @@ public class MldpTerminalActivity extends Activity {
             bleService.writeControlMLDP(OTAMode);
         }
 
-        /* Cut the byte array of the DFU file in byte[16] in order to send it to the RN4020 (max data size in MLDP_data is 20) */
-        protected Boolean createMLDPByteArray(byte[] byteValues, boolean isComplete) {
-            try {
-                double mem = 0;
-                double per = 0;
-                for (int i = 0; i * 16 < byteValues.length; ++i) {                                  // Run this until we run out of bytes
-                    byte[] msg = new byte[16];
-                    for (int j = 0; j < 16; ++j) {                                                  // Create the byte[16] and fill it with
-                        if (j + i * 16 >= byteValues.length) {
-                            isComplete = true;                                                      // Switch is complete if we have less than 16 bytes to send before the end of the array
-                            break;
-                        }
-                        msg[j] = byteValues[j + i * 16];
+        /* Stream the DFU byte array to the RN4020 in MLDP packets, stopping on "Upgrade Err" or disconnection */
+        protected Boolean createMLDPByteArray(InputStream image, int imageLength) {
+            final TransferProfile profile = loadTransferProfile();                                  // Start at the calibrated packet size and gap, if any
+            Log.d(TAG, "Transfer profile: " + profile + (profile.isCalibrated() ? "" : ", not calibrated"));
+            DfuStreamer streamer = new DfuStreamer(new DfuStreamer.PacketWriter() {
+                private int packetOffset;
+
+                private final WriteHandle.Callback lossWatch = new WriteHandle.Callback() {
+                    @Override
+                    public void onWriteComplete(WriteHandle handle) {
+                        dfuState.onWriteComplete(handle.getStatus());                               // A packet the device never got corrupts the image, fail the transfer
                     }
-                    if (isComplete) {                                                               // Less than 16 bytes until the end of the array, create an array of length < 16 to avoid garbage
-                        msg = new byte[byteValues.length - (i * 16)];
-                        for (int j = 0; j < msg.length; j++)
-                            msg[j] = byteValues[j + i * 16];
+                };
+
+                @Override
+                public boolean writePacket(byte[] packet, boolean last) {
+                    DebugEvents.record(DebugEvents.EVENT_DFU_PACKET, packetOffset, packet.length);
+                    packetOffset += packet.length;
+                    PerfTrace.begin(PerfTrace.DFU_PACKET);
+                    try {
+                        if (!isStreaming() || !awaitWritable()) {                                   //Let the write queue drain instead of overflowing it
+                            Log.w(TAG, "Transfer stopped or write queue stalled before offset " + packetOffset);
+                            return false;
+                        }
+                        WriteHandle handle = bleService.writeMLDP(packet, last);                    //Write the DFU bin to the ble device, last packet is acknowledged
+                        handle.setCallback(lossWatch);
+                        if (last) {
+                            return handle.await(WRITE_TIMEOUT) && isStreaming();                    //Wait for the device to take the whole image
+                        }
+                        return isStreaming();
                     }
-                    if (hasFailed) {                                                                // hasFailed is switch to true if we receive "Upgrade Err" in order to stop sending data
-                        hasFailed = false;
+                    catch (InterruptedException e) {
                         return false;
                     }
-                    if (isDisconnected)                                                             // isDisconnected is switch to true if we lost connection or disconnect from the device. Stop sending data
-                        return false;
+                    finally {
+                        PerfTrace.end();
+                    }
+                }
 
-                    Thread.sleep(18);                                                               // During tests we used 18ms of sleep between each packet. Less results in packet loss. 18 seems stable.
-                                                                                                    // More is fine too but can take a long time to finish: (48kB / 16) * nbr of ms time .. (ex: 18ms -> ~54s)
-                    bleService.writeMLDP(msg);                                                               //Write the DFU bin to the ble device
+                private boolean awaitWritable() throws InterruptedException {
+                    PerfTrace.begin(PerfTrace.DFU_WAIT);
+                    try {
+                        return bleService.awaitWritable(WRITE_TIMEOUT);
+                    }
+                    finally {
+                        PerfTrace.end();
+                    }
+                }
+            }, TRACED_CLOCK, profile.getChunkSize(), profile.getPacketGap());
+            final LinkMonitor linkMonitor = bleService.getLinkMonitor();
+            streamer.setPacing(new DfuStreamer.Pacing() {
+                @Override
+                public long gapFor(long baseGap) {
+                    return linkMonitor.getPacingGap(baseGap);                                       // Slow down on a weak link, pause when it is about to drop
+                }
+            });
+            PerfTrace.begin(PerfTrace.DFU_TRANSFER);
+            try {
+                boolean result = streamer.stream(image, imageLength, new DfuStreamer.Listener() {
+                    @Override
+                    public boolean shouldAbort() {
+                        return !isStreaming() || isCancelled();                                     // "Upgrade Err", a lost packet or a disconnection failed the transfer
+                    }
 
-                    per = ((i / (byteValues.length / 16.0)) * 100.0);                               // Percentage calculation for update
-                    if (per - mem > 0.05) {                                                         // Update every 0.05% or more from last update
-                        mem = per;
-                        publishProgress(i * 16, byteValues.length);
-                        Log.d(TAG, "Upload in progress: " + String.format("%.2f", per) + "%");
+                    @Override
+                    public void onProgress(int bytesSent, int bytesTotal) {
+                        publishProgress(bytesSent, bytesTotal);
+                        DebugEvents.record(DebugEvents.EVENT_DFU_PROGRESS, bytesSent, (int) (bytesSent * 100L / bytesTotal));
                     }
+                });
+                DebugEvents.record(DebugEvents.EVENT_DFU_RESULT, streamer.getBytesSent(), result ? 1 : 0);
+                if (DebugLog.isLoggable(Log.DEBUG)) {
+                    Log.d(TAG, "Sent " + streamer.getBytesSent() + " bytes in " + streamer.getElapsedMillis() + "ms (" + String.format("%.0f", streamer.getThroughput()) + " B/s)");
+                    Log.d(TAG, "Image decode: " + String.format("%.1f", streamer.getSourceMicrosPerPacket()) + "us per packet for a " + streamer.getPacketGap() + "ms packet gap");
+                    Log.d(TAG, "Link: " + linkMonitor + ", " + streamer.getSlowedPackets() + " packets slowed, " + streamer.getPausedMillis() + "ms paused");
                 }
+                return result;
+            } catch (InterruptedException e) {
+                return false;                                                                       // Stopped by the state machine
             } catch (Exception e) {
                 Log.e(TAG, "Error in " + e.getStackTrace() + ": " + e.getMessage());
+                DebugLog.dumpEvents(TAG, "DFU exception");
                 return false;
+            } finally {
+                PerfTrace.end();
             }
-            return true;
         }
    }
 
-   /* Convert Byte array to byte array */
-    byte[] toPrimitives(Byte[] oBytes)
-    {
-        byte[] bytes = new byte[oBytes.length];
-
-        for(int i = 0; i < oBytes.length; i++) {
-            bytes[i] = oBytes[i];
-        }
-        return bytes;
-    }
-
-    /* Print hex values from a Byte array */
-    private final void printHexValues(Byte[] bytes) {
-        char [] hexArray = "0123456789abcdef".toCharArray();
-        char[] hexChars = new char[bytes.length * 2];
-        for ( int j = 0; j < bytes.length; j++ ) {
-            int v = bytes[j] & 0xFF;
-            hexChars[j * 2] = hexArray[v >>> 4];
-            hexChars[j * 2 + 1] = hexArray[v & 0x0F];
-        }
-        Log.d(TAG, new String(hexChars));
-    }
-
     // ----------------------------------------------------------------------------------------------------------------
     // Callback for Activities that return a result
     // We call BluetoothAdapter to turn on the Bluetooth radio and MldpBluetoothScanActivity to scan
@@ -731,7 +1411,7 @@ public class MldpTerminalActivity extends Activity {
     protected void onActivityResult(int requestCode, int resultCode, Intent intent) {
         if (requestCode == REQ_CODE_ENABLE_BT) {                                                    //User was requested to enable Bluetooth
             if (resultCode == Activity.RESULT_OK) {                                                 //User chose to enable Bluetooth
-                if(bleAutoConnect == false  || bleDeviceAddress == null) {                          //Not automatically connecting or do not have an address so must do a scan to select a BLE device
+                if(bleAutoConnect == false  || !selectAutoConnectDevice()) {                        //Not automatically connecting or do not know any device so must do a scan to select a BLE device
                     startScan();
                 }
                 else {                                                                              //Automatically connect to the last Bluetooth device used
@@ -765,6 +1445,17 @@ public class MldpTerminalActivity extends Activity {
                 updateConnectionState();                                                            //Update the screen and menus
             }
         }
+        else if(requestCode == REQ_CODE_SESSION_SCAN) {                                             //Result from BluetoothScanActivity for an additional session
+            if (resultCode == Activity.RESULT_OK) {
+                final String address = intent.getStringExtra(MldpBluetoothScanActivity.INTENT_EXTRA_SCAN_ADDRESS);
+                if (bleService.openSession(address) != null) {
+                    showSession(address);                                                           //Show the new session while it connects
+                }
+                else {
+                    textIncoming.append("Cannot open a session to " + address + "\n");
+                }
+            }
+        }
         super.onActivityResult(requestCode, resultCode, intent);		//Pass the activity result up to the parent method
     }
 
@@ -776,11 +1467,39 @@ public class MldpTerminalActivity extends Activity {
         public void onServiceConnected(ComponentName componentName, IBinder service) {		        //Service connects
             MldpBluetoothService.LocalBinder binder = (MldpBluetoothService.LocalBinder) service;   //Get the Binder for the Service
             bleService = binder.getService();                                                       //Get a link to the Service from the Binder
+            dfuState = new DfuStateMachine(bleService.getScheduler());
+            dfuState.setListener(dfuStateListener);
+            bleService.setTextListener(new MldpBluetoothService.TextListener() {
+                @Override
+                public void onTextReceived(CharSequence text) {                                     //Replies reach the state machine before the broadcast
+                    dfuState.onTextReceived(text);
+                    final TelemetryParser plot = telemetryParser;
+                    if (plot != null && plot.feed(text)) {                                          //Parsed on the GATT thread, drawn at the next frame
+                        plotView.onSamplesAdded();
+                    }
+                    final TransferCalibrator echoCheck = calibrator;
+                    if (echoCheck != null) {
+                        echoCheck.onEcho(text);                                                     //Loopback echo of the calibration pattern
+                    }
+                }
+            });
+            ((MldpTerminalApplication) getApplication()).releaseStartupBinding();                   //Our binding keeps the service from now on
+            if (bleService.getForegroundSession() != null) {                                        //Activity was recreated while a session was shown
+                showSession(bleService.getForegroundSession());
+            }
             if (bleService.isBluetoothRadioEnabled()) {                                             //See if the Bluetooth radio is on
-                if(bleAutoConnect == false  || bleDeviceAddress == null) {                          //Not automatically connecting or do not have an address so must do a scan to select a BLE device
+                if (bleService.getConnectionState() != BluetoothProfile.STATE_DISCONNECTED) {       //Connection to the known device started with the process
+                    adoptConnection();
+                }
+                else if (connectToTarget(getIntent())) {                                            //Launched for one device, no scan list
+                    getIntent().removeExtra(EXTRA_TARGET_ADDRESS);                                  //Only once, not again when the activity is recreated
+                    getIntent().removeExtra(EXTRA_TARGET_NAME);
+                    getIntent().removeExtra(EXTRA_TARGET_SERVICE);
+                }
+                else if(bleAutoConnect == false  || !selectAutoConnectDevice()) {                   //Not automatically connecting or do not know any device so must do a scan to select a BLE device
                     startScan();
                 }
-                else {
+                else {                                                                              //Connect straight to a known device without scanning
                     attemptingAutoConnect = true;
                     showAutoConnectDialog();
                     if (!connectWithAddress(bleDeviceAddress)) {                                    //Ask the MldpBluetoothService to connect and see if it failed
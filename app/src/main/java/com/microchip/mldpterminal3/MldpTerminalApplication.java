@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+package com.microchip.mldpterminal3;
+
+import android.app.Application;
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.SharedPreferences;
+import android.os.IBinder;
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * Starts the work that does not need the terminal screen as soon as the process starts.
+ *
+ * The device registry is read on a background thread and the MldpBluetoothService is bound right away, so with auto
+ * connect on the connection to the known device is already under way while MldpTerminalActivity inflates its screen.
+ * The activity takes over the service with its own binding and then calls releaseStartupBinding(), so the service
+ * still ends when the activity unbinds.
+ */
+public class MldpTerminalApplication extends Application {
+
+    private final static String TAG = MldpTerminalApplication.class.getSimpleName();                //Class name for logging messages on the ADB
+
+    private DeviceRegistry deviceRegistry;                                                          //Known devices, shared by the service for the life of the process
+    private SharedPreferences prefs;
+    private boolean startupBound;                                                                   //Indication that the startup binding is held
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        DebugLog.setSink(logcatSink);                                                               //Send the BLE and DFU log messages to logcat
+        DebugLog.setLevel(BuildConfig.DEBUG ? Log.DEBUG : Log.WARN);                                //Release builds log warnings and errors only
+        StartupTrace.begin();
+        deviceRegistry = new DeviceRegistry(new File(getFilesDir(), DeviceRegistry.FILE_NAME));     //Read the known devices in the background
+        prefs = getSharedPreferences(MldpTerminalActivity.PREFS, MODE_PRIVATE);                     //Also loaded in the background until first read
+        Intent bleServiceIntent = new Intent(this, MldpBluetoothService.class);                     //Create the service now rather than when the activity binds
+        startupBound = bindService(bleServiceIntent, startupConnection, BIND_AUTO_CREATE);
+    }
+
+    public DeviceRegistry getDeviceRegistry() {
+        return deviceRegistry;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called by the activity once it is bound to the service
+    public void releaseStartupBinding() {
+        if (startupBound) {
+            startupBound = false;
+            unbindService(startupConnection);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // DebugLog priorities have the same values as the android.util.Log ones
+    private static final DebugLog.Sink logcatSink = new DebugLog.Sink() {
+
+        @Override
+        public void log(int priority, String tag, String message) {
+            Log.println(priority, tag, message);
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Connect to the known device as soon as the service is up, if the user chose to connect automatically
+    private final ServiceConnection startupConnection = new ServiceConnection() {
+
+        @Override
+        public void onServiceConnected(ComponentName componentName, IBinder service) {
+            try {
+                final MldpBluetoothService bleService = ((MldpBluetoothService.LocalBinder) service).getService();
+                if (prefs.getBoolean(MldpTerminalActivity.PREFS_AUTO_CONNECT, false) && bleService.connectKnownDevice()) {
+                    Log.d(TAG, "Connecting to the known device during startup");
+                }
+            }
+            catch (Exception e) {
+                Log.e(TAG, "Oops, exception caught in " + e.getStackTrace()[0].getMethodName() + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName componentName) {                            //Service disconnects - should never happen
+        }
+    };
+}
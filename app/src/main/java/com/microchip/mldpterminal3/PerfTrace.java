@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+
+import java.lang.reflect.Method;
+
+/**
+ * Named sections for systrace and Perfetto across the BLE and DFU pipeline.
+ *
+ * Sections mark work done on one thread: a GATT callback, a DFU packet, the gap before it, a UI update. Async events
+ * span a GATT operation from the request to its callback, which arrives on another thread. The write queue depth is
+ * traced as a counter. Everything is compiled out unless the build sets ENABLE_TRACE (debug builds, or any build with
+ * -Ptrace), since every method tests the BuildConfig constant first.
+ *
+ * android.os.Trace only has sync sections at the API level this app compiles against. Async events and counters are
+ * reached by reflection: the public methods of API 29, or the hidden ones that exist since API 18.
+ */
+public final class PerfTrace {
+
+    private final static String TAG = PerfTrace.class.getSimpleName();                             //Class name for logging messages on the ADB
+
+    public static final boolean ENABLED = BuildConfig.ENABLE_TRACE;                                 //Lets callers skip computing a traced value
+
+    public static final String GATT_CONNECT = "gatt.connect";                                       //Async, connectGatt() to the connection state change
+    public static final String GATT_DISCOVERY = "gatt.discovery";                                   //Async, discoverServices() to onServicesDiscovered
+    public static final String GATT_WRITE = "gatt.write";                                           //Async, writeCharacteristic() to onCharacteristicWrite
+    public static final String GATT_DESCRIPTOR_WRITE = "gatt.descriptorWrite";                      //Async, writeDescriptor() to onDescriptorWrite
+    public static final String GATT_READ = "gatt.read";                                             //Async, readCharacteristic() to onCharacteristicRead
+    public static final String RECEIVE = "ble.receive";                                             //Notification handling on the binder thread
+    public static final String BROADCAST = "ble.broadcast";                                         //sendBroadcast of received text
+    public static final String WRITE_QUEUE = "ble.writeQueue";                                      //Counter, writes waiting for the BluetoothGatt
+    public static final String DFU_TRANSFER = "dfu.transfer";                                       //Whole image on the DFU thread
+    public static final String DFU_PACKET = "dfu.packet";                                           //One packet handed to the service
+    public static final String DFU_WAIT = "dfu.waitWritable";                                       //Blocked on a full write queue
+    public static final String DFU_GAP = "dfu.gap";                                                 //Sleeping between packets
+    public static final String UI_APPEND = "ui.append";                                             //Received text added to the terminal
+
+    private static final long TRACE_TAG_APP = 1L << 12;                                             //android.os.Trace.TRACE_TAG_APP, hidden before API 29
+    private static Method asyncBegin, asyncEnd, counter;
+    private static boolean tagged;                                                                  //Hidden methods, which take the trace tag first
+
+    static {
+        if (ENABLED) {
+            try {
+                if (Build.VERSION.SDK_INT >= 29) {
+                    asyncBegin = Trace.class.getMethod("beginAsyncSection", String.class, int.class);
+                    asyncEnd = Trace.class.getMethod("endAsyncSection", String.class, int.class);
+                    counter = Trace.class.getMethod("setCounter", String.class, long.class);
+                }
+                else {
+                    asyncBegin = Trace.class.getMethod("asyncTraceBegin", long.class, String.class, int.class);
+                    asyncEnd = Trace.class.getMethod("asyncTraceEnd", long.class, String.class, int.class);
+                    counter = Trace.class.getMethod("traceCounter", long.class, String.class, int.class);
+                    tagged = true;
+                }
+            }
+            catch (Exception e) {
+                Log.w(TAG, "Async trace events not available: " + e.getMessage());                 //Sync sections still work
+                asyncBegin = asyncEnd = counter = null;
+            }
+        }
+    }
+
+    private PerfTrace() {
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Sync section on the calling thread, always closed by end() on the same thread, usually in a finally block
+    public static void begin(String name) {
+        if (ENABLED) {
+            Trace.beginSection(name);
+        }
+    }
+
+    public static void end() {
+        if (ENABLED) {
+            Trace.endSection();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Async event that may end on another thread. Events of the same name must have distinct cookies while they overlap.
+    public static void beginAsync(String name, int cookie) {
+        if (ENABLED && asyncBegin != null) {
+            invoke(asyncBegin, name, cookie);
+        }
+    }
+
+    public static void endAsync(String name, int cookie) {
+        if (ENABLED && asyncEnd != null) {
+            invoke(asyncEnd, name, cookie);
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Value plotted over time in the trace
+    public static void counter(String name, int value) {
+        if (ENABLED && counter != null) {
+            invoke(counter, name, tagged ? value : (Object) (long) value);
+        }
+    }
+
+    private static void invoke(Method method, String name, Object value) {
+        try {
+            if (tagged) {
+                method.invoke(null, TRACE_TAG_APP, name, value);
+            }
+            else {
+                method.invoke(null, name, value);
+            }
+        }
+        catch (Exception e) {
+            asyncBegin = asyncEnd = counter = null;                                                 //Blocked by the platform, stop trying
+            Log.w(TAG, "Async trace events disabled: " + e.getMessage());
+        }
+    }
+}
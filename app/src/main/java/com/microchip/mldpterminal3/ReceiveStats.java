@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+/**
+ * Flow accounting for data received by notification or indication on one connection.
+ *
+ * A packet is counted as received when the GATT callback starts and as confirmed when the callback returns, which is
+ * when Android sends the confirmation of an indication. Notifications are counted the same way so the throughput and
+ * latency of both modes can be compared on the same device.
+ */
+public class ReceiveStats {
+
+    private final boolean indications;
+    private long received, confirmed, bytes;
+    private long firstNanos, lastNanos;                                                             //Arrival time of the first and last packet
+    private long totalGapNanos, maxGapNanos;                                                        //Time between consecutive arrivals
+    private long totalHandlingNanos, maxHandlingNanos;                                              //Time from arrival to confirmation
+    private long arrivalNanos;
+
+    public ReceiveStats(boolean indications) {
+        this.indications = indications;
+    }
+
+    public boolean isIndications() {
+        return indications;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called when a packet arrives, before it is processed
+    public synchronized void onReceived(int length, long nowNanos) {
+        if (received > 0) {
+            long gap = nowNanos - lastNanos;
+            totalGapNanos += gap;
+            maxGapNanos = Math.max(maxGapNanos, gap);
+        }
+        else {
+            firstNanos = nowNanos;
+        }
+        received++;
+        bytes += length;
+        lastNanos = arrivalNanos = nowNanos;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Called when the packet has been processed and the callback returns
+    public synchronized void onConfirmed(long nowNanos) {
+        confirmed++;
+        long handling = nowNanos - arrivalNanos;
+        totalHandlingNanos += handling;
+        maxHandlingNanos = Math.max(maxHandlingNanos, handling);
+    }
+
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    public synchronized long getConfirmed() {
+        return confirmed;
+    }
+
+    // Packets received but not confirmed yet
+    public synchronized long getOutstanding() {
+        return received - confirmed;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    // Bytes per second between the first and the last packet
+    public synchronized double getThroughput() {
+        long elapsed = lastNanos - firstNanos;
+        return elapsed > 0 ? bytes * 1e9 / elapsed : 0;
+    }
+
+    // Mean time in milliseconds between packets
+    public synchronized double getMeanGapMillis() {
+        return received > 1 ? totalGapNanos / 1e6 / (received - 1) : 0;
+    }
+
+    public synchronized double getMaxGapMillis() {
+        return maxGapNanos / 1e6;
+    }
+
+    // Mean time in milliseconds from arrival to confirmation
+    public synchronized double getMeanHandlingMillis() {
+        return confirmed > 0 ? totalHandlingNanos / 1e6 / confirmed : 0;
+    }
+
+    public synchronized double getMaxHandlingMillis() {
+        return maxHandlingNanos / 1e6;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: %d received, %d confirmed, %d bytes, %.0f B/s, gap %.1f/%.1fms, handling %.2f/%.2fms",
+                indications ? "Indications" : "Notifications", received, confirmed, bytes, getThroughput(),
+                getMeanGapMillis(), getMaxGapMillis(), getMeanHandlingMillis(), getMaxHandlingMillis());
+    }
+}
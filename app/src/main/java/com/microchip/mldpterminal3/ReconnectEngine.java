@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.util.Random;
+
+/**
+ * Connection attempts with a timeout each and a jittered exponential backoff between them.
+ *
+ * A run starts on a connection request or when the link is lost, and makes attempts through the Connector until one
+ * connects or the Policy gives up. The first attempt is made at once: a direct connection stays pending until the
+ * device advertises again, so a short RF dropout costs little more than the dropout itself. An attempt that fails or
+ * times out is aborted and the next one follows after a delay that doubles up to a maximum, minus a random part of up
+ * to the jitter fraction, so phones that lost the same module do not retry in step. The time from the start of a run
+ * to the connection is kept as the reconnect latency. The engine has no Android dependencies.
+ *
+ * The outcome of an attempt may come on another thread than the timeout, so each attempt is tagged. The connection,
+ * the failure and the timeout check the tag and end the attempt in one locked step: the first one wins and the others,
+ * as well as late callbacks of attempts that were aborted, are ignored.
+ */
+public class ReconnectEngine {
+
+    private final static String TAG = ReconnectEngine.class.getSimpleName();                        //Class name for logging messages on the ADB
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Timing and limits of a run. A limit of 0 means no limit.
+    public static class Policy {
+        private final long initialDelay;                                                            //Delay before the second attempt in milliseconds
+        private final long maxDelay;
+        private final double jitter;                                                                //Fraction of the delay that is random, 0 to 1
+        private final long connectTimeout;                                                          //Time allowed to each attempt in milliseconds
+        private final int maxAttempts;
+        private final long giveUpAfter;                                                             //No attempt starts later than this after the run started
+
+        public Policy(long initialDelay, long maxDelay, double jitter, long connectTimeout, int maxAttempts, long giveUpAfter) {
+            if (initialDelay <= 0 || maxDelay < initialDelay || jitter < 0 || jitter > 1 || connectTimeout <= 0) {
+                throw new IllegalArgumentException("Invalid reconnect policy");
+            }
+            this.initialDelay = initialDelay;
+            this.maxDelay = maxDelay;
+            this.jitter = jitter;
+            this.connectTimeout = connectTimeout;
+            this.maxAttempts = maxAttempts;
+            this.giveUpAfter = giveUpAfter;
+        }
+
+        public long getConnectTimeout() {
+            return connectTimeout;
+        }
+
+        // ------------------------------------------------------------------------------------------------------------
+        // Delay after the given failed attempt, starting at 1, for a random value between 0 and 1
+        public long delayAfter(int attempt, double random) {
+            long delay = initialDelay;
+            for (int i = 1; i < attempt && delay < maxDelay; i++) {
+                delay *= 2;
+            }
+            delay = Math.min(delay, maxDelay);
+            return delay - (long) (delay * jitter * random);
+        }
+
+        @Override
+        public String toString() {
+            return "backoff " + initialDelay + "-" + maxDelay + "ms, jitter " + jitter + ", timeout " + connectTimeout + "ms, "
+                    + (maxAttempts > 0 ? maxAttempts + " attempts" : "no attempt limit") + (giveUpAfter > 0 ? ", give up after " + giveUpAfter + "ms" : "");
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Makes and aborts connection attempts, usually with BluetoothGatt
+    public interface Connector {
+        boolean connect(int attempt, int tag);                                                      //Returns false if the attempt could not be started
+        void abort();                                                                               //Close the attempt in progress, no callback follows
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Outcome of the runs, called without any lock of the engine held
+    public interface Listener {
+        void onConnected(int attempts, long latencyMillis);
+        void onGaveUp(int attempts, long elapsedMillis);
+    }
+
+    private final CommandEngine.Scheduler scheduler;
+    private final Connector connector;
+    private final Random random;
+    private volatile Listener listener;
+
+    private Policy policy;
+    private boolean active;
+    private int attempt;
+    private int tag, lastTag;                                                                       //Tag of the attempt in progress, 0 when none
+    private Runnable timeoutTask;                                                                   //Timeout of the attempt in progress
+    private long startTime;
+    private int runs, connections, giveUps, totalAttempts;
+    private long lastLatency = -1, totalLatency, maxLatency;
+
+    private final Runnable attemptTask = new Runnable() {
+        @Override
+        public void run() {
+            attempt();
+        }
+    };
+
+    public ReconnectEngine(CommandEngine.Scheduler scheduler, Connector connector, Random random) {
+        this.scheduler = scheduler;
+        this.connector = connector;
+        this.random = random;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start a run with the first attempt now, replacing a run in progress
+    public void start(Policy runPolicy) {
+        synchronized (this) {
+            scheduler.cancel(attemptTask);
+            endAttempt();
+            policy = runPolicy;
+            active = true;
+            attempt = 0;
+            startTime = scheduler.currentTimeMillis();
+            runs++;
+        }
+        attempt();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The attempt with the tag connected. Returns false, and the connection must not be used, when the attempt already
+    // ended or no run is active.
+    public boolean onConnected(int attemptTag) {
+        final Listener current;
+        final int attempts;
+        final long latency;
+        synchronized (this) {
+            if (!isCurrent(attemptTag)) {
+                return false;
+            }
+            endAttempt();
+            active = false;
+            attempts = attempt;
+            latency = scheduler.currentTimeMillis() - startTime;
+            connections++;
+            lastLatency = latency;
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+            current = listener;
+        }
+        if (current != null) {
+            current.onConnected(attempts, latency);
+        }
+        return true;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The attempt with the tag failed. Ignored when the attempt already ended or no run is active.
+    public void onConnectFailed(int attemptTag) {
+        synchronized (this) {
+            if (!isCurrent(attemptTag)) {
+                return;
+            }
+            endAttempt();
+        }
+        connector.abort();
+        next();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stop the run without reporting it, for example when the user disconnects
+    public synchronized void cancel() {
+        scheduler.cancel(attemptTask);
+        endAttempt();
+        active = false;
+    }
+
+    private void attempt() {
+        final int current, currentTag;
+        synchronized (this) {
+            if (!active) {
+                return;
+            }
+            current = ++attempt;
+            currentTag = tag = ++lastTag;
+            totalAttempts++;
+            timeoutTask = new Runnable() {
+                @Override
+                public void run() {
+                    onTimeout(currentTag);
+                }
+            };
+            scheduler.schedule(timeoutTask, policy.connectTimeout);
+        }
+        if (!connector.connect(current, currentTag)) {
+            onConnectFailed(currentTag);
+        }
+    }
+
+    private void onTimeout(int attemptTag) {
+        final int timedOut;
+        synchronized (this) {
+            if (!isCurrent(attemptTag)) {
+                return;
+            }
+            endAttempt();
+            timedOut = attempt;
+        }
+        DebugLog.d(TAG, "Connection attempt timed out: ", timedOut);
+        connector.abort();
+        next();
+    }
+
+    private boolean isCurrent(int attemptTag) {
+        return active && attemptTag != 0 && attemptTag == tag;
+    }
+
+    // Called with the lock held
+    private void endAttempt() {
+        tag = 0;
+        if (timeoutTask != null) {
+            scheduler.cancel(timeoutTask);
+            timeoutTask = null;
+        }
+    }
+
+    private void next() {
+        final Listener current;
+        final int attempts;
+        final long elapsed;
+        synchronized (this) {
+            if (!active) {
+                return;
+            }
+            final long delay = policy.delayAfter(attempt, random.nextDouble());
+            elapsed = scheduler.currentTimeMillis() - startTime;
+            if ((policy.maxAttempts <= 0 || attempt < policy.maxAttempts) && (policy.giveUpAfter <= 0 || elapsed + delay <= policy.giveUpAfter)) {
+                scheduler.schedule(attemptTask, delay);
+                return;
+            }
+            active = false;
+            attempts = attempt;
+            giveUps++;
+            current = listener;
+        }
+        if (current != null) {
+            current.onGaveUp(attempts, elapsed);
+        }
+    }
+
+    public synchronized boolean isActive() {
+        return active;
+    }
+
+    public synchronized int getAttempt() {
+        return attempt;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Time from the start of the last successful run to the connection in milliseconds, -1 if none succeeded
+    public synchronized long getLastLatency() {
+        return lastLatency;
+    }
+
+    public synchronized long getMaxLatency() {
+        return maxLatency;
+    }
+
+    public synchronized double getMeanLatency() {
+        return connections > 0 ? (double) totalLatency / connections : 0;
+    }
+
+    public synchronized int getRuns() {
+        return runs;
+    }
+
+    public synchronized int getConnections() {
+        return connections;
+    }
+
+    public synchronized int getGiveUps() {
+        return giveUps;
+    }
+
+    public synchronized int getTotalAttempts() {
+        return totalAttempts;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return runs + " runs, " + connections + " connected, " + giveUps + " gave up, " + totalAttempts + " attempts, latency last "
+                + lastLatency + "ms mean " + String.format("%.0f", getMeanLatency()) + "ms max " + maxLatency + "ms";
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Device looked for by a targeted scan: a Bluetooth address, a name pattern or an advertised service UUID.
+ *
+ * The check runs in the scan callback for every advertisement, so it works on the raw scan record and only builds a
+ * String for the local name when matching by name and the device has no cached name. The advertising data is a list
+ * of [length, type, data] structures; service UUIDs come in 16, 32 and 128 bit lists, little endian.
+ */
+public class ScanTarget {
+
+    private static final int AD_UUID16_INCOMPLETE = 0x02;                                           //Advertising data types from the Bluetooth assigned numbers
+    private static final int AD_UUID16_COMPLETE = 0x03;
+    private static final int AD_UUID32_INCOMPLETE = 0x04;
+    private static final int AD_UUID32_COMPLETE = 0x05;
+    private static final int AD_UUID128_INCOMPLETE = 0x06;
+    private static final int AD_UUID128_COMPLETE = 0x07;
+    private static final int AD_NAME_SHORT = 0x08;
+    private static final int AD_NAME_COMPLETE = 0x09;
+    private static final long BASE_UUID_LSB = 0x800000805f9b34fbL;                                  //Bluetooth base UUID 00000000-0000-1000-8000-00805f9b34fb
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+
+    private final String address;                                                                   //Upper case, null when not matching by address
+    private final Pattern namePattern;
+    private final UUID service;
+
+    private ScanTarget(String address, Pattern namePattern, UUID service) {
+        this.address = address;
+        this.namePattern = namePattern;
+        this.service = service;
+    }
+
+    public static ScanTarget forAddress(String address) {
+        return new ScanTarget(address.toUpperCase(Locale.US), null, null);
+    }
+
+    // Matches the whole advertised name, e.g. "RN4020_.*"
+    public static ScanTarget forName(String regex) {
+        return new ScanTarget(null, Pattern.compile(regex), null);
+    }
+
+    public static ScanTarget forService(UUID service) {
+        return new ScanTarget(null, null, service);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // See if an advertisement comes from the target. The name is the one cached by Android and may be null.
+    public boolean matches(String deviceAddress, String deviceName, byte[] scanRecord) {
+        if (address != null) {
+            return address.equalsIgnoreCase(deviceAddress);
+        }
+        if (namePattern != null) {
+            final String name = deviceName != null ? deviceName : advertisedName(scanRecord);
+            return name != null && namePattern.matcher(name).matches();
+        }
+        return service != null && advertisesService(scanRecord, service);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // See if a scan record lists a service UUID, in any of the 16, 32 or 128 bit lists
+    public static boolean advertisesService(byte[] scanRecord, UUID service) {
+        if (scanRecord == null) {
+            return false;
+        }
+        final boolean shortForm = service.getLeastSignificantBits() == BASE_UUID_LSB
+                && (service.getMostSignificantBits() & 0xffffffffL) == BASE_UUID_MSB;              //16 and 32 bit UUIDs are aliases of the base UUID
+        final long shortValue = service.getMostSignificantBits() >>> 32;
+        int i = 0;
+        while (i < scanRecord.length - 1) {
+            final int length = scanRecord[i] & 0xff;
+            if (length == 0 || i + length >= scanRecord.length) {                                   //End of the significant part, or a truncated structure
+                break;
+            }
+            final int type = scanRecord[i + 1] & 0xff;
+            final int end = i + 1 + length;
+            if (shortForm && (type == AD_UUID16_INCOMPLETE || type == AD_UUID16_COMPLETE)) {
+                for (int j = i + 2; j + 2 <= end; j += 2) {
+                    if (readLittleEndian(scanRecord, j, 2) == shortValue) {
+                        return true;
+                    }
+                }
+            }
+            else if (shortForm && (type == AD_UUID32_INCOMPLETE || type == AD_UUID32_COMPLETE)) {
+                for (int j = i + 2; j + 4 <= end; j += 4) {
+                    if (readLittleEndian(scanRecord, j, 4) == shortValue) {
+                        return true;
+                    }
+                }
+            }
+            else if (type == AD_UUID128_INCOMPLETE || type == AD_UUID128_COMPLETE) {
+                for (int j = i + 2; j + 16 <= end; j += 16) {
+                    if (readLittleEndian(scanRecord, j, 8) == service.getLeastSignificantBits()
+                            && readLittleEndian(scanRecord, j + 8, 8) == service.getMostSignificantBits()) {
+                        return true;
+                    }
+                }
+            }
+            i = end;
+        }
+        return false;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Complete or short local name in a scan record, null if there is none
+    public static String advertisedName(byte[] scanRecord) {
+        if (scanRecord == null) {
+            return null;
+        }
+        String shortName = null;
+        int i = 0;
+        while (i < scanRecord.length - 1) {
+            final int length = scanRecord[i] & 0xff;
+            if (length == 0 || i + length >= scanRecord.length) {
+                break;
+            }
+            final int type = scanRecord[i + 1] & 0xff;
+            if (type == AD_NAME_COMPLETE) {
+                return new String(scanRecord, i + 2, length - 1, Charset.forName("UTF-8"));
+            }
+            if (type == AD_NAME_SHORT) {
+                shortName = new String(scanRecord, i + 2, length - 1, Charset.forName("UTF-8"));
+            }
+            i += length + 1;
+        }
+        return shortName;
+    }
+
+    private static long readLittleEndian(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        if (address != null) {
+            return "address " + address;
+        }
+        return namePattern != null ? "name " + namePattern.pattern() : "service " + service;
+    }
+}
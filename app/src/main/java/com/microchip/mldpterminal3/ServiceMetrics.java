@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lifetime counters of the Bluetooth service, printed with the live gauges by MldpBluetoothService.dump().
+ *
+ * Counters are bumped from the GATT, scan and main threads and read from a binder thread while they change, so each
+ * one is a slot of an AtomicLongArray: one atomic add on the hot path, no lock and no allocation. The Printer writes a
+ * readable report for `adb shell dumpsys activity service`, or a single line of key=value pairs for scripts that poll
+ * the service during a load test.
+ */
+public class ServiceMetrics {
+
+    public static final int CONNECT_ATTEMPTS = 0;                                                   //connect() calls
+    public static final int CONNECT_RETRIES = 1;                                                    //Attempts after the first one of a connect() or reconnection
+    public static final int CONNECTIONS = 2;
+    public static final int DISCONNECTIONS = 3;                                                     //Requested or reported by the device
+    public static final int CONNECTION_LOSSES = 4;                                                  //Link dropped while connected
+    public static final int WRITES_QUEUED = 5;
+    public static final int WRITES_REJECTED = 6;                                                    //Write queue full
+    public static final int WRITES_STARTED = 7;
+    public static final int WRITES_COMPLETED = 8;
+    public static final int WRITE_FAILURES = 9;                                                     //Refused by BluetoothGatt or completed with an error
+    public static final int BYTES_OUT = 10;
+    public static final int PACKETS_IN = 11;                                                        //Notifications and indications on the data characteristic
+    public static final int BYTES_IN = 12;
+    public static final int SCANS = 13;
+    public static final int SCAN_RESULTS = 14;                                                      //Advertisements reported by the adapter
+    public static final int TARGETED_SCANS = 15;                                                    //scanAndConnect() calls
+    public static final int TARGETS_FOUND = 16;
+    public static final int RECONNECTS = 17;                                                        //Links restored after a loss
+    public static final int CONNECT_FAILURES = 18;                                                  //Connections or reconnections given up
+
+    private static final String[] NAMES = {"connect_attempts", "connect_retries", "connections", "disconnections",
+            "connection_losses", "writes_queued", "writes_rejected", "writes_started", "writes_completed", "write_failures",
+            "bytes_out", "packets_in", "bytes_in", "scans", "scan_results", "targeted_scans", "targets_found",
+            "reconnects", "connect_failures"};
+
+    private final AtomicLongArray counters = new AtomicLongArray(NAMES.length);
+    private long scanStartedAt = -1;                                                                //Time the running scan started, -1 when not scanning
+    private long scanMillis;                                                                        //Time spent scanning by the previous scans
+
+    public void increment(int counter) {
+        counters.incrementAndGet(counter);
+    }
+
+    public void add(int counter, long delta) {
+        counters.addAndGet(counter, delta);
+    }
+
+    public long get(int counter) {
+        return counters.get(counter);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Scan time, for the rate of scan results
+    public synchronized void onScanStarted(long nowMillis) {
+        if (scanStartedAt < 0) {
+            scanStartedAt = nowMillis;
+            increment(SCANS);
+        }
+    }
+
+    public synchronized void onScanStopped(long nowMillis) {
+        if (scanStartedAt >= 0) {
+            scanMillis += nowMillis - scanStartedAt;
+            scanStartedAt = -1;
+        }
+    }
+
+    public synchronized long getScanMillis(long nowMillis) {
+        return scanMillis + (scanStartedAt >= 0 ? nowMillis - scanStartedAt : 0);
+    }
+
+    public synchronized boolean isScanning() {
+        return scanStartedAt >= 0;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Print all counters
+    public void print(Printer out) {
+        out.section("counters");
+        for (int i = 0; i < NAMES.length; i++) {
+            out.value(NAMES[i], counters.get(i));
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Writes sections of named values, one per line, or all on one line as section.name=value for scripts
+    public static class Printer {
+        private final PrintWriter writer;
+        private final boolean compact;
+        private String section;
+
+        public Printer(PrintWriter writer, boolean compact) {
+            this.writer = writer;
+            this.compact = compact;
+        }
+
+        public boolean isCompact() {
+            return compact;
+        }
+
+        public void section(String name) {
+            section = name;
+            if (!compact) {
+                writer.println(name + ":");
+            }
+        }
+
+        public void value(String name, Object value) {
+            if (compact) {
+                writer.print(section + "." + name + "=" + String.valueOf(value).replace(' ', '_') + " ");   //Values never contain spaces so scripts can split on them
+            }
+            else {
+                writer.println("  " + name + ": " + value);
+            }
+        }
+
+        public void value(String name, long value) {
+            value(name, (Object) value);
+        }
+
+        public void value(String name, double value) {
+            value(name, (Object) String.format(Locale.US, "%.2f", value));
+        }
+
+        // Free text, only in the readable report
+        public void line(String text) {
+            if (!compact) {
+                writer.println("  " + text);
+            }
+        }
+
+        public void end() {
+            if (compact) {
+                writer.println();
+            }
+            writer.flush();
+        }
+    }
+}
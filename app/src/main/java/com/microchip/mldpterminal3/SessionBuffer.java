@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+/**
+ * Text received on one MLDP session, kept while another session is shown on the terminal screen.
+ *
+ * The buffer holds the last CAPACITY characters, older text is dropped. Text that arrives while the session is in the
+ * background is counted as unread until the session is shown again. All methods may be called from any thread.
+ */
+public class SessionBuffer {
+
+    public static final int DEFAULT_CAPACITY = 16 * 1024;                                           //Characters kept per session
+
+    private final int capacity;
+    private final StringBuilder text = new StringBuilder();
+    private int unread;                                                                             //Characters received since the session was last shown
+    private long received;                                                                          //Characters received since the buffer was created
+
+    public SessionBuffer(int capacity) {
+        this.capacity = capacity;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Add received text. Shown is true when the session is on screen, so the text does not count as unread.
+    public synchronized void append(CharSequence data, boolean shown) {
+        text.append(data);
+        if (text.length() > capacity) {
+            text.delete(0, text.length() - capacity);                                               //Drop the oldest text
+        }
+        received += data.length();
+        unread = shown ? 0 : Math.min(capacity, unread + data.length());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Text to show when the session comes to the foreground, also marks it as read
+    public synchronized String read() {
+        unread = 0;
+        return text.toString();
+    }
+
+    public synchronized void clear() {
+        text.setLength(0);
+        unread = 0;
+    }
+
+    public synchronized int getUnread() {
+        return unread;
+    }
+
+    public synchronized long getReceived() {
+        return received;
+    }
+}
@@ -107,6 +107,50 @@ public class ShowAlertDialogs {
         dialog.show();
     }
 
+    // ----------------------------------------------------------------------------------------------------------------
+    // Show a list to choose from, such as the DFU images or the command scripts. Selecting an item calls the listener with its position.
+    public void showListDialog(int titleId, CharSequence[] items, int selected, final DialogInterface.OnClickListener callback) {
+        dialog.dismiss();
+        builder.setTitle(titleId);                                                                  //Set up the AlertDialog that will contain the list
+        builder.setMessage(null);                                                                   //A message would hide the list
+        builder.setSingleChoiceItems(items, selected, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {                                //User picked an item
+                callback.onClick(dialog, which);
+                dialog.dismiss();
+            }
+        });
+        builder.setPositiveButton(null, null);
+        builder.setNegativeButton(R.string.list_cancel_button, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {                                   //User clicked Cancel button
+            }                                                                                       //Don't do anything, keep the current choice
+        });
+        dialog = builder.create();
+        dialog.setCanceledOnTouchOutside(false);
+        dialog.show();
+        builder.setSingleChoiceItems((CharSequence[]) null, -1, null);                              //Do not show the list in the next dialogs built with the same builder
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Show a dialog that the device already runs the DFU image. OK button executes a Runnable that sends it anyway, for
+    // example to recover a module after "Upgrade Err".
+    public void showReflashDialog(CharSequence message, final Runnable callback) {
+        dialog.dismiss();
+        builder.setTitle(R.string.reflash_title);                                                   //Set up the AlertDialog that asks whether to send the same version again
+        builder.setMessage(message);
+        builder.setPositiveButton(R.string.reflash_ok_button, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {                                   //User clicked OK button
+                callback.run();
+            }
+        });
+        builder.setNegativeButton(R.string.reflash_cancel_button, new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int id) {                                   //User clicked Cancel button
+            }                                                                                       //Don't do anything, the DFU stays skipped
+        });
+        dialog = builder.create();
+        dialog.setCanceledOnTouchOutside(false);
+        dialog.show();
+    }
+
     // ----------------------------------------------------------------------------------------------------------------
     // Show a dialog to inform the user that we are attempting to connect to the device that was previously used and saved.
     public void showAutoConnectDialog(final Runnable callback) {
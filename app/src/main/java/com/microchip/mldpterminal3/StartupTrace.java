@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+package com.microchip.mldpterminal3;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Time from process start to a live terminal, split into milestones.
+ *
+ * Each milestone is recorded once, the first time it is reached, as the time in milliseconds since begin(). The trace
+ * ends at finish() and the whole startup is logged on one line, for example
+ * "Startup: application 0ms, service 41ms, connect 44ms, ui 162ms, connected 388ms, ready 571ms".
+ * Milestones reached after the trace has finished are ignored, so reconnections later in the session do not count.
+ */
+public final class StartupTrace {
+
+    private final static String TAG = StartupTrace.class.getSimpleName();                           //Class name for logging messages on the ADB
+
+    public static final String APPLICATION = "application";                                         //Process started, Application.onCreate
+    public static final String REGISTRY = "registry";                                               //Device registry read from app storage
+    public static final String SERVICE = "service";                                                 //MldpBluetoothService created
+    public static final String CONNECT = "connect";                                                 //Connection to a known device requested
+    public static final String UI = "ui";                                                           //Terminal screen inflated
+    public static final String SCAN = "scan";                                                       //No known device, the user picks one in the scan list
+    public static final String CONNECTED = "connected";                                             //GATT connected
+    public static final String READY = "ready";                                                     //Notifications enabled, the terminal is live
+
+    private static long start = System.nanoTime();
+    private static final List<String> names = new ArrayList<String>();
+    private static final List<Long> times = new ArrayList<Long>();
+    private static boolean finished;
+
+    private StartupTrace() {
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start the trace, called as early as possible in the process
+    public static synchronized void begin() {
+        start = System.nanoTime();
+        names.clear();
+        times.clear();
+        finished = false;
+        mark(APPLICATION);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Record a milestone, only the first time it is reached
+    public static synchronized void mark(String milestone) {
+        if (finished || names.contains(milestone)) {
+            return;
+        }
+        final long elapsed = (System.nanoTime() - start) / 1000000;
+        names.add(milestone);
+        times.add(elapsed);
+        DebugEvents.record(DebugEvents.EVENT_STARTUP, names.size() - 1, (int) Math.min(elapsed, 0xffff));
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Record the last milestone and log the trace
+    public static void finish(String milestone) {
+        final String summary;
+        synchronized (StartupTrace.class) {
+            if (finished) {
+                return;
+            }
+            mark(milestone);
+            finished = true;
+            summary = summary();
+        }
+        Log.i(TAG, summary);
+    }
+
+    public static synchronized boolean isFinished() {
+        return finished;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Time in milliseconds from begin() to a milestone, -1 if it was not reached
+    public static synchronized long getMillis(String milestone) {
+        final int index = names.indexOf(milestone);
+        return index >= 0 ? times.get(index) : -1;
+    }
+
+    // Called with the lock held
+    private static String summary() {
+        final StringBuilder builder = new StringBuilder("Startup:");
+        for (int i = 0; i < names.size(); i++) {
+            builder.append(i == 0 ? " " : ", ").append(names.get(i)).append(' ').append(times.get(i)).append("ms");
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes the bytes of successive notifications as one stream of text.
+ *
+ * A multi-byte character split between two packets is kept until the rest of it arrives instead of being decoded as
+ * replacement characters. Text is decoded into a CharBuffer that is reused for every packet and handed out as a
+ * CharSequence view, so decoding a packet does not allocate. In raw mode each byte becomes the char of the same value.
+ */
+public class StreamDecoder {
+
+    private static final int INITIAL_CAPACITY = 64;                                                 //Room for a 20 byte packet plus carry over, grows for larger packets
+
+    private CharsetDecoder decoder;                                                                 //Null in raw mode
+    private ByteBuffer input = ByteBuffer.allocate(INITIAL_CAPACITY);                               //Bytes of the current packet after the partial character of the previous one
+    private CharBuffer output = CharBuffer.allocate(INITIAL_CAPACITY);
+    private long bytesDecoded, charsDecoded;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // A null charset selects raw mode
+    public StreamDecoder(Charset charset) {
+        setCharset(charset);
+    }
+
+    public synchronized void setCharset(Charset charset) {
+        if (charset == null) {
+            decoder = null;
+        }
+        else {
+            decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)                                    //Invalid bytes still show up as replacement characters
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        reset();
+    }
+
+    public synchronized Charset getCharset() {
+        return decoder != null ? decoder.charset() : null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Forget any partial character, for example at the start of a new connection
+    public synchronized void reset() {
+        input.clear();
+        output.clear();
+        output.flip();
+        if (decoder != null) {
+            decoder.reset();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Decode one packet. The returned view is only valid until the next call and must not be modified.
+    // Consumers that keep the text must copy it with toString(). A null packet gives an empty view in both modes and keeps
+    // a partial character for the next packet.
+    public synchronized CharSequence decode(byte[] data) {
+        if (data == null) {
+            output.clear();
+            output.flip();
+            return output;
+        }
+        return decode(data, 0, data.length);
+    }
+
+    public synchronized CharSequence decode(byte[] data, int offset, int length) {
+        output.clear();
+        if (decoder == null) {
+            ensureOutput(length);
+            for (int i = offset; i < offset + length; i++) {
+                output.put((char) (data[i] & 0xff));
+            }
+        }
+        else {
+            if (input.remaining() < length) {
+                input = grow(input, input.position() + length);
+            }
+            input.put(data, offset, length);
+            input.flip();
+            ensureOutput((int) Math.ceil(input.remaining() * (double) decoder.maxCharsPerByte()));
+            decoder.decode(input, output, false);                                                   //Stops before an incomplete character at the end of the packet
+            input.compact();                                                                        //Keep the incomplete character for the next packet
+        }
+        output.flip();
+        bytesDecoded += length;
+        charsDecoded += output.remaining();
+        return output;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Number of bytes of an incomplete character waiting for the next packet
+    public synchronized int getPendingBytes() {
+        return decoder != null ? input.position() : 0;
+    }
+
+    public synchronized long getBytesDecoded() {
+        return bytesDecoded;
+    }
+
+    public synchronized long getCharsDecoded() {
+        return charsDecoded;
+    }
+
+    private void ensureOutput(int capacity) {
+        if (output.capacity() < capacity) {
+            output = CharBuffer.allocate(Math.max(capacity, output.capacity() * 2));
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(capacity, buffer.capacity() * 2));
+        buffer.flip();
+        larger.put(buffer);
+        return larger;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.util.Arrays;
+
+/**
+ * Pulls the numbers out of received text lines into one ring of samples per series, for the telemetry plot.
+ *
+ * Modules that stream sensor data send lines such as "1234,20.51,45.2,1013.25" or "T=20.5C H=45%". The n-th number of
+ * a line is a sample of series n, up to MAX_SERIES, and a series missing from a line gets a NaN sample so all series
+ * stay aligned on the line count. Numbers are recognized one character at a time straight from the decoded text, so a
+ * number split between notifications is still read whole, and no String is created: values go into float arrays
+ * allocated once. Digits inside a word, like the 4020 of RN4020, are not numbers. Lines without a number are ignored.
+ *
+ * decimate() reduces any span of samples to a min and max per pixel column. Feeding and reading may run on different
+ * threads.
+ */
+public class TelemetryParser {
+
+    public static final int MAX_SERIES = 6;
+    public static final int DEFAULT_CAPACITY = 8192;                                                //Samples kept per series
+    private static final int MAX_DIGITS = 18;                                                       //Significant digits that fit in a long, later ones only scale the value
+    private static final double[] POWERS_OF_TEN = new double[40];                                   //10^-20 to 10^19
+
+    static {
+        for (int i = 0; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = Math.pow(10, i - 20);
+        }
+    }
+
+    private static final int SCAN = 0;                                                              //Between tokens
+    private static final int WORD = 1;                                                              //Inside a word, digits are part of it
+    private static final int SIGN = 2;                                                              //After + or -, a number may follow
+    private static final int INTEGER = 3;
+    private static final int FRACTION = 4;
+    private static final int EXPONENT_SIGN = 5;                                                     //After e or E, a sign or digits may follow
+    private static final int EXPONENT = 6;
+
+    private final int capacity;
+    private final float[][] samples;                                                                //Ring per series, all series share head and count
+    private int head, count;                                                                        //Next sample written and samples kept
+    private int seriesCount;                                                                        //Most numbers seen on one line, capped at MAX_SERIES
+    private long lines;
+    private volatile long version;                                                                  //Changes with every sample added, lets the plot skip redraws
+
+    private final float[] line = new float[MAX_SERIES];                                             //Numbers of the line being read
+    private int fields;
+    private int state = SCAN;
+    private boolean negative, negativeExponent, leadingPoint;
+    private long mantissa;
+    private int digits, scale, exponent;                                                            //Significant digits, power of ten applied to the mantissa
+
+    public TelemetryParser() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TelemetryParser(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        samples = new float[MAX_SERIES][capacity];
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Read received text, usually the view handed out by StreamDecoder. Returns true if at least one line was added.
+    public synchronized boolean feed(CharSequence text) {
+        final long before = lines;
+        for (int i = 0, length = text.length(); i < length; i++) {
+            accept(text.charAt(i));
+        }
+        if (lines != before) {
+            version++;
+            return true;
+        }
+        return false;
+    }
+
+    private void accept(char c) {
+        final boolean digit = c >= '0' && c <= '9';
+        switch (state) {
+            case WORD:
+                if (digit || Character.isLetter(c) || c == '_') {
+                    return;
+                }
+                state = SCAN;
+                break;
+            case SIGN:
+                if (digit || c == '.') {
+                    startNumber(negative, c);
+                    return;
+                }
+                state = SCAN;
+                break;
+            case INTEGER:
+            case FRACTION:
+                if (digit) {
+                    addDigit(c - '0');
+                    return;
+                }
+                if (c == '.' && state == INTEGER) {
+                    state = FRACTION;
+                    return;
+                }
+                if ((c == 'e' || c == 'E') && !leadingPoint) {
+                    state = EXPONENT_SIGN;
+                    return;
+                }
+                endNumber();
+                break;
+            case EXPONENT_SIGN:
+                if (digit) {
+                    exponent = c - '0';
+                    state = EXPONENT;
+                    return;
+                }
+                if ((c == '-' || c == '+') && !negativeExponent && exponent == 0) {
+                    negativeExponent = c == '-';
+                    exponent = -1;                                                                  //Sign seen, digits must follow
+                    return;
+                }
+                endNumber();                                                                        //An e that is not an exponent, e.g. a unit, ends the number
+                break;
+            case EXPONENT:
+                if (digit) {
+                    exponent = Math.min(exponent * 10 + c - '0', 99);
+                    return;
+                }
+                endNumber();
+                break;
+            default:
+                break;
+        }
+        if (c == '\n') {                                                                            //State is SCAN or WORD here
+            endLine();
+        }
+        else if (digit || c == '.') {
+            startNumber(false, c);
+        }
+        else if (c == '-' || c == '+') {
+            negative = c == '-';
+            state = SIGN;
+        }
+        else if (Character.isLetter(c) || c == '_') {
+            state = WORD;
+        }
+        else {
+            state = SCAN;
+        }
+    }
+
+    private void startNumber(boolean negative, char c) {
+        this.negative = negative;
+        negativeExponent = false;
+        mantissa = 0;
+        digits = scale = exponent = 0;
+        leadingPoint = c == '.';
+        if (leadingPoint) {
+            state = FRACTION;
+        }
+        else {
+            state = INTEGER;
+            addDigit(c - '0');
+        }
+    }
+
+    private void addDigit(int value) {
+        if (digits < MAX_DIGITS) {
+            if (mantissa != 0 || value != 0) {
+                digits++;
+            }
+            mantissa = mantissa * 10 + value;
+            if (state == FRACTION) {
+                scale--;
+            }
+        }
+        else if (state == INTEGER) {
+            scale++;                                                                                //Digit beyond the precision kept, only its magnitude counts
+        }
+        if (leadingPoint) {
+            leadingPoint = false;                                                                   //".5" is a number, a lone "." is not
+        }
+    }
+
+    private void endNumber() {
+        final boolean valid = !(state == FRACTION && leadingPoint) && !(state == EXPONENT_SIGN && exponent < 0);
+        state = SCAN;
+        if (!valid) {
+            return;
+        }
+        if (fields < MAX_SERIES) {
+            final int power = scale + (negativeExponent ? -Math.max(exponent, 0) : Math.max(exponent, 0)) + 20;
+            double value = mantissa;
+            if (power < 0) {
+                value = 0;
+            }
+            else if (power >= POWERS_OF_TEN.length) {
+                value = mantissa == 0 ? 0 : Double.POSITIVE_INFINITY;
+            }
+            else {
+                value *= POWERS_OF_TEN[power];
+            }
+            line[fields] = (float) (negative ? -value : value);
+        }
+        fields++;
+    }
+
+    private void endLine() {
+        state = SCAN;
+        if (fields == 0) {
+            return;
+        }
+        final int used = Math.min(fields, MAX_SERIES);
+        seriesCount = Math.max(seriesCount, used);
+        for (int s = 0; s < MAX_SERIES; s++) {
+            samples[s][head] = s < used ? line[s] : Float.NaN;
+        }
+        head = head + 1 < capacity ? head + 1 : 0;
+        count = Math.min(count + 1, capacity);
+        fields = 0;
+        lines++;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Reduce the last span samples of a series to columns, oldest first. Column i gets the min and max of its share of
+    // the span, or NaN when it has no sample. With fewer samples than columns a sample spans several columns. Returns
+    // the number of samples covered, which may be less than span.
+    public synchronized int decimate(int series, int span, int columns, float[] min, float[] max) {
+        final int covered = Math.min(span, count);
+        if (covered == 0 || series >= seriesCount) {
+            Arrays.fill(min, 0, columns, Float.NaN);
+            Arrays.fill(max, 0, columns, Float.NaN);
+            return covered;
+        }
+        final float[] ring = samples[series];
+        final int first = head - covered < 0 ? head - covered + capacity : head - covered;
+        for (int column = 0; column < columns; column++) {
+            final int start = (int) ((long) column * covered / columns);
+            final int end = Math.max(start + 1, (int) ((long) (column + 1) * covered / columns));
+            float low = Float.NaN, high = Float.NaN;
+            int index = first + start >= capacity ? first + start - capacity : first + start;
+            for (int i = start; i < end; i++) {
+                final float value = ring[index];
+                if (value == value) {                                                               //Not NaN
+                    if (!(value >= low)) {                                                          //Also true while low is NaN
+                        low = value;
+                    }
+                    if (!(value <= high)) {
+                        high = value;
+                    }
+                }
+                index = index + 1 < capacity ? index + 1 : 0;
+            }
+            min[column] = low;
+            max[column] = high;
+        }
+        return covered;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Most recent sample of a series, NaN if none
+    public synchronized float getLatest(int series) {
+        return count > 0 && series < seriesCount ? samples[series][head > 0 ? head - 1 : capacity - 1] : Float.NaN;
+    }
+
+    public synchronized void clear() {
+        head = count = seriesCount = fields = 0;
+        state = SCAN;
+        version++;
+    }
+
+    public synchronized int getSeriesCount() {
+        return seriesCount;
+    }
+
+    public synchronized int getCount() {
+        return count;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getLines() {
+        return lines;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+}
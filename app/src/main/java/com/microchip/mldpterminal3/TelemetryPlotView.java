@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Live plot of the series of a TelemetryParser, one colored trace per series over the last samples received.
+ *
+ * However many samples are shown, each trace is reduced to the min and max of each pixel column and drawn as a
+ * vertical stroke per column, joined to the next one, so a frame costs the same at 10 or 10000 samples per second and
+ * peaks are never lost between columns. The vertical scale follows the visible samples. New samples ask for at most
+ * one redraw per display frame, and drawing allocates nothing once the size of the view is known.
+ */
+public class TelemetryPlotView extends View {
+
+    private static final int[] COLORS = {Color.BLUE, Color.RED, 0xff008000, Color.MAGENTA, 0xffff8000, Color.DKGRAY}; //One per series
+    private static final float TEXT_SIZE = 12;                                                      //Scale labels in dp
+    private static final float STROKE_WIDTH = 1.5f;                                                 //Traces in dp
+
+    private volatile TelemetryParser parser;
+    private volatile int span = TelemetryParser.DEFAULT_CAPACITY;                                   //Samples across the width of the plot
+    private final AtomicBoolean redrawPending = new AtomicBoolean();
+    private final Paint[] tracePaints = new Paint[TelemetryParser.MAX_SERIES];
+    private final Paint axisPaint = new Paint();
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final char[] label = new char[24];                                                      //Scale labels are formatted here instead of in Strings
+    private float density = 1;
+    private int columns;                                                                            //Width of the plot area in pixels
+    private float[][] mins, maxs;                                                                   //Per series and column
+    private float[] lines;                                                                          //Segments of one trace for Canvas.drawLines
+
+    public TelemetryPlotView(Context context) {
+        super(context);
+        init();
+    }
+
+    public TelemetryPlotView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    private void init() {
+        if (getResources() != null && getResources().getDisplayMetrics() != null) {
+            density = getResources().getDisplayMetrics().density;
+        }
+        for (int s = 0; s < tracePaints.length; s++) {
+            tracePaints[s] = new Paint();
+            tracePaints[s].setColor(COLORS[s]);
+            tracePaints[s].setStrokeWidth(STROKE_WIDTH * density);
+        }
+        axisPaint.setColor(Color.LTGRAY);
+        textPaint.setColor(Color.BLACK);
+        textPaint.setTextSize(TEXT_SIZE * density);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Source of the samples, null to show an empty plot
+    public void setParser(TelemetryParser parser) {
+        this.parser = parser;
+        onSamplesAdded();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Number of the most recent samples shown across the width, at most the capacity of the parser
+    public void setSpan(int samples) {
+        span = Math.max(2, samples);
+        onSamplesAdded();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // New samples are in the parser. May be called from any thread and for every packet, redraws are coalesced.
+    public void onSamplesAdded() {
+        if (redrawPending.compareAndSet(false, true)) {
+            postInvalidateOnAnimation();
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        columns = Math.max(0, width - getPaddingLeft() - getPaddingRight());
+        mins = new float[TelemetryParser.MAX_SERIES][columns];
+        maxs = new float[TelemetryParser.MAX_SERIES][columns];
+        lines = new float[columns * 8];                                                             //Up to two segments of four coordinates per column
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        redrawPending.set(false);                                                                   //Samples added from now on ask for another frame
+        final TelemetryParser source = parser;
+        if (source == null || columns == 0) {
+            return;
+        }
+        final int series = source.getSeriesCount();
+        float low = Float.NaN, high = Float.NaN;
+        for (int s = 0; s < series; s++) {
+            source.decimate(s, span, columns, mins[s], maxs[s]);
+            for (int column = 0; column < columns; column++) {
+                if (!(mins[s][column] >= low)) {                                                    //NaN columns never lower or raise the range
+                    low = mins[s][column] == mins[s][column] ? mins[s][column] : low;
+                }
+                if (!(maxs[s][column] <= high)) {
+                    high = maxs[s][column] == maxs[s][column] ? maxs[s][column] : high;
+                }
+            }
+        }
+        if (low != low || high != high) {
+            return;                                                                                 //Nothing to plot yet
+        }
+        if (high - low < 1e-6f) {                                                                   //Flat signal, center it
+            low -= 1;
+            high += 1;
+        }
+        final float left = getPaddingLeft();
+        final float top = getPaddingTop() + textPaint.getTextSize();
+        final float bottom = getHeight() - getPaddingBottom();
+        final float scale = (bottom - top) / (high - low);
+        canvas.drawLine(left, top, left + columns, top, axisPaint);
+        canvas.drawLine(left, bottom, left + columns, bottom, axisPaint);
+        for (int s = 0; s < series; s++) {
+            final float[] min = mins[s], max = maxs[s];
+            int count = 0;
+            float lastX = 0, lastTop = 0, lastBottom = 0;
+            boolean joined = false;                                                                 //A previous column has data
+            for (int column = 0; column < columns; column++) {
+                if (min[column] != min[column]) {
+                    joined = false;                                                                 //Leave a gap where lines had no value
+                    continue;
+                }
+                final float x = left + column;
+                final float yTop = bottom - (max[column] - low) * scale;
+                final float yBottom = bottom - (min[column] - low) * scale;
+                if (joined && yBottom < lastTop) {                                                  //Rising past the previous column, join its top to our bottom
+                    count = segment(count, lastX, lastTop, x, yBottom);
+                }
+                else if (joined && yTop > lastBottom) {                                             //Falling below it
+                    count = segment(count, lastX, lastBottom, x, yTop);
+                }
+                count = segment(count, x, yTop, x, yBottom + 1);                                    //Min to max of the column, at least one pixel
+                lastX = x;
+                lastTop = yTop;
+                lastBottom = yBottom;
+                joined = true;
+            }
+            canvas.drawLines(lines, 0, count, tracePaints[s]);
+        }
+        canvas.drawText(label, 0, format(high), left, top - textPaint.getTextSize() * 0.2f, textPaint);
+        canvas.drawText(label, 0, format(low), left, bottom - textPaint.getTextSize() * 0.2f, textPaint);
+    }
+
+    private int segment(int count, float x0, float y0, float x1, float y1) {
+        lines[count] = x0;
+        lines[count + 1] = y0;
+        lines[count + 2] = x1;
+        lines[count + 3] = y1;
+        return count + 4;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Write a scale value to label with two decimals, or none from 1000 up. Returns the number of chars written.
+    private int format(float value) {
+        int length = 0;
+        if (value < 0) {
+            label[length++] = '-';
+            value = -value;
+        }
+        if (value >= 1e15f) {
+            label[length++] = '>';                                                                  //Out of the range of the label
+        }
+        final boolean decimals = value < 1000;
+        long scaled = Math.min(Math.round(decimals ? value * 100.0 : value), 999999999999999L);
+        final int start = length;
+        int digits = 0;
+        do {
+            if (decimals && digits == 2) {
+                label[length++] = '.';
+            }
+            label[length++] = (char) ('0' + scaled % 10);
+            scaled /= 10;
+            digits++;
+        } while (scaled > 0 || (decimals && digits < 3));
+        for (int i = start, j = length - 1; i < j; i++, j--) {                                      //Digits were written backwards
+            final char c = label[i];
+            label[i] = label[j];
+            label[j] = c;
+        }
+        return length;
+    }
+}
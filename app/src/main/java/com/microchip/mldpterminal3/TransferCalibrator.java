@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the fastest packet size and gap at which a connected module receives a test pattern without loss.
+ *
+ * The module must echo what it receives: its UART TX wired to RX (loopback) makes the RN4020 send every MLDP byte
+ * back as a notification. Each trial streams a pattern of printable characters through a DfuStreamer, the same path
+ * as a DFU, and compares the echo with what was sent. A trial is clean only if every byte comes back in order.
+ * For each packet size the smallest clean gap is found by bisection, then a safety margin is added and the result is
+ * confirmed by repeated trials. The setting with the best measured throughput becomes the profile.
+ *
+ * The calibrator has no Android dependencies, the echo is fed in with onEcho().
+ */
+public class TransferCalibrator {
+
+    public static final int[] CHUNK_SIZES = {16, 8};                                                //Packet sizes tried, both keep the DFU image aligned
+    public static final long MIN_GAP = 0;                                                           //Range of gaps searched in milliseconds
+    public static final long MAX_GAP = 40;
+    static final int PATTERN_LENGTH = 960;                                                          //Bytes sent in each trial
+    private static final long SAFETY_MARGIN = 2;                                                    //Added to the smallest clean gap in milliseconds
+    private static final int CONFIRM_RUNS = 2;                                                      //Clean trials needed at the final gap
+    private static final long ECHO_QUIET = 300;                                                     //Time without echo after which the trial ends in milliseconds
+    private static final long ECHO_POLL = 10;                                                       //Time between checks of the echo in milliseconds
+    private static final String PATTERN_CHARS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"; //62 characters, a lost packet shifts the pattern
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Progress reporting and abort check, called once per trial
+    public interface Listener {
+        boolean shouldAbort();
+        void onTrial(Trial trial);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Outcome of one pass of the pattern
+    public static class Trial {
+        private final int chunkSize;
+        private final long packetGap;
+        private final boolean clean;
+        private final int echoed;                                                                   //Bytes echoed in order before the first error
+        private final double throughput;                                                            //Bytes per second while sending
+
+        Trial(int chunkSize, long packetGap, boolean clean, int echoed, double throughput) {
+            this.chunkSize = chunkSize;
+            this.packetGap = packetGap;
+            this.clean = clean;
+            this.echoed = echoed;
+            this.throughput = throughput;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public long getPacketGap() {
+            return packetGap;
+        }
+
+        public boolean isClean() {
+            return clean;
+        }
+
+        public int getEchoed() {
+            return echoed;
+        }
+
+        public double getThroughput() {
+            return throughput;
+        }
+
+        @Override
+        public String toString() {
+            return chunkSize + "B/" + packetGap + "ms " + (clean ? "clean" : "lost after " + echoed + "B") + " " + String.format("%.0f", throughput) + " B/s";
+        }
+    }
+
+    private final DfuStreamer.PacketWriter writer;
+    private final DfuStreamer.Clock clock;
+    private final List<Trial> trials = new ArrayList<Trial>();
+    private Listener listener;
+    private int patternStart;                                                                       //Moves on every trial so a late echo never matches
+
+    private byte[] expected;                                                                        //Pattern of the trial in progress, null between trials
+    private int echoed;
+    private boolean corrupted;
+    private long lastEchoTime;
+
+    public TransferCalibrator(DfuStreamer.PacketWriter writer, DfuStreamer.Clock clock) {
+        this.writer = writer;
+        this.clock = clock;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Text received from the module. Anything that is not the next byte of the pattern fails the trial.
+    public synchronized void onEcho(CharSequence text) {
+        if (expected == null) {
+            return;                                                                                 //Late echo of an earlier trial
+        }
+        for (int i = 0; i < text.length() && !corrupted; i++) {
+            if (echoed < expected.length && text.charAt(i) == expected[echoed]) {
+                echoed++;
+            }
+            else {
+                corrupted = true;
+            }
+        }
+        lastEchoTime = clock.currentTimeMillis();
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Run the sweep. Returns the fastest clean setting, or null if no setting was clean or the listener aborted.
+    public TransferProfile calibrate(Listener listener) throws IOException, InterruptedException {
+        this.listener = listener;
+        trials.clear();
+        Trial best = null;
+        for (int chunkSize : CHUNK_SIZES) {
+            Trial trial = runTrial(chunkSize, MAX_GAP);
+            if (trial == null) {
+                return null;
+            }
+            if (!trial.isClean()) {
+                continue;                                                                           //Loses packets even at the slowest setting
+            }
+            long cleanGap = MAX_GAP, lossyGap = MIN_GAP - 1;
+            while (cleanGap - lossyGap > 1) {                                                       //Smallest clean gap, assuming a longer gap never does worse
+                final long gap = (cleanGap + lossyGap) / 2;
+                trial = runTrial(chunkSize, gap);
+                if (trial == null) {
+                    return null;
+                }
+                if (trial.isClean()) {
+                    cleanGap = gap;
+                }
+                else {
+                    lossyGap = gap;
+                }
+            }
+            for (long gap = cleanGap + SAFETY_MARGIN; gap <= MAX_GAP + SAFETY_MARGIN; gap += SAFETY_MARGIN) {
+                Trial confirmed = confirm(chunkSize, gap);
+                if (confirmed == null) {
+                    if (listener != null && listener.shouldAbort()) {
+                        return null;
+                    }
+                    continue;                                                                       //Bisection was lucky, back off
+                }
+                if (best == null || confirmed.getThroughput() > best.getThroughput()) {
+                    best = confirmed;
+                }
+                break;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        return new TransferProfile(best.getChunkSize(), best.getPacketGap(), (int) best.getThroughput(), clock.currentTimeMillis());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Repeat the trial at one setting. Returns the slowest of the clean runs, or null if one of them lost data.
+    private Trial confirm(int chunkSize, long gap) throws IOException, InterruptedException {
+        Trial slowest = null;
+        for (int i = 0; i < CONFIRM_RUNS; i++) {
+            Trial trial = runTrial(chunkSize, gap);
+            if (trial == null || !trial.isClean()) {
+                return null;
+            }
+            if (slowest == null || trial.getThroughput() < slowest.getThroughput()) {
+                slowest = trial;
+            }
+        }
+        return slowest;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Send the pattern once and wait for its echo. Returns null if the listener aborted.
+    Trial runTrial(int chunkSize, long gap) throws IOException, InterruptedException {
+        if (listener != null && listener.shouldAbort()) {
+            return null;
+        }
+        final byte[] pattern = nextPattern();
+        synchronized (this) {
+            expected = pattern;
+            echoed = 0;
+            corrupted = false;
+        }
+        final DfuStreamer streamer = new DfuStreamer(writer, clock, chunkSize, gap);
+        final boolean sent = streamer.stream(pattern, null);
+        synchronized (this) {
+            lastEchoTime = Math.max(lastEchoTime, clock.currentTimeMillis());                       //Quiet time counts from the last packet
+        }
+        while (sent) {
+            synchronized (this) {
+                if (corrupted || echoed == pattern.length || clock.currentTimeMillis() - lastEchoTime > ECHO_QUIET) {
+                    break;
+                }
+            }
+            clock.sleep(ECHO_POLL);
+        }
+        final Trial trial;
+        synchronized (this) {
+            trial = new Trial(chunkSize, gap, sent && !corrupted && echoed == pattern.length, echoed, streamer.getThroughput());
+            expected = null;
+        }
+        if (!trial.isClean()) {
+            clock.sleep(ECHO_QUIET);                                                                //Let the rest of a broken echo arrive and be ignored
+        }
+        trials.add(trial);
+        if (listener != null) {
+            listener.onTrial(trial);
+        }
+        return trial;
+    }
+
+    private byte[] nextPattern() {
+        final byte[] pattern = new byte[PATTERN_LENGTH];
+        for (int i = 0; i < pattern.length; i++) {
+            pattern[i] = (byte) PATTERN_CHARS.charAt((patternStart + i) % PATTERN_CHARS.length());
+        }
+        patternStart += 7;
+        return pattern;
+    }
+
+    public List<Trial> getTrials() {
+        return new ArrayList<Trial>(trials);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.util.Locale;
+
+/**
+ * Packet size and gap found by the TransferCalibrator for one phone and module firmware.
+ *
+ * The fastest setting that does not lose packets depends on the phone, its Android Bluetooth stack and the firmware of
+ * the module, so a profile is stored under a key made of all three. A profile is encoded in one line of text so it
+ * can be kept in SharedPreferences.
+ */
+public class TransferProfile {
+
+    public static final TransferProfile DEFAULT = new TransferProfile(DfuStreamer.DEFAULT_CHUNK_SIZE,
+            DfuStreamer.DEFAULT_PACKET_GAP, 0, 0);                                                  //Values used before any calibration
+
+    private final int chunkSize;                                                                    //Bytes per MLDP packet
+    private final long packetGap;                                                                   //Time between packets in milliseconds
+    private final int throughput;                                                                   //Bytes per second measured at this setting, 0 if never measured
+    private final long calibratedAt;                                                                //Time of the calibration, 0 for the default profile
+
+    public TransferProfile(int chunkSize, long packetGap, int throughput, long calibratedAt) {
+        this.chunkSize = chunkSize;
+        this.packetGap = packetGap;
+        this.throughput = throughput;
+        this.calibratedAt = calibratedAt;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Key of the profile for a phone (e.g. "samsung SM-G930F"), its Android API level and a module firmware revision
+    public static String keyFor(String phoneModel, int apiLevel, String firmware) {
+        return (phoneModel + "/" + apiLevel + "/" + (firmware != null ? firmware : "unknown")).trim().toUpperCase(Locale.US);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Encode as "chunkSize,packetGap,throughput,calibratedAt"
+    public String encode() {
+        return chunkSize + "," + packetGap + "," + throughput + "," + calibratedAt;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Decode a profile written by encode(). Returns null if the text is missing or not a valid profile.
+    public static TransferProfile decode(String text) {
+        if (text == null) {
+            return null;
+        }
+        String[] fields = text.split(",");
+        if (fields.length != 4) {
+            return null;
+        }
+        try {
+            int chunkSize = Integer.parseInt(fields[0]);
+            long packetGap = Long.parseLong(fields[1]);
+            if (chunkSize <= 0 || chunkSize > 20 || packetGap < 0) {
+                return null;
+            }
+            return new TransferProfile(chunkSize, packetGap, Integer.parseInt(fields[2]), Long.parseLong(fields[3]));
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public long getPacketGap() {
+        return packetGap;
+    }
+
+    public int getThroughput() {
+        return throughput;
+    }
+
+    public long getCalibratedAt() {
+        return calibratedAt;
+    }
+
+    public boolean isCalibrated() {
+        return calibratedAt != 0;
+    }
+
+    @Override
+    public String toString() {
+        return chunkSize + " bytes every " + packetGap + "ms" + (throughput > 0 ? " (" + throughput + " B/s)" : "");
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+/**
+ * Completion handle of one write or of a batch of writes queued in a WriteQueue.
+ *
+ * The handle completes when the last part has been written. It succeeds only if every part was written with a GATT
+ * success status. Negative statuses are set by the queue itself, positive ones come from the BluetoothGatt callback.
+ * Completion can be observed with a Callback or waited for with await() from a background thread.
+ */
+public class WriteHandle {
+
+    public static final int STATUS_PENDING = Integer.MIN_VALUE;
+    public static final int STATUS_SUCCESS = 0;                                                     //Same value as BluetoothGatt.GATT_SUCCESS
+    public static final int STATUS_REJECTED = -1;                                                   //Queue was full, nothing was queued
+    public static final int STATUS_BUSY = -2;                                                       //BluetoothGatt kept refusing the write after the retries
+    public static final int STATUS_CANCELLED = -3;                                                  //Queue was cleared, usually on disconnection
+    public static final int STATUS_NOT_CONNECTED = -4;                                              //No connection or characteristic to write to
+    public static final int STATUS_TIMEOUT = -5;                                                    //BluetoothGatt never reported the end of the write
+
+    public interface Callback {
+        void onWriteComplete(WriteHandle handle);
+    }
+
+    private int remaining;                                                                          //Parts not completed yet
+    private int status = STATUS_PENDING;
+    private Callback callback;
+
+    WriteHandle(int parts) {
+        remaining = parts;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // A handle that is already complete, for writes that could not be queued or had nothing to write
+    static WriteHandle completed(int status) {
+        final WriteHandle handle = new WriteHandle(0);
+        handle.status = status;
+        return handle;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Complete one part. The first failure is kept as the status of the whole handle.
+    // Returns the callback to run if the handle just completed, the caller runs it outside of its locks.
+    synchronized Callback completePart(int partStatus) {
+        if (remaining == 0) {
+            return null;
+        }
+        if (partStatus != STATUS_SUCCESS && status == STATUS_PENDING) {
+            status = partStatus;
+        }
+        if (--remaining > 0) {
+            return null;
+        }
+        if (status == STATUS_PENDING) {
+            status = STATUS_SUCCESS;
+        }
+        notifyAll();
+        return callback;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Set the callback, called at once if the handle is already complete
+    public void setCallback(Callback callback) {
+        synchronized (this) {
+            if (remaining > 0) {
+                this.callback = callback;
+                return;
+            }
+        }
+        callback.onWriteComplete(this);
+    }
+
+    public synchronized boolean isDone() {
+        return remaining == 0;
+    }
+
+    public synchronized boolean isSuccess() {
+        return remaining == 0 && status == STATUS_SUCCESS;
+    }
+
+    public synchronized int getStatus() {
+        return status;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Wait for completion, never from the main thread. Returns true if the handle completed successfully in time.
+    public synchronized boolean await(long timeoutMillis) throws InterruptedException {
+        final long end = System.currentTimeMillis() + timeoutMillis;
+        long left = timeoutMillis;
+        while (remaining > 0 && left > 0) {
+            wait(left);
+            left = end - System.currentTimeMillis();
+        }
+        return isSuccess();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return remaining > 0 ? "pending (" + remaining + " left)" : "status " + status;
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Bounded queue of characteristic writes with one write in flight at a time, as required by BluetoothGatt.
+ *
+ * Writes never block: each one returns a WriteHandle, and a write that does not fit is rejected at once. Producers
+ * follow the writability of the queue: it turns false when the queue reaches the high watermark and true again once
+ * it drains to the low watermark. Background producers can wait for it with awaitWritable().
+ * When the Sink refuses to start a write (BluetoothGatt busy), the write is retried after a short delay before it
+ * fails with STATUS_BUSY. The target type is the characteristic, kept generic so the queue has no Android dependency.
+ * While the link is being restored the queue can be held: writes keep queuing up to the capacity and the write that
+ * was in flight when the link dropped is sent again on resume.
+ * Each write handed to the Sink is tagged. BluetoothGatt reports completions without saying which write they are for,
+ * so the queue keeps the tag of the write the stack is working on. When that write was drained or cleared before its
+ * completion came, the completion is dropped instead of being counted against the next write, and the next write
+ * only starts once the stack is free, so it is not refused as busy.
+ */
+public class WriteQueue<T> {
+
+    static final int DEFAULT_CAPACITY = 64;                                                         //Writes that can wait for the BluetoothGatt, more are rejected
+    static final int DEFAULT_HIGH_WATERMARK = 48;                                                   //Queue stops being writable at this size
+    static final int DEFAULT_LOW_WATERMARK = 16;                                                    //and is writable again at this size
+    static final int BUSY_RETRY_LIMIT = 5;                                                          //Attempts to start a write refused by BluetoothGatt
+    static final long BUSY_RETRY_DELAY = 10;                                                        //Delay between these attempts in milliseconds
+    static final long STALE_WAIT = 1000;                                                            //Time a write given up on may keep BluetoothGatt busy, in milliseconds
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Starts a write, usually BluetoothGatt.writeCharacteristic. Returns false if the write could not be started.
+    public interface Sink<T> {
+        boolean startWrite(T target, byte[] value, int writeType);
+    }
+
+    public interface Listener {
+        void onWritabilityChanged(boolean writable);
+        void onWriteFailed(int status);
+    }
+
+    private static class Entry<T> {
+        final T target;
+        final byte[] value;
+        final int writeType;
+        final WriteHandle handle;
+        int tag;                                                                                    //Tag of the last start accepted by the Sink, 0 if never started
+
+        Entry(T target, byte[] value, int writeType, WriteHandle handle) {
+            this.target = target;
+            this.value = value;
+            this.writeType = writeType;
+            this.handle = handle;
+        }
+    }
+
+    private final Sink<T> sink;
+    private final CommandEngine.Scheduler scheduler;
+    private final int capacity, highWatermark, lowWatermark;
+    private final LinkedList<Entry<T>> entries = new LinkedList<Entry<T>>();                        //Head is the write in flight
+    private boolean writable = true;
+    private boolean held;                                                                           //No write is started until resume()
+    private int busyRetries;
+    private int generation;                                                                         //Last tag given to a write
+    private int outstanding;                                                                        //Tag of the write BluetoothGatt is working on, 0 when idle
+    private long abandonedAt;                                                                       //Time the outstanding write was drained or cleared
+    private int staleCompletions;
+    private volatile Listener listener;
+
+    private final Runnable retryTask = new Runnable() {
+        @Override
+        public void run() {
+            retry();
+        }
+    };
+
+    public WriteQueue(Sink<T> sink, CommandEngine.Scheduler scheduler, int capacity, int highWatermark, int lowWatermark) {
+        if (lowWatermark < 0 || lowWatermark >= highWatermark || highWatermark > capacity) {
+            throw new IllegalArgumentException("Watermarks must satisfy 0 <= low < high <= capacity");
+        }
+        this.sink = sink;
+        this.scheduler = scheduler;
+        this.capacity = capacity;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Queue one write
+    public WriteHandle write(T target, byte[] value, int writeType) {
+        final List<byte[]> values = new ArrayList<byte[]>(1);
+        values.add(value);
+        return write(target, values, writeType);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Queue a batch of writes to the same target under one handle. The batch is queued whole or rejected whole.
+    public WriteHandle write(T target, List<byte[]> values, int writeType) {
+        final boolean changed;
+        final WriteHandle handle;
+        Entry<T> next = null;
+        synchronized (this) {
+            if (values.isEmpty()) {
+                return WriteHandle.completed(WriteHandle.STATUS_SUCCESS);
+            }
+            if (entries.size() + values.size() > capacity) {
+                return WriteHandle.completed(WriteHandle.STATUS_REJECTED);
+            }
+            handle = new WriteHandle(values.size());
+            final boolean idle = entries.isEmpty();
+            for (byte[] value : values) {
+                entries.add(new Entry<T>(target, value, writeType, handle));
+            }
+            DebugEvents.record(DebugEvents.EVENT_WRITE_QUEUED, values.size(), entries.size());
+            changed = updateWritable();
+            if (idle) {
+                next = next();
+            }
+        }
+        start(next);
+        if (changed) {
+            notifyWritability();
+        }
+        return handle;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The write in flight completed with the given GATT status, start the next one
+    public void onWriteComplete(int status) {
+        Entry<T> done = null;
+        boolean changed = false;
+        Entry<T> next = null;
+        synchronized (this) {
+            if (held) {
+                return;                                                                             //Late completion from the lost link, the write is sent again on resume
+            }
+            final int tag = outstanding;
+            outstanding = 0;
+            final Entry<T> head = entries.peek();
+            if (tag == 0 || head == null || head.tag != tag) {                                      //Completion of a write drained or cleared in the meantime
+                staleCompletions++;
+                if (head != null) {
+                    scheduler.cancel(retryTask);                                                    //The head waited for BluetoothGatt, which is free now
+                    busyRetries = 0;
+                    next = next();
+                }
+            }
+            else {
+                done = entries.poll();
+                DebugEvents.record(DebugEvents.EVENT_WRITE_DONE, entries.size(), status);
+                changed = updateWritable();
+                if (!entries.isEmpty()) {
+                    next = next();
+                }
+            }
+        }
+        start(next);
+        if (done != null) {
+            complete(done, status);
+        }
+        if (changed) {
+            notifyWritability();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Fail every queued write, for example on disconnection. A held queue stays held until resume().
+    public void clear() {
+        final List<Entry<T>> cancelled;
+        final boolean changed;
+        synchronized (this) {
+            scheduler.cancel(retryTask);
+            abandonHead();
+            cancelled = new ArrayList<Entry<T>>(entries);
+            entries.clear();
+            changed = updateWritable();
+        }
+        for (Entry<T> entry : cancelled) {
+            final WriteHandle.Callback callback = entry.handle.completePart(WriteHandle.STATUS_CANCELLED);
+            if (callback != null) {
+                callback.onWriteComplete(entry.handle);
+            }
+        }
+        if (changed) {
+            notifyWritability();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Stop starting writes while the link is down, keeping the queued ones
+    public synchronized void hold() {
+        scheduler.cancel(retryTask);
+        busyRetries = 0;
+        outstanding = 0;                                                                            //The next link starts idle
+        held = true;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start writing again after hold(), beginning with the write that was in flight
+    public void resume() {
+        final Entry<T> next;
+        synchronized (this) {
+            if (!held) {
+                return;
+            }
+            held = false;
+            next = entries.isEmpty() ? null : next();
+        }
+        start(next);
+    }
+
+    public synchronized boolean isHeld() {
+        return held;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    public synchronized boolean isWritable() {
+        return writable;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Completions dropped because their write had been drained or cleared
+    public synchronized int getStaleCompletions() {
+        return staleCompletions;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Wait until the queue is writable, never from the main thread. Returns false on timeout.
+    public synchronized boolean awaitWritable(long timeoutMillis) throws InterruptedException {
+        final long end = System.currentTimeMillis() + timeoutMillis;
+        long left = timeoutMillis;
+        while (!writable && left > 0) {
+            wait(left);
+            left = end - System.currentTimeMillis();
+        }
+        return writable;
+    }
+
+    // Called with the lock held. Tags the write at the head and returns it, to pass to start() once the lock is released.
+    // Returns null while held, or while BluetoothGatt may still be busy with a write given up on: its completion starts
+    // the head, or the retry task does once STALE_WAIT has passed.
+    private Entry<T> next() {
+        if (held) {
+            return null;
+        }
+        if (outstanding != 0) {
+            final long waited = scheduler.currentTimeMillis() - abandonedAt;
+            if (waited < STALE_WAIT) {
+                scheduler.cancel(retryTask);
+                scheduler.schedule(retryTask, STALE_WAIT - waited);
+                return null;
+            }
+            outstanding = 0;                                                                        //Its completion is lost
+        }
+        final Entry<T> entry = entries.peek();
+        generation = generation == Integer.MAX_VALUE ? 1 : generation + 1;
+        entry.tag = generation;
+        outstanding = generation;                                                                   //Before the Sink is called, the completion may come before it returns
+        return entry;
+    }
+
+    // Called with the lock held, before the head is removed without its completion
+    private void abandonHead() {
+        final Entry<T> head = entries.peek();
+        if (head != null && outstanding != 0 && head.tag == outstanding) {
+            abandonedAt = scheduler.currentTimeMillis();                                            //BluetoothGatt may still complete it
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Hand the write to the sink without holding the lock: BluetoothGatt.writeCharacteristic is a binder call, and
+    // producers and the GATT callbacks must not wait for it
+    private void start(Entry<T> entry) {
+        if (entry == null) {
+            return;
+        }
+        DebugEvents.record(DebugEvents.EVENT_WRITE_STARTED, entry.value.length, entry.writeType);
+        final boolean started = sink.startWrite(entry.target, entry.value, entry.writeType);
+        synchronized (this) {
+            if (!started && outstanding == entry.tag) {
+                outstanding = 0;                                                                    //Refused, BluetoothGatt is not working on it
+            }
+            if (entries.peek() != entry || held) {
+                return;                                                                             //Completed, cleared or held in the meantime
+            }
+            if (started) {
+                busyRetries = 0;
+            }
+            else {
+                scheduler.schedule(retryTask, BUSY_RETRY_DELAY);                                    //BluetoothGatt busy, try again shortly
+            }
+        }
+    }
+
+    private void retry() {
+        final Entry<T> next;
+        synchronized (this) {
+            if (entries.isEmpty() || held) {
+                return;
+            }
+            if (outstanding == 0 && ++busyRetries >= BUSY_RETRY_LIMIT) {                            //Waiting for a write given up on is not a refusal
+                next = null;
+            }
+            else {
+                next = next();
+                if (next == null) {
+                    return;                                                                         //Still waiting, next() scheduled the retry again
+                }
+            }
+        }
+        if (next != null) {
+            start(next);
+        }
+        else {
+            drainHead(WriteHandle.STATUS_BUSY);                                                     //Give up on this write and go on with the next one
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Start the write in flight again, when its completion was never reported
+    public void retryHead() {
+        final Entry<T> next;
+        synchronized (this) {
+            if (entries.isEmpty() || held) {
+                return;
+            }
+            scheduler.cancel(retryTask);
+            busyRetries = 0;
+            outstanding = 0;                                                                        //Its completion is taken as lost
+            next = next();
+        }
+        start(next);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Fail the write in flight with the given status and start the next one once BluetoothGatt is done with it
+    public void drainHead(int status) {
+        final Entry<T> failed;
+        final boolean changed;
+        Entry<T> next = null;
+        synchronized (this) {
+            scheduler.cancel(retryTask);
+            busyRetries = 0;
+            abandonHead();
+            failed = entries.poll();
+            if (failed == null) {
+                return;
+            }
+            changed = updateWritable();
+            if (!entries.isEmpty()) {
+                next = next();
+            }
+        }
+        start(next);
+        complete(failed, status);
+        if (changed) {
+            notifyWritability();
+        }
+    }
+
+    private void complete(Entry<T> entry, int status) {
+        if (status != WriteHandle.STATUS_SUCCESS) {
+            final Listener current = listener;
+            if (current != null) {
+                current.onWriteFailed(status);
+            }
+        }
+        final WriteHandle.Callback callback = entry.handle.completePart(status);
+        if (callback != null) {
+            callback.onWriteComplete(entry.handle);
+        }
+    }
+
+    // Called with the lock held. Returns true if the writability changed.
+    private boolean updateWritable() {
+        final boolean next = writable ? entries.size() < highWatermark : entries.size() <= lowWatermark;
+        if (next == writable) {
+            return false;
+        }
+        writable = next;
+        notifyAll();                                                                                //Wake producers waiting in awaitWritable
+        return true;
+    }
+
+    private void notifyWritability() {
+        final Listener current = listener;
+        if (current != null) {
+            current.onWritabilityChanged(isWritable());
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+package com.microchip.mldpterminal3;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * CommandEngine against a transport that records the commands it sends, on a virtual clock.
+ */
+public class CommandEngineTest implements CommandEngine.Scheduler {
+
+    private long now;
+    private final List<Object[]> tasks = new ArrayList<Object[]>();                                 //Due time and task
+    private final List<String> sent = new ArrayList<String>();
+    private List<CommandEngine.Result> results;
+
+    private final CommandEngine.Transport transport = new CommandEngine.Transport() {
+        @Override
+        public void send(byte[] packet) {
+            final String text = new String(packet);
+            if (text.endsWith("\r\n")) {
+                sent.add(text.substring(0, text.length() - 2));
+            }
+        }
+    };
+
+    private final CommandEngine.Callback callback = new CommandEngine.Callback() {
+        @Override
+        public void onScriptComplete(List<CommandEngine.Result> complete) {
+            results = complete;
+        }
+    };
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Virtual clock
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        tasks.add(new Object[] {now + delayMillis, task});
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        final Iterator<Object[]> iterator = tasks.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next()[1] == task) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // Run the tasks due in the next millis in order, including those they schedule
+    private void advance(long millis) {
+        final long end = now + millis;
+        while (true) {
+            Object[] next = null;
+            for (Object[] task : tasks) {
+                if ((Long) task[0] <= end && (next == null || (Long) task[0] < (Long) next[0])) {
+                    next = task;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            tasks.remove(next);
+            now = (Long) next[0];
+            ((Runnable) next[1]).run();
+        }
+        now = end;
+    }
+
+    private CommandEngine start(int maxInFlight, boolean stopOnError, String... commands) {
+        final CommandEngine engine = new CommandEngine(transport, this, maxInFlight);
+        assertTrue(engine.run(Arrays.asList(commands), stopOnError, callback));
+        return engine;
+    }
+
+    private String summary() {
+        final StringBuilder builder = new StringBuilder();
+        for (CommandEngine.Result result : results) {
+            builder.append(builder.length() > 0 ? ", " : "").append(result.getCommand()).append(' ').append(result.getStatus());
+            for (String line : result.getLines()) {
+                builder.append(' ').append(line);
+            }
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void replyForCommands() {
+        assertEquals(CommandEngine.Reply.STATUS, CommandEngine.replyFor("SN,Sensor"));
+        assertEquals(CommandEngine.Reply.STATUS, CommandEngine.replyFor("A"));
+        assertEquals(CommandEngine.Reply.VALUE, CommandEngine.replyFor("gn"));
+        assertEquals(CommandEngine.Reply.VALUE, CommandEngine.replyFor("V"));
+        assertEquals(CommandEngine.Reply.VALUE, CommandEngine.replyFor("CHR,001A"));
+        assertEquals(CommandEngine.Reply.VALUE, CommandEngine.replyFor("CUR,2A19"));
+        assertEquals(CommandEngine.Reply.UNTIL_END, CommandEngine.replyFor("LS"));
+        assertEquals(CommandEngine.Reply.UNTIL_END, CommandEngine.replyFor("LC"));
+        assertEquals(CommandEngine.Reply.UNTIL_QUIET, CommandEngine.replyFor("D"));
+        assertEquals(CommandEngine.Reply.UNTIL_CMD, CommandEngine.replyFor("R,1"));
+    }
+
+    @Test
+    public void matchesRepliesInOrder() {
+        final CommandEngine engine = start(1, false, "SN,Sensor", "GN", "LS", "R,1");
+        assertEquals(Arrays.asList("SN,Sensor"), sent);
+        engine.onDataReceived("AO");
+        engine.onDataReceived("K\r\nSens");                                                         //Lines split between packets
+        engine.onDataReceived("or\r\n");
+        engine.onDataReceived("180A\r\n  2A19,000B,02\r\nEND\r\n");
+        engine.onDataReceived("Reboot\r\nCMD\r\n");
+        advance(0);
+        assertEquals(Arrays.asList("SN,Sensor", "GN", "LS", "R,1"), sent);
+        assertEquals("SN,Sensor OK, GN VALUE Sensor, LS VALUE 180A 2A19,000B,02, R,1 OK Reboot", summary());
+    }
+
+    @Test
+    public void dumpEndsWhenQuiet() {
+        final CommandEngine engine = start(1, false, "D", "V");
+        engine.onDataReceived("BTA=001EC01A2B3C\r\nName=Sensor\r\n");
+        advance(100);
+        engine.onDataReceived("Baud=4\r\n");
+        advance(200);
+        assertEquals(Arrays.asList("D", "V"), sent);
+        engine.onDataReceived("RN4020 V1.33BEC\r\n");
+        advance(0);
+        assertEquals("D VALUE BTA=001EC01A2B3C Name=Sensor Baud=4, V VALUE RN4020 V1.33BEC", summary());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Commands with a one line reply go ahead of their replies, the others wait for everything before them
+    @Test
+    public void pipeliningStopsAtBarriers() {
+        final CommandEngine engine = start(2, false, "SN,A", "SR,0", "SS,0", "LS", "GN");
+        assertEquals(Arrays.asList("SN,A", "SR,0"), sent);                                          //Two in flight
+        engine.onDataReceived("AOK\r\n");
+        assertEquals(Arrays.asList("SN,A", "SR,0", "SS,0"), sent);
+        engine.onDataReceived("AOK\r\n");
+        assertEquals(3, sent.size());                                                               //LS waits for SS,0
+        engine.onDataReceived("AOK\r\n");
+        assertEquals(4, sent.size());
+        engine.onDataReceived("180A\r\n");
+        assertEquals(4, sent.size());                                                               //GN waits for the list to end
+        engine.onDataReceived("END\r\nA\r\n");
+        advance(0);
+        assertEquals("SN,A OK, SR,0 OK, SS,0 OK, LS VALUE 180A, GN VALUE A", summary());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // A late reply to a timed out command must not complete the next command
+    @Test
+    public void lateReplyAfterTimeoutIsDropped() {
+        final CommandEngine engine = start(1, false, "GN", "SN,A");
+        advance(CommandEngine.DEFAULT_TIMEOUT);
+        assertEquals(Arrays.asList("GN"), sent);                                                    //Next command waits for the module to go quiet
+        engine.onDataReceived("Sensor\r\n");
+        advance(100);
+        engine.onDataReceived("AOK\r\n");
+        advance(100);
+        assertEquals(1, sent.size());
+        advance(100);
+        assertEquals(Arrays.asList("GN", "SN,A"), sent);
+        assertNull(results);
+        engine.onDataReceived("AOK\r\n");
+        advance(0);
+        assertEquals("GN TIMEOUT, SN,A OK", summary());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Commands in flight behind a timed out one cannot be matched to their replies either
+    @Test
+    public void timeoutEndsEveryCommandInFlight() {
+        final CommandEngine engine = start(2, false, "SN,A", "SR,0", "SS,0");
+        advance(CommandEngine.DEFAULT_TIMEOUT);
+        engine.onDataReceived("AOK\r\n");
+        advance(1000);
+        assertEquals(Arrays.asList("SN,A", "SR,0", "SS,0"), sent);
+        engine.onDataReceived("AOK\r\n");
+        advance(0);
+        assertEquals("SN,A TIMEOUT, SR,0 TIMEOUT, SS,0 OK", summary());
+    }
+
+    @Test
+    public void errorStopsTheScript() {
+        final CommandEngine engine = start(1, true, "SN,A", "SR,0", "GN");
+        engine.onDataReceived("AOK\r\nERR\r\n");
+        advance(0);
+        assertEquals(Arrays.asList("SN,A", "SR,0"), sent);
+        assertEquals("SN,A OK, SR,0 ERROR, GN SKIPPED", summary());
+    }
+
+    @Test
+    public void errorDoesNotStopTheScript() {
+        final CommandEngine engine = start(1, false, "SN,A", "SR,0", "GN");
+        engine.onDataReceived("ERR\r\nAOK\r\nA\r\n");
+        advance(0);
+        assertEquals("SN,A ERROR, SR,0 OK, GN VALUE A", summary());
+    }
+}
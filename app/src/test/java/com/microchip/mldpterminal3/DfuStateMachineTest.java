@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+package com.microchip.mldpterminal3;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * DfuStateMachine on a virtual clock, with a listener that records the transitions it is told.
+ */
+public class DfuStateMachineTest implements CommandEngine.Scheduler {
+
+    private long now;
+    private final List<Object[]> tasks = new ArrayList<Object[]>();                                 //Due time and task
+    private final List<String> told = new ArrayList<String>();
+    private Runnable onSchedule;                                                                    //Run when a task is scheduled, to interleave another thread
+    private DfuStateMachine machine;
+
+    @Before
+    public void setUp() {
+        machine = new DfuStateMachine(this);
+        machine.setListener(new DfuStateMachine.Listener() {
+            @Override
+            public void onStateChanged(DfuStateMachine machine, DfuStateMachine.State from, DfuStateMachine.State to) {
+                synchronized (told) {
+                    told.add(from + " -> " + to);
+                }
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Virtual clock
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        final Runnable hook;
+        synchronized (this) {
+            tasks.add(new Object[] {now + delayMillis, task});
+            hook = onSchedule;
+            onSchedule = null;
+        }
+        if (hook != null) {
+            hook.run();
+        }
+    }
+
+    @Override
+    public synchronized void cancel(Runnable task) {
+        final Iterator<Object[]> iterator = tasks.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next()[1] == task) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // Run the tasks due in the next millis in order, including those they schedule
+    private void advance(long millis) {
+        final long end = now + millis;
+        while (true) {
+            Object[] next = null;
+            synchronized (this) {
+                for (Object[] task : tasks) {
+                    if ((Long) task[0] <= end && (next == null || (Long) task[0] < (Long) next[0])) {
+                        next = task;
+                    }
+                }
+                if (next == null) {
+                    break;
+                }
+                tasks.remove(next);
+                now = (Long) next[0];
+            }
+            ((Runnable) next[1]).run();
+        }
+        now = end;
+    }
+
+    @Test
+    public void upgradeOk() {
+        assertTrue(machine.start(false));
+        assertEquals(DfuStateMachine.State.VERIFYING, machine.onStreamComplete(true));
+        machine.onTextReceived("Upgrade ");
+        machine.onTextReceived("OK\r\n");                                                           //Reply split between packets
+        assertEquals(DfuStateMachine.State.DONE, machine.getState());
+        assertEquals("[IDLE -> STREAMING, STREAMING -> VERIFYING, VERIFYING -> DONE]", told.toString());
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void viaOtaStreamsTwice() {
+        machine.start(true);
+        assertEquals(DfuStateMachine.State.ENTERING_OTA, machine.onStreamComplete(true));
+        machine.onTextReceived("OTA\r\n");
+        assertEquals(DfuStateMachine.State.STREAMING, machine.getState());
+        assertEquals(DfuStateMachine.State.VERIFYING, machine.onStreamComplete(true));
+    }
+
+    @Test
+    public void noAnswerTimesOut() {
+        machine.start(false);
+        machine.onStreamComplete(true);
+        advance(DfuStateMachine.VERIFY_TIMEOUT);
+        assertEquals(DfuStateMachine.State.FAILED, machine.getState());
+        assertEquals(DfuStateMachine.Reason.TIMEOUT, machine.getReason());
+    }
+
+    @Test
+    public void deviceErrorFailsWhileStreaming() {
+        machine.start(false);
+        machine.onTextReceived("Upgrade Err\r\n");
+        assertEquals(DfuStateMachine.Reason.DEVICE_ERROR, machine.getReason());
+        assertEquals(DfuStateMachine.State.FAILED, machine.onStreamComplete(false));
+        assertFalse(machine.isActive());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // "Upgrade OK" arrives on the binder thread while the streamer thread moves to VERIFYING. The listener must be told
+    // STREAMING -> VERIFYING before VERIFYING -> DONE, and no VERIFY timeout may be left behind.
+    @Test
+    public void transitionsAreToldInOrder() throws InterruptedException {
+        machine.start(false);
+        final Thread binder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                machine.onTextReceived("Upgrade OK\r\n");
+            }
+        });
+        onSchedule = new Runnable() {                                                               //VERIFY timeout is being armed
+            @Override
+            public void run() {
+                binder.start();
+                try {
+                    binder.join(200);                                                               //Blocks on the machine if it is locked
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        machine.onStreamComplete(true);
+        binder.join();
+        assertEquals(DfuStateMachine.State.DONE, machine.getState());
+        assertEquals("[IDLE -> STREAMING, STREAMING -> VERIFYING, VERIFYING -> DONE]", told.toString());
+        advance(DfuStateMachine.VERIFY_TIMEOUT);
+        assertEquals(DfuStateMachine.State.DONE, machine.getState());
+        assertTrue(tasks.isEmpty());
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+package com.microchip.mldpterminal3;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Throughput regression suite for the DFU path.
+ *
+ * The image in the assets is streamed by a DfuStreamer, with the default packet gap, into a simulated
+ * link and module on a virtual clock. The link carries the queued packets at each connection event and a lost packet
+ * is sent again at the next event, as the BLE link layer does, so loss costs time but never data. Each case checks
+ * that the module received the image byte for byte and that the delivered throughput stays within a few percent of
+ * what the packet gap allows. A change to the chunking or the pacing that slows the transfer down, or that overruns
+ * the link buffer, fails the build.
+ *
+ * The packet size stands in for the MTU: MLDP packets are at most 20 bytes, the payload of the default ATT MTU of 23,
+ * so a larger MTU does not change what is sent. The cases use the 16 byte default and the full 20 bytes.
+ */
+@RunWith(Parameterized.class)
+public class DfuStreamerThroughputTest {
+
+    private static final String IMAGE = "src/main/assets/RN4020BEC_133_112415_DFU" + FirmwareContainer.EXTENSION;
+    private static final int PACKETS_PER_EVENT = 4;                                                 //Packets the phone sends in one connection event
+    private static final int LINK_BUFFER = WriteQueue.DEFAULT_CAPACITY;                             //Packets the service queues before a write is refused
+    private static final double DEFAULT_RATE = 16 * 1000.0 / 18;                                    //B/s of 16 byte packets every 18ms, the pacing the app shipped with
+    private static final double FULL_PACKET_RATE = 20 * 1000.0 / 18;                                //B/s of 20 byte packets at the same gap
+    private static final double MIN_EFFICIENCY = 0.95;                                              //Delivered throughput against these rates
+    private static final long SEED = 0x4d4c4450;
+
+    private static byte[] image;
+
+    private final long interval;
+    private final int chunkSize;
+    private final double loss;
+    private final double rate;
+
+    @Parameterized.Parameters(name = "interval {0}ms, packet {1} bytes, loss {2}")
+    public static Collection<Object[]> cases() {
+        final List<Object[]> cases = new ArrayList<Object[]>();
+        for (long interval : new long[] {8, 15, 30, 50}) {
+            for (double loss : new double[] {0, 0.01, 0.05}) {
+                cases.add(new Object[] {interval, DfuStreamer.DEFAULT_CHUNK_SIZE, loss, DEFAULT_RATE});
+                cases.add(new Object[] {interval, 20, loss, FULL_PACKET_RATE});
+            }
+        }
+        return cases;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The expected rate is fixed rather than derived from the defaults, so changing the gap or the chunk size to
+    // something slower fails the cases
+    public DfuStreamerThroughputTest(long interval, int chunkSize, double loss, double rate) {
+        this.interval = interval;
+        this.chunkSize = chunkSize;
+        this.loss = loss;
+        this.rate = rate;
+    }
+
+    @Test
+    public void deliversImageAtPacedRate() throws IOException, InterruptedException {
+        final byte[] image = readImage();
+        final SimulatedLink link = new SimulatedLink(interval, loss, new Random(SEED));
+        final DfuStreamer streamer = new DfuStreamer(link, link, chunkSize, DfuStreamer.DEFAULT_PACKET_GAP);
+        final int[] lastProgress = new int[1];
+
+        final boolean result = streamer.stream(image, new DfuStreamer.Listener() {
+            @Override
+            public boolean shouldAbort() {
+                return false;
+            }
+
+            @Override
+            public void onProgress(int bytesSent, int bytesTotal) {
+                lastProgress[0] = bytesSent;
+            }
+        });
+        link.drain();
+
+        assertTrue("A write was refused, the link buffer overflowed", result);
+        assertEquals(image.length, streamer.getBytesSent());
+        assertEquals("Progress did not reach the end of the image", image.length, lastProgress[0]);
+        assertEquals("Only the last packet is flagged", 1, link.lastFlags);
+        assertTrue("The last flag was not on the last packet", link.lastFlagAtEnd);
+        assertArrayEquals("The module did not receive the image byte for byte", image, link.received.toByteArray());
+
+        final double delivered = image.length * 1000.0 / link.lastDelivery;
+        assertTrue(String.format("Delivered %.0f B/s, expected at least %.0f B/s (%d retransmissions)", delivered,
+                rate * MIN_EFFICIENCY, link.retransmissions), delivered >= rate * MIN_EFFICIENCY);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The real image, decompressed once for all the cases
+    private static synchronized byte[] readImage() throws IOException {
+        if (image == null) {
+            final InputStream file = new FileInputStream(IMAGE);
+            try {
+                final FirmwareContainer container = FirmwareContainer.readHeader(file);
+                final InputStream in = container.openImage(file);
+                final ByteArrayOutputStream out = new ByteArrayOutputStream(container.getImageLength());
+                final byte[] buffer = new byte[4096];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+                in.close();
+                image = out.toByteArray();
+            }
+            finally {
+                file.close();
+            }
+        }
+        return image;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Phone stack, air and module. Time only moves when the streamer sleeps, and the connection events due in that time
+    // are run in order.
+    private static class SimulatedLink implements DfuStreamer.PacketWriter, DfuStreamer.Clock {
+        private final long interval;
+        private final double loss;
+        private final Random random;
+        private final LinkedList<byte[]> pending = new LinkedList<byte[]>();
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        private long now, nextEvent;
+        long lastDelivery;
+        int retransmissions, lastFlags;
+        boolean lastFlagAtEnd;
+
+        SimulatedLink(long interval, double loss, Random random) {
+            this.interval = interval;
+            this.loss = loss;
+            this.random = random;
+            nextEvent = interval;
+        }
+
+        @Override
+        public boolean writePacket(byte[] packet, boolean last) {
+            if (pending.size() >= LINK_BUFFER) {
+                return false;
+            }
+            pending.add(Arrays.copyOf(packet, packet.length));
+            if (last) {
+                lastFlags++;
+                lastFlagAtEnd = true;
+            }
+            else {
+                lastFlagAtEnd = false;
+            }
+            return true;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        public void sleep(long millis) {
+            final long until = now + millis;
+            while (nextEvent <= until) {
+                now = nextEvent;
+                connectionEvent();
+                nextEvent += interval;
+            }
+            now = until;
+        }
+
+        // Run connection events until everything queued has reached the module
+        void drain() {
+            while (!pending.isEmpty()) {
+                sleep(interval);
+            }
+        }
+
+        private void connectionEvent() {
+            for (int i = 0; i < PACKETS_PER_EVENT && !pending.isEmpty(); i++) {
+                if (random.nextDouble() < loss) {
+                    retransmissions++;                                                              //Not acknowledged, the event ends and the packet is sent again
+                    return;
+                }
+                final byte[] packet = pending.removeFirst();
+                received.write(packet, 0, packet.length);
+                lastDelivery = now;
+            }
+        }
+    }
+}
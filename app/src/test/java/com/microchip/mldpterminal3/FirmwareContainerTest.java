@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+package com.microchip.mldpterminal3;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Container round trip and integrity checks, and a measurement of the decode cost of the image in the assets.
+ *
+ * The benchmark streams the image through a DfuStreamer on a virtual clock, so the only real time spent is reading
+ * the source, the way the streamer reads it during a DFU: one packet at a time through the small inflater window. The
+ * median decode time per packet has to stay a small fraction of the packet gap, the air time of one packet at the
+ * default pacing.
+ */
+public class FirmwareContainerTest {
+
+    private static final String IMAGE = "src/main/assets/RN4020BEC_133_112415_DFU" + FirmwareContainer.EXTENSION;
+    private static final double MAX_GAP_FRACTION = 0.01;                                            //Decode time allowed per packet against the packet gap
+    private static final int WARMUP_RUNS = 5;
+    private static final int RUNS = 9;
+
+    @Test
+    public void packAndOpenRoundTrip() throws IOException {
+        final byte[] image = readImage();
+        final byte[] packed = FirmwareContainer.pack(image);
+        final InputStream in = new ByteArrayInputStream(packed);
+        final FirmwareContainer container = FirmwareContainer.readHeader(in);
+        assertEquals(image.length, container.getImageLength());
+        assertEquals(packed.length - FirmwareContainer.HEADER_LENGTH, container.getPayloadLength());
+        assertArrayEquals(image, readAll(container.openImage(in)));
+    }
+
+    @Test
+    public void corruptedPayloadFailsVerification() throws IOException {
+        final byte[] packed = FirmwareContainer.pack(readImage());
+        packed[packed.length / 2] ^= 0x55;
+        final InputStream in = new ByteArrayInputStream(packed);
+        final FirmwareContainer container = FirmwareContainer.readHeader(in);
+        try {
+            container.verify(in);
+            fail("A corrupted payload passed verification");
+        }
+        catch (IOException e) {
+            //Expected, from the inflater or from the CRC check
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Decode time of the compressed image against its air time at the default pacing
+    @Test
+    public void decodeStaysBelowPacketGap() throws IOException, InterruptedException {
+        final byte[] file = readFile();
+        final double[] compressed = new double[RUNS];
+        final double[] raw = new double[RUNS];
+        final byte[] image = readImage();
+        for (int run = -WARMUP_RUNS; run < RUNS; run++) {
+            final FirmwareContainer container = FirmwareContainer.readHeader(new ByteArrayInputStream(file));
+            final InputStream payload = new ByteArrayInputStream(file, FirmwareContainer.HEADER_LENGTH, container.getPayloadLength());
+            final InputStream decoded = container.openImage(payload);
+            final double compressedMicros;
+            try {
+                compressedMicros = sourceMicrosPerPacket(decoded, container.getImageLength());
+            }
+            finally {
+                decoded.close();
+            }
+            final double rawMicros = sourceMicrosPerPacket(new ByteArrayInputStream(image), image.length);
+            if (run >= 0) {
+                compressed[run] = compressedMicros;
+                raw[run] = rawMicros;
+            }
+        }
+        final double decodeMicros = median(compressed);
+        final double gapMicros = DfuStreamer.DEFAULT_PACKET_GAP * 1000.0;
+        final int packets = (image.length + DfuStreamer.DEFAULT_CHUNK_SIZE - 1) / DfuStreamer.DEFAULT_CHUNK_SIZE;
+        System.out.println(String.format(Locale.US, "%d bytes in %d packets: decode %.2fus per packet (raw %.2fus), "
+                + "%.1fms for the image against %.1fs of air time, %.3f%% of the packet gap", image.length, packets,
+                decodeMicros, median(raw), decodeMicros * packets / 1000, packets * gapMicros / 1000000, decodeMicros * 100 / gapMicros));
+        assertTrue(String.format(Locale.US, "Decoding takes %.1fus per packet, more than %.0f%% of the %dms packet gap",
+                decodeMicros, MAX_GAP_FRACTION * 100, DfuStreamer.DEFAULT_PACKET_GAP), decodeMicros < gapMicros * MAX_GAP_FRACTION);
+    }
+
+    // Stream the source with a free clock and a writer that drops the packets, leaving only the time spent reading
+    private static double sourceMicrosPerPacket(InputStream source, int length) throws IOException, InterruptedException {
+        final DfuStreamer streamer = new DfuStreamer(new DfuStreamer.PacketWriter() {
+            @Override
+            public boolean writePacket(byte[] packet, boolean last) {
+                return true;
+            }
+        }, new DfuStreamer.Clock() {
+            @Override
+            public long currentTimeMillis() {
+                return 0;
+            }
+
+            @Override
+            public void sleep(long millis) {
+            }
+        }, DfuStreamer.DEFAULT_CHUNK_SIZE, DfuStreamer.DEFAULT_PACKET_GAP);
+        assertTrue(streamer.stream(source, length, null));
+        return streamer.getSourceMicrosPerPacket();
+    }
+
+    private static double median(double[] values) {
+        final double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    private static byte[] readFile() throws IOException {
+        return readAll(new FileInputStream(IMAGE));
+    }
+
+    private static byte[] readImage() throws IOException {
+        final byte[] file = readFile();
+        final InputStream in = new ByteArrayInputStream(file);
+        return readAll(FirmwareContainer.readHeader(in).openImage(in));
+    }
+
+    // Read the stream to its end and close it
+    private static byte[] readAll(InputStream in) throws IOException {
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        }
+        finally {
+            in.close();
+        }
+    }
+}
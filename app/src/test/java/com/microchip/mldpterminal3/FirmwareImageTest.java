@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+package com.microchip.mldpterminal3;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Matching of the firmware revision reported by a module against the version of a DFU image.
+ */
+public class FirmwareImageTest {
+
+    private final FirmwareImage image = FirmwareImage.fromFileName("RN4020BEC_133_112415_DFU.bin");
+
+    @Test
+    public void sameVersionIsInstalled() {
+        assertTrue(image.isInstalled("1.33BEC"));
+        assertTrue(image.isInstalled("1.33 bec"));
+        assertTrue(image.isInstalled("RN4020 V1.33BEC"));
+        assertTrue(image.isInstalled(" V1.33BEC\r\n"));
+    }
+
+    @Test
+    public void otherVersionIsNotInstalled() {
+        assertFalse(image.isInstalled("11.33BEC"));
+        assertFalse(image.isInstalled("1.33.5BEC"));
+        assertFalse(image.isInstalled("1.3BEC"));
+        assertFalse(image.isInstalled("1.20BEC"));
+    }
+
+    @Test
+    public void otherVariantIsNotInstalled() {
+        assertFalse(image.isInstalled("1.33"));
+        assertFalse(image.isInstalled("1.33BECX"));
+        assertFalse(image.isInstalled("1.33XYZ"));
+    }
+
+    @Test
+    public void otherModuleIsNotInstalled() {
+        assertFalse(image.isInstalled("RN4870 V1.33BEC"));
+    }
+
+    @Test
+    public void unknownRevisionIsNotInstalled() {
+        assertFalse(image.isInstalled(null));
+        assertFalse(image.isInstalled(""));
+        assertFalse(image.isInstalled("Version 1.33BEC build 4"));
+        assertFalse(FirmwareImage.fromFileName("custom.bin").isInstalled("1.33BEC"));
+    }
+
+    @Test
+    public void revisionIsSplit() {
+        assertArrayEquals(new String[] {"RN4020", "1.33", "BEC"}, FirmwareImage.parseRevision("RN4020 V1.33BEC"));
+        assertArrayEquals(new String[] {null, "1.33.5", ""}, FirmwareImage.parseRevision("1.33.5"));
+        assertNull(FirmwareImage.parseRevision("BEC"));
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+package com.microchip.mldpterminal3;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FramedChannel against an ArqReceiver peer over a simulated link, on a virtual clock.
+ *
+ * Each packet takes LATENCY plus a random delay of up to REORDER milliseconds, so packets overtake each other. The
+ * link drops or damages packets in both directions, at random or by a rule of the test. The peer decodes the bytes
+ * with a Frame.Decoder, the way the module firmware receives them from its UART.
+ */
+public class FramedChannelTest implements CommandEngine.Scheduler {
+
+    private static final long LATENCY = 15;                                                         //One way, in milliseconds
+    private static final long REORDER = 30;
+    private static final double CORRUPT = 0.02;
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Decides the fate of a packet from the channel to the peer, by the index of the packet
+    private interface Rule {
+        int DELIVER = 0, DROP = 1, CORRUPT = 2;
+        int apply(int index, byte[] packet);
+    }
+
+    private long now;
+    private final List<Object[]> tasks = new ArrayList<Object[]>();                                 //Due time and task
+    private final Random random = new Random(7);
+    private final ByteArrayOutputStream received = new ByteArrayOutputStream();
+    private final List<byte[]> sent = new ArrayList<byte[]>();                                      //Packets sent by the channel
+    private final List<Long> resetTimes = new ArrayList<Long>();                                    //Time of each RESET frame sent
+    private double loss;
+    private boolean reorder;
+    private Rule rule;
+    private int failures;
+    private FramedChannel channel;
+    private Frame.Decoder peer;
+
+    @Before
+    public void setUp() {
+        final ArqReceiver receiver = new ArqReceiver(new Frame.Link() {
+            @Override
+            public boolean send(final byte[] packet) {
+                carry(packet, Rule.DELIVER, false);
+                return true;
+            }
+        }, this, new ArqReceiver.Sink() {
+            @Override
+            public void onData(byte[] data, int offset, int length) {
+                received.write(data, offset, length);
+            }
+        });
+        peer = new Frame.Decoder(receiver);
+        channel = new FramedChannel(new Frame.Link() {
+            @Override
+            public boolean send(final byte[] packet) {
+                final int fate = rule != null ? rule.apply(sent.size(), packet) : Rule.DELIVER;
+                sent.add(packet);
+                if (packet[1] == Frame.TYPE_RESET) {
+                    resetTimes.add(now);
+                }
+                carry(packet, fate, true);
+                return true;
+            }
+        }, this, new FramedChannel.Listener() {
+            @Override
+            public void onDataReceived(byte[] data, int offset, int length) {
+            }
+
+            @Override
+            public void onFailed() {
+                failures++;
+            }
+        });
+    }
+
+    // Deliver a copy of the packet to the peer or to the channel after the link delay, unless it is lost. The copy is
+    // damaged for a CORRUPT fate, and at random when the link is lossy. The sender keeps its frame for a repair.
+    private void carry(byte[] packet, int fate, final boolean toPeer) {
+        if (fate == Rule.DROP || (fate == Rule.DELIVER && random.nextDouble() < loss)) {
+            return;
+        }
+        final byte[] copy = new byte[packet.length];
+        System.arraycopy(packet, 0, copy, 0, packet.length);
+        if (fate == Rule.CORRUPT || (fate == Rule.DELIVER && loss > 0 && random.nextDouble() < CORRUPT)) {
+            copy[Frame.HEADER_LENGTH + random.nextInt(copy.length - Frame.HEADER_LENGTH)] ^= 0x10;  //Payload or CRC, the header stays valid
+        }
+        schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (toPeer) {
+                    peer.feed(copy, 0, copy.length);
+                }
+                else {
+                    channel.onPacket(copy);
+                }
+            }
+        }, LATENCY + (reorder ? (long) (random.nextDouble() * REORDER) : 0));
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Virtual clock
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        tasks.add(new Object[] {now + delayMillis, task});
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        final Iterator<Object[]> iterator = tasks.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next()[1] == task) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // Run the tasks due in the next millis in order, including those they schedule
+    private void advance(long millis) {
+        final long end = now + millis;
+        while (true) {
+            Object[] next = null;
+            for (Object[] task : tasks) {
+                if ((Long) task[0] <= end && (next == null || (Long) task[0] < (Long) next[0])) {
+                    next = task;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            tasks.remove(next);
+            now = (Long) next[0];
+            ((Runnable) next[1]).run();
+        }
+        now = end;
+    }
+
+    private byte[] data(int length) {
+        final byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Data arrives complete and in order with packets lost in both directions, overtaking each other and damaged
+    @Test
+    public void deliversInOrderUnderLossAndReordering() {
+        final double[] losses = {0, 0.05, 0.2};
+        for (double value : losses) {
+            setUp();                                                                                //New channel and peer on the same clock
+            loss = value;
+            reorder = true;
+            final byte[] data = data(8 * 1024);
+            channel.open();
+            assertTrue(channel.send(data));
+            advance(120000);
+            assertTrue("Loss " + value + ": " + channel, channel.isIdle());
+            assertFalse(channel.isFailed());
+            assertArrayEquals("Loss " + value + ": " + channel, data, received.toByteArray());
+            assertEquals(data.length, channel.getBytesAcknowledged());
+            assertTrue(value == 0 || (channel.getRetransmitCount() > 0 && peer.getCrcErrors() > 0));
+            received.reset();
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // A frame lost ahead of frames that arrive is reported by the SACK bitmap and sent again without a timeout
+    @Test
+    public void sackBitmapRepairsHole() {
+        rule = new Rule() {
+            @Override
+            public int apply(int index, byte[] packet) {
+                return index == 2 ? DROP : DELIVER;                                                 //RESET, then the second data frame
+            }
+        };
+        final byte[] data = data(FramedChannel.INITIAL_WINDOW * Frame.MAX_PAYLOAD * 4);
+        channel.open();
+        channel.send(data);
+        advance(10000);
+        assertArrayEquals(data, received.toByteArray());
+        assertEquals(1, channel.getRetransmitCount());
+        assertEquals(0, channel.getTimeouts());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // A damaged frame is dropped by the peer's CRC check, the decoder finds the next frame and the frame is repaired
+    @Test
+    public void recoversFromCrcError() {
+        rule = new Rule() {
+            @Override
+            public int apply(int index, byte[] packet) {
+                return index == 3 ? CORRUPT : DELIVER;
+            }
+        };
+        final byte[] data = data(FramedChannel.INITIAL_WINDOW * Frame.MAX_PAYLOAD * 4);
+        channel.open();
+        channel.send(data);
+        advance(10000);
+        assertEquals(1, peer.getCrcErrors());
+        assertArrayEquals(data, received.toByteArray());
+        assertTrue(channel.isIdle());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // With no answer the timeout doubles up to MAX_RTO, and the channel fails after MAX_SENDS transmissions
+    @Test
+    public void backsOffAndFailsAfterMaxSends() {
+        rule = new Rule() {
+            @Override
+            public int apply(int index, byte[] packet) {
+                return DROP;
+            }
+        };
+        channel.open();
+        channel.send(data(Frame.MAX_PAYLOAD));
+        advance(60000);
+        assertEquals(FramedChannel.MAX_SENDS, resetTimes.size());                                   //Oldest frame in flight is sent again on each timeout
+        long expected = FramedChannel.INITIAL_RTO;
+        for (int i = 1; i < resetTimes.size(); i++) {
+            assertEquals(expected, resetTimes.get(i) - resetTimes.get(i - 1));
+            expected = Math.min(FramedChannel.MAX_RTO, expected * 2);
+        }
+        assertEquals(1, failures);
+        assertTrue(channel.isFailed());
+        assertFalse(channel.isOpen());
+        assertFalse(channel.send(data(1)));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+package com.microchip.mldpterminal3;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Connection interval estimate of LinkMonitor from write timestamps.
+ */
+public class LinkMonitorTest implements CommandEngine.Scheduler {
+
+    private static final long MILLIS = 1000000;                                                     //Nanoseconds
+
+    private Runnable sampleTask;
+    private LinkMonitor monitor;
+
+    @Before
+    public void setUp() {
+        monitor = new LinkMonitor(this, new LinkMonitor.Probe() {
+            @Override
+            public boolean readRssi() {
+                return true;
+            }
+        });
+        monitor.start();
+    }
+
+    @Override
+    public long currentTimeMillis() {
+        return 0;
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        sampleTask = task;
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        sampleTask = null;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Writes waiting in the queue start as soon as the previous one completes, their completions follow the link
+    @Test
+    public void backToBackWritesGiveTheInterval() {
+        long now = 0;
+        for (int i = 0; i < 20; i++) {
+            monitor.onWriteStarted(now);
+            now += 30 * MILLIS;
+            monitor.onWriteCompleted(now);
+            now += MILLIS / 10;
+        }
+        sampleTask.run();
+        assertEquals(30, monitor.getIntervalMillis(), 0.5);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // A DFU writes a packet every 18ms into an empty queue. The completions follow the pacing, not the link.
+    @Test
+    public void pacedWritesAreNotUsed() {
+        long now = 0;
+        for (int i = 0; i < 20; i++) {
+            monitor.onWriteStarted(now);
+            monitor.onWriteCompleted(now + 8 * MILLIS);
+            now += 18 * MILLIS;
+        }
+        sampleTask.run();
+        assertEquals(0, monitor.getIntervalMillis(), 0);
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+
+package com.microchip.mldpterminal3;
+
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Soak test of the receive path: hours of notifications in seconds, watching memory, GC and latency.
+ *
+ * A synthetic stream of sensor lines, with multi-byte characters split between packets, is cut into notifications and
+ * handed to the same code the service runs for each packet: ReceiveStats, the StreamDecoder, the SessionBuffer, the
+ * copy made for the broadcast and the reply matching of a running DfuStateMachine. Time is virtual, so a day at 100
+ * packets per second takes a few seconds. The stream is pre-generated so the harness itself does not
+ * allocate per packet and the garbage counted is the garbage of the code under test.
+ *
+ * The run is cut into windows of simulated time. For each window the harness keeps the heap left after a full
+ * collection, the collections and collection time of the window, and the percentiles of the time from the arrival of
+ * a packet to its text being buffered. After the warm-up windows, a least squares line is fitted to each of these
+ * series and the test fails if one of them rises by more than the tolerance from the first window to the last. The
+ * terminal TextView is not part of the headless path. The number and length of the windows are the parameters.
+ *
+ * The soak takes a while, so it only runs when the soak system property is true (./gradlew test -Psoak). The per
+ * window report is printed only when the test fails, as the message of the assertion.
+ */
+@RunWith(Parameterized.class)
+public class ReceiveSoakTest implements CommandEngine.Scheduler {
+
+    private static final String[] SERIES = {"heap_kb", "gc_count", "gc_ms", "p50_us", "p99_us", "p999_us"};
+    private static final double[] FLOORS = {256, 2, 20, 5, 20, 50};                                 //Rise ignored below these, in the unit of each series
+    private static final int HEAP = 0, GC_COUNT = 1, GC_TIME = 2, P50 = 3, P99 = 4, P999 = 5;
+    private static final int LATENCY_BUCKETS = 20000;                                               //0.1us per bucket up to 2ms, slower packets go in the last one
+    private static final int PATTERN_LINES = 512;                                                   //Lines of the pre-generated stream, repeated
+    private static final int RATE = 100;                                                            //Packets per second
+    private static final int PACKET_SIZE = 20;
+    private static final int WARMUP = 2;                                                            //Windows left out of the fit
+    private static final double TOLERANCE = 0.25;                                                   //Rise allowed over the run, fraction of the mean
+
+    private final int windows;
+    private final long windowMinutes;
+
+    private long nowNanos;                                                                          //Virtual clock
+    private final List<Task> tasks = new ArrayList<Task>();
+
+    private static class Task {
+        final long nanos;
+        final Runnable runnable;
+
+        Task(long nanos, Runnable runnable) {
+            this.nanos = nanos;
+            this.runnable = runnable;
+        }
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Virtual clock for the code under test
+    @Override
+    public long currentTimeMillis() {
+        return nowNanos / 1000000;
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        tasks.add(new Task(nowNanos + delayMillis * 1000000, task));
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        final Iterator<Task> iterator = tasks.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().runnable == task) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void advanceTo(long nanos) {
+        nowNanos = nanos;
+        for (int i = 0; i < tasks.size(); i++) {                                                    //Tasks are rare, a list is enough
+            final Task task = tasks.get(i);
+            if (task.nanos <= nanos) {
+                tasks.remove(i--);
+                task.runnable.run();
+            }
+        }
+    }
+
+    @Parameterized.Parameters(name = "{0} windows of {1} minutes")
+    public static Collection<Object[]> cases() {
+        return Arrays.asList(new Object[][] {
+                {12, 5},                                                                            //One hour, to catch a fast leak
+                {96, 15}                                                                            //A day of streaming
+        });
+    }
+
+    public ReceiveSoakTest(int windows, long windowMinutes) {
+        this.windows = windows;
+        this.windowMinutes = windowMinutes;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Fails if the heap, the collections or a latency percentile trends upward after the warm-up
+    @Test
+    public void receivePathDoesNotDegrade() throws InterruptedException {
+        Assume.assumeTrue("Soak runs with -Psoak", Boolean.getBoolean("soak"));
+        final ByteArrayOutputStream text = new ByteArrayOutputStream();
+        final PrintStream out = new PrintStream(text);
+        final double[][] series = run(RATE, PACKET_SIZE, RATE * windowMinutes * 60, windows, out);
+        final boolean passed = report(series, WARMUP, TOLERANCE, out);
+        out.flush();
+        assertTrue("A series trends upward:\n" + text, passed);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Drive the receive path for the given number of windows. Returns one row per series with one value per window.
+    private double[][] run(int rate, int packetSize, long windowPackets, int windows, PrintStream out) throws InterruptedException {
+        final byte[] pattern = pattern();
+        final byte[] packet = new byte[packetSize];                                                 //Reused, BluetoothGatt hands out a new value per notification
+        final long periodNanos = 1000000000L / rate;
+        final ReceiveStats stats = new ReceiveStats(false);
+        final StreamDecoder decoder = new StreamDecoder(Charset.forName("UTF-8"));
+        final SessionBuffer buffer = new SessionBuffer(SessionBuffer.DEFAULT_CAPACITY);
+        final DfuStateMachine dfuState = new DfuStateMachine(this);
+        final long[] latency = new long[LATENCY_BUCKETS];
+        final double[][] series = new double[SERIES.length][windows];
+        long copiedChars = 0;                                                                       //Keeps the broadcast copies from being optimized away
+        int offset = 0;
+
+        dfuState.start(false);                                                                      //Streaming, so every packet goes through the reply matching
+        out.println(String.format(Locale.US, "%d windows of %d packets, %d bytes at %d packets/s", windows, windowPackets, packetSize, rate));
+        out.println(String.format(Locale.US, "%6s %10s %9s %8s %8s %8s %8s %8s", "window", "heap_kb", "gc_count", "gc_ms", "p50_us", "p99_us", "p999_us", "max_us"));
+        long[] gcBase = gcCounts();
+        for (int window = 0; window < windows; window++) {
+            Arrays.fill(latency, 0);
+            long maxNanos = 0;
+            for (long n = 0; n < windowPackets; n++) {
+                for (int i = 0; i < packetSize; i++) {
+                    packet[i] = pattern[offset];
+                    offset = offset + 1 < pattern.length ? offset + 1 : 0;
+                }
+                advanceTo(nowNanos + periodNanos);
+                final long start = System.nanoTime();
+                stats.onReceived(packetSize, nowNanos);                                             //Same steps as onCharacteristicChanged
+                final CharSequence text = decoder.decode(packet);
+                if (text.length() > 0) {
+                    buffer.append(text, true);
+                    copiedChars += text.toString().length();                                        //The service copies the text into the broadcast intent
+                    dfuState.onTextReceived(text);
+                }
+                final long elapsed = System.nanoTime() - start;
+                stats.onConfirmed(nowNanos + elapsed);
+                DebugEvents.record(DebugEvents.EVENT_DATA_RECEIVED, packetSize, (int) Math.min(Short.MAX_VALUE, elapsed / 1000));
+                latency[(int) Math.min(LATENCY_BUCKETS - 1, elapsed / 100)]++;
+                maxNanos = Math.max(maxNanos, elapsed);
+            }
+            final long[] gc = gcCounts();                                                           //Before the full collection below
+            series[GC_COUNT][window] = gc[0] - gcBase[0];
+            series[GC_TIME][window] = gc[1] - gcBase[1];
+            series[HEAP][window] = retainedHeap() / 1024.0;
+            gcBase = gcCounts();
+            series[P50][window] = percentile(latency, windowPackets, 0.50);
+            series[P99][window] = percentile(latency, windowPackets, 0.99);
+            series[P999][window] = percentile(latency, windowPackets, 0.999);
+            out.println(String.format(Locale.US, "%6d %10.0f %9.0f %8.0f %8.1f %8.1f %8.1f %8.1f", window, series[HEAP][window], series[GC_COUNT][window],
+                    series[GC_TIME][window], series[P50][window], series[P99][window], series[P999][window], maxNanos / 1000.0));
+        }
+        out.println(stats);
+        out.println(String.format(Locale.US, "Decoded %d bytes into %d chars (%d copied), %d chars buffered, DFU matcher %s",
+                decoder.getBytesDecoded(), decoder.getCharsDecoded(), copiedChars, buffer.getReceived(), dfuState.getState()));
+        return series;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Fit a line to each series after the warm-up and check its rise. Returns false if one of them trends upward.
+    private static boolean report(double[][] series, int warmup, double tolerance, PrintStream out) {
+        boolean passed = true;
+        for (int s = 0; s < series.length; s++) {
+            final double[] values = series[s];
+            final int count = values.length - warmup;
+            double meanX = 0, meanY = 0;
+            for (int i = warmup; i < values.length; i++) {
+                meanX += i;
+                meanY += values[i];
+            }
+            meanX /= count;
+            meanY /= count;
+            double sxy = 0, sxx = 0;
+            for (int i = warmup; i < values.length; i++) {
+                sxy += (i - meanX) * (values[i] - meanY);
+                sxx += (i - meanX) * (i - meanX);
+            }
+            final double rise = sxy / sxx * (count - 1);                                            //Fitted change from the first window to the last
+            final double limit = Math.max(FLOORS[s], tolerance * Math.abs(meanY));
+            final boolean ok = rise <= limit;
+            passed &= ok;
+            out.println(String.format(Locale.US, "%-8s mean %10.1f rise %+10.1f limit %8.1f %s", SERIES[s], meanY, rise, limit, ok ? "ok" : "TRENDING UP"));
+        }
+        out.println(passed ? "PASSED" : "FAILED");
+        return passed;
+    }
+
+    // Latency in microseconds below which the given fraction of the packets fell
+    private static double percentile(long[] buckets, long total, double fraction) {
+        final long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return (i + 1) / 10.0;
+            }
+        }
+        return buckets.length / 10.0;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Sensor lines like a module streaming CSV, with a degree sign so characters get split between packets
+    private static byte[] pattern() {
+        final Random random = new Random(1);
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < PATTERN_LINES; i++) {
+            text.append(String.format(Locale.US, "%d,%.2f\u00b0C,%.1f%%,%.2f\r\n", i, 20 + random.nextGaussian(), 45 + random.nextGaussian() * 5,
+                    1013 + random.nextGaussian()));
+        }
+        return text.toString().getBytes(Charset.forName("UTF-8"));
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Heap in use after a full collection, in bytes
+    private static long retainedHeap() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {                                                               //Several passes, a single System.gc() may leave garbage behind
+            System.gc();
+            Thread.sleep(20);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Collections and collection time in milliseconds since the JVM started, summed over all collectors
+    private static long[] gcCounts() {
+        final long[] result = {0, 0};
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            result[0] += Math.max(0, bean.getCollectionCount());
+            result[1] += Math.max(0, bean.getCollectionTime());
+        }
+        return result;
+    }
+}
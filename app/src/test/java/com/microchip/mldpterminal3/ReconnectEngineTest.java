@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+package com.microchip.mldpterminal3;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ReconnectEngine against a connector that records its attempts, on a virtual clock. The outcome of each attempt is
+ * given by the test with the tag of the attempt, the way the GATT callbacks give it.
+ */
+public class ReconnectEngineTest implements CommandEngine.Scheduler {
+
+    private static final ReconnectEngine.Policy POLICY = new ReconnectEngine.Policy(250, 2000, 0.5, 5000, 3, 0);
+
+    private long now;
+    private final List<Object[]> tasks = new ArrayList<Object[]>();                                 //Due time and task
+    private final List<Integer> tags = new ArrayList<Integer>();                                    //Tag of each attempt started
+    private int aborts, connections, giveUps;
+    private boolean refuse;
+    private ReconnectEngine engine;
+
+    @Before
+    public void setUp() {
+        engine = new ReconnectEngine(this, new ReconnectEngine.Connector() {
+            @Override
+            public boolean connect(int attempt, int tag) {
+                tags.add(tag);
+                return !refuse;
+            }
+
+            @Override
+            public void abort() {
+                aborts++;
+            }
+        }, new Random(1));
+        engine.setListener(new ReconnectEngine.Listener() {
+            @Override
+            public void onConnected(int attempts, long latencyMillis) {
+                connections++;
+            }
+
+            @Override
+            public void onGaveUp(int attempts, long elapsedMillis) {
+                giveUps++;
+            }
+        });
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Virtual clock
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        tasks.add(new Object[] {now + delayMillis, task});
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        final Iterator<Object[]> iterator = tasks.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next()[1] == task) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // Run the tasks due in the next millis in order, including those they schedule
+    private void advance(long millis) {
+        final long end = now + millis;
+        while (true) {
+            Object[] next = null;
+            for (Object[] task : tasks) {
+                if ((Long) task[0] <= end && (next == null || (Long) task[0] < (Long) next[0])) {
+                    next = task;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            tasks.remove(next);
+            now = (Long) next[0];
+            ((Runnable) next[1]).run();
+        }
+        now = end;
+    }
+
+    @Test
+    public void connectsOnFirstAttempt() {
+        engine.start(POLICY);
+        assertEquals(1, tags.size());
+        assertTrue(engine.onConnected(tags.get(0)));
+        assertFalse(engine.isActive());
+        assertEquals(1, connections);
+        advance(60000);
+        assertEquals(1, tags.size());                                                               //Timeout was cancelled
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // A connection that comes after its attempt timed out and was aborted must not be taken, its BluetoothGatt is closed
+    @Test
+    public void connectionAfterTimeoutIsIgnored() {
+        engine.start(POLICY);
+        advance(POLICY.getConnectTimeout());
+        assertEquals(1, aborts);
+        assertFalse(engine.onConnected(tags.get(0)));
+        assertEquals(0, connections);
+        assertTrue(engine.isActive());
+        advance(2000);
+        assertEquals(2, tags.size());                                                               //Next attempt still follows
+        assertTrue(engine.onConnected(tags.get(1)));
+        assertEquals(1, connections);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // A failure and the timeout of the same attempt, or a failure reported twice, start one next attempt only
+    @Test
+    public void failureEndsTheAttemptOnce() {
+        engine.start(POLICY);
+        engine.onConnectFailed(tags.get(0));
+        engine.onConnectFailed(tags.get(0));
+        assertEquals(1, aborts);
+        advance(POLICY.getConnectTimeout() - 1);
+        assertEquals(2, tags.size());
+        assertEquals(1, aborts);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The failure of an attempt that already ended does not abort the attempt in progress
+    @Test
+    public void lateFailureIsIgnored() {
+        engine.start(POLICY);
+        advance(POLICY.getConnectTimeout() + 2000);
+        assertEquals(2, tags.size());
+        engine.onConnectFailed(tags.get(0));
+        assertEquals(1, aborts);
+        assertTrue(engine.onConnected(tags.get(1)));
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Callbacks of the attempts of a replaced run are ignored
+    @Test
+    public void restartIgnoresThePreviousRun() {
+        engine.start(POLICY);
+        engine.start(POLICY);
+        assertFalse(engine.onConnected(tags.get(0)));
+        assertTrue(engine.onConnected(tags.get(1)));
+        assertEquals(1, connections);
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() {
+        refuse = true;
+        engine.start(POLICY);
+        advance(60000);
+        assertEquals(3, tags.size());
+        assertEquals(1, giveUps);
+        assertFalse(engine.isActive());
+    }
+}
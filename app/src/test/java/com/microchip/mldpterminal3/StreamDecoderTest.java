@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+package com.microchip.mldpterminal3;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * StreamDecoder in charset and raw mode.
+ */
+public class StreamDecoderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void characterSplitBetweenPackets() {
+        final StreamDecoder decoder = new StreamDecoder(UTF_8);
+        final byte[] text = "20.5\u00b0C".getBytes(UTF_8);                                          //Degree sign is two bytes
+        assertEquals("20.5", decoder.decode(new byte[] {text[0], text[1], text[2], text[3], text[4]}).toString());
+        assertEquals(1, decoder.getPendingBytes());
+        assertEquals("\u00b0C", decoder.decode(new byte[] {text[5], text[6]}).toString());
+        assertEquals(0, decoder.getPendingBytes());
+    }
+
+    @Test
+    public void rawModeKeepsByteValues() {
+        final StreamDecoder decoder = new StreamDecoder(null);
+        assertEquals("A\u00b0\u00ff", decoder.decode(new byte[] {'A', (byte) 0xb0, (byte) 0xff}).toString());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // BluetoothGattCharacteristic.getValue() may return null
+    @Test
+    public void nullPacketIsEmpty() {
+        final StreamDecoder raw = new StreamDecoder(null);
+        assertEquals(0, raw.decode(null).length());
+        final StreamDecoder decoder = new StreamDecoder(UTF_8);
+        decoder.decode(new byte[] {'A', (byte) 0xc2});
+        assertEquals(0, decoder.decode(null).length());
+        assertEquals(1, decoder.getPendingBytes());
+        assertEquals("\u00b0", decoder.decode(new byte[] {(byte) 0xb0}).toString());
+    }
+}
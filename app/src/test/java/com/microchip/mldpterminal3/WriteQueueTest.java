@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2015 Microchip Technology Inc. and its subsidiaries.  You may use this software and any derivatives
+ * exclusively with Microchip products.
+ *
+ * THIS SOFTWARE IS SUPPLIED BY MICROCHIP "AS IS".  NO WARRANTIES, WHETHER EXPRESS, IMPLIED OR STATUTORY, APPLY TO THIS
+ * SOFTWARE, INCLUDING ANY IMPLIED WARRANTIES OF NON-INFRINGEMENT, MERCHANTABILITY, AND FITNESS FOR A PARTICULAR
+ * PURPOSE, OR ITS INTERACTION WITH MICROCHIP PRODUCTS, COMBINATION WITH ANY OTHER PRODUCTS, OR USE IN ANY APPLICATION.
+ *
+ * IN NO EVENT WILL MICROCHIP BE LIABLE FOR ANY INDIRECT, SPECIAL, PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSS, DAMAGE,
+ * COST OR EXPENSE OF ANY KIND WHATSOEVER RELATED TO THE SOFTWARE, HOWEVER CAUSED, EVEN IF MICROCHIP HAS BEEN ADVISED OF
+ * THE POSSIBILITY OR THE DAMAGES ARE FORESEEABLE.  TO THE FULLEST EXTENT ALLOWED BY LAW, MICROCHIP'S TOTAL LIABILITY ON
+ * ALL CLAIMS IN ANY WAY RELATED TO THIS SOFTWARE WILL NOT EXCEED THE AMOUNT OF FEES, IF ANY, THAT YOU HAVE PAID
+ * DIRECTLY TO MICROCHIP FOR THIS SOFTWARE.
+ *
+ * MICROCHIP PROVIDES THIS SOFTWARE CONDITIONALLY UPON YOUR ACCEPTANCE OF THESE TERMS.
+ */
+package com.microchip.mldpterminal3;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * WriteQueue against a sink that records the writes it is asked to start, on a virtual clock.
+ */
+public class WriteQueueTest implements CommandEngine.Scheduler {
+
+    private static final String TARGET = "characteristic";
+
+    private long now;
+    private final List<Object[]> tasks = new ArrayList<Object[]>();                                 //Due time and task
+    private final List<byte[]> started = new ArrayList<byte[]>();
+    private boolean refuse;
+    private int lockedStarts;                                                                       //Writes started with the queue monitor held
+    private WriteQueue<String> queue;
+
+    @Before
+    public void setUp() {
+        queue = new WriteQueue<String>(new WriteQueue.Sink<String>() {
+            @Override
+            public boolean startWrite(String target, byte[] value, int writeType) {
+                if (Thread.holdsLock(queue)) {
+                    lockedStarts++;
+                }
+                if (refuse) {
+                    return false;
+                }
+                started.add(value);
+                return true;
+            }
+        }, this, 8, 6, 2);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // Virtual clock
+    @Override
+    public long currentTimeMillis() {
+        return now;
+    }
+
+    @Override
+    public void schedule(Runnable task, long delayMillis) {
+        tasks.add(new Object[] {now + delayMillis, task});
+    }
+
+    @Override
+    public void cancel(Runnable task) {
+        final Iterator<Object[]> iterator = tasks.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next()[1] == task) {
+                iterator.remove();
+            }
+        }
+    }
+
+    // Run the tasks due in the next millis in order, including those they schedule
+    private void advance(long millis) {
+        final long end = now + millis;
+        while (true) {
+            Object[] next = null;
+            for (Object[] task : tasks) {
+                if ((Long) task[0] <= end && (next == null || (Long) task[0] < (Long) next[0])) {
+                    next = task;
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            tasks.remove(next);
+            now = (Long) next[0];
+            ((Runnable) next[1]).run();
+        }
+        now = end;
+    }
+
+    @Test
+    public void writesOneAtATime() {
+        final WriteHandle first = queue.write(TARGET, new byte[] {1}, 1);
+        final WriteHandle second = queue.write(TARGET, new byte[] {2}, 1);
+        assertEquals(1, started.size());
+        queue.onWriteComplete(WriteHandle.STATUS_SUCCESS);
+        assertTrue(first.isSuccess());
+        assertEquals(2, started.size());
+        queue.onWriteComplete(WriteHandle.STATUS_SUCCESS);
+        assertTrue(second.isSuccess());
+        assertTrue(queue.isEmpty());
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // A DFU that fails while the link is being restored cancels its writes. The queue must stay held, or the next write
+    // goes to the BluetoothGatt of the lost link.
+    @Test
+    public void clearKeepsQueueHeld() {
+        queue.write(TARGET, new byte[] {1}, 1);
+        queue.hold();
+        final WriteHandle queued = queue.write(TARGET, new byte[] {2}, 1);
+        queue.clear();
+        assertEquals(WriteHandle.STATUS_CANCELLED, queued.getStatus());
+        assertTrue(queue.isHeld());
+
+        queue.write(TARGET, new byte[] {3}, 1);
+        advance(1000);
+        assertEquals("A write started while the queue was held", 1, started.size());
+
+        queue.resume();
+        assertFalse(queue.isHeld());
+        assertEquals(2, started.size());
+        assertEquals(3, started.get(1)[0]);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The sink is a binder call on the phone, the queue must not hold its monitor during it on any path
+    @Test
+    public void sinkIsCalledWithoutTheLock() {
+        queue.write(TARGET, new byte[] {1}, 1);                                                     //Idle queue
+        queue.write(TARGET, new byte[] {2}, 1);
+        queue.onWriteComplete(WriteHandle.STATUS_SUCCESS);                                          //Next write
+        queue.retryHead();                                                                          //Watchdog
+        queue.hold();
+        queue.resume();                                                                             //Restored link
+        refuse = true;
+        queue.drainHead(WriteHandle.STATUS_TIMEOUT);
+        queue.write(TARGET, new byte[] {3}, 1);
+        advance(WriteQueue.BUSY_RETRY_DELAY * 2);                                                   //Busy retries
+        assertEquals(0, lockedStarts);
+    }
+
+    // ----------------------------------------------------------------------------------------------------------------
+    // The watchdog drained a write BluetoothGatt was still working on. Its late completion must not complete the next
+    // write, and the next write must wait for it rather than be refused as busy.
+    @Test
+    public void lateCompletionOfDrainedWriteIsDropped() {
+        final WriteHandle drained = queue.write(TARGET, new byte[] {1}, 1);
+        final WriteHandle next = queue.write(TARGET, new byte[] {2}, 1);
+        queue.drainHead(WriteHandle.STATUS_TIMEOUT);
+        assertEquals(WriteHandle.STATUS_TIMEOUT, drained.getStatus());
+        assertEquals("Started while BluetoothGatt was busy", 1, started.size());
+
+        advance(50);
+        queue.onWriteComplete(WriteHandle.STATUS_SUCCESS);                                          //Completion of the drained write
+        assertFalse(next.isDone());
+        assertEquals(1, queue.getStaleCompletions());
+        assertEquals(2, started.size());
+
+        queue.onWriteComplete(WriteHandle.STATUS_SUCCESS);
+        assertTrue(next.isSuccess());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void nextWriteStartsWhenDrainedWriteNeverCompletes() {
+        queue.write(TARGET, new byte[] {1}, 1);
+        final WriteHandle next = queue.write(TARGET, new byte[] {2}, 1);
+        queue.drainHead(WriteHandle.STATUS_TIMEOUT);
+        advance(WriteQueue.STALE_WAIT - 1);
+        assertEquals(1, started.size());
+        advance(1);
+        assertEquals(2, started.size());
+        queue.onWriteComplete(WriteHandle.STATUS_SUCCESS);
+        assertTrue(next.isSuccess());
+        assertEquals(0, queue.getStaleCompletions());
+    }
+
+    @Test
+    public void completionAfterClearIsDropped() {
+        queue.write(TARGET, new byte[] {1}, 1);
+        queue.clear();
+        final WriteHandle next = queue.write(TARGET, new byte[] {2}, 1);
+        queue.onWriteComplete(WriteHandle.STATUS_SUCCESS);                                          //Completion of the cleared write
+        assertFalse(next.isDone());
+        assertEquals(2, started.size());
+        queue.onWriteComplete(WriteHandle.STATUS_SUCCESS);
+        assertTrue(next.isSuccess());
+    }
+
+    @Test
+    public void busyWriteFailsAfterRetries() {
+        refuse = true;
+        final WriteHandle handle = queue.write(TARGET, new byte[] {1}, 1);
+        advance(WriteQueue.BUSY_RETRY_DELAY * WriteQueue.BUSY_RETRY_LIMIT);
+        assertEquals(WriteHandle.STATUS_BUSY, handle.getStatus());
+        assertTrue(queue.isEmpty());
+    }
+}